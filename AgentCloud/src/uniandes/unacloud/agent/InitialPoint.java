@@ -9,6 +9,7 @@ import java.io.PrintStream;
 import java.util.Date;
 
 import uniandes.unacloud.agent.execution.AgentManager;
+import uniandes.unacloud.agent.execution.ExecutorService;
 import uniandes.unacloud.agent.execution.PersistentExecutionManager;
 import uniandes.unacloud.agent.host.system.OSFactory;
 import uniandes.unacloud.agent.net.receive.ClouderClientAttention;
@@ -17,6 +18,8 @@ import uniandes.unacloud.agent.net.send.ServerMessageSender;
 import uniandes.unacloud.agent.net.torrent.TorrentClient;
 import uniandes.unacloud.agent.platform.PlatformFactory;
 import uniandes.unacloud.agent.utils.VariableManager;
+import uniandes.unacloud.common.net.codec.MessageCodec;
+import uniandes.unacloud.common.net.codec.WireProtocol;
 import uniandes.unacloud.common.utils.UnaCloudConstants;
 
 import uniandes.unacloud.utils.file.Zipper;
@@ -29,10 +32,6 @@ import uniandes.unacloud.utils.file.Zipper;
  */
 public class InitialPoint {
 
-	/**
-	 * Number of threads to attend messages from server
-	 */
-	private static final int THREADS = 10;
 	/**
 	 * Allowed users in the system
 	 */
@@ -143,6 +142,8 @@ public class InitialPoint {
 	    }      
 
         try {
+        	//Protocol used to talk with server, java serialization by default
+        	MessageCodec.setDefaultProtocol(WireProtocol.getEnum(VariableManager.getInstance().getGlobal().getStringVariable(UnaCloudConstants.WIRE_PROTOCOL)));
         	//Init services
         	//register platforms
         	System.out.println("Register platforms");
@@ -154,7 +155,7 @@ public class InitialPoint {
         	System.out.println("Start reporter");        	
             PhysicalMachineStateReporter.getInstance().start();            
            //Attend messages from server
-			ClouderClientAttention.getInstance(VariableManager.getInstance().getGlobal().getIntegerVariable(UnaCloudConstants.AGENT_PORT), THREADS).start();
+			ClouderClientAttention.getInstance(VariableManager.getInstance().getGlobal().getIntegerVariable(UnaCloudConstants.AGENT_PORT), ExecutorService.getAttentionThreads()).start();
 		} catch (Exception e) {
 			e.printStackTrace();
 			System.exit(0);
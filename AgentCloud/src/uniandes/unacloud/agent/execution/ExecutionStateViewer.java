@@ -1,88 +1,209 @@
 package uniandes.unacloud.agent.execution;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import uniandes.unacloud.agent.host.system.OSFactory;
+import uniandes.unacloud.agent.execution.domain.Execution;
+import uniandes.unacloud.agent.execution.domain.ImageStatus;
 import uniandes.unacloud.agent.net.send.ServerMessageSender;
-import uniandes.unacloud.agent.utils.SystemUtils;
 import uniandes.unacloud.common.enums.ExecutionProcessEnum;
 
 /**
- * This class is responsible for checking if an execution has been correctly deployed. That is, if the execution has started and if it has well configured its IP address
+ * This class is responsible for checking if an execution has been correctly deployed. That is, if the execution has started and if it has well configured its IP address.
+ * Executions are probed in a shared scheduler using ICMP (or TCP echo) and TCP connections to common ports, time between probes grows with jittered exponential backoff.
+ * State is reported as soon as execution responds, no thread is blocked while execution is not reachable.
+ * Executions which don't respond are removed in control pool, so stopping them doesn't delay probes of other executions.
  * @author Clouder
  */
 public class ExecutionStateViewer {
-	
+
+	/**
+	 * Quantity of threads used to probe executions
+	 */
+	private static final int PROBE_THREADS = 4;
+
+	/**
+	 * Time in milliseconds before first probe
+	 */
+	private static final long FIRST_PROBE_DELAY = 1000;
+
+	/**
+	 * Max time in milliseconds between probes
+	 */
+	private static final long MAX_PROBE_DELAY = 30000;
+
+	/**
+	 * Max time in milliseconds to wait for execution to respond
+	 */
+	private static final long TIMEOUT = 240000;
+
+	/**
+	 * Time in milliseconds to wait for each probe
+	 */
+	private static final int PROBE_TIMEOUT = 1000;
+
+	/**
+	 * Fraction of delay randomly added or subtracted, so probes of executions started together are spread
+	 */
+	private static final double JITTER = 0.2;
+
+	/**
+	 * Ports probed with TCP connections, ssh and remote desktop
+	 */
+	private static final int[] PROBE_PORTS = {22, 3389};
+
+	/**
+	 * Scheduler shared by all viewers
+	 */
+	private static final ScheduledExecutorService prober = Executors.newScheduledThreadPool(PROBE_THREADS);
+
+	/**
+	 * Random object to calculate jitter
+	 */
+	private static final Random random = new Random();
+
 	/**
-	 * Execution ID
+	 * Execution to be checked
 	 */
-	private long executionCode;
-	
+	private final Execution execution;
+
 	/**
 	 * IP to be check
 	 */
-	private String vmIP;
-	
+	private final String vmIP;
+
+	/**
+	 * Time when execution is considered unreachable
+	 */
+	private long deadline;
+
+	/**
+	 * Time to wait before next probe
+	 */
+	private long delay;
+
 	/**
 	 * constructs an ExecutionStateViewer for the given execution.
-	 * @param executionCode The execution id to make the execution status report to the server
-     * @param vmIP The IP address to check if the execution is accessible
+	 * @param execution The execution to be checked, its main interface IP is used to check if the execution is accessible
 	 */
-	public ExecutionStateViewer(long executionCode,String vmIP) {
-		this.executionCode = executionCode;
-		this.vmIP = vmIP;
+	public ExecutionStateViewer(Execution execution) {
+		this.execution = execution;
+		this.vmIP = execution.getMainInterface().getIp();
 	}
 
     /**
-     *  On this method the execution is checked and the state is reported to UnaCloud server
+     * Starts checking execution in background, state is reported to UnaCloud server when execution responds or when timeout expires
      */
-    public boolean check() {
+    public void start() {
     	System.out.println("Start checking by ip to " + vmIP);
-        boolean red = false;
-        SystemUtils.sleep(3000);
-       
-        for (int e = 0; e < 8 && !red; e++)
-            if (!(red = pingVerification(vmIP)))
-            	 SystemUtils.sleep(30000);        
-        try {
-        	if (red) {
-        		ServerMessageSender.reportExecutionState(executionCode, ExecutionProcessEnum.SUCCESS, "Execution is running");
-        		return true;
-        	}
-            else {
-                PersistentExecutionManager.removeExecution(executionCode, false);
-                ServerMessageSender.reportExecutionState(executionCode, ExecutionProcessEnum.FAIL, "Network error, execution initial ping doesn't respond");
-            }
-		} catch (Exception e) {
-			PersistentExecutionManager.removeExecution(executionCode, false);
-			e.printStackTrace();
-		}
-        return false;
+    	deadline = System.currentTimeMillis() + TIMEOUT;
+    	delay = FIRST_PROBE_DELAY;
+    	schedule();
     }
 
+    /**
+     * Schedules next probe and increases delay
+     */
+    private void schedule() {
+    	long jitter = (long) (delay * JITTER * (2 * random.nextDouble() - 1));
+    	long wait = Math.max(0, Math.min(delay + jitter, deadline - System.currentTimeMillis()));
+    	prober.schedule(new Runnable() {
+			@Override
+			public void run() {
+				probe();
+			}
+		}, wait, TimeUnit.MILLISECONDS);
+    	delay = Math.min(delay * 2, MAX_PROBE_DELAY);
+    }
 
     /**
-     * Pings a given address
-     * @param vmIP The IP to be pinged
-     * @return True if the given IP responds ping, false otherwise
+     * Probes execution, reports state or schedules a new probe
      */
-    private boolean pingVerification(String vmIP) {
+    private void probe() {
+    	try {
+    		if (PersistentExecutionManager.getExecution(execution.getId()) != execution) {
+    			System.out.println("Execution " + execution.getId() + " was removed, stop checking " + vmIP);
+    			return;
+    		}
+    		if (isReachable(vmIP)) {
+    			execution.getImage().setStatus(ImageStatus.LOCK);
+    			ServerMessageSender.reportExecutionState(execution.getId(), ExecutionProcessEnum.SUCCESS, "Execution is running");
+    			return;
+    		}
+    		if (System.currentTimeMillis() < deadline) {
+    			schedule();
+    			return;
+    		}
+    		remove("Network error, execution initial ping doesn't respond");
+    	} catch (Exception e) {
+    		e.printStackTrace();
+    		remove(null);
+    	}
+    }
+
+    /**
+     * Removes execution in control pool and reports its failure, removal is scheduled again in case control pool is full
+     * @param message failure reported to server, null in case nothing is reported
+     */
+    private void remove(final String message) {
+    	try {
+    		ExecutorService.executeControlTask(new Runnable() {
+    			@Override
+    			public void run() {
+    				PersistentExecutionManager.removeExecution(execution.getId(), false);
+    				if (message == null)
+    					return;
+    				try {
+    					ServerMessageSender.reportExecutionState(execution.getId(), ExecutionProcessEnum.FAIL, message);
+    				} catch (Exception e) {
+    					e.printStackTrace();
+    				}
+    			}
+    		});
+    	} catch (RejectedExecutionException e) {
+    		System.out.println("Removal of execution " + execution.getId() + " is delayed: " + e.getMessage());
+    		prober.schedule(new Runnable() {
+    			@Override
+    			public void run() {
+    				remove(message);
+    			}
+    		}, MAX_PROBE_DELAY, TimeUnit.MILLISECONDS);
+    	}
+    }
+
+    /**
+     * Probes a given address using ICMP echo, or TCP echo when agent can't send ICMP, and TCP connections to probe ports
+     * @param vmIP The IP to be probed
+     * @return True if the given IP responds, false otherwise
+     */
+    private static boolean isReachable(String vmIP) {
         try {
-        	Process p = Runtime.getRuntime().exec(OSFactory.getOS().getPingCommand(vmIP));
-            BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()));
-            for (String h; (h = br.readLine()) != null;) {
-                if (h.toUpperCase().contains("TTL")) {
-                    p.destroy();
-                    br.close();
-                    return true;
-                }
-            }
+        	InetAddress address = InetAddress.getByName(vmIP);
+        	if (address.isReachable(PROBE_TIMEOUT))
+        		return true;
+        	for (int port : PROBE_PORTS) {
+        		try (Socket s = new Socket()) {
+        			s.connect(new InetSocketAddress(address, port), PROBE_TIMEOUT);
+        			return true;
+        		} catch (ConnectException e) {
+        			//Connection was refused or reset by execution network stack, timeouts are thrown as SocketTimeoutException
+        			return true;
+        		} catch (IOException e) {
+        			//Not reachable in this port
+        		}
+        	}
         } catch (Exception ex) {
         	ex.printStackTrace();
         }
         return false;
     }
 
-
 }
@@ -1,54 +1,234 @@
 package uniandes.unacloud.agent.execution;
 
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uniandes.unacloud.agent.utils.VariableManager;
+import uniandes.unacloud.common.utils.UnaCloudConstants;
 
 /**
- * To manage thread pools to execute tasks
+ * To manage thread pools to execute tasks. Tasks are separated in three pools sized using host cores and memory:
+ * <ul>
+ * <li>Transfer pool: downloads of images for execution starts, uploads of images and files and deletion of evicted images, limited by disk and network</li>
+ * <li>Platform pool: execution starts once their image is downloaded and clones, limited by hypervisor, cores and memory. Starts are executed before warm pool clones</li>
+ * <li>Control pool: quick operations like execution stops, they never wait behind starts</li>
+ * </ul>
+ * Queues are bounded, when a queue is full task is rejected so server receives an error instead of waiting without limit.
  * @author CesarF
  *
  */
 public class ExecutorService {
-	
-	/**
-	 * Quantity of threads to process tasks in background
-	 */
-	//TODO it must be configured using the number of physical cores
-	public static final int BACKGROUND_POOL_THREAD_SIZE = 4;
-	
-	/**
-	 * Quantity of threads to process request from server
-	 */
-	public static final int REQUEST_POOL_THREAD_SIZE = 4;
-	
-	/**
-     * A pool of threads used to manage execution batch processes
-     */    
-    private static Executor backPool;
-    
-    /**
-     * A pool of threads used to manage file processes
-     */
-    private static Executor requestPool;
-    
-    /**
-     * Executes a new runnable entity 
-     * @param run
-     */
-    public static synchronized void executeBackgroundTask(Runnable run) {
-		System.out.println("Background: Executing task is back pool");
-		if (backPool == null)
-    		backPool = Executors.newFixedThreadPool(BACKGROUND_POOL_THREAD_SIZE);
-    	backPool.execute(run);
-    }
-    
-    /**
-     * Executes a new runnable entity 
-     * @param run
-     */
-    public static synchronized void executeRequestTask(Runnable run){
-    	if(requestPool==null)requestPool = Executors.newFixedThreadPool(REQUEST_POOL_THREAD_SIZE);
-    	requestPool.execute(run);
-    }
-    
+
+	/**
+	 * Default quantity of threads to process tasks in control pool
+	 */
+	private static final int DEFAULT_CONTROL_THREADS = 2;
+
+	/**
+	 * Default max quantity of tasks waiting in each pool
+	 */
+	private static final int DEFAULT_QUEUE_SIZE = 64;
+
+	/**
+	 * Memory in MB required by each execution started in parallel
+	 */
+	private static final long MEMORY_PER_PLATFORM_THREAD = 4096;
+
+	/**
+	 * Time in seconds an idle thread is kept
+	 */
+	private static final long KEEP_ALIVE = 60;
+
+	/**
+	 * Arrival order of tasks in platform pool
+	 */
+	private static final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * A pool of threads used to upload files
+	 */
+	private static ThreadPoolExecutor transferPool;
+
+	/**
+	 * A pool of threads used to execute platform operations
+	 */
+	private static ThreadPoolExecutor platformPool;
+
+	/**
+	 * A pool of threads used to execute quick operations
+	 */
+	private static ThreadPoolExecutor controlPool;
+
+	/**
+	 * Max quantity of tasks waiting in each pool
+	 */
+	private static int queueSize;
+
+	/**
+	 * Executes a file transfer or deletion task
+	 * @param run
+	 * @throws RejectedExecutionException in case transfer queue is full
+	 */
+	public static synchronized void executeTransferTask(Runnable run) {
+		if (transferPool == null)
+			transferPool = createPool("transfer", getConfigured(UnaCloudConstants.TRANSFER_THREADS, Math.max(2, Math.min(4, cores() / 2))),
+					new ArrayBlockingQueue<Runnable>(getQueueSize()));
+		transferPool.execute(run);
+	}
+
+	/**
+	 * Executes a platform task, tasks with higher priority are executed first
+	 * @param run
+	 * @param priority
+	 * @throws RejectedExecutionException in case platform queue is full
+	 */
+	public static synchronized void executePlatformTask(Runnable run, TaskPriority priority) {
+		if (platformPool == null)
+			platformPool = createPool("platform", getConfigured(UnaCloudConstants.PLATFORM_THREADS, getDefaultPlatformThreads()),
+					new PriorityBlockingQueue<Runnable>());
+		//Priority queue is unbounded, its size is checked before adding tasks
+		if (platformPool.getQueue().size() >= getQueueSize())
+			throw new RejectedExecutionException("Agent is busy, platform queue is full. " + getMetrics());
+		platformPool.execute(new PrioritizedTask(run, priority));
+	}
+
+	/**
+	 * Executes a quick control task
+	 * @param run
+	 * @throws RejectedExecutionException in case control queue is full
+	 */
+	public static synchronized void executeControlTask(Runnable run) {
+		if (controlPool == null)
+			controlPool = createPool("control", getConfigured(UnaCloudConstants.CONTROL_THREADS, DEFAULT_CONTROL_THREADS),
+					new ArrayBlockingQueue<Runnable>(getQueueSize()));
+		controlPool.execute(run);
+	}
+
+	/**
+	 * Returns quantity of threads used to attend requests from server, messages are only read and tasks queued in pools
+	 * @return threads
+	 */
+	public static int getAttentionThreads() {
+		return Math.max(4, cores());
+	}
+
+	/**
+	 * Returns active and queued tasks of each pool
+	 * @return metrics description
+	 */
+	public static synchronized String getMetrics() {
+		return "Pools - " + getMetrics("transfer", transferPool) + "; " + getMetrics("platform", platformPool) + "; " + getMetrics("control", controlPool);
+	}
+
+	/**
+	 * Returns quantity of tasks waiting in pools
+	 * @return queued tasks
+	 */
+	public static synchronized int getQueueDepth() {
+		int depth = 0;
+		for (ThreadPoolExecutor pool : new ThreadPoolExecutor[]{transferPool, platformPool, controlPool})
+			if (pool != null)
+				depth += pool.getQueue().size();
+		return depth;
+	}
+
+	private static String getMetrics(String name, ThreadPoolExecutor pool) {
+		if (pool == null)
+			return name + " not started";
+		return name + " active " + pool.getActiveCount() + "/" + pool.getMaximumPoolSize() + ", queued " + pool.getQueue().size() + ", completed " + pool.getCompletedTaskCount();
+	}
+
+	/**
+	 * Creates a pool with fixed quantity of threads
+	 * @param name used in rejection messages
+	 * @param threads
+	 * @param queue
+	 * @return pool
+	 */
+	private static ThreadPoolExecutor createPool(final String name, int threads, BlockingQueue<Runnable> queue) {
+		System.out.println("Executor: " + name + " pool with " + threads + " threads");
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS, queue, new RejectedExecutionHandler() {
+			@Override
+			public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+				throw new RejectedExecutionException("Agent is busy, " + name + " queue is full. " + getMetrics());
+			}
+		});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Returns positive value configured in local variable, or default value
+	 * @param variable
+	 * @param defaultValue
+	 * @return value
+	 */
+	private static int getConfigured(String variable, int defaultValue) {
+		try {
+			return Math.max(1, VariableManager.getInstance().getLocal().getIntegerVariable(variable, defaultValue));
+		} catch (Exception e) {
+			return defaultValue;
+		}
+	}
+
+	private static int getQueueSize() {
+		if (queueSize == 0)
+			queueSize = getConfigured(UnaCloudConstants.TASK_QUEUE_SIZE, DEFAULT_QUEUE_SIZE);
+		return queueSize;
+	}
+
+	private static int cores() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Each parallel start uses two cores and MEMORY_PER_PLATFORM_THREAD of host memory
+	 * @return default quantity of platform threads
+	 */
+	private static int getDefaultPlatformThreads() {
+		int threads = Math.max(1, cores() / 2);
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			long memory = ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize() / (1024 * 1024);
+			threads = (int) Math.max(1, Math.min(threads, memory / MEMORY_PER_PLATFORM_THREAD));
+		}
+		return threads;
+	}
+
+	/**
+	 * Task ordered by priority and then by arrival
+	 */
+	private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+
+		private final Runnable task;
+
+		private final TaskPriority priority;
+
+		private final long order;
+
+		public PrioritizedTask(Runnable task, TaskPriority priority) {
+			this.task = task;
+			this.priority = priority;
+			this.order = sequence.getAndIncrement();
+		}
+
+		@Override
+		public void run() {
+			task.run();
+		}
+
+		@Override
+		public int compareTo(PrioritizedTask o) {
+			int c = priority.compareTo(o.priority);
+			return c != 0 ? c : Long.compare(order, o.order);
+		}
+	}
 }
@@ -2,12 +2,14 @@ package uniandes.unacloud.agent.execution;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import uniandes.unacloud.agent.exceptions.ExecutionException;
 import uniandes.unacloud.agent.execution.domain.Execution;
@@ -18,7 +20,10 @@ import uniandes.unacloud.agent.host.system.OperatingSystem;
 import uniandes.unacloud.agent.net.download.DownloadImageTask;
 import uniandes.unacloud.agent.net.send.ServerMessageSender;
 import uniandes.unacloud.agent.net.torrent.TorrentClient;
-import uniandes.unacloud.agent.utils.SystemUtils;
+import uniandes.unacloud.agent.persistence.ImageCodec;
+import uniandes.unacloud.agent.persistence.JournalStore;
+import uniandes.unacloud.agent.platform.Platform;
+import uniandes.unacloud.agent.platform.PlatformFactory;
 import uniandes.unacloud.agent.utils.VariableManager;
 import uniandes.unacloud.common.enums.ExecutionProcessEnum;
 import uniandes.unacloud.common.enums.TransmissionProtocolEnum;
@@ -39,17 +44,45 @@ public class ImageCacheManager {
     private static final String machineRepository = VariableManager.getInstance().getLocal().getStringVariable(VM_REPO_PATH);
 
     /**
-     * Represents file where image list is stored
+     * Represents file where image list was stored by previous versions, it is imported when journal doesn't exist
      */
     private static final File imageListFile = new File("imageList");
+    
+    /**
+     * Journal where images are stored
+     */
+    private static final JournalStore<Image> imageStore = JournalStore.open("imageList", new ImageCodec());
 
     /**
      * Represents list of images currently stored in repository
      */
-    private static Map<Long, Image> imageList = null;
+    private static final ConcurrentHashMap<Long, Image> imageList = loadImages();
+    
+    /**
+     * Download, eviction or removal in progress by image, only one operation over image files is executed at the same time 
+     * and concurrent requests for the same image wait for it
+     */
+    private static final ConcurrentHashMap<Long, FutureTask<ImageCopy>> operations = new ConcurrentHashMap<Long, FutureTask<ImageCopy>>();
+    
+    /**
+     * Default quantity of ready linked clones kept by image
+     */
+    private static final int DEFAULT_WARM_POOL_SIZE = 1;
+    
+    /**
+     * Default free space in MB to be kept in data path, images are evicted when free space is lower
+     */
+    private static final int DEFAULT_CACHE_FREE_SPACE = 10 * 1024;
+    
+    /**
+     * True while an eviction is running in background
+     */
+    private static final AtomicBoolean evicting = new AtomicBoolean();
 
     /**
-     * Returns a free copy of the image
+     * Returns a free copy of the image.
+     * Copies are claimed atomically, image is downloaded only once when it is requested by many executions at the same time.
+     * When warm pool is enabled base copy is only used as template, a ready linked clone is claimed or created and pool is replenished in background.
      *
      * @param execution Given execution
      * @return type Type of transmission protocol
@@ -57,75 +90,488 @@ public class ImageCacheManager {
      */
     public static ImageCopy getFreeImageCopy(Execution execution, TransmissionProtocolEnum type) throws Exception {
         System.out.println("\tgetFreeImageCopy " + execution.getImageId());
-        Image vmi = getImage(execution.getImageId());
-        System.out.println("\tImage for searching " + vmi.getId());
-        ImageCopy source;
-        ImageCopy dest;
-        synchronized (vmi) {
+        while (true) {
+            Image vmi = getImage(execution.getImageId());
+            vmi.setLastUsed(System.currentTimeMillis());
+            System.out.println("\tImage for searching " + vmi.getId());
             for (ImageCopy copy : vmi.getImageCopies()) {
                 System.out.println("\t"+copy.getImageName()+" "+copy.getMainFile().getFilePath());
             }
             System.out.println("\thas " + vmi.getImageCopies().size() + " copies");
             if (vmi.getImageCopies().isEmpty()) {
-                ImageCopy copy = new ImageCopy();
-                try {
-                    DownloadImageTask.downloadImageCopy(vmi, copy, machineRepository, type);
-                    saveImages();
-                } catch (ExecutionException ex) {
-                    ex.printStackTrace();
-                    throw ex;
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                    throw new ExecutionException("Error downloading image " + ex.getMessage(), ex);
-                }
+                ImageCopy copy = downloadImage(vmi, type);
+                if (copy == null)
+                    //Image was downloaded or evicted by other request
+                    continue;
+                saveImage(vmi);
                 System.out.println("\t\t downloaded");
-                ServerMessageSender.reportExecutionState(execution.getId(), ExecutionProcessEnum.SUCCESS, "Start configuring");
+                if (!isWarmPoolEnabled(vmi)) {
+                    ServerMessageSender.reportExecutionState(execution.getId(), ExecutionProcessEnum.SUCCESS, "Start configuring");
+                    return copy;
+                }
+                //Downloaded copy is template for linked clones
+                copy.setStatus(ImageStatus.FREE);
+            }
+            boolean warm = isWarmPoolEnabled(vmi);
+            for (ImageCopy copy : vmi.getImageCopies()) {
+                if ((!warm || copy.isLinked()) && copy.compareAndSetStatus(ImageStatus.FREE, ImageStatus.LOCK)) {
+                    System.out.println("\t Using free " + copy.getImageName());
+                    ServerMessageSender.reportExecutionState(execution.getId(), ExecutionProcessEnum.SUCCESS, "Start configuring");
+                    if (warm)
+                        replenishWarmPool(vmi);
+                    return copy;
+                }
+            }
+            System.out.println("\t No copy is free");
+            ImageCopy source;
+            ImageCopy dest;
+            synchronized (vmi) {
+                source = warm ? getTemplate(vmi) : (vmi.getImageCopies().isEmpty() ? null : vmi.getImageCopies().get(0));
+                if (source == null || imageList.get(vmi.getId()) != vmi)
+                    //Image was evicted
+                    continue;
+                dest = createCopy(vmi, source, ImageStatus.LOCK);
+            }
+            saveImage(vmi);
+            ServerMessageSender.reportExecutionState(execution.getId(), ExecutionProcessEnum.SUCCESS, "Start configuring");
+            if (!warm) {
+                System.out.println("\tclonning");
+                return source.cloneCopy(dest);
+            }
+            System.out.println("\tlinked clonning");
+            try {
+                source.linkedCloneCopy(dest);
+            } catch (Exception ex) {
+                vmi.getImageCopies().remove(dest);
+                saveImage(vmi);
+                throw new ExecutionException("Error cloning image " + ex.getMessage(), ex);
+            }
+            saveImage(vmi);
+            replenishWarmPool(vmi);
+            return dest;
+        }
+    }
+    
+    /**
+     * Downloads base copy of image in case image has no copies, downloaded copy is set free to be claimed by getFreeImageCopy.
+     * It is executed before execution is started, so downloads don't hold platform threads.
+     * @param imageId image id
+     * @param type Type of transmission protocol
+     * @throws ExecutionException
+     */
+    public static void downloadMissingImage(long imageId, TransmissionProtocolEnum type) throws ExecutionException {
+        while (true) {
+            Image vmi = getImage(imageId);
+            vmi.setLastUsed(System.currentTimeMillis());
+            if (!vmi.getImageCopies().isEmpty())
+                return;
+            ImageCopy copy = downloadImage(vmi, type);
+            if (copy == null)
+                //Image was downloaded or evicted by other request
+                continue;
+            copy.setStatus(ImageStatus.FREE);
+            saveImage(vmi);
+            System.out.println("		 downloaded");
+            return;
+        }
+    }
+
+    /**
+     * Downloads base copy of image. In case image is being downloaded or evicted by other request waits until operation finishes.
+     * @param vmi image without copies
+     * @param type Type of transmission protocol
+     * @return downloaded copy, null in case image was downloaded or evicted by other request
+     * @throws ExecutionException
+     */
+    private static ImageCopy downloadImage(final Image vmi, final TransmissionProtocolEnum type) throws ExecutionException {
+        FutureTask<ImageCopy> task = new FutureTask<ImageCopy>(new Callable<ImageCopy>() {
+            @Override
+            public ImageCopy call() throws Exception {
+                ImageCopy copy = new ImageCopy();
+                DownloadImageTask.downloadImageCopy(vmi, copy, machineRepository, type);
                 return copy;
-            } else {
-                for (ImageCopy copy : vmi.getImageCopies()) {
-                    if (copy.getStatus() == ImageStatus.FREE) {
-                        copy.setStatus(ImageStatus.LOCK);
-                        System.out.println("\t Using free");
-                        ServerMessageSender.reportExecutionState(execution.getId(), ExecutionProcessEnum.SUCCESS, "Start configuring");
-                        return copy;
+            }
+        });
+        FutureTask<ImageCopy> current = operations.putIfAbsent(vmi.getId(), task);
+        try {
+            if (current != null) {
+                System.out.println("\tWaiting for operation over image " + vmi.getId());
+                current.get();
+                return null;
+            }
+            try {
+                //Previous operation could finish before this one was registered
+                if (imageList.get(vmi.getId()) != vmi || !vmi.getImageCopies().isEmpty())
+                    return null;
+                task.run();
+            } finally {
+                operations.remove(vmi.getId(), task);
+            }
+            return task.get();
+        } catch (java.util.concurrent.ExecutionException ex) {
+            if (current != null)
+                //Other request reports its own error, this one tries again
+                return null;
+            ex.getCause().printStackTrace();
+            if (ex.getCause() instanceof ExecutionException)
+                throw (ExecutionException) ex.getCause();
+            throw new ExecutionException("Error downloading image " + ex.getCause().getMessage(), ex);
+        } catch (InterruptedException ex) {
+            throw new ExecutionException("Interrupted waiting for image " + vmi.getId(), ex);
+        }
+    }
+    
+    /**
+     * Creates warm copies of image in background until image has the number of free or cloning linked clones configured in warm pool
+     * @param vmi image
+     */
+    private static void replenishWarmPool(final Image vmi) {
+        final List<ImageCopy> clones = new ArrayList<ImageCopy>();
+        final ImageCopy template;
+        synchronized (vmi) {
+            template = getTemplate(vmi);
+            if (template == null || !isWarmPoolEnabled(vmi) || imageList.get(vmi.getId()) != vmi)
+                return;
+            int ready = 0;
+            for (ImageCopy copy : vmi.getImageCopies())
+                if ((copy.isLinked() && copy.getStatus() == ImageStatus.FREE) || copy.getStatus() == ImageStatus.CLONING)
+                    ready++;
+            for (; ready < getWarmPoolSize(); ready++)
+                clones.add(createCopy(vmi, template, ImageStatus.CLONING));
+        }
+        if (clones.isEmpty())
+            return;
+        saveImage(vmi);
+        for (final ImageCopy clone : clones) {
+            System.out.println("\tWarm pool: cloning " + clone.getImageName() + " for image " + vmi.getId());
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        template.linkedCloneCopy(clone);
+                        clone.setStatus(ImageStatus.FREE);
+                        System.out.println("\tWarm pool: " + clone.getImageName() + " ready");
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        vmi.getImageCopies().remove(clone);
                     }
+                    saveImage(vmi);
                 }
-                System.out.println("\t No copy is free");
-                source = vmi.getImageCopies().get(0);
-                final String vmName = "v" + HashGenerator.randomString(9);
-                dest = new ImageCopy();
-                dest.setImage(vmi);
-                vmi.getImageCopies().add(dest);
-                File root = new File(machineRepository + OperatingSystem.PATH_SEPARATOR + vmi.getId() + OperatingSystem.PATH_SEPARATOR + vmName);
-                if (source.getMainFile().getExecutableFile().getName().contains(".")) {
-                    String[] fileParts = source.getMainFile().getExecutableFile().getName().split("\\.");
-                    dest.setMainFile(new File(root, vmName + "." + fileParts[fileParts.length - 1]));
-                } else
-                    dest.setMainFile(new File(root, vmName));
-                dest.setStatus(ImageStatus.LOCK);
-                saveImages();
-                ServerMessageSender.reportExecutionState(execution.getId(), ExecutionProcessEnum.SUCCESS, "Start configuring");
-                SystemUtils.sleep(2000);
+            };
+            try {
+                ExecutorService.executePlatformTask(task, TaskPriority.LOW);
+            } catch (RejectedExecutionException e) {
+                System.out.println("\tWarm pool: " + e.getMessage());
+                vmi.getImageCopies().remove(clone);
+                saveImage(vmi);
             }
         }
-        System.out.println("\tclonning");
-        return source.cloneCopy(dest);
+    }
+    
+    /**
+     * Creates a new copy of image in the same folder structure of source and adds it to image copies, caller must hold image lock
+     * @param vmi image
+     * @param source copy used to get file extension
+     * @param status initial status of copy
+     * @return new copy
+     */
+    private static ImageCopy createCopy(Image vmi, ImageCopy source, ImageStatus status) {
+        final String vmName = "v" + HashGenerator.randomString(9);
+        ImageCopy dest = new ImageCopy();
+        dest.setImage(vmi);
+        File root = new File(machineRepository + OperatingSystem.PATH_SEPARATOR + vmi.getId() + OperatingSystem.PATH_SEPARATOR + vmName);
+        if (source.getMainFile().getExecutableFile().getName().contains(".")) {
+            String[] fileParts = source.getMainFile().getExecutableFile().getName().split("\\.");
+            dest.setMainFile(new File(root, vmName + "." + fileParts[fileParts.length - 1]));
+        } else
+            dest.setMainFile(new File(root, vmName));
+        dest.setStatus(status);
+        vmi.getImageCopies().add(dest);
+        return dest;
+    }
+    
+    /**
+     * Returns copy used as source of linked clones, it is the first copy which is not a linked clone
+     * @param vmi image
+     * @return template copy, null in case image has not base copy
+     */
+    private static ImageCopy getTemplate(Image vmi) {
+        for (ImageCopy copy : vmi.getImageCopies())
+            if (!copy.isLinked() && copy.getStatus() != ImageStatus.CLONING)
+                return copy;
+        return null;
+    }
+    
+    /**
+     * Returns true in case image copies should be linked clones from a warm pool
+     * @param vmi image
+     * @return true when warm pool size is greater than 0 and image platform supports linked clones
+     */
+    private static boolean isWarmPoolEnabled(Image vmi) {
+        if (getWarmPoolSize() <= 0)
+            return false;
+        Platform platform = PlatformFactory.getPlatform(vmi.getPlatformId());
+        return platform != null && platform.supportsLinkedClones();
+    }
+    
+    /**
+     * Returns quantity of ready linked clones kept by image, configured in local variable WARM_POOL_SIZE
+     * @return warm pool size
+     */
+    private static int getWarmPoolSize() {
+        try {
+            return VariableManager.getInstance().getLocal().getIntegerVariable(WARM_POOL_SIZE, DEFAULT_WARM_POOL_SIZE);
+        } catch (Exception e) {
+            return DEFAULT_WARM_POOL_SIZE;
+        }
     }
 
+    /**
+     * Makes space for an image before starting it. 
+     * In case image is not in cache and free space is lower than configured, least recently used images are evicted before download.
+     * Otherwise eviction is only checked in background.
+     * @param imageId image to be started
+     */
+    public static void reserveSpace(long imageId) {
+        Image vmi = imageList.get(imageId);
+        boolean cached = vmi != null && !vmi.getImageCopies().isEmpty();
+        if (!cached && AgentManager.getFreeDataSpace() < getCacheFreeSpace())
+            evict(imageId);
+        else
+            evictInBackground();
+    }
+    
+    /**
+     * Checks free space in background and evicts images in case it is needed. Only one eviction runs at the same time.
+     * Eviction deletes folders of images, so it runs in transfer pool to not hold threads of quick control tasks.
+     */
+    public static void evictInBackground() {
+        if (AgentManager.getFreeDataSpace() >= getCacheFreeSpace() || !evicting.compareAndSet(false, true))
+            return;
+        try {
+            ExecutorService.executeTransferTask(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        evict(null);
+                    } finally {
+                        evicting.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            evicting.set(false);
+            System.out.println(e.getMessage());
+        }
+    }
+    
+    /**
+     * Evicts least recently used images until free space is greater than configured. 
+     * Images with copies in use, starting or cloning are pinned and never evicted.
+     * @param keepId image to not be evicted, could be null
+     */
+    private static void evict(Long keepId) {
+        List<Image> candidates = new ArrayList<Image>(imageList.values());
+        Collections.sort(candidates, new Comparator<Image>() {
+            @Override
+            public int compare(Image a, Image b) {
+                return Long.compare(a.getLastUsed(), b.getLastUsed());
+            }
+        });
+        long reserve = getCacheFreeSpace();
+        for (Image vmi : candidates) {
+            if (AgentManager.getFreeDataSpace() >= reserve)
+                break;
+            if (keepId != null && keepId == vmi.getId())
+                continue;
+            removeImage(vmi, false);
+        }
+        System.out.println("Free space after eviction " + AgentManager.getFreeDataSpace());
+    }
+    
+    /**
+     * Runs an operation over files of an image, only one operation by image is executed at the same time.
+     * @param imageId image
+     * @param operation over image files
+     * @param wait true to wait until current operation over image finishes, false to skip operation in case other one is running
+     * @return true in case operation was executed
+     */
+    private static boolean runImageOperation(long imageId, Callable<ImageCopy> operation, boolean wait) {
+        FutureTask<ImageCopy> task = new FutureTask<ImageCopy>(operation);
+        FutureTask<ImageCopy> current;
+        while ((current = operations.putIfAbsent(imageId, task)) != null) {
+            if (!wait)
+                return false;
+            System.out.println("\tWaiting for operation over image " + imageId);
+            try {
+                current.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (java.util.concurrent.ExecutionException e) {
+                //Error is reported by request which started operation
+            }
+        }
+        try {
+            task.run();
+            task.get();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            operations.remove(imageId, task);
+        }
+        return true;
+    }
+    
+    /**
+     * Removes image and its files from cache in case all copies are free, copies are claimed so they are not used while they are removed.
+     * Requests for image received while it is removed wait until files are deleted and download it again.
+     * @param vmi image
+     * @param wait true to wait until current download or removal of image finishes, false to skip image in that case
+     * @return true in case image was removed
+     */
+    private static boolean removeImage(final Image vmi, boolean wait) {
+        final AtomicBoolean removed = new AtomicBoolean();
+        runImageOperation(vmi.getId(), new Callable<ImageCopy>() {
+            @Override
+            public ImageCopy call() throws Exception {
+                synchronized (vmi) {
+                    if (imageList.get(vmi.getId()) != vmi || !claimCopies(vmi))
+                        return null;
+                    imageList.remove(vmi.getId());
+                }
+                imageStore.remove(vmi.getId());
+                removed.set(true);
+                System.out.println("Removing image " + vmi.getId() + " last used " + new Date(vmi.getLastUsed()));
+                for (ImageCopy copy : vmi.getImageCopies())
+                    unregisterCopy(copy);
+                vmi.getImageCopies().clear();
+                File folder = new File(machineRepository + OperatingSystem.PATH_SEPARATOR + vmi.getId());
+                if (folder.exists())
+                    FileProcessor.deleteFileSync(folder.getAbsolutePath());
+                return null;
+            }
+        }, wait);
+        return removed.get();
+    }
+    
+    /**
+     * Removes free copies of image except the most recently modified one and template of linked clones,
+     * copies are claimed so they are not used while they are removed.
+     * @param vmi image
+     */
+    private static void removeOldCopies(final Image vmi) {
+        runImageOperation(vmi.getId(), new Callable<ImageCopy>() {
+            @Override
+            public ImageCopy call() throws Exception {
+                List<ImageCopy> removed = new ArrayList<ImageCopy>();
+                synchronized (vmi) {
+                    if (imageList.get(vmi.getId()) != vmi)
+                        return null;
+                    ImageCopy newest = null;
+                    for (ImageCopy copy : vmi.getImageCopies())
+                        if (newest == null || copy.getMainFile().getExecutableFile().lastModified() > newest.getMainFile().getExecutableFile().lastModified())
+                            newest = copy;
+                    ImageCopy template = getTemplate(vmi);
+                    for (ImageCopy copy : vmi.getImageCopies())
+                        if (copy != newest && copy != template && copy.compareAndSetStatus(ImageStatus.FREE, ImageStatus.LOCK))
+                            removed.add(copy);
+                    vmi.getImageCopies().removeAll(removed);
+                }
+                if (removed.isEmpty())
+                    return null;
+                saveImage(vmi);
+                for (ImageCopy copy : removed) {
+                    System.out.println("Removing copy " + copy.getImageName() + " of image " + vmi.getId());
+                    unregisterCopy(copy);
+                    deleteCopyFolder(vmi, copy.getMainFile().getExecutableFile().getAbsoluteFile().getParentFile());
+                }
+                return null;
+            }
+        }, true);
+    }
+    
+    /**
+     * Deletes folder of an image which is not in cache, it could be left by images removed in previous versions
+     * @param imageId image
+     * @param wait true to wait until current operation over image finishes, false to skip folder in that case
+     */
+    private static void deleteUnknownFolder(final long imageId, boolean wait) {
+        final File folder = new File(machineRepository + OperatingSystem.PATH_SEPARATOR + imageId);
+        if (!folder.exists())
+            return;
+        runImageOperation(imageId, new Callable<ImageCopy>() {
+            @Override
+            public ImageCopy call() throws Exception {
+                if (!imageList.containsKey(imageId)) {
+                    System.out.println("\tDelete: " + folder);
+                    FileProcessor.deleteFileSync(folder.getAbsolutePath());
+                }
+                return null;
+            }
+        }, wait);
+    }
+    
+    /**
+     * Stops and unregisters a copy which is being removed and removes its torrent
+     * @param copy image copy
+     */
+    private static void unregisterCopy(ImageCopy copy) {
+        try {
+            copy.stopAndUnregister();
+            TorrentClient.getInstance().removeTorrent(copy.getMainFile().getTorrentFile());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Locks all copies of image, in case some copy is not free copies locked are released
+     * @param vmi image
+     * @return true in case all copies were free and now are locked
+     */
+    private static boolean claimCopies(Image vmi) {
+        List<ImageCopy> claimed = new ArrayList<ImageCopy>();
+        for (ImageCopy copy : vmi.getImageCopies()) {
+            if (!copy.compareAndSetStatus(ImageStatus.FREE, ImageStatus.LOCK)) {
+                for (ImageCopy free : claimed)
+                    free.setStatus(ImageStatus.FREE);
+                return false;
+            }
+            claimed.add(copy);
+        }
+        return true;
+    }
+    
+    /**
+     * Returns free space in bytes to be kept in data path, configured in MB in local variable CACHE_FREE_SPACE
+     * @return free space
+     */
+    private static long getCacheFreeSpace() {
+        int megas;
+        try {
+            megas = VariableManager.getInstance().getLocal().getIntegerVariable(CACHE_FREE_SPACE, DEFAULT_CACHE_FREE_SPACE);
+        } catch (Exception e) {
+            megas = DEFAULT_CACHE_FREE_SPACE;
+        }
+        return megas * 1024L * 1024L;
+    }
+    
     /**
      * returns or creates an image
      *
      * @param imageId image Id
      * @return desired image
      */
-    private synchronized static Image getImage(long imageId) {
-        loadImages();
+    private static Image getImage(long imageId) {
         Image vmi = imageList.get(imageId);
         if (vmi == null) {
             vmi = new Image();
             vmi.setId(imageId);
-            imageList.put(imageId, vmi);
-            saveImages();
+            Image current = imageList.putIfAbsent(imageId, vmi);
+            if (current != null)
+                return current;
+            saveImage(vmi);
         }
         return vmi;
     }
@@ -135,202 +581,186 @@ public class ImageCacheManager {
      *
      * @param vmiCopy image copy to be free
      */
-    public synchronized static void freeLockedImageCopy(ImageCopy vmiCopy) {
+    public static void freeLockedImageCopy(ImageCopy vmiCopy) {
         System.out.println("\t break free " + vmiCopy.getMainFile().getFilePath());
-        Image image = ImageCacheManager.getImage(vmiCopy.getImage().getId());
+        Image image = imageList.get(vmiCopy.getImage().getId());
+        if (image == null)
+            return;
         System.out.println("The agent is retrieving the image copy " + vmiCopy.getImageName() + " of " + image.getId() + " for releasing it to compare with other image copies");
         for (ImageCopy imC : image.getImageCopies())
             if (imC.getImageName().equals(vmiCopy.getImageName()))
                 imC.setStatus(ImageStatus.FREE);
         System.out.println("The agent freed the image copy " + vmiCopy.getImageName() + " ");
-        saveImages();
     }
 
     /**
-     * Removes all images fom physical machine disk
+     * Releases copy of a finished execution, copy must be stopped. 
+     * Copies registered to start are unregistered, linked clones stay registered because they are registered when they are cloned.
+     * Copy is set free to be used by next execution of image instead of cloning a new one.
      *
-     * @return operation confirmation
+     * @param vmiCopy stopped image copy
      */
-    public static synchronized UnaCloudResponse clearCache(boolean isCopy) {
-        System.out.println("clearCache");
-        loadImages();
-
-        HashMap<Long,Integer> names=new HashMap<>();
-        HashMap<Long,Image> hash=new HashMap<>();
-        try {
-            System.out.println("The agent is clearing cache from it's image list");
-            File choice=null;
-            long lastMod=0;
-            SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss");
-
-
-            ArrayList<File> files= new ArrayList<>();
-            //Strategy for removing most recent copy
-            if (isCopy)
-            {
-                for(Image image:imageList.values())
-                {
-                    lastMod=Long.MIN_VALUE;
-                    choice=null;
-                    System.out.println("Image: "+image.getId());
-                    for(ImageCopy copy: image.getImageCopies())
-                    {
-                        File file = copy.getMainFile().getExecutableFile();
-                        System.out.println("\tFILE "+file.getAbsolutePath()+" "+file.lastModified()+" "+file.exists()+" "+sdf.format(file.lastModified()));
-                        if (file.lastModified() > lastMod) {
-                            choice = file;
-                            lastMod = file.lastModified();
-                        }
-
-                    }
-                    files.add(choice);
-                    hash.put(image.getId(),image);
-                    System.out.println("\t\tMAX "+choice.lastModified()+" "+choice.getAbsolutePath());
-                }
-            }
-            for (Image image : imageList.values())
-                for (ImageCopy copy : image.getImageCopies()) {
-                    try {
-                        System.out.println("\tImage: " + copy.getMainFile().getFilePath());
-                        if (isCopy && files.contains(copy.getMainFile().getExecutableFile()))
-                            continue;
-                        System.out.println("\tRemove execution: " + copy.getMainFile().getFilePath());
-                        copy.stopAndUnregister();
-                        System.out.println("\tRemoving torrent: " + copy.getMainFile().getFilePath());
-                        TorrentClient.getInstance().removeTorrent(copy.getMainFile().getTorrentFile());
-
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            for (File f : new File(machineRepository).listFiles()) {
-                System.out.println("\tFile: " + f.getAbsolutePath());
-                System.out.println("\tDelete File: " + f.getAbsolutePath());
-                //Should be FileProcessor.deleteFileSync(f.getAbsolutePath())
-                deleteFileSync(f.getAbsolutePath(),files,isCopy);
+    public static void releaseImageCopy(ImageCopy vmiCopy) {
+        if (!vmiCopy.isLinked()) {
+            try {
+                vmiCopy.unregister();
+            } catch (Exception e) {
+                e.printStackTrace();
             }
-        } catch (Exception ex) {
-            ex.printStackTrace();
         }
-        System.out.println("The agent is clearing its image list");
-        imageList.clear();
-        if (isCopy)
-        {
-            for (Long id: hash.keySet())
-                imageList.put(id,hash.get(id));
-        }
-        System.out.println("The agent is saving images");
-        saveImages();
-        return new UnaCloudResponse(SUCCESSFUL_OPERATION, ExecutionProcessEnum.SUCCESS);
+        freeLockedImageCopy(vmiCopy);
+        Image image = imageList.get(vmiCopy.getImage().getId());
+        if (image != null)
+            saveImage(image);
     }
 
+    /**
+     * Points copy to files of its new clone and deletes folder of previous files, copies are cloned each time they are started.
+     * Previous folder is kept in case it is image folder, it contains new files or other copy uses it.
+     *
+     * @param vmiCopy image copy
+     * @param clone main file of new clone, null in case platform doesn't clone
+     */
+    public static void replaceMainFile(ImageCopy vmiCopy, File clone) {
+        if (clone == null)
+            return;
+        File previous = vmiCopy.getMainFile().getExecutableFile().getAbsoluteFile().getParentFile();
+        vmiCopy.setMainFile(clone);
+        Image image = imageList.get(vmiCopy.getImage().getId());
+        if (image == null)
+            return;
+        saveImage(image);
+        if (!isInFolder(clone, previous))
+            deleteCopyFolder(image, previous);
+    }
 
-    public static boolean deleteFileSync(String pathFile, ArrayList<File> forbidden, boolean isCopy) throws Exception {
-        File file = new File(pathFile);
-        if (!file.exists()) {
-            return false;
-        } else {
-            System.out.println("\t File params "+isCopy +" "+file.getAbsolutePath().contains("base"));
-            if(isCopy && (isCopyFile(file,forbidden) || file.getAbsolutePath().contains("base")))
-                    return false;
-            if (file.isDirectory()) {
-                File[] var5;
-                int var4 = (var5 = file.listFiles()).length;
-
-                for(int var3 = 0; var3 < var4; ++var3) {
-                    File f = var5[var3];
-                    deleteFileSync(f.getAbsolutePath(),forbidden, isCopy);
-                }
-
-                System.out.println("Deletes folder: " + file.getAbsolutePath() + " " + file.delete());
-            } else {
-                System.out.println("Deletes file: " + file.getAbsolutePath() + " " + file.delete());
-            }
-
-            return true;
+    /**
+     * Deletes folder of files which are not used by a copy anymore.
+     * Folder is kept in case it is image folder or other copy of image uses it.
+     *
+     * @param image image of copy
+     * @param folder folder of copy files
+     */
+    private static void deleteCopyFolder(Image image, File folder) {
+        File imageFolder = new File(machineRepository + OperatingSystem.PATH_SEPARATOR + image.getId()).getAbsoluteFile();
+        if (folder == null || folder.equals(imageFolder))
+            return;
+        for (ImageCopy copy : image.getImageCopies())
+            if (isInFolder(copy.getMainFile().getExecutableFile(), folder))
+                return;
+        System.out.println("Deleting unused copy files " + folder);
+        try {
+            FileProcessor.deleteFileSync(folder.getAbsolutePath());
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
-    private static boolean isCopyFile(File f, List<File> files) {
-        String name="";
-        for(File file:files)
-        {
-            System.out.println("Copies "+f.getAbsolutePath()+" "+file.getAbsolutePath());
-            name=file.getName().replaceAll(".vbox","");
-            System.out.println("File name "+name+" VS "+f.getName());
-            System.out.println("Boolean "+f.getName().contains(name)+" "+f.getName().contains(name));
-            if(f.getName().contains(name))
+
+    /**
+     * Returns true in case file is in folder or in one of its sub folders
+     * @param file
+     * @param folder
+     * @return true if file is in folder
+     */
+    private static boolean isInFolder(File file, File folder) {
+        for (File parent = file.getAbsoluteFile().getParentFile(); parent != null; parent = parent.getParentFile())
+            if (parent.equals(folder))
                 return true;
-        }
         return false;
-
     }
 
-
-
+    /**
+     * Removes images fom physical machine disk.
+     * Images are removed one by one with the same operations and claims used by eviction, images with copies in use are kept.
+     *
+     * @param isCopy true to remove only copies, most recently modified copy of each image and templates of linked clones are kept
+     * @return operation confirmation
+     */
+    public static UnaCloudResponse clearCache(boolean isCopy) {
+        System.out.println("The agent is clearing cache from it's image list");
+        for (Image vmi : new ArrayList<Image>(imageList.values())) {
+            if (isCopy)
+                removeOldCopies(vmi);
+            else
+                removeImage(vmi, true);
+        }
+        if (!isCopy) {
+            File[] files = new File(machineRepository).listFiles();
+            if (files != null)
+                for (File f : files)
+                    if (f.getName().matches("[0-9]+"))
+                        deleteUnknownFolder(Long.parseLong(f.getName()), false);
+            if (!imageList.isEmpty())
+                System.out.println("Images in use are kept " + imageList.keySet());
+        }
+        System.out.println("The agent is saving images");
+        imageStore.compact(imageList);
+        return new UnaCloudResponse(SUCCESSFUL_OPERATION, ExecutionProcessEnum.SUCCESS);
+    }
 
     /**
-	 * Removes an image from cache in repository
+	 * Removes an image from cache in repository, image is not removed in case it is in use
 	 * @return response
-	 * @throws Exception 
 	 */
-	public static synchronized UnaCloudResponse clearImageFromCache(Long imageId) throws Exception {
+	public static UnaCloudResponse clearImageFromCache(Long imageId) {
 		System.out.println("clearCache for image " + imageId);
-		loadImages();
-		Image vmi = imageList.get(imageId);		
-		if (vmi != null) {
-			for (ImageCopy copy : vmi.getImageCopies()) {
-				try {				
-					copy.stopAndUnregister();
-					TorrentClient.getInstance().removeTorrent(copy.getMainFile().getTorrentFile());								
-				} catch (Exception e) {
-					e.printStackTrace();
-				}	
-			}	
-			imageList.remove(imageId);
-			saveImages();
-		}
-		File folder = new File(machineRepository + OperatingSystem.PATH_SEPARATOR + imageId);
-		System.out.println("\tDelete: " + folder);
-		if (folder.exists())
-			for (File root : new File(machineRepository + OperatingSystem.PATH_SEPARATOR + imageId).listFiles())
-				FileProcessor.deleteFileSync(root.getAbsolutePath());
-		return new UnaCloudResponse(SUCCESSFUL_OPERATION, ExecutionProcessEnum.SUCCESS)  ;
+		Image vmi = imageList.get(imageId);
+		if (vmi == null)
+			deleteUnknownFolder(imageId, true);
+		else if (!removeImage(vmi, true) && imageList.get(imageId) == vmi)
+			return new UnaCloudResponse("Image " + imageId + " is in use", ExecutionProcessEnum.FAIL);
+		return new UnaCloudResponse(SUCCESSFUL_OPERATION, ExecutionProcessEnum.SUCCESS);
 	}
 	
 	/**
-	 * Saves the images data in a file
+	 * Saves the image data in journal
+	 * @param vmi image
 	 */
-	private static synchronized void saveImages() {
-        System.out.println("\tSaving images...");
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(imageListFile))) {
-			oos.writeObject(imageList);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+	private static void saveImage(Image vmi) {
+		if (imageList.get(vmi.getId()) == vmi)
+			imageStore.put(vmi.getId(), vmi);
 	}
 	
 	/**
-	 * Loads image info from file
+	 * Loads images from journal, or from file of previous versions in case journal doesn't exist.
+	 * Copies without files are discarded and journal is compacted, in case loading fails journal is kept as it is.
+	 * @return images by id
 	 */
 	@SuppressWarnings("unchecked")
-	private static void loadImages() {
+	private static ConcurrentHashMap<Long, Image> loadImages() {
 		System.out.println("The agent is loading the imageList");
-		if (imageList == null) {
-			System.out.println("The image list is empty");
-			imageList = new TreeMap<>();
-			try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(imageListFile))) {
-				imageList = (Map<Long,Image>) ois.readObject();
-				for (Image im : imageList.values())
-				{
-					System.out.println("The agent is copying image "+im.getId()+" into its list");
-					for(ImageCopy copy : im.getImageCopies())
+		ConcurrentHashMap<Long, Image> images = new ConcurrentHashMap<Long, Image>();
+		try {
+			if (!imageStore.exists() && imageListFile.exists()) {
+				try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(imageListFile))) {
+					images.putAll((Map<Long,Image>) ois.readObject());
+				}
+				System.out.println("The agent is importing " + images.size() + " images from " + imageListFile);
+			} 
+			else
+				images.putAll(imageStore.load());
+			for (Image im : images.values())
+			{
+				System.out.println("The agent is copying image "+im.getId()+" into its list");
+				List<ImageCopy> copies = new CopyOnWriteArrayList<ImageCopy>();
+				for (ImageCopy copy : im.getImageCopies()) {
+					//Clones interrupted before finishing have no files
+					if (copy.getMainFile() != null && copy.getMainFile().getExecutableFile().exists()) {
 						copy.setStatus(ImageStatus.FREE);
+						copies.add(copy);
+					}
 				}
-
-			} catch (Exception e) {
-				e.printStackTrace();
+				im.setImageCopies(copies);
 			}
+		} catch (Exception e) {
+			//Journal is not compacted with a partial list, images which were not loaded would be lost
+			e.printStackTrace();
+			return images;
 		}
+		imageStore.compact(images);
+		if (imageListFile.exists())
+			imageListFile.renameTo(new File(imageListFile.getPath() + ".old"));
+		return images;
 	}	
 
 	/**
@@ -338,12 +768,8 @@ public class ImageCacheManager {
 	 * @param imageId
 	 */
 	public static void deleteImage(Long imageId) {
-		loadImages();
-		Image vmi = imageList.get(imageId);
-		if (vmi != null) {
-			imageList.remove(imageId);
-			saveImages();
-		}
+		if (imageList.remove(imageId) != null)
+			imageStore.remove(imageId);
 	}
 	
 	/**
@@ -351,10 +777,7 @@ public class ImageCacheManager {
 	 * @return list of images
 	 */
 	public static List<Long> getCurrentImages() {
-		loadImages();
-		List<Long> ids = new ArrayList<Long>();
-		ids.addAll(imageList.keySet());
-		return ids;
+		return new ArrayList<Long>(imageList.keySet());
 	}
 
 }
@@ -1,21 +1,24 @@
 package uniandes.unacloud.agent.execution;
 
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import uniandes.unacloud.agent.exceptions.PlatformOperationException;
 import uniandes.unacloud.agent.execution.domain.Execution;
 import uniandes.unacloud.agent.execution.domain.ImageStatus;
 import uniandes.unacloud.agent.net.send.ServerMessageSender;
 import uniandes.unacloud.agent.net.upload.UploadImageTask;
+import uniandes.unacloud.agent.persistence.ExecutionCodec;
+import uniandes.unacloud.agent.persistence.JournalStore;
 import uniandes.unacloud.agent.platform.PlatformFactory;
 import uniandes.unacloud.common.enums.ExecutionProcessEnum;
 import uniandes.unacloud.common.net.tcp.message.UnaCloudResponse;
@@ -28,41 +31,83 @@ import uniandes.unacloud.common.utils.UnaCloudConstants;
  * stops. The process is: given a execution and a time t, this class ensures that this execution is going to be turn on for a time t
  * The execution only is stopped when the time t is burnt-out or when the user sends a request to stop it. If this physical machine is turned off,
  * then the next time the physical machine starts the execution will be powered on.<br/>
- * To schedule the execution turn off we used a Timer that manage a collection of TimerTask objects, each timer task is responsible for
- * stopping one execution
+ * To schedule the execution turn off we use a ScheduledExecutorService, each execution has one cancellable task responsible for
+ * stopping it, the task is replaced when execution time is extended
  * @author Clouder
  */
 public class PersistentExecutionManager {
 
     /**
-     * The file that contains the powered executions and its execution times
+     * The file that contained the powered executions in previous versions, it is imported when journal doesn't exist
      */
     private static final String executionsFile = "executions.txt";
     
+    /**
+     * Quantity of threads used to stop executions when their time finishes
+     */
+    private static final int SCHEDULER_THREADS = 2;
+    
+    /**
+     * Journal that contains the powered executions and its execution times
+     */
+    private static final JournalStore<Execution> executionStore = JournalStore.open("executions", new ExecutionCodec());
+    
+    /**
+     * True when executions were loaded from journal
+     */
+    private static boolean loaded = false;
+    
     /**
      * Execution hash map, contains list of execution
      */
-    private static final Map<Long, Execution> executionList = new TreeMap<>();
+    private static final ConcurrentHashMap<Long, Execution> executionList = new ConcurrentHashMap<Long, Execution>();
+    
+    /**
+     * Scheduled shutdown by execution id
+     */
+    private static final ConcurrentHashMap<Long, ScheduledFuture<?>> shutdowns = new ConcurrentHashMap<Long, ScheduledFuture<?>>();
         
     /**
-     * Timer used to schedule shutdown events
+     * Executor used to schedule shutdown events
      */
-    private static Timer timer = new Timer();
+    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(SCHEDULER_THREADS);
+   
+    /**
+     * Returns an execution
+     * @param executionId
+     * @return execution, null in case it doesn't exist
+     */
+    public static Execution getExecution(long executionId) {
+    	return executionList.get(executionId);
+    }
    
     /**
      * Stops an execution and removes it representing execution object
      * @param executionId
-     * @param checkTime 
+     * @param checkTime true in case execution should be removed only if its time is burnt-out
      */
     public static void removeExecution(long executionId, boolean checkTime) {
 		System.out.println("Background task: Removing execution with id "+executionId);
-		Execution execution = executionList.remove(executionId);
-		if (execution != null && (!checkTime || System.currentTimeMillis() > execution.getShutdownTime())) {
-			System.out.println("Background task: Stop and unregistering image from execution " + executionId);
-			execution.getImage().stopAndUnregister();
+		Execution execution = executionList.get(executionId);
+		if (execution == null)
+			return;
+		synchronized (execution) {
+			if (checkTime && System.currentTimeMillis() <= execution.getShutdownTime()) {
+				System.out.println("Background task: Execution " + executionId + " was extended");
+				return;
+			}
+			if (!executionList.remove(executionId, execution))
+				return;
 		}
-		System.out.println("Background task: Saving data from execution removal");
-		saveData();
+		ScheduledFuture<?> shutdown = shutdowns.remove(executionId);
+		if (shutdown != null)
+			shutdown.cancel(false);
+		System.out.println("Background task: Stop and unregistering image from execution " + executionId);
+		execution.getImage().stopAndUnregister();
+		System.out.println("Background task: Releasing image copy from execution " + executionId);
+		ImageCacheManager.releaseImageCopy(execution.getImage());
+		System.out.println("Background task: Removing data from execution removal");
+		executionStore.remove(executionId);
     }
     
     /**
@@ -109,7 +154,7 @@ public class PersistentExecutionManager {
             response.setMessage(ex.getMessage());
         	response.setState(ExecutionProcessEnum.FAIL);
         }
-        saveData();
+        saveExecution(execution);
         return response;
     }
 
@@ -129,14 +174,15 @@ public class PersistentExecutionManager {
 	            if (!started) 
 	            	execution.getImage().startExecution();
 	            executionList.put(execution.getId(), execution);
-	            timer.schedule(new Scheduler(execution.getId()), new Date(execution.getShutdownTime() + 100l));
+	            scheduleShutdown(execution);
 	            
-	            if (new ExecutionStateViewer(execution.getId(), execution.getMainInterface().getIp()).check())
-	            	execution.getImage().setStatus(ImageStatus.LOCK);
+	            //Execution state is reported by viewer when execution responds
+	            new ExecutionStateViewer(execution).start();
 	        } 
 	        catch (PlatformOperationException e) {
 	        	e.printStackTrace();
 	        	execution.getImage().stopAndUnregister();
+	        	ImageCacheManager.releaseImageCopy(execution.getImage());
 	        	ServerMessageSender.reportExecutionState(execution.getId(), ExecutionProcessEnum.FAIL, e.getMessage());
 	        }
         } 
@@ -144,7 +190,7 @@ public class PersistentExecutionManager {
 			e.printStackTrace();
 			execution.getImage().setStatus(ImageStatus.FREE);
 		}
-        saveData();
+        saveExecution(execution);
     }
    
 
@@ -155,25 +201,39 @@ public class PersistentExecutionManager {
      */
     public static UnaCloudResponse extendsVMTime(ExecutionAddTimeMessage timeMessage) {
     	Execution execution = executionList.get(timeMessage.getExecutionId());
-    	execution.setExecutionTime(timeMessage.getExecutionTime());
-    	execution.setShutdownTime(System.currentTimeMillis() + timeMessage.getExecutionTime().toMillis());
-    	timer.schedule(new Scheduler(execution.getId()), new Date(execution.getShutdownTime() + 100l));
-    	saveData();
+    	if (execution == null)
+    		return new UnaCloudResponse(UnaCloudConstants.ERROR_MESSAGE + " Execution doesn't exist", ExecutionProcessEnum.FAIL);
+    	synchronized (execution) {
+	    	execution.setExecutionTime(timeMessage.getExecutionTime());
+	    	execution.setShutdownTime(System.currentTimeMillis() + timeMessage.getExecutionTime().toMillis());
+	    	scheduleShutdown(execution);
+	    	saveExecution(execution);
+    	}
         return new UnaCloudResponse (UnaCloudConstants.SUCCESSFUL_OPERATION, ExecutionProcessEnum.SUCCESS);
     }
     
     /**
-     * Saves the current state of executions and images on this node.  
+     * Schedules execution shutdown in its shutdown time, previous shutdown of execution is cancelled
+     * @param execution
      */
-    private static void saveData() {
+    private static void scheduleShutdown(Execution execution) {
+    	long delay = Math.max(0, execution.getShutdownTime() + 100l - System.currentTimeMillis());
+    	ScheduledFuture<?> shutdown = scheduler.schedule(new Scheduler(execution.getId()), delay, TimeUnit.MILLISECONDS);
+    	ScheduledFuture<?> previous = shutdowns.put(execution.getId(), shutdown);
+    	if (previous != null)
+    		previous.cancel(false);
+    }
+    
+    /**
+     * Saves the current state of an execution in journal in case it is registered
+     * @param execution
+     */
+    private static void saveExecution(Execution execution) {
 		System.out.println("Saving data...");
-		try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(executionsFile));) {
-        	oos.writeObject(executionList);
-        } 
-    	catch(Exception e){
-        	e.printStackTrace();
-        }
+		if (execution != null && executionList.get(execution.getId()) == execution)
+			executionStore.put(execution.getId(), execution);
     }
+    
     /**
      * Loads and validates status of all executions saved in file
      *
@@ -183,7 +243,12 @@ public class PersistentExecutionManager {
 			List<Long> ids = ImageCacheManager.getCurrentImages();
 			System.out.println("There are images " + ids.size());
 			loadData();
-			List<Execution> removeExecutions = PlatformFactory.validateExecutions(executionList.values());
+			//Executions being started are not validated, platforms are only asked when there are executions to check
+			List<Execution> executions = new ArrayList<Execution>();
+			for (Execution execution : executionList.values())
+				if (execution.getImage().getStatus() != ImageStatus.STARTING)
+					executions.add(execution);
+			List<Execution> removeExecutions = PlatformFactory.validateExecutions(executions);
 			for (Execution execution: removeExecutions)	
 				if (execution.getImage().getStatus() != ImageStatus.STARTING)
 					removeExecution(execution.getId(), false);			
@@ -216,23 +281,41 @@ public class PersistentExecutionManager {
     }
     
     /**
-     * Loads data from file to map
+     * Loads data from journal to map, only the first time it is called. 
+     * In case journal doesn't exist executions saved by previous versions are imported.
      */
     @SuppressWarnings("unchecked")
-	private static void loadData() {
+	private static synchronized void loadData() {
+    	if (loaded)
+    		return;
+    	loaded = true;
     	Map<Long,Execution> executions = null;
-    	try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(executionsFile))) {
-        	executions = (Map<Long,Execution>) ois.readObject();
+    	File legacy = new File(executionsFile);
+    	try {
+    		if (!executionStore.exists() && legacy.exists()) {
+    			try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(legacy))) {
+    				executions = (Map<Long,Execution>) ois.readObject();
+    			}
+    			System.out.println("Importing executions from " + executionsFile);
+    		}
+    		else
+    			executions = executionStore.load();
         	if (executions != null)
         		for (Execution execution:executions.values()) 
-        			if (execution != null)
+        			if (execution != null) {
         				//execution.getImage().stopAndUnregister();
         				executionList.put(execution.getId(), execution);
-            else saveData();
+        				scheduleShutdown(execution);
+        			}
         } 
     	catch (Exception ex) {
+    		//Journal is not compacted with a partial list, executions which were not loaded would be lost
         	ex.printStackTrace();
+        	return;
         }
+    	executionStore.compact(executionList);
+    	if (legacy.exists())
+    		legacy.renameTo(new File(executionsFile + ".old"));
     }
     
     /**
@@ -248,7 +331,7 @@ public class PersistentExecutionManager {
     			System.out.println("Start copy service with token " + message.getTokenCom());
 				response.setMessage("Copying image");
 				response.setState(ExecutionProcessEnum.SUCCESS);
-				ExecutorService.executeRequestTask(new UploadImageTask(message.getTokenCom(), execution));
+				ExecutorService.executeTransferTask(new UploadImageTask(message.getTokenCom(), execution));
             } 
     		else {
 				response.setMessage(UnaCloudConstants.ERROR_MESSAGE + " Execution doesn't exist");
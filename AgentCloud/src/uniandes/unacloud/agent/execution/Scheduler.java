@@ -1,15 +1,13 @@
 package uniandes.unacloud.agent.execution;
 
-import java.util.TimerTask;
-
 /**
  * Responsible for un-deploying an execution
  *  @author Clouder
  */
-public class Scheduler extends TimerTask {
+public class Scheduler implements Runnable {
 
 	/**
-	 * Id from execution which is controlled by this timer
+	 * Id from execution which is controlled by this task
 	 */
     private long executionId;
  
@@ -0,0 +1,17 @@
+package uniandes.unacloud.agent.execution;
+
+/**
+ * Priority of tasks executed in platform pool, tasks with the same priority are executed in arrival order
+ * @author agent
+ *
+ */
+public enum TaskPriority {
+	/**
+	 * Tasks requested by server, like execution starts
+	 */
+	NORMAL,
+	/**
+	 * Tasks executed only to prepare future requests, like warm pool clones
+	 */
+	LOW
+}
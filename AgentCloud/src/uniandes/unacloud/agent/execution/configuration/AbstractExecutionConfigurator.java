@@ -1,6 +1,7 @@
 package uniandes.unacloud.agent.execution.configuration;
 
 import java.io.File;
+import java.io.PrintWriter;
 import java.util.Random;
 
 import uniandes.unacloud.agent.exceptions.PlatformOperationException;
@@ -9,7 +10,8 @@ import uniandes.unacloud.agent.host.system.OperatingSystem;
 import uniandes.unacloud.agent.utils.SystemUtils;
 import uniandes.unacloud.common.utils.UnaCloudConstants;
 /**
- * Abstract configuration class for physical machines
+ * Abstract configuration class for physical machines.
+ * Configurators which write a configuration script configure hostname, host table and network with one file copy and one command in guest.
  * @author Clouder
  *
  */
@@ -20,6 +22,21 @@ public abstract class AbstractExecutionConfigurator {
 	 */
 	private static Random random = new Random();
 	
+	/**
+	 * Max time in milliseconds to wait for guest before configuring it
+	 */
+	private static final long GUEST_TIMEOUT = 120000;
+	
+	/**
+	 * Path in guest where configuration script is copied
+	 */
+	private static final String SCRIPT_PATH = "/tmp/unacloud_config.sh";
+	
+	/**
+	 * Delimiter of files written by configuration script
+	 */
+	private static final String FILE_DELIMITER = "UNACLOUD_EOF";
+	
 	/**
 	 * Execution instance 
 	 */
@@ -43,6 +60,71 @@ public abstract class AbstractExecutionConfigurator {
 		return new File(UnaCloudConstants.TEMP_FILE + OperatingSystem.PATH_SEPARATOR + Math.abs(random.nextLong()) + UnaCloudConstants.FILE_EXTENSION);
 	}
 	
+	/**
+	 * Configures execution after it is started. Waits until guest is ready, 
+	 * in case configurator writes a configuration script it is copied and executed once in guest, 
+	 * otherwise hostname and IP are configured one by one.
+	 * @throws PlatformOperationException
+	 */
+	public void configure() throws PlatformOperationException {
+		if (!execution.getImage().waitForGuest(GUEST_TIMEOUT))
+			System.out.println("Guest of " + execution.getImage().getImageName() + " is not ready, configuring anyway");
+		File out = generateRandomFile();
+		boolean script = false;
+		try (PrintWriter pw = new LinuxPrintWriter(out)) {
+			script = writeConfigurationScript(pw);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		if (!script) {
+			out.delete();
+			configureHostname();
+			configureIP();
+			return;
+		}
+		try {
+			execution.getImage().copyFileOnExecution(SCRIPT_PATH, out);
+			execution.getImage().executeCommandOnExecution("/bin/sh", SCRIPT_PATH);
+		} finally {
+			out.delete();
+		}
+	}
+	
+	/**
+	 * Writes a shell script which configures hostname, host table and network in guest
+	 * @param pw script writer
+	 * @return true in case script was written, false in case configurator doesn't support scripts
+	 */
+	protected boolean writeConfigurationScript(PrintWriter pw) {
+		return false;
+	}
+	
+	/**
+	 * Writes a script command which replaces a file in guest
+	 * @param pw script writer
+	 * @param path file path in guest
+	 * @param lines file content
+	 */
+	protected static void writeFileCommand(PrintWriter pw, String path, String... lines) {
+		pw.println("cat > " + path + " << '" + FILE_DELIMITER + "'");
+		for (String line : lines)
+			pw.println(line);
+		pw.println(FILE_DELIMITER);
+	}
+	
+	/**
+	 * Writes script commands which change hostname of guest and its entry in host table
+	 * @param pw script writer
+	 * @param hostnameFile file where hostname is stored in guest
+	 * @param lines content of hostname file
+	 */
+	protected void writeHostnameCommands(PrintWriter pw, String hostnameFile, String... lines) {
+		writeFileCommand(pw, hostnameFile, lines);
+		pw.println("/bin/hostname " + execution.getHostname());
+		pw.println("sed -i '/^127.0.1.1/d' /etc/hosts");
+		pw.println("echo '127.0.1.1 " + execution.getHostname() + "' >> /etc/hosts");
+	}
+	
 	/**
 	 * Makes hostname configuration
 	 * @throws PlatformOperationException
@@ -33,15 +33,8 @@ public class Debian extends AbstractExecutionConfigurator {
     	AddressUtility au = new AddressUtility(execution.getMainInterface().getIp(), execution.getMainInterface().getNetMask());
     	File out=generateRandomFile();
     	try (PrintWriter pw = new LinuxPrintWriter(out)) {
-    		pw.println("auto lo");
-            pw.println("iface lo inet loopback");
-            pw.println("auto eth0");
-            pw.println("iface eth0 inet static");
-            pw.println("address " + au.getIp());
-            pw.println("netmask " + au.getNetmask());
-            pw.println("network " + au.getNetwork());
-            pw.println("broadcast " + au.getBroadcast());
-            pw.println("gateway " + au.getGateway());
+    		for (String line : getInterfaces(au))
+    			pw.println(line);
     	} catch (Exception e) {
 			return;
 		}
@@ -51,6 +44,37 @@ public class Debian extends AbstractExecutionConfigurator {
         out.delete();
     }
 
+    /**
+     * Writes hostname, host table and network configuration in one script
+     */
+    @Override
+    protected boolean writeConfigurationScript(PrintWriter pw) {
+    	AddressUtility au = new AddressUtility(execution.getMainInterface().getIp(), execution.getMainInterface().getNetMask());
+    	writeHostnameCommands(pw, "/etc/hostname", execution.getHostname());
+    	writeFileCommand(pw, "/etc/network/interfaces", getInterfaces(au));
+    	pw.println("/etc/init.d/networking restart");
+    	pw.println("/usr/bin/wget -q -O /dev/null www.google.com");
+    	return true;
+    }
+    
+    /**
+     * Returns content of interfaces file with static address
+     * @param au address of main interface
+     * @return file lines
+     */
+    private static String[] getInterfaces(AddressUtility au) {
+    	return new String[] {
+    			"auto lo",
+    			"iface lo inet loopback",
+    			"auto eth0",
+    			"iface eth0 inet static",
+    			"address " + au.getIp(),
+    			"netmask " + au.getNetmask(),
+    			"network " + au.getNetwork(),
+    			"broadcast " + au.getBroadcast(),
+    			"gateway " + au.getGateway()};
+    }
+
     /**
      * Configures a DHCP client of the Debian managed execution
      */
@@ -19,17 +19,8 @@ public class ScientificLinux extends AbstractExecutionConfigurator{
     	AddressUtility au = new AddressUtility(execution.getMainInterface().getIp(),execution.getMainInterface().getNetMask());
     	File out=generateRandomFile();
     	try (PrintWriter pw = new LinuxPrintWriter(out)) {
-    		pw.println("# Advanced Micro Devices [AMD] 79c970 [PCnet32 LANCE]");
-            pw.println("DEVICE=eth0");
-            pw.println("BOOTPROTO=none");
-            pw.println("ONBOOT=yes");
-            pw.println("NETMASK=" + au.getNetmask());
-            pw.println("IPADDR=" + au.getIp());
-            pw.println("GATEWAY=" + au.getGateway());
-            pw.println("TYPE=Ethernet");
-            pw.println("USERCTL=no");
-            pw.println("IPV6INIT=no");
-            pw.println("PEERDNS=yes");
+    		for (String line : getInterfaces(au))
+    			pw.println(line);
     	} catch (Exception e) {
 			return;
 		}
@@ -39,6 +30,50 @@ public class ScientificLinux extends AbstractExecutionConfigurator{
         out.delete();
     }
 
+    /**
+     * Writes hostname, host table and network configuration in one script
+     */
+    @Override
+    protected boolean writeConfigurationScript(PrintWriter pw) {
+    	AddressUtility au = new AddressUtility(execution.getMainInterface().getIp(),execution.getMainInterface().getNetMask());
+    	writeHostnameCommands(pw, "/etc/sysconfig/network", getNetwork());
+    	writeFileCommand(pw, "/etc/sysconfig/network-scripts/ifcfg-eth0", getInterfaces(au));
+    	pw.println("/sbin/ifdown eth0");
+    	pw.println("/sbin/ifup eth0");
+    	return true;
+    }
+    
+    /**
+     * Returns content of interface configuration file with static address
+     * @param au address of main interface
+     * @return file lines
+     */
+    private static String[] getInterfaces(AddressUtility au) {
+    	return new String[] {
+    			"# Advanced Micro Devices [AMD] 79c970 [PCnet32 LANCE]",
+    			"DEVICE=eth0",
+    			"BOOTPROTO=none",
+    			"ONBOOT=yes",
+    			"NETMASK=" + au.getNetmask(),
+    			"IPADDR=" + au.getIp(),
+    			"GATEWAY=" + au.getGateway(),
+    			"TYPE=Ethernet",
+    			"USERCTL=no",
+    			"IPV6INIT=no",
+    			"PEERDNS=yes"};
+    }
+    
+    /**
+     * Returns content of network file with hostname
+     * @return file lines
+     */
+    private String[] getNetwork() {
+    	return new String[] {
+    			"NETWORKING=yes",
+    			"NETWORKING_IPV6=no",
+    			"HOSTNAME=" + execution.getHostname()};
+    }
+
     /**
      * Configures a DHCP client of the Scientific Linux managed execution
      */
@@ -51,9 +86,8 @@ public class ScientificLinux extends AbstractExecutionConfigurator{
 	public void configureHostname() throws PlatformOperationException {
 		File out=generateRandomFile();
 		try (PrintWriter pw = new LinuxPrintWriter(out)) {
-			pw.println("NETWORKING=yes");
-	        pw.println("NETWORKING_IPV6=no");
-	        pw.println("HOSTNAME=" + execution.getHostname());
+			for (String line : getNetwork())
+				pw.println(line);
         } catch (Exception e) {
             return;
         }
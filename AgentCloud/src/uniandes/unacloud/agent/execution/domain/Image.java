@@ -1,8 +1,8 @@
 package uniandes.unacloud.agent.execution.domain;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Represents an image entity
@@ -27,9 +27,14 @@ public class Image implements Serializable {
 	private String platformId;
 	
 	/**
-	 * image copies in disk
+	 * image copies in disk, list is safe to be read while copies are added or removed
 	 */
-	List<ImageCopy> imageCopies = new ArrayList<>();
+	List<ImageCopy> imageCopies = new CopyOnWriteArrayList<>();
+	
+	/**
+	 * Last time in milliseconds a copy of image was requested, used to evict least recently used images
+	 */
+	private long lastUsed;
 	
 	
 	public long getId() {
@@ -79,4 +84,12 @@ public class Image implements Serializable {
 	public void setImageCopies(List<ImageCopy> imageCopies) {
 		this.imageCopies = imageCopies;
 	}
-}
\ No newline at end of file
+	
+	public long getLastUsed() {
+		return lastUsed;
+	}
+	
+	public void setLastUsed(long lastUsed) {
+		this.lastUsed = lastUsed;
+	}
+}
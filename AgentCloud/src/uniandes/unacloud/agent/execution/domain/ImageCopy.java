@@ -3,9 +3,11 @@ package uniandes.unacloud.agent.execution.domain;
 import java.io.File;
 import java.io.Serializable;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import uniandes.unacloud.agent.exceptions.ExecutionException;
 import uniandes.unacloud.agent.exceptions.PlatformOperationException;
+import uniandes.unacloud.agent.execution.ImageCacheManager;
 import uniandes.unacloud.agent.execution.PersistentExecutionManager;
 import uniandes.unacloud.agent.execution.configuration.AbstractExecutionConfigurator;
 import uniandes.unacloud.agent.net.send.ServerMessageSender;
@@ -25,6 +27,11 @@ public class ImageCopy implements Serializable {
 	
 	private static final long serialVersionUID = 8911955514393569155L;
 	
+	/**
+	 * Updates status atomically, used to claim copies without locking image or copy
+	 */
+	private static final AtomicReferenceFieldUpdater<ImageCopy, ImageStatus> STATUS = AtomicReferenceFieldUpdater.newUpdater(ImageCopy.class, ImageStatus.class, "status");
+	
 	/**
 	 * executable file name
 	 */
@@ -38,12 +45,17 @@ public class ImageCopy implements Serializable {
 	/**
 	 * Initial status for Image
 	 */
-	private transient ImageStatus status = ImageStatus.FREE;
+	private transient volatile ImageStatus status = ImageStatus.FREE;
 	
 	/**
 	 * Holds the platform specific execution ID
 	 */
 	private String platformExecutionID;
+	
+	/**
+	 * True in case copy is a registered linked clone of image base copy
+	 */
+	private boolean linked;
 
 
 	/**
@@ -92,6 +104,16 @@ public class ImageCopy implements Serializable {
 		this.status = status;
 	}
 	
+	/**
+	 * Changes image status only in case current status is the expected one
+	 * @param expected current status
+	 * @param status new status
+	 * @return true in case status was changed
+	 */
+	public boolean compareAndSetStatus(ImageStatus expected, ImageStatus status) {
+		return STATUS.compareAndSet(this, expected, status);
+	}
+	
 	/**
 	 * Returns image
 	 * @return image entity
@@ -124,6 +146,22 @@ public class ImageCopy implements Serializable {
 		this.platformExecutionID = executionID;
 	}
 	
+	/**
+	 * Returns true in case copy is a linked clone ready to be started without registering or cloning
+	 * @return true if copy is a linked clone
+	 */
+	public boolean isLinked() {
+		return linked;
+	}
+	
+	/**
+	 * Updates if copy is a linked clone
+	 * @param linked
+	 */
+	public void setLinked(boolean linked) {
+		this.linked = linked;
+	}
+	
 	/**
 	 * Configures and starts the copy
 	 * @param machineExecution
@@ -144,14 +182,16 @@ public class ImageCopy implements Serializable {
 					//configurator.setplatform(platform);
 					configurator.setExecution(machineExecution);
 					//TODO Evaluar si hacerlo en el apagado porque es mas importante el tiempo de arranque.
-					platform.registerImage(this);
-					setMainFile(platform.registerAndCloneImage(this));
-					System.out.println("New path "+mainFile.getFilePath());
+					//Linked clones are registered when they are cloned
+					if (!linked) {
+						platform.registerImage(this);
+						ImageCacheManager.replaceMainFile(this, platform.registerAndCloneImage(this));
+						System.out.println("New path "+mainFile.getFilePath());
+					}
 	    			platform.restoreExecutionSnapshot(this, "unacloudbase");
 	        		platform.configureExecutionHardware(machineExecution.getCores(), machineExecution.getMemory(), this);
 	    			platform.startExecution(this);
-	    			configurator.configureHostname();
-	    			configurator.configureIP();
+	    			configurator.configure();
 	    			System.out.println("Execution config " + getImageName() + " - " + new Date());
 	    	        PersistentExecutionManager.startUpMachine(machineExecution, !configurator.doPostConfigure());	    	       
 				} 
@@ -172,16 +212,29 @@ public class ImageCopy implements Serializable {
 	}
 	
 	/**
-	 * Clones the copy 
+	 * Clones the copy. Copy is only read, so it is not locked and several clones of it could be created while it is started
 	 * @param dest empty image copy
 	 * @return cloned image
 	 */
-	public synchronized ImageCopy cloneCopy(ImageCopy dest) {
+	public ImageCopy cloneCopy(ImageCopy dest) {
 		Platform platform = PlatformFactory.getPlatform(this.getImage().getPlatformId());
 		platform.cloneImage(this, dest);
 		return dest;
 	}
 	
+	/**
+	 * Creates a linked clone of this copy, copy must have base snapshot. Copy is only read, so it is not locked
+	 * @param dest empty image copy
+	 * @return cloned image, marked as linked in case platform supports linked clones
+	 * @throws PlatformOperationException
+	 */
+	public ImageCopy linkedCloneCopy(ImageCopy dest) throws PlatformOperationException {
+		Platform platform = PlatformFactory.getPlatform(this.getImage().getPlatformId());
+		platform.linkedCloneImage(this, dest);
+		dest.setLinked(platform.supportsLinkedClones());
+		return dest;
+	}
+	
 	/**
 	 * Makes initialization process in copy before starting
 	 * @throws ExecutionException
@@ -243,6 +296,16 @@ public class ImageCopy implements Serializable {
     	platform.copyFileOnExecution(this, destinationRoute, sourceFile);
     }
     
+    /**
+     * Waits until this copy is ready to receive files and commands
+     * @param timeout max time in milliseconds to wait
+     * @return true in case copy is ready before timeout
+     */
+    public boolean waitForGuest(long timeout) {
+    	Platform platform = PlatformFactory.getPlatform(image.getPlatformId());
+    	return platform.waitForGuest(this, timeout);
+    }
+    
     /**
      * Restarts this VM
      * @throws PlatformOperationException
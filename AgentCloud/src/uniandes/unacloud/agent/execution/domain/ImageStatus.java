@@ -17,5 +17,9 @@ public enum ImageStatus {
 	/**
 	 * Represents an image when in being configuring and testing connection
 	 */
-	STARTING
+	STARTING,
+	/**
+	 * Represents a copy being cloned in background for warm pool
+	 */
+	CLONING
 }
@@ -1,6 +1,8 @@
 package uniandes.unacloud.agent.execution.task;
 
+import uniandes.unacloud.agent.execution.ExecutorService;
 import uniandes.unacloud.agent.execution.ImageCacheManager;
+import uniandes.unacloud.agent.execution.TaskPriority;
 import uniandes.unacloud.agent.execution.domain.Execution;
 import uniandes.unacloud.agent.execution.domain.ImageCopy;
 import uniandes.unacloud.agent.net.send.ServerMessageSender;
@@ -8,7 +10,7 @@ import uniandes.unacloud.common.enums.ExecutionProcessEnum;
 import uniandes.unacloud.common.enums.TransmissionProtocolEnum;
 
 /**
- * Task to start an execution
+ * Task to start an execution, image is downloaded in transfer pool and execution is started in platform pool
  * @author CesarF
  *
  */
@@ -34,7 +36,8 @@ public class StartExecutionTask implements Runnable {
 	}
 	
 	/**
-	 * Executes start machine task
+	 * Downloads image in case it is not in cache and queues start of execution in platform pool.
+	 * It is executed in transfer pool, so downloads don't hold threads used to start executions
 	 */
 	@Override
 	public void run() {
@@ -42,19 +45,43 @@ public class StartExecutionTask implements Runnable {
 		try {
 			//get image 
 			ServerMessageSender.reportExecutionState(machineExecution.getId(), ExecutionProcessEnum.REQUEST, "Start Transmission");
-			//Clean cache before executing
-			ImageCacheManager.clearCache(true);
+			//Evict cached images only in case there is not space for this one
+			ImageCacheManager.reserveSpace(machineExecution.getImageId());
+			ImageCacheManager.downloadMissingImage(machineExecution.getImageId(), transmissionType);
+			ExecutorService.executePlatformTask(new Runnable() {
+				@Override
+				public void run() {
+					start();
+				}
+			}, TaskPriority.NORMAL);
+		} catch (Exception ex) {
+			fail(ex);
+		}
+	}
+
+	/**
+	 * Claims or clones a copy of downloaded image, configures and starts it
+	 */
+	private void start() {
+		try {
 			ImageCopy image = ImageCacheManager.getFreeImageCopy(machineExecution, transmissionType);
 			machineExecution.setImage(image);
 			image.configureAndStart(machineExecution);
 			System.out.println("endStartExecution");
 		} catch (Exception ex) {
-			try {
-				ServerMessageSender.reportExecutionState(machineExecution.getId(), ExecutionProcessEnum.FAIL, ex.getMessage());
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
+			fail(ex);
+		}
+	}
+
+	/**
+	 * Reports failure of start to server
+	 * @param ex
+	 */
+	private void fail(Exception ex) {
+		try {
+			ServerMessageSender.reportExecutionState(machineExecution.getId(), ExecutionProcessEnum.FAIL, ex.getMessage());
+		} catch (Exception e) {
+			e.printStackTrace();
 		}
-		
 	}
 }
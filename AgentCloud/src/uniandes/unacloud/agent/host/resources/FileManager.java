@@ -23,7 +23,7 @@ public class FileManager {
 			List<File> files = new ArrayList<File>();
 			files.add(new File(VariableManager.getInstance().getLocal().getStringVariable(UnaCloudConstants.DATA_PATH) + UnaCloudConstants.AGENT_OUT_LOG));
 			files.add(new File(VariableManager.getInstance().getLocal().getStringVariable(UnaCloudConstants.DATA_PATH) + UnaCloudConstants.AGENT_ERROR_LOG));
-			ExecutorService.executeRequestTask(new UploadZipTask(files, OSFactory.getOS().getHostname()));
+			ExecutorService.executeTransferTask(new UploadZipTask(files, OSFactory.getOS().getHostname()));
 		} catch (Exception e) {
 			e.printStackTrace();
 		}		
@@ -36,7 +36,7 @@ public class FileManager {
 			//Know where are the monitoring files to zip it
 			files.add(new File(VariableManager.getInstance().getLocal().getStringVariable(UnaCloudConstants.DATA_PATH) + UnaCloudConstants.AGENT_OUT_LOG));
 			files.add(new File(VariableManager.getInstance().getLocal().getStringVariable(UnaCloudConstants.DATA_PATH) + UnaCloudConstants.AGENT_ERROR_LOG));
-			ExecutorService.executeRequestTask(new UploadZipTask(files, OSFactory.getOS().getHostname()));
+			ExecutorService.executeTransferTask(new UploadZipTask(files, OSFactory.getOS().getHostname()));
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -119,9 +119,4 @@ public class LinuxOS extends OperatingSystem{
 		return "java";
 	}
 
-	@Override
-	public String getPingCommand(String ipAddress)throws UnsupportedCommandException {		
-		return "ping -c 2 " + ipAddress;
-	}
-
 }
@@ -70,9 +70,4 @@ public class MacOS extends OperatingSystem{
 	public String getJavaCommand() throws UnsupportedCommandException {
 		throw new UnsupportedCommandException("Java Command","Mac");		
 	}
-
-	@Override
-	public String getPingCommand(String ipAddress)throws UnsupportedCommandException {
-		throw new UnsupportedCommandException("Ping Command","Mac");		
-	}
 }
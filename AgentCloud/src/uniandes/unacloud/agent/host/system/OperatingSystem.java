@@ -182,14 +182,6 @@ public abstract class OperatingSystem {
 	 */
 	public abstract String getJavaCommand() throws UnsupportedCommandException;
 	
-	/**
-	 * Responsible for returning ping command with IP address parameter appended 
-	 * @param ipAddress to create command
-	 * @return ping command
-	 * @throws UnsupportedCommandException
-	 */
-	public abstract String getPingCommand(String ipAddress) throws UnsupportedCommandException;
-	
 	 /**
      * Responsible for obtaining the operating system name
      * @return os name
@@ -115,9 +115,4 @@ public class WindowsOS extends OperatingSystem{
 		return "java";
 	}
 
-	@Override
-	public String getPingCommand(String ipAddress)throws UnsupportedCommandException {		
-		return "ping " + ipAddress + " -n 2";
-	}	
-
 }
@@ -0,0 +1,251 @@
+package uniandes.unacloud.agent.net.download;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import uniandes.unacloud.agent.exceptions.ExecutionException;
+import uniandes.unacloud.agent.execution.domain.Image;
+import uniandes.unacloud.agent.execution.domain.ImageCopy;
+import uniandes.unacloud.agent.utils.VariableManager;
+import uniandes.unacloud.common.enums.TransmissionProtocolEnum;
+import uniandes.unacloud.common.net.tcp.ChunkManifest;
+import uniandes.unacloud.common.utils.UnaCloudConstants;
+import uniandes.unacloud.utils.file.FileProcessor;
+
+/**
+ * Downloads image zip file from file server using CHUNKED transmission.
+ * Zip file is divided in chunks verified with SHA-256, chunks are requested by digest in parallel connections
+ * and written directly in their position of zip file. Chunks already present in a partial zip file are not requested again.
+ * @author agent
+ *
+ */
+public class ChunkedImageDownloader {
+
+	/**
+	 * Default quantity of parallel connections
+	 */
+	private static final int DEFAULT_CONNECTIONS = 4;
+
+	/**
+	 * Times missing chunks are requested before failing
+	 */
+	private static final int MAX_ATTEMPTS = 3;
+
+	/**
+	 * Time in milliseconds before second request of missing chunks, it is doubled before each next request
+	 */
+	private static final long RETRY_DELAY = 1000;
+
+	private final String ip;
+
+	private final int port;
+
+	private final Image image;
+
+	/**
+	 * Creates a downloader for an image
+	 * @param ip file server IP
+	 * @param port file server port
+	 * @param image image to be downloaded
+	 */
+	public ChunkedImageDownloader(String ip, int port, Image image) {
+		this.ip = ip;
+		this.port = port;
+		this.image = image;
+	}
+
+	/**
+	 * Requests image data and downloads zip file of copy in root folder.
+	 * Files in root folder are deleted except zip file, which is used to resume download.
+	 * @param copy empty copy, main file is set using image data
+	 * @param root folder where zip file is downloaded
+	 * @throws Exception
+	 */
+	public void download(ImageCopy copy, File root) throws Exception {
+		ChunkManifest manifest;
+		try (Socket s = connect(ChunkManifest.REQUEST_MANIFEST); DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
+			DownloadImageTask.readHeader(in, image, copy, root);
+			manifest = ChunkManifest.read(in);
+		}
+		File zip = copy.getMainFile().getZipFile();
+		root.mkdirs();
+		File[] files = root.listFiles();
+		if (files != null)
+			for (File f : files)
+				if (!f.equals(zip))
+					FileProcessor.deleteFileSync(f.getAbsolutePath());
+
+		try (RandomAccessFile raf = new RandomAccessFile(zip, "rw"); FileChannel channel = raf.getChannel()) {
+			boolean partial = raf.length() > 0;
+			raf.setLength(manifest.getSize());
+			Map<String, List<Integer>> missing = getMissingChunks(channel, manifest, partial);
+			System.out.println("\t" + zip.getName() + ": " + manifest.getChunks() + " chunks, " + missing.size() + " to download");
+			for (int attempt = 0; attempt < MAX_ATTEMPTS && !missing.isEmpty(); attempt++) {
+				if (attempt > 0) {
+					//File server could be busy or restarting
+					long delay = RETRY_DELAY << (attempt - 1);
+					System.out.println("\t" + missing.size() + " chunks were not received, requesting them again in " + delay + " ms");
+					Thread.sleep(delay);
+				}
+				fetch(missing, channel, manifest);
+			}
+			if (!missing.isEmpty())
+				throw new ExecutionException("Error downloading image, " + missing.size() + " chunks were not received");
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * Returns chunks which are not in file grouped by digest
+	 * @param channel zip file
+	 * @param manifest
+	 * @param partial true in case file has data of a previous download to be verified
+	 * @return chunk indexes by digest
+	 * @throws IOException
+	 */
+	private static Map<String, List<Integer>> getMissingChunks(FileChannel channel, ChunkManifest manifest, boolean partial) throws IOException {
+		Map<String, List<Integer>> missing = new ConcurrentHashMap<String, List<Integer>>();
+		ByteBuffer buffer = partial ? ByteBuffer.allocate(manifest.getChunkSize()) : null;
+		for (int i = 0; i < manifest.getChunks(); i++) {
+			String digest = manifest.getDigest(i);
+			if (partial) {
+				buffer.clear();
+				buffer.limit(manifest.getLength(i));
+				while (buffer.hasRemaining() && channel.read(buffer, manifest.getOffset(i) + buffer.position()) > 0);
+				if (!buffer.hasRemaining() && digest.equals(ChunkManifest.digest(buffer.array(), 0, buffer.limit())))
+					continue;
+			}
+			List<Integer> indexes = missing.get(digest);
+			if (indexes == null) {
+				indexes = new ArrayList<Integer>();
+				missing.put(digest, indexes);
+			}
+			indexes.add(i);
+		}
+		return missing;
+	}
+
+	/**
+	 * Requests missing chunks in parallel connections, chunks received and verified are removed from missing
+	 * @param missing chunk indexes by digest
+	 * @param channel zip file
+	 * @param manifest
+	 * @throws InterruptedException
+	 */
+	private void fetch(final Map<String, List<Integer>> missing, final FileChannel channel, final ChunkManifest manifest) throws InterruptedException {
+		int connections = Math.max(1, Math.min(getConnections(), missing.size()));
+		final List<List<String>> groups = new ArrayList<List<String>>();
+		for (int i = 0; i < connections; i++)
+			groups.add(new ArrayList<String>());
+		int n = 0;
+		for (String digest : missing.keySet())
+			groups.get(n++ % connections).add(digest);
+		java.util.concurrent.ExecutorService pool = Executors.newFixedThreadPool(connections);
+		for (final List<String> group : groups)
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						fetchGroup(group, missing, channel, manifest);
+					} catch (Exception e) {
+						//Chunks of group are kept as missing and requested again in next attempt
+						System.out.println("\tError downloading " + group.size() + " chunks from " + ip + ":" + port + ": " + e);
+						e.printStackTrace();
+					}
+				}
+			});
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Requests a group of chunks in one connection and writes them in their positions
+	 * @param digests chunks requested
+	 * @param missing chunk indexes by digest
+	 * @param channel zip file
+	 * @param manifest
+	 * @throws Exception
+	 */
+	private void fetchGroup(List<String> digests, Map<String, List<Integer>> missing, FileChannel channel, ChunkManifest manifest) throws Exception {
+		try (Socket s = connect(ChunkManifest.REQUEST_CHUNKS, digests); DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
+			byte[] buffer = new byte[manifest.getChunkSize()];
+			for (String digest : digests) {
+				int length = in.readInt();
+				if (length < 0 || length > buffer.length) {
+					System.out.println("\tChunk " + digest + " not available");
+					continue;
+				}
+				in.readFully(buffer, 0, length);
+				if (!digest.equals(ChunkManifest.digest(buffer, 0, length))) {
+					System.out.println("\tChunk " + digest + " is corrupted");
+					continue;
+				}
+				for (int index : missing.get(digest)) {
+					ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+					long position = manifest.getOffset(index);
+					while (data.hasRemaining())
+						position += channel.write(data, position);
+				}
+				missing.remove(digest);
+			}
+		}
+	}
+
+	/**
+	 * Opens connection with file server and sends request
+	 * @param request type of request
+	 * @param digests chunks requested, ignored in manifest request
+	 * @return connected socket
+	 * @throws IOException
+	 */
+	private Socket connect(int request, List<String> digests) throws IOException {
+		Socket s = new Socket(ip, port);
+		try {
+			DataOutputStream ds = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			ds.writeInt(UnaCloudConstants.REQUEST_IMAGE);
+			ds.writeLong(image.getId());
+			ds.writeUTF(TransmissionProtocolEnum.CHUNKED.name());
+			ds.writeInt(request);
+			if (digests != null) {
+				ds.writeInt(digests.size());
+				for (String digest : digests)
+					ChunkManifest.writeDigest(ds, digest);
+			}
+			ds.flush();
+			return s;
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+	}
+
+	private Socket connect(int request) throws IOException {
+		return connect(request, null);
+	}
+
+	/**
+	 * Returns quantity of parallel connections configured in local variable DOWNLOAD_CONNECTIONS
+	 * @return connections
+	 */
+	private static int getConnections() {
+		try {
+			return VariableManager.getInstance().getLocal().getIntegerVariable(UnaCloudConstants.DOWNLOAD_CONNECTIONS, DEFAULT_CONNECTIONS);
+		} catch (Exception e) {
+			return DEFAULT_CONNECTIONS;
+		}
+	}
+}
@@ -1,10 +1,13 @@
 package uniandes.unacloud.agent.net.download;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.InputStreamReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -17,17 +20,24 @@ import uniandes.unacloud.agent.host.system.OperatingSystem;
 import uniandes.unacloud.agent.net.torrent.TorrentClient;
 import uniandes.unacloud.agent.utils.VariableManager;
 import uniandes.unacloud.common.enums.TransmissionProtocolEnum;
+import uniandes.unacloud.common.net.tcp.ImageTransferHeader;
 import uniandes.unacloud.common.utils.UnaCloudConstants;
 import uniandes.unacloud.utils.file.FileProcessor;
 import uniandes.unacloud.utils.file.Zipper;
 
 /**
- * Class responsible for manage download files process from server
+ * Class responsible for manage download files process from server.
+ * In TCP transmission image files are extracted while zip file is received, zip file is only kept in disk when it is needed to seed it in P2P transmission.
  * @author CesarF
  *
  */
 public class DownloadImageTask {
 	
+	/**
+	 * Size of buffer used to write received files
+	 */
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	
 	/**
 	 * Creates a new image copy requesting images from server
 	 * @param image base image
@@ -39,12 +49,31 @@ public class DownloadImageTask {
 	public static void downloadImageCopy(Image image, ImageCopy copy, String repository, TransmissionProtocolEnum type) throws Exception {
 		
 		File root = new File(repository + OperatingSystem.PATH_SEPARATOR + image.getId() + OperatingSystem.PATH_SEPARATOR + "base");
-		FileProcessor.deleteFileSync(root.getAbsolutePath());
-		root.mkdirs();
 		final int puerto = VariableManager.getInstance().getGlobal().getIntegerVariable(UnaCloudConstants.FILE_SERVER_PORT);
 		final String ip = VariableManager.getInstance().getGlobal().getStringVariable(UnaCloudConstants.FILE_SERVER_IP);
 		System.out.println("Connecting to " + ip + ":" + puerto + " to download: " + image.getId());
 		
+		if (type == TransmissionProtocolEnum.CHUNKED) {
+			try {
+				//Partial zip file in root is kept to resume download
+				new ChunkedImageDownloader(ip, puerto, image).download(copy, root);
+				File zip = copy.getMainFile().getZipFile();
+				Zipper.unzipIt(zip, root.getAbsolutePath());
+				//Zip file is only needed to resume download
+				FileProcessor.deleteFileSync(zip.getAbsolutePath());
+				copy.setImage(image);
+				image.getImageCopies().add(copy);
+				copy.init();
+			} catch (ExecutionException e1) {
+				throw e1;
+			} catch (Exception e) {
+				throw new ExecutionException("Error downloading chunks " + e.getMessage(), e);
+			}
+			return;
+		}
+		
+		FileProcessor.deleteFileSync(root.getAbsolutePath());
+		root.mkdirs();
 		try (Socket s = new Socket(ip, puerto); DataOutputStream ds = new DataOutputStream(s.getOutputStream())) {
 			
 			//Sends operation type ID
@@ -59,46 +88,22 @@ public class DownloadImageTask {
 			ds.flush();
 			
 			System.out.println("\tTransmission protocol:" + type);
-			ds.writeUTF(type.name());
+			ds.writeUTF(UnaCloudConstants.RAW_TRANSMISSION_PREFIX + type.name());
 			ds.flush();
 			
-			//Receives zip elements
-			try (ZipInputStream zis = new ZipInputStream(s.getInputStream())) {
-				System.out.println("\tZip open");
-				byte[] buffer = new byte[1024 * 100];
-				for (ZipEntry entry; (entry = zis.getNextEntry()) != null;) {
-					if (entry.getName().equals("unacloudinfo")) {						
-						BufferedReader br = new BufferedReader(new InputStreamReader(zis));
-						image.setPlatformId(br.readLine());
-						System.out.println("\tPlatform: " + image.getPlatformId());
-						String mainFile = br.readLine();
-						if (mainFile == null)
-							throw new ExecutionException(UnaCloudConstants.ERROR_MESSAGE + " image mainFile is null");		
-						copy.setMainFile(new File(root, mainFile));
-						System.out.println("\tMain: " + mainFile);
-						image.setPassword(br.readLine());
-						image.setUsername(br.readLine());
-						copy.setStatus(ImageStatus.LOCK);
-						/*copy.setVirtualMachineName();*/br.readLine();
-						image.setConfiguratorClass(br.readLine());
-						System.out.println("\tconfig: " + image.getConfiguratorClass());						
-					} 
-					else {
-						try (FileOutputStream fos = new FileOutputStream(new File(root, entry.getName()))) {
-							for(int n; (n = zis.read(buffer)) != -1;)
-								fos.write(buffer, 0, n);	
-						}
-					}
-					zis.closeEntry();
-				}
-			} catch(Exception e) {
-				e.printStackTrace();
-			}
+			//Receives image data and file
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			ImageTransferHeader header = readHeader(in, image, copy, root);
 			
-			if (type == TransmissionProtocolEnum.P2P) 
+			if (type == TransmissionProtocolEnum.P2P) {
+				//Torrent file is received, zip file is downloaded and seeded by torrent client
+				receiveFile(in, new File(root, header.getFileName()), header.getFileSize());
 				TorrentClient.getInstance().downloadAndAnnounceTorrent(copy.getMainFile().getTorrentFile());
-					
-			Zipper.unzipIt(copy.getMainFile().getZipFile(), root.getAbsolutePath());
+				Zipper.unzipIt(copy.getMainFile().getZipFile(), root.getAbsolutePath());
+			}
+			else
+				unzipStream(in, root, header.getFileSize());
+			
 			copy.setImage(image);
 			image.getImageCopies().add(copy);
 			copy.init();
@@ -109,4 +114,136 @@ public class DownloadImageTask {
 			throw new ExecutionException("Error opening connection " + e.getMessage(), e);
 		}
 	}
+	
+	/**
+	 * Reads image data sent by file server before image files and sets it in image and copy
+	 * @param in socket input
+	 * @param image base image
+	 * @param copy empty copy, main file is set in root folder
+	 * @param root folder of copy files
+	 * @return header read
+	 * @throws Exception in case image is not available or it has not main file
+	 */
+	static ImageTransferHeader readHeader(DataInputStream in, Image image, ImageCopy copy, File root) throws Exception {
+		ImageTransferHeader header = ImageTransferHeader.read(in);
+		if (!header.isAvailable())
+			throw new ExecutionException(UnaCloudConstants.ERROR_MESSAGE + " image is not available in file server");
+		image.setPlatformId(header.getPlatform());
+		System.out.println("\tPlatform: " + image.getPlatformId());
+		if (header.getMainFile() == null)
+			throw new ExecutionException(UnaCloudConstants.ERROR_MESSAGE + " image mainFile is null");
+		copy.setMainFile(new File(root, header.getMainFile()));
+		System.out.println("\tMain: " + header.getMainFile());
+		image.setPassword(header.getPassword());
+		image.setUsername(header.getUser());
+		copy.setStatus(ImageStatus.LOCK);
+		image.setConfiguratorClass(header.getConfigurer());
+		System.out.println("\tconfig: " + image.getConfiguratorClass());
+		return header;
+	}
+	
+	/**
+	 * Writes bytes received in a file
+	 * @param in socket input
+	 * @param file destination file
+	 * @param size bytes to be received
+	 * @throws Exception
+	 */
+	private static void receiveFile(InputStream in, File file, long size) throws Exception {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long remaining = size;
+		try (FileOutputStream fos = new FileOutputStream(file)) {
+			for (int n; remaining > 0 && (n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1; remaining -= n)
+				fos.write(buffer, 0, n);
+		}
+		if (remaining > 0)
+			throw new ExecutionException("Connection closed before receiving " + file.getName());
+	}
+	
+	/**
+	 * Extracts entries of zip file in root folder while it is received, zip file is not written in disk
+	 * @param in socket input
+	 * @param root folder where files are extracted
+	 * @param size bytes of zip file
+	 * @throws Exception
+	 */
+	private static void unzipStream(InputStream in, File root, long size) throws Exception {
+		String rootPath = root.getCanonicalPath() + File.separator;
+		BoundedInputStream zipData = new BoundedInputStream(in, size);
+		ZipInputStream zis = new ZipInputStream(zipData);
+		byte[] buffer = new byte[BUFFER_SIZE];
+		for (ZipEntry entry; (entry = zis.getNextEntry()) != null;) {
+			File file = new File(root, entry.getName());
+			if (!file.getCanonicalPath().startsWith(rootPath))
+				throw new ExecutionException("Invalid entry in image zip file " + entry.getName());
+			System.out.println("\tfile unzip : " + file.getAbsolutePath());
+			if (entry.isDirectory()) {
+				file.mkdirs();
+				continue;
+			}
+			file.getParentFile().mkdirs();
+			try (FileOutputStream fos = new FileOutputStream(file)) {
+				for (int n; (n = zis.read(buffer)) != -1;)
+					fos.write(buffer, 0, n);
+			}
+		}
+		//Central directory of zip file is discarded
+		while (zipData.read(buffer, 0, buffer.length) != -1);
+		if (zipData.getRemaining() > 0)
+			throw new ExecutionException("Connection closed before receiving image zip file");
+	}
+	
+	/**
+	 * Stream which reads a fixed quantity of bytes from socket input, end of stream is reached after them
+	 */
+	private static class BoundedInputStream extends FilterInputStream {
+		
+		private long remaining;
+		
+		public BoundedInputStream(InputStream in, long size) {
+			super(in);
+			this.remaining = size;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int b = in.read();
+			if (b != -1)
+				remaining--;
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0)
+				remaining -= n;
+			return n;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+		
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+		
+		@Override
+		public void close() {
+			//Socket is closed by task
+		}
+		
+		public long getRemaining() {
+			return remaining;
+		}
+	}
 }
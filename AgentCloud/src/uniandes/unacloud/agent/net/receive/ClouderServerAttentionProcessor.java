@@ -2,9 +2,9 @@ package uniandes.unacloud.agent.net.receive;
 
 import static uniandes.unacloud.common.utils.UnaCloudConstants.ERROR_MESSAGE;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.RejectedExecutionException;
 
 import uniandes.unacloud.agent.execution.AgentManager;
 import uniandes.unacloud.agent.execution.ExecutorService;
@@ -16,6 +16,7 @@ import uniandes.unacloud.agent.execution.task.StopExecutionTask;
 import uniandes.unacloud.agent.host.resources.FileManager;
 import uniandes.unacloud.agent.host.system.OSFactory;
 import uniandes.unacloud.common.enums.ExecutionProcessEnum;
+import uniandes.unacloud.common.net.codec.MessageConnection;
 import uniandes.unacloud.common.net.tcp.AbstractTCPSocketProcessor;
 import uniandes.unacloud.common.net.tcp.message.*;
 import uniandes.unacloud.common.net.tcp.message.agent.ClearImageFromCacheMessage;
@@ -27,7 +28,8 @@ import uniandes.unacloud.common.net.tcp.message.pmo.PhysicalMachineTurnOnMessage
 
 /**
  * Responsible for attending or discarding a
- * Server operation request in a thread
+ * Server operation request in a thread.
+ * In sessions slow requests are attended in control pool, so reading thread keeps answering heartbeats and quick requests.
  */
 public class ClouderServerAttentionProcessor extends AbstractTCPSocketProcessor {
 	
@@ -41,24 +43,86 @@ public class ClouderServerAttentionProcessor extends AbstractTCPSocketProcessor
 
 	@Override
 	public void processMessage(Socket socket) throws Exception {
-		try (Socket s = socket; ObjectInputStream ois = new ObjectInputStream(s.getInputStream()); ObjectOutputStream oos = new ObjectOutputStream(s.getOutputStream())) {
-			ClientMessage clouderServerRequest = (ClientMessage) ois.readObject();
-            System.out.println("I received message: " + clouderServerRequest);
-            if (clouderServerRequest.getType().equals(TCPMessageEnum.EXECUTION_OPERATION.name()))
-		        oos.writeObject(attendExecutionOperation((ImageOperationMessage) clouderServerRequest));
-            else if (clouderServerRequest.getType().equals(TCPMessageEnum.PHYSICAL_MACHINE_OPERATION.name()))
-		        oos.writeObject(attendPhysicalMachineOperation((PhysicalMachineOperationMessage) clouderServerRequest));
-		    else if (clouderServerRequest.getType().equals(TCPMessageEnum.AGENT_OPERATION.name()))
-		        oos.writeObject(attendAgentOperation((AgentMessage) clouderServerRequest));
-		    else
-	            oos.writeObject(new UnaCloudResponse("Operation " + clouderServerRequest.getType() + " is invalid as main operation.", ExecutionProcessEnum.FAIL));
-	        oos.flush();
+		try (Socket s = socket) {
+			MessageConnection connection = MessageConnection.accept(s);
+			//Sessions from server carry many requests until server closes them
+			do {
+				ClientMessage clouderServerRequest = (ClientMessage) connection.readMessage();
+				if (clouderServerRequest == null)
+					break;
+				if (connection.isSession() && isSlowRequest(clouderServerRequest))
+					attendInBackground(connection, clouderServerRequest);
+				else
+					connection.writeMessage(attendRequest(clouderServerRequest));
+			} while (connection.isSession());
         } catch (Exception ex) {
             ex.printStackTrace();
         }
 		
 	}
 	
+	/**
+	 * Returns true in case request works with files of cache or logs, it could take minutes
+	 * @param clouderServerRequest
+	 * @return true if request is slow
+	 */
+	private boolean isSlowRequest(ClientMessage clouderServerRequest) {
+		if (!clouderServerRequest.getType().equals(TCPMessageEnum.AGENT_OPERATION.name()))
+			return false;
+		switch (((AgentMessage) clouderServerRequest).getTask()) {
+			case AgentMessage.CLEAR_CACHE:
+			case AgentMessage.CLEAR_COPY:
+			case AgentMessage.CLEAR_IMAGE_FROM_CACHE:
+			case AgentMessage.GET_LOGS:
+			case AgentMessage.GET_MONITORING:
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	/**
+	 * Attends a request in control pool, response is written with request id when it finishes.
+	 * Server receives an error in case pool is full.
+	 * @param connection session where request was read
+	 * @param clouderServerRequest
+	 * @throws IOException
+	 */
+	private void attendInBackground(final MessageConnection connection, final ClientMessage clouderServerRequest) throws IOException {
+		final int requestId = connection.getRequestId();
+		try {
+			ExecutorService.executeControlTask(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						connection.writeResponse(requestId, attendRequest(clouderServerRequest));
+					} catch (IOException e) {
+						System.out.println("Session was closed before sending response to " + clouderServerRequest);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			connection.writeResponse(requestId, new UnaCloudResponse(e.getMessage(), ExecutionProcessEnum.FAIL));
+		}
+	}
+	
+	/**
+	 * Attends a request from server
+	 * @param clouderServerRequest
+	 * @return response to be sent to server
+	 */
+	private UnaCloudResponse attendRequest(ClientMessage clouderServerRequest) {
+		System.out.println("I received message: " + clouderServerRequest);
+		if (clouderServerRequest.getType().equals(TCPMessageEnum.EXECUTION_OPERATION.name()))
+			return attendExecutionOperation((ImageOperationMessage) clouderServerRequest);
+		else if (clouderServerRequest.getType().equals(TCPMessageEnum.PHYSICAL_MACHINE_OPERATION.name()))
+			return attendPhysicalMachineOperation((PhysicalMachineOperationMessage) clouderServerRequest);
+		else if (clouderServerRequest.getType().equals(TCPMessageEnum.AGENT_OPERATION.name()))
+			return attendAgentOperation((AgentMessage) clouderServerRequest);
+		else
+			return new UnaCloudResponse("Operation " + clouderServerRequest.getType() + " is invalid as main operation.", ExecutionProcessEnum.FAIL);
+	}
+	
 
     /**
      * Method responsible for attending requests for operations on executions
@@ -70,11 +134,11 @@ public class ClouderServerAttentionProcessor extends AbstractTCPSocketProcessor
 	            case ImageOperationMessage.VM_START:
 	            	UnaCloudResponse resp = new UnaCloudResponse("Starting execution...", ExecutionProcessEnum.SUCCESS);
 	            	ExecutionStartMessage msg = (ExecutionStartMessage) message;
-	        		ExecutorService.executeBackgroundTask(new StartExecutionTask(Execution.getFromStartExecutionMessage(msg), msg.getTransmissionType()));
+	        		ExecutorService.executeTransferTask(new StartExecutionTask(Execution.getFromStartExecutionMessage(msg), msg.getTransmissionType()));
 	            	return resp;
 	            case ImageOperationMessage.VM_STOP:
 					System.out.println("Execution is being stopped...");
-					ExecutorService.executeBackgroundTask(new StopExecutionTask(message.getExecutionId()));
+					ExecutorService.executeControlTask(new StopExecutionTask(message.getExecutionId()));
 	                return new UnaCloudResponse("Stopping execution...", ExecutionProcessEnum.SUCCESS);
 	            case ImageOperationMessage.VM_RESTART:
 	            	//TODO Unused
@@ -0,0 +1,79 @@
+package uniandes.unacloud.agent.persistence;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import uniandes.unacloud.agent.execution.domain.Execution;
+import uniandes.unacloud.agent.execution.domain.Image;
+import uniandes.unacloud.agent.execution.domain.ImageCopy;
+import uniandes.unacloud.agent.execution.domain.NetInterface;
+import uniandes.unacloud.common.utils.Time;
+
+/**
+ * Writes and reads executions with the image copy they use
+ * @author agent
+ *
+ */
+public class ExecutionCodec extends RecordCodec<Execution> {
+
+	@Override
+	public void write(DataOutputStream out, Execution execution) throws IOException {
+		out.writeLong(execution.getId());
+		out.writeInt(execution.getCores());
+		out.writeInt(execution.getMemory());
+		Time time = execution.getExecutionTime();
+		out.writeBoolean(time != null);
+		if (time != null) {
+			out.writeLong(time.getAmount());
+			out.writeUTF(time.getUnit().name());
+		}
+		writeString(out, execution.getHostname());
+		out.writeLong(execution.getShutdownTime());
+		out.writeLong(execution.getImageId());
+		List<NetInterface> interfaces = execution.getInterfaces();
+		out.writeInt(interfaces == null ? -1 : interfaces.size());
+		if (interfaces != null)
+			for (NetInterface netInterface : interfaces) {
+				writeString(out, netInterface.getName());
+				writeString(out, netInterface.getIp());
+				writeString(out, netInterface.getNetMask());
+			}
+		ImageCopy copy = execution.getImage();
+		out.writeBoolean(copy != null && copy.getImage() != null);
+		if (copy != null && copy.getImage() != null) {
+			ImageCodec.writeImage(out, copy.getImage());
+			ImageCodec.writeCopy(out, copy);
+		}
+	}
+
+	@Override
+	public Execution read(DataInputStream in) throws IOException {
+		Execution execution = new Execution();
+		execution.setId(in.readLong());
+		execution.setCores(in.readInt());
+		execution.setMemory(in.readInt());
+		if (in.readBoolean())
+			execution.setExecutionTime(new Time(in.readLong(), TimeUnit.valueOf(in.readUTF())));
+		execution.setHostname(readString(in));
+		execution.setShutdownTime(in.readLong());
+		execution.setImageId(in.readLong());
+		int size = in.readInt();
+		if (size >= 0) {
+			List<NetInterface> interfaces = new ArrayList<NetInterface>();
+			for (int i = 0; i < size; i++)
+				interfaces.add(new NetInterface(readString(in), readString(in), readString(in)));
+			execution.setInterfaces(interfaces);
+		}
+		if (in.readBoolean()) {
+			Image image = ImageCodec.readImage(in);
+			ImageCopy copy = ImageCodec.readCopy(in, image);
+			image.getImageCopies().add(copy);
+			execution.setImage(copy);
+		}
+		return execution;
+	}
+}
@@ -0,0 +1,95 @@
+package uniandes.unacloud.agent.persistence;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import uniandes.unacloud.agent.execution.domain.Image;
+import uniandes.unacloud.agent.execution.domain.ImageCopy;
+
+/**
+ * Writes and reads images with their copies
+ * @author agent
+ *
+ */
+public class ImageCodec extends RecordCodec<Image> {
+
+	@Override
+	public void write(DataOutputStream out, Image image) throws IOException {
+		writeImage(out, image);
+		out.writeInt(image.getImageCopies().size());
+		for (ImageCopy copy : image.getImageCopies())
+			writeCopy(out, copy);
+	}
+
+	@Override
+	public Image read(DataInputStream in) throws IOException {
+		Image image = readImage(in);
+		for (int i = in.readInt(); i > 0; i--)
+			image.getImageCopies().add(readCopy(in, image));
+		return image;
+	}
+	
+	/**
+	 * Writes image data without copies
+	 * @param out stream
+	 * @param image
+	 * @throws IOException
+	 */
+	static void writeImage(DataOutputStream out, Image image) throws IOException {
+		out.writeLong(image.getId());
+		writeString(out, image.getUsername());
+		writeString(out, image.getPassword());
+		writeString(out, image.getConfiguratorClass());
+		writeString(out, image.getPlatformId());
+		out.writeLong(image.getLastUsed());
+	}
+	
+	/**
+	 * Reads image data without copies
+	 * @param in stream
+	 * @return image
+	 * @throws IOException
+	 */
+	static Image readImage(DataInputStream in) throws IOException {
+		Image image = new Image();
+		image.setId(in.readLong());
+		image.setUsername(readString(in));
+		image.setPassword(readString(in));
+		image.setConfiguratorClass(readString(in));
+		image.setPlatformId(readString(in));
+		image.setLastUsed(in.readLong());
+		return image;
+	}
+	
+	/**
+	 * Writes copy data, status is not stored
+	 * @param out stream
+	 * @param copy
+	 * @throws IOException
+	 */
+	static void writeCopy(DataOutputStream out, ImageCopy copy) throws IOException {
+		writeString(out, copy.getMainFile() == null ? null : copy.getMainFile().getFilePath());
+		writeString(out, copy.getPlatformExecutionID());
+		out.writeBoolean(copy.isLinked());
+	}
+	
+	/**
+	 * Reads copy data
+	 * @param in stream
+	 * @param image image of copy
+	 * @return copy
+	 * @throws IOException
+	 */
+	static ImageCopy readCopy(DataInputStream in, Image image) throws IOException {
+		ImageCopy copy = new ImageCopy();
+		String mainFile = readString(in);
+		if (mainFile != null)
+			copy.setMainFile(new File(mainFile));
+		copy.setPlatformExecutionID(readString(in));
+		copy.setLinked(in.readBoolean());
+		copy.setImage(image);
+		return copy;
+	}
+}
@@ -0,0 +1,389 @@
+package uniandes.unacloud.agent.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import uniandes.unacloud.agent.utils.VariableManager;
+import uniandes.unacloud.common.utils.UnaCloudConstants;
+
+/**
+ * Stores values by id in disk using a snapshot file and an append only journal.
+ * Each change is appended to journal as one record, when journal is bigger than stored values it is compacted in a new snapshot.
+ * Snapshots are written in a temporal file and renamed, so a crash keeps previous snapshot and journal.
+ * Records have length and checksum, a record partially written in a crash is discarded when journal is loaded.
+ * Snapshots are never written partially, so a snapshot with an invalid record fails the load.
+ * @author agent
+ *
+ * @param <V> type of stored values
+ */
+public class JournalStore<V> {
+
+	/**
+	 * First bytes of snapshot file
+	 */
+	private static final int SNAPSHOT_MAGIC = 0x554E4A53;
+
+	/**
+	 * Version of record format
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * Operation to store a value
+	 */
+	private static final byte PUT = 1;
+
+	/**
+	 * Operation to remove a value
+	 */
+	private static final byte REMOVE = 2;
+
+	/**
+	 * Max size of a record, bigger sizes are considered corruption
+	 */
+	private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Min quantity of records in journal before compacting it
+	 */
+	private static final int MIN_RECORDS_TO_COMPACT = 256;
+
+	/**
+	 * Time in milliseconds between syncs with INTERVAL policy
+	 */
+	private static final long SYNC_INTERVAL = 1000;
+
+	private final File snapshotFile;
+
+	private final File tempFile;
+
+	private final File journalFile;
+
+	private final RecordCodec<V> codec;
+
+	private final SyncPolicy sync;
+
+	/**
+	 * Last encoded value by id, used to write snapshots without asking values to owner
+	 */
+	private final TreeMap<Long, byte[]> state = new TreeMap<Long, byte[]>();
+
+	/**
+	 * Journal opened to append records
+	 */
+	private FileOutputStream journal;
+
+	/**
+	 * Quantity of records in journal
+	 */
+	private int records;
+
+	/**
+	 * Last time journal was forced to disk
+	 */
+	private long lastSync;
+
+	/**
+	 * Creates a store, files are named using base name
+	 * @param name base name of files, snapshot is name.snapshot and journal is name.journal
+	 * @param codec to write and read values
+	 * @param sync policy to force records to disk
+	 */
+	public JournalStore(String name, RecordCodec<V> codec, SyncPolicy sync) {
+		this.snapshotFile = new File(name + ".snapshot");
+		this.tempFile = new File(name + ".snapshot.tmp");
+		this.journalFile = new File(name + ".journal");
+		this.codec = codec;
+		this.sync = sync;
+	}
+
+	/**
+	 * Creates a store using sync policy configured in local variable JOURNAL_SYNC, default is ALWAYS
+	 * @param name base name of files
+	 * @param codec to write and read values
+	 * @return store
+	 */
+	public static <V> JournalStore<V> open(String name, RecordCodec<V> codec) {
+		SyncPolicy sync = SyncPolicy.ALWAYS;
+		try {
+			String value = VariableManager.getInstance().getLocal().getStringVariable(UnaCloudConstants.JOURNAL_SYNC);
+			if (value != null)
+				sync = SyncPolicy.valueOf(value.trim().toUpperCase());
+		} catch (Exception e) {
+			System.out.println("Invalid " + UnaCloudConstants.JOURNAL_SYNC + ", using " + sync);
+		}
+		return new JournalStore<V>(name, codec, sync);
+	}
+
+	/**
+	 * Returns true in case store has files in disk
+	 * @return true if snapshot or journal exists
+	 */
+	public boolean exists() {
+		return snapshotFile.exists() || journalFile.exists();
+	}
+
+	/**
+	 * Loads values from snapshot and replays journal over them. Journal records after a corrupted or incomplete record are discarded.
+	 * After loading, journal is opened to append new records.
+	 * @return values by id
+	 * @throws IOException in case snapshot is corrupted
+	 */
+	public synchronized Map<Long, V> load() throws IOException {
+		closeJournal();
+		state.clear();
+		records = 0;
+		if (snapshotFile.exists())
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+				if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != VERSION)
+					throw new IOException("Invalid snapshot " + snapshotFile);
+				int expected = in.readInt();
+				long valid = readRecords(in);
+				if (records != expected || valid != snapshotFile.length() - 12)
+					throw new IOException("Corrupted snapshot " + snapshotFile + ", invalid record " + records + " of " + expected + " at byte " + (valid + 12));
+			}
+		records = 0;
+		if (journalFile.exists()) {
+			long valid;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+				valid = readRecords(in);
+			}
+			if (valid < journalFile.length()) {
+				System.out.println("Discarding " + (journalFile.length() - valid) + " bytes at end of " + journalFile);
+				try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+					file.setLength(valid);
+				}
+			}
+		}
+		Map<Long, V> values = new TreeMap<Long, V>();
+		for (Map.Entry<Long, byte[]> entry : state.entrySet())
+			values.put(entry.getKey(), decode(entry.getValue()));
+		journal = new FileOutputStream(journalFile, true);
+		System.out.println("Loaded " + values.size() + " values and " + records + " journal records from " + snapshotFile.getName());
+		return values;
+	}
+
+	/**
+	 * Stores value in journal
+	 * @param id value id
+	 * @param value
+	 */
+	public synchronized void put(long id, V value) {
+		try {
+			byte[] data = encode(value);
+			append(PUT, id, data);
+			state.put(id, data);
+			compactIfNeeded();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Removes value from store
+	 * @param id value id
+	 */
+	public synchronized void remove(long id) {
+		try {
+			if (state.remove(id) == null)
+				return;
+			append(REMOVE, id, new byte[0]);
+			compactIfNeeded();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Replaces all stored values writing a new snapshot and an empty journal
+	 * @param values values by id
+	 */
+	public synchronized void compact(Map<Long, V> values) {
+		try {
+			state.clear();
+			for (Map.Entry<Long, V> entry : values.entrySet())
+				state.put(entry.getKey(), encode(entry.getValue()));
+			compact();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Closes journal
+	 */
+	public synchronized void close() {
+		closeJournal();
+	}
+
+	/**
+	 * Writes current state in temporal file, forces it to disk and renames it as snapshot.
+	 * Journal is truncated after rename is forced to disk, in case of crash between both steps journal is replayed over new snapshot with the same result.
+	 * @throws IOException
+	 */
+	private void compact() throws IOException {
+		try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(state.size());
+			for (Map.Entry<Long, byte[]> entry : state.entrySet())
+				out.write(frame(PUT, entry.getKey(), entry.getValue()));
+			out.flush();
+			fos.getFD().sync();
+		}
+		Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		syncFolder();
+		closeJournal();
+		journal = new FileOutputStream(journalFile, false);
+		journal.getFD().sync();
+		records = 0;
+	}
+
+	/**
+	 * Forces folder of snapshot to disk, so rename of snapshot is durable before journal is truncated.
+	 * Windows doesn't open folders as files, NTFS writes renames in its own journal.
+	 * @throws IOException
+	 */
+	private void syncFolder() throws IOException {
+		if (System.getProperty("os.name").startsWith("Windows"))
+			return;
+		try (FileChannel folder = FileChannel.open(snapshotFile.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ)) {
+			folder.force(true);
+		}
+	}
+
+	/**
+	 * Compacts journal when it has more records than stored values
+	 * @throws IOException
+	 */
+	private void compactIfNeeded() throws IOException {
+		if (records >= MIN_RECORDS_TO_COMPACT && records > state.size() * 2)
+			compact();
+	}
+
+	/**
+	 * Appends a record in journal and forces it to disk according to sync policy
+	 * @param op operation
+	 * @param id value id
+	 * @param data encoded value
+	 * @throws IOException
+	 */
+	private void append(byte op, long id, byte[] data) throws IOException {
+		if (journal == null)
+			journal = new FileOutputStream(journalFile, true);
+		journal.write(frame(op, id, data));
+		records++;
+		long now = System.currentTimeMillis();
+		if (sync == SyncPolicy.ALWAYS || (sync == SyncPolicy.INTERVAL && now - lastSync >= SYNC_INTERVAL)) {
+			journal.getChannel().force(false);
+			lastSync = now;
+		}
+	}
+
+	/**
+	 * Reads records and applies them to state until end of stream or an invalid record
+	 * @param in stream
+	 * @return quantity of bytes of valid records
+	 * @throws IOException
+	 */
+	private long readRecords(DataInputStream in) throws IOException {
+		long valid = 0;
+		CRC32 crc = new CRC32();
+		while (true) {
+			int length;
+			try {
+				length = in.readInt();
+			} catch (EOFException e) {
+				return valid;
+			}
+			if (length < 9 || length > MAX_RECORD_SIZE)
+				return valid;
+			byte[] body = new byte[length];
+			try {
+				in.readFully(body);
+				crc.reset();
+				crc.update(body, 0, length);
+				if (in.readInt() != (int) crc.getValue())
+					return valid;
+			} catch (EOFException e) {
+				return valid;
+			}
+			DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+			byte op = record.readByte();
+			long id = record.readLong();
+			if (op == PUT) {
+				byte[] data = new byte[length - 9];
+				record.readFully(data);
+				state.put(id, data);
+			}
+			else if (op == REMOVE)
+				state.remove(id);
+			else
+				return valid;
+			records++;
+			valid += length + 8;
+		}
+	}
+
+	/**
+	 * Creates a record: length, operation, id, encoded value and checksum
+	 * @param op operation
+	 * @param id value id
+	 * @param data encoded value
+	 * @return record bytes
+	 * @throws IOException
+	 */
+	private static byte[] frame(byte op, long id, byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + 17);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(data.length + 9);
+		out.writeByte(op);
+		out.writeLong(id);
+		out.write(data);
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray(), 4, data.length + 9);
+		out.writeInt((int) crc.getValue());
+		return bytes.toByteArray();
+	}
+
+	private byte[] encode(V value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		codec.write(out, value);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private V decode(byte[] data) throws IOException {
+		return codec.read(new DataInputStream(new ByteArrayInputStream(data)));
+	}
+
+	private void closeJournal() {
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			journal = null;
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package uniandes.unacloud.agent.persistence;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes and reads values stored in journal using a compact binary format
+ * @author agent
+ *
+ * @param <V> type of value
+ */
+public abstract class RecordCodec<V> {
+	
+	/**
+	 * Writes value in stream
+	 * @param out stream
+	 * @param value to be written
+	 * @throws IOException
+	 */
+	public abstract void write(DataOutputStream out, V value) throws IOException;
+	
+	/**
+	 * Reads a value written by this codec
+	 * @param in stream
+	 * @return value
+	 * @throws IOException
+	 */
+	public abstract V read(DataInputStream in) throws IOException;
+	
+	/**
+	 * Writes a string which could be null
+	 * @param out stream
+	 * @param value
+	 * @throws IOException
+	 */
+	protected static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null)
+			out.writeUTF(value);
+	}
+	
+	/**
+	 * Reads a string written by writeString
+	 * @param in stream
+	 * @return value, could be null
+	 * @throws IOException
+	 */
+	protected static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
@@ -0,0 +1,21 @@
+package uniandes.unacloud.agent.persistence;
+
+/**
+ * Policy used by journal to force records to disk
+ * @author agent
+ *
+ */
+public enum SyncPolicy {
+	/**
+	 * Each record is forced to disk before returning, no record is lost in a crash
+	 */
+	ALWAYS,
+	/**
+	 * Records are forced to disk at most once per second, records written in last second could be lost in a crash
+	 */
+	INTERVAL,
+	/**
+	 * Records are written but operating system decides when they are forced to disk
+	 */
+	NEVER
+}
@@ -0,0 +1,6 @@
+/**
+ * In this package are located classes to persist agent state in disk using journals and snapshots
+ * @author agent
+ *
+ */
+package uniandes.unacloud.agent.persistence;
@@ -0,0 +1,17 @@
+package uniandes.unacloud.agent.platform;
+
+/**
+ * Executes commands of platform executables in host.
+ * Platforms use it instead of calling processes directly, so it could be replaced by an implementation which doesn't need a hypervisor.
+ * @author agent
+ *
+ */
+public interface CommandExecutor {
+
+	/**
+	 * Executes a command and waits until it finishes
+	 * @param command executable and its arguments
+	 * @return output of command
+	 */
+	public String execute(String... command);
+}
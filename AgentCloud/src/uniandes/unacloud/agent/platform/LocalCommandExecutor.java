@@ -0,0 +1,16 @@
+package uniandes.unacloud.agent.platform;
+
+import uniandes.unacloud.utils.LocalProcessExecutor;
+
+/**
+ * Executes commands as processes in host using LocalProcessExecutor
+ * @author agent
+ *
+ */
+public class LocalCommandExecutor implements CommandExecutor {
+
+	@Override
+	public String execute(String... command) {
+		return LocalProcessExecutor.executeCommandOutput(command);
+	}
+}
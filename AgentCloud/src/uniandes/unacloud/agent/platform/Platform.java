@@ -1,11 +1,13 @@
 package uniandes.unacloud.agent.platform;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import uniandes.unacloud.agent.exceptions.PlatformOperationException;
-import uniandes.unacloud.agent.execution.ImageCacheManager;
 import uniandes.unacloud.agent.execution.domain.Execution;
 import uniandes.unacloud.agent.execution.domain.ImageCopy;
 
@@ -27,6 +29,21 @@ public abstract class Platform {
      */
     private String executablePath;
     
+    /**
+     * First time in milliseconds between polls while waiting for an image
+     */
+    protected static final long FIRST_POLL_DELAY = 250;
+    
+    /**
+     * Max time in milliseconds between polls while waiting for an image
+     */
+    protected static final long MAX_POLL_DELAY = 4000;
+    
+    /**
+     * Executes commands of platform
+     */
+    private CommandExecutor executor = new LocalCommandExecutor();
+    
     public Platform(String path) {
     	this.executablePath = path;
     }
@@ -92,6 +109,17 @@ public abstract class Platform {
      */
     public abstract void copyFileOnExecution(ImageCopy image,String destinationRoute, File sourceFile) throws PlatformOperationException;
     
+    /**
+     * Waits until guest is ready to receive files and commands. 
+     * Platforms without a way to ask guest state return immediately.
+     * @param image started copy
+     * @param timeout max time in milliseconds to wait
+     * @return true in case guest is ready before timeout
+     */
+    public boolean waitForGuest(ImageCopy image, long timeout) {
+    	return true;
+    }
+    
     public abstract void changeExecutionMac(ImageCopy image) throws PlatformOperationException;
     
     public abstract void registerImage(ImageCopy image);
@@ -102,28 +130,131 @@ public abstract class Platform {
     
     public abstract void cloneImage(ImageCopy source,ImageCopy dest);
     
+    /**
+     * Returns true in case platform creates linked clones, which share disk with source copy and are created in seconds
+     * @return true if linked clones are supported
+     */
+    public boolean supportsLinkedClones() {
+    	return false;
+    }
+    
+    /**
+     * Creates a linked clone of source copy from its base snapshot. Clone is left registered with its own base snapshot, ready to be started.
+     * Platforms without linked clones make a full clone.
+     * @param source copy with base snapshot
+     * @param dest empty destination copy
+     * @throws PlatformOperationException in case clone could not be created
+     */
+    public void linkedCloneImage(ImageCopy source, ImageCopy dest) throws PlatformOperationException {
+    	cloneImage(source, dest);
+    }
+    
     public void stopAndUnregister(ImageCopy image){
         System.out.println("The agent is stopping and unregistering an image");
         synchronized (image) {
             System.out.println("The agent is stopping the image copy "+image.getImageName()+" "+image.getImage().getId());
             stopExecution(image);
-            //Test for unregistering success
-            /*System.out.println("The agent is unregistering the image copy "+image.getImageName()+" "+image.getImage().getId());
-            unregisterImage(image);
-            System.out.println("The agent is freeing the locked image copy of "+image.getImageName()+" "+image.getImage().getId());
-            ImageCacheManager.freeLockedImageCopy(image);*/
 		}
     }
     
     protected void sleep(long milli) {
     	SystemUtils.sleep(milli);      
     }
+    
+    /**
+     * Replaces executor used to run platform commands
+     * @param executor
+     */
+    public void setCommandExecutor(CommandExecutor executor) {
+    	this.executor = executor;
+    }
+    
     /**
-     * Used to validate if a list of execution are running in platform.
+     * Executes a platform command
+     * @param command executable and arguments
+     * @return command output, never null
+     */
+    protected String execute(String... command) {
+    	String output = executor.execute(command);
+    	return output == null ? "" : output;
+    }
+    
+    /**
+     * Polls a condition until it holds or timeout expires. 
+     * Time between polls starts in FIRST_POLL_DELAY and is doubled after each poll until MAX_POLL_DELAY.
+     * @param description of condition, used in log
+     * @param timeout max time in milliseconds to wait
+     * @param condition to be polled, errors in condition are considered as not ready
+     * @return true in case condition holds, false in case timeout expired
+     */
+    protected boolean waitUntil(String description, long timeout, ReadyCondition condition) {
+    	long start = System.currentTimeMillis();
+    	long deadline = start + timeout;
+    	long delay = FIRST_POLL_DELAY;
+    	while (true) {
+    		boolean ready = false;
+    		try {
+    			ready = condition.isReady();
+    		} catch (Exception e) {
+    			e.printStackTrace();
+    		}
+    		long now = System.currentTimeMillis();
+    		if (ready) {
+    			System.out.println("Ready: " + description + " in " + (now - start) + " ms");
+    			return true;
+    		}
+    		if (now >= deadline) {
+    			System.out.println("Timeout waiting: " + description + " after " + (now - start) + " ms");
+    			return false;
+    		}
+    		sleep(Math.min(delay, deadline - now));
+    		delay = Math.min(delay * 2, MAX_POLL_DELAY);
+    	}
+    }
+    /**
+     * Used to validate if a list of execution are running in platform. 
+     * Platform is asked once for its running executions and all executions are checked against that snapshot.
      * @param executions
      * @return List of execution that are not running in platform
      */
-	public abstract List<Execution> checkExecutions(Collection<Execution> executions);
+	public List<Execution> checkExecutions(Collection<Execution> executions) {
+		List<Execution> executionsToDelete = new ArrayList<Execution>();
+		if (executions.isEmpty())
+			return executionsToDelete;
+		Set<String> running;
+		try {
+			running = listRunningExecutions();
+		} catch (Exception e) {
+			e.printStackTrace();
+			running = new HashSet<String>();
+		}
+		for (Execution execution : executions)
+			if (!isRunning(running, execution.getImage().getImageName()))
+				executionsToDelete.add(execution);
+		return executionsToDelete;
+	}
+	
+	/**
+	 * Returns names of executions running in platform using one platform command
+	 * @return names reported by platform
+	 */
+	protected abstract Set<String> listRunningExecutions();
+	
+	/**
+	 * Validates if an image is in running executions. Names are compared exactly, 
+	 * in case they are not equal platform names which contain image name are accepted as before
+	 * @param running names reported by platform
+	 * @param imageName
+	 * @return true if image is running
+	 */
+	private static boolean isRunning(Set<String> running, String imageName) {
+		if (running.contains(imageName))
+			return true;
+		for (String name : running)
+			if (name.contains(imageName))
+				return true;
+		return false;
+	}
 	
 	/**
 	 * Returns code to recognize king of platform
@@ -44,7 +44,10 @@ public class PlatformFactory {
     	if (vBox != null) {
     		VirtualBox vbox;
 			try {
-				vbox = VBoxFactory.getInstalledVirtualBoxPlatform(vBox);
+				String url = VariableManager.getInstance().getLocal().getStringVariable(UnaCloudConstants.VBOX_WEBSERVICE_URL);
+				String user = VariableManager.getInstance().getLocal().getStringVariable(UnaCloudConstants.VBOX_WEBSERVICE_USER);
+				String password = VariableManager.getInstance().getLocal().getStringVariable(UnaCloudConstants.VBOX_WEBSERVICE_PASSWORD);
+				vbox = VBoxFactory.getInstalledVirtualBoxPlatform(vBox, url, user, password);
 				map.put(vbox.getCode(),vbox);
 			} catch (UnsupportedPlatformException e) {
 				e.printStackTrace();
@@ -55,6 +58,14 @@ public class PlatformFactory {
     	//map.put(VMwarePlayer.platform_ID,new VMwarePlayer(VariableManager.local.getsetStringValue("VMRUN_PATH","C:\\Program Files (x86)\\VMware\\VMware VIX\\vmrun.exe")));
     }
   
+    /**
+     * Adds a platform to be used by images with its code, used by checks to run without hypervisors installed
+     * @param platform
+     */
+    public static void registerPlatform(Platform platform) {
+    	map.put(platform.getCode(), platform);
+    }
+
     /**
      * Uses the map to search for platform instances, if there is not an entry for the given name then it is loaded dynamically using java's reflection API. If there is an associated object, 
      * then a new instance is returned by using the method getInstance from platform abstract class.
@@ -0,0 +1,15 @@
+package uniandes.unacloud.agent.platform;
+
+/**
+ * Condition polled by platform while waiting for an image to be ready after an operation
+ * @author agent
+ *
+ */
+public interface ReadyCondition {
+
+	/**
+	 * Returns true when condition holds
+	 * @return true in case image is ready
+	 */
+	public boolean isReady();
+}
@@ -1,5 +1,7 @@
 package uniandes.unacloud.agent.platform.virtualbox;
 
+import java.net.MalformedURLException;
+
 import uniandes.unacloud.agent.exceptions.UnsupportedPlatformException;
 import uniandes.unacloud.utils.LocalProcessExecutor;
 
@@ -25,5 +27,26 @@ public class VBoxFactory {
 			return new VBox43(path);		
 		throw new UnsupportedPlatformException("VBox: "+path);
 	}
+	
+	/**
+	 * Returns the current virtualbox version installed in host, managed through web service when version supports it
+	 * @param path for vboxmanage application
+	 * @param url web service url
+	 * @param user web service user
+	 * @param password web service password
+	 * @return VirtualBox current installed version
+	 * @throws UnsupportedPlatformException in case virtualbox version is not supported
+	 */
+	public static VirtualBox getInstalledVirtualBoxPlatform(String path, String url, String user, String password) throws UnsupportedPlatformException
+	{
+		VirtualBox vbox = getInstalledVirtualBoxPlatform(path);
+		if (url == null || !(vbox instanceof VBox5))
+			return vbox;
+		try {
+			return new VBoxWebService(path, url, user, password);
+		} catch (MalformedURLException e) {
+			throw new UnsupportedPlatformException("VBox web service: " + url);
+		}
+	}
 
 }
\ No newline at end of file
@@ -0,0 +1,661 @@
+package uniandes.unacloud.agent.platform.virtualbox;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import uniandes.unacloud.agent.exceptions.PlatformOperationException;
+import uniandes.unacloud.agent.execution.domain.ImageCopy;
+import uniandes.unacloud.agent.host.system.OSFactory;
+
+/**
+ * Implementation of VirtualBox 5 platform which uses VirtualBox web service (vboxwebsrv) instead of VBoxManage processes
+ * to query and change VM state: start, stop, reset, hardware, snapshots, guest properties and running VMs.
+ * Web sessions are opened once and reused, each operation which locks a VM borrows one web session, so operations over different VMs run in parallel.
+ * Operations wait for their VirtualBox progress and release their session lock before returning, so no polling is needed after them.
+ * Operations without web service equivalent (clones, guest control, MAC and uuid changes) and operations sent when web service is not reachable use VBoxManage.
+ * @author agent
+ *
+ */
+public class VBoxWebService extends VBox5 {
+
+	/**
+	 * States reported by web service in which VM is running, as listed by list runningvms
+	 */
+	private static final List<String> RUNNING_STATES = Arrays.asList("Running", "Paused", "Stuck", "Teleporting", "LiveSnapshotting", "OnlineSnapshotting");
+
+	/**
+	 * Guest additions run levels reported by web service
+	 */
+	private static final List<String> RUN_LEVELS = Arrays.asList("None", "System", "Userland", "Desktop");
+
+	/**
+	 * Max time in milliseconds to wait for a progress
+	 */
+	private static final int PROGRESS_TIMEOUT = 120000;
+
+	/**
+	 * Max time in milliseconds a web session is kept idle in pool, web service expires sessions idle for 300 seconds by default
+	 */
+	private static final long SESSION_IDLE_TIMEOUT = 240000;
+
+	/**
+	 * Max quantity of idle web sessions kept in pool, other sessions are closed when they are released
+	 */
+	private static final int MAX_IDLE_SESSIONS = 8;
+
+	/**
+	 * Fault sent by web service when a reference belongs to an expired or closed web session
+	 */
+	private static final String INVALID_REFERENCE_FAULT = "Invalid managed object reference";
+
+	/**
+	 * Fault sent by VirtualBox when a machine reference belongs to a VM which was unregistered
+	 */
+	private static final String NOT_READY_FAULT = "The object is not ready";
+
+	private final VBoxWebServiceClient client;
+
+	private final String user;
+
+	private final String password;
+
+	/**
+	 * Web sessions which are not in use
+	 */
+	private final ConcurrentLinkedQueue<WebSession> sessions = new ConcurrentLinkedQueue<WebSession>();
+
+	/**
+	 * Creates platform
+	 * @param path VBoxManage path, used in operations without web service equivalent
+	 * @param url web service url
+	 * @param user web service user, could be empty when web service has not authentication
+	 * @param password web service password
+	 * @throws MalformedURLException
+	 */
+	public VBoxWebService(String path, String url, String user, String password) throws MalformedURLException {
+		super(path);
+		this.client = new VBoxWebServiceClient(url);
+		this.user = user == null ? "" : user;
+		this.password = password == null ? "" : password;
+		//Images of VirtualBox 5 are executed by this platform
+		this.code = VBox5.class.getSimpleName();
+	}
+
+	@Override
+	public void startExecution(final ImageCopy image) throws PlatformOperationException {
+		final String vm = image.getImageName();
+		try {
+			setPriority(image);
+			try {
+				launch(vm);
+			} catch (PlatformOperationException e) {
+				if (e.getMessage() == null || !e.getMessage().contains(NETWORK_ERROR))
+					throw e;
+				System.out.println("Change network int");
+				changeExecutionMac(image);
+				launch(vm);
+			}
+		} catch (IOException e) {
+			unavailable(e);
+			super.startExecution(image);
+			return;
+		}
+		waitForStart(vm, START_TIMEOUT);
+		try {
+			OSFactory.getOS().setPriorityProcess(HEADLESS_SERVICE_NAME);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void stopExecution(ImageCopy image) {
+		final String vm = image.getImageName();
+		try {
+			invoke(new Operation<Void>() {
+				@Override
+				public Void run(WebSession ws) throws IOException, PlatformOperationException {
+					String console = lockConsole(ws, vm);
+					try {
+						waitProgress(client.call("IConsole_powerDown", "_this", console));
+					} finally {
+						unlock(ws);
+					}
+					return null;
+				}
+			});
+		} catch (IOException e) {
+			unavailable(e);
+			super.stopExecution(image);
+			return;
+		} catch (PlatformOperationException e) {
+			System.out.println("Stop " + vm + ": " + e.getMessage() + ", using VBoxManage");
+			super.stopExecution(image);
+			return;
+		}
+		waitForUnlocked(vm, STOP_TIMEOUT);
+	}
+
+	@Override
+	public void restartExecution(ImageCopy image) throws PlatformOperationException {
+		final String vm = image.getImageName();
+		try {
+			invoke(new Operation<Void>() {
+				@Override
+				public Void run(WebSession ws) throws IOException, PlatformOperationException {
+					String console = lockConsole(ws, vm);
+					try {
+						client.call("IConsole_reset", "_this", console);
+					} finally {
+						unlock(ws);
+					}
+					return null;
+				}
+			});
+		} catch (IOException e) {
+			unavailable(e);
+			super.restartExecution(image);
+		}
+	}
+
+	@Override
+	public void configureExecutionHardware(final int cores, final int ram, ImageCopy image) throws PlatformOperationException {
+		if (cores == 0 || ram == 0)
+			return;
+		final String vm = image.getImageName();
+		try {
+			invoke(new Operation<Void>() {
+				@Override
+				public Void run(WebSession ws) throws IOException, PlatformOperationException {
+					String machine = lockMachine(ws, vm, "Write");
+					try {
+						client.call("IMachine_setMemorySize", "_this", machine, "memorySize", "" + ram);
+						client.call("IMachine_setCPUCount", "_this", machine, "CPUCount", "" + cores);
+						client.call("IMachine_saveSettings", "_this", machine);
+					} finally {
+						unlock(ws);
+					}
+					return null;
+				}
+			});
+		} catch (IOException e) {
+			unavailable(e);
+			super.configureExecutionHardware(cores, ram, image);
+		}
+	}
+
+	@Override
+	public void takeExecutionSnapshot(ImageCopy image, final String snapshotname) {
+		final String vm = image.getImageName();
+		try {
+			invoke(new Operation<Void>() {
+				@Override
+				public Void run(WebSession ws) throws IOException, PlatformOperationException {
+					String machine = lockMachine(ws, vm, "Shared");
+					try {
+						waitProgress(client.call("IMachine_takeSnapshot", "_this", machine, "name", snapshotname, "description", "", "pause", "false"));
+					} finally {
+						unlock(ws);
+					}
+					return null;
+				}
+			});
+		} catch (IOException e) {
+			unavailable(e);
+			super.takeExecutionSnapshot(image, snapshotname);
+		} catch (PlatformOperationException e) {
+			System.out.println("Snapshot " + vm + ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void deleteExecutionSnapshot(ImageCopy image, final String snapshotname) {
+		final String vm = image.getImageName();
+		try {
+			invoke(new Operation<Void>() {
+				@Override
+				public Void run(WebSession ws) throws IOException, PlatformOperationException {
+					String machine = lockMachine(ws, vm, "Shared");
+					try {
+						String snapshot = client.call("IMachine_findSnapshot", "_this", machine, "nameOrId", snapshotname);
+						String id = client.call("ISnapshot_getId", "_this", snapshot);
+						waitProgress(client.call("IMachine_deleteSnapshot", "_this", machine, "id", id));
+					} finally {
+						unlock(ws);
+					}
+					return null;
+				}
+			});
+		} catch (IOException e) {
+			unavailable(e);
+			super.deleteExecutionSnapshot(image, snapshotname);
+		} catch (PlatformOperationException e) {
+			System.out.println("Delete snapshot " + vm + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Restores VM to its current snapshot, as snapshot restorecurrent
+	 */
+	@Override
+	public void restoreExecutionSnapshot(ImageCopy image, String snapshotname) throws PlatformOperationException {
+		final String vm = image.getImageName();
+		try {
+			invoke(new Operation<Void>() {
+				@Override
+				public Void run(WebSession ws) throws IOException, PlatformOperationException {
+					String machine = lockMachine(ws, vm, "Write");
+					try {
+						String snapshot = client.call("IMachine_getCurrentSnapshot", "_this", machine);
+						if (snapshot == null || snapshot.isEmpty())
+							throw new PlatformOperationException("VM " + vm + " has not snapshots");
+						waitProgress(client.call("IMachine_restoreSnapshot", "_this", machine, "snapshot", snapshot));
+					} finally {
+						unlock(ws);
+					}
+					return null;
+				}
+			});
+		} catch (IOException e) {
+			unavailable(e);
+			super.restoreExecutionSnapshot(image, snapshotname);
+		} catch (PlatformOperationException e) {
+			System.out.println("Restore snapshot " + vm + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns true in case VM has snapshots, as snapshot list
+	 */
+	@Override
+	public boolean existsExecutionSnapshot(ImageCopy image, String snapshotname) throws PlatformOperationException {
+		final String vm = image.getImageName();
+		try {
+			return invoke(new Operation<Boolean>() {
+				@Override
+				public Boolean run(WebSession ws) throws IOException, PlatformOperationException {
+					return Integer.parseInt(client.call("IMachine_getSnapshotCount", "_this", findMachine(ws, vm))) > 0;
+				}
+			});
+		} catch (IOException e) {
+			unavailable(e);
+			return super.existsExecutionSnapshot(image, snapshotname);
+		}
+	}
+
+	@Override
+	protected Set<String> listRunningExecutions() {
+		try {
+			return invoke(new Operation<Set<String>>() {
+				@Override
+				public Set<String> run(WebSession ws) throws IOException, PlatformOperationException {
+					Set<String> running = new HashSet<String>();
+					for (String machine : client.callList("IVirtualBox_getMachines", "_this", ws.virtualBox))
+						if (RUNNING_STATES.contains(client.call("IMachine_getState", "_this", machine))) {
+							String name = client.call("IMachine_getName", "_this", machine);
+							running.add(name);
+							ws.machines.put(name, machine);
+						}
+					return running;
+				}
+			});
+		} catch (IOException e) {
+			unavailable(e);
+		} catch (PlatformOperationException e) {
+			e.printStackTrace();
+		}
+		return super.listRunningExecutions();
+	}
+
+	/**
+	 * Returns VMState and SessionState with the values reported by showvminfo
+	 */
+	@Override
+	protected Map<String, String> getMachineInfo(final String vm) {
+		try {
+			return invoke(new Operation<Map<String, String>>() {
+				@Override
+				public Map<String, String> run(WebSession ws) throws IOException, PlatformOperationException {
+					Map<String, String> info = new HashMap<String, String>();
+					String machine;
+					try {
+						machine = findMachine(ws, vm);
+					} catch (PlatformOperationException e) {
+						if (isExpired(e))
+							throw e;
+						//VM is not registered
+						return info;
+					}
+					info.put("VMState", toMachineState(client.call("IMachine_getState", "_this", machine)));
+					info.put("SessionState", client.call("IMachine_getSessionState", "_this", machine).toLowerCase());
+					return info;
+				}
+			});
+		} catch (IOException e) {
+			unavailable(e);
+		} catch (PlatformOperationException e) {
+			System.out.println("Info " + vm + ": " + e.getMessage());
+			return new HashMap<String, String>();
+		}
+		return super.getMachineInfo(vm);
+	}
+
+	@Override
+	protected String getGuestProperty(final String vm, final String property) {
+		try {
+			String value = invoke(new Operation<String>() {
+				@Override
+				public String run(WebSession ws) throws IOException, PlatformOperationException {
+					return client.call("IMachine_getGuestPropertyValue", "_this", findMachine(ws, vm), "property", property);
+				}
+			});
+			return value == null || value.isEmpty() ? null : value;
+		} catch (IOException e) {
+			unavailable(e);
+		} catch (PlatformOperationException e) {
+			return null;
+		}
+		return super.getGuestProperty(vm, property);
+	}
+
+	@Override
+	protected int getGuestAdditionsRunLevel(final String vm) {
+		try {
+			return invoke(new Operation<Integer>() {
+				@Override
+				public Integer run(WebSession ws) throws IOException, PlatformOperationException {
+					String console = lockConsole(ws, vm);
+					try {
+						String guest = client.call("IConsole_getGuest", "_this", console);
+						return Math.max(0, RUN_LEVELS.indexOf(client.call("IGuest_getAdditionsRunLevel", "_this", guest)));
+					} finally {
+						unlock(ws);
+					}
+				}
+			});
+		} catch (IOException e) {
+			unavailable(e);
+		} catch (PlatformOperationException e) {
+			return 0;
+		}
+		return super.getGuestAdditionsRunLevel(vm);
+	}
+
+	@Override
+	protected void setPriority(ImageCopy image) {
+		//VBoxSVC is running while web service is running
+		try {
+			OSFactory.getOS().setPriorityProcess(VBOX_SERVICE_NAME);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Starts VM in headless mode and waits until its process is launched
+	 * @param vm
+	 * @throws IOException
+	 * @throws PlatformOperationException
+	 */
+	private void launch(final String vm) throws IOException, PlatformOperationException {
+		invoke(new Operation<Void>() {
+			@Override
+			public Void run(WebSession ws) throws IOException, PlatformOperationException {
+				try {
+					waitProgress(client.call("IMachine_launchVMProcess", "_this", findMachine(ws, vm), "session", ws.session, "name", "headless", "environment", ""));
+				} finally {
+					unlock(ws);
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Executes an operation with a web session and executes it again once when a reference was rejected before VirtualBox did anything:
+	 * web service expired the web session, then pooled sessions are discarded and a new one is opened,
+	 * or a cached machine was unregistered, then cached machines are discarded.
+	 * Other errors are not retried, because operations as launchVMProcess, powerDown or takeSnapshot could have been done.
+	 * Web session is discarded in case it expired or web service could not be reached.
+	 * @param operation
+	 * @return operation result
+	 * @throws IOException in case web service could not be reached
+	 * @throws PlatformOperationException in case VirtualBox answered with an error
+	 */
+	private <T> T invoke(Operation<T> operation) throws IOException, PlatformOperationException {
+		WebSession ws = borrow();
+		boolean valid = true;
+		try {
+			try {
+				return operation.run(ws);
+			} catch (PlatformOperationException e) {
+				if (isExpired(e)) {
+					//Sessions opened before this one were idle at least the same time
+					System.out.println("VBox web service: session expired, logging on again");
+					sessions.clear();
+					ws = logon();
+				} else if (isUnregistered(e) && !ws.machines.isEmpty())
+					ws.machines.clear();
+				else
+					throw e;
+				return operation.run(ws);
+			}
+		} catch (PlatformOperationException e) {
+			valid = !isExpired(e);
+			throw e;
+		} catch (IOException e) {
+			valid = false;
+			throw e;
+		} finally {
+			if (valid)
+				release(ws);
+		}
+	}
+
+	/**
+	 * Returns a web session which is not in use, a new one is opened in case all are in use.
+	 * Sessions idle for more than SESSION_IDLE_TIMEOUT are closed, because web service could have expired them.
+	 * @return web session
+	 * @throws IOException
+	 * @throws PlatformOperationException in case logon is rejected
+	 */
+	private WebSession borrow() throws IOException, PlatformOperationException {
+		for (WebSession ws = sessions.poll(); ws != null; ws = sessions.poll()) {
+			if (System.currentTimeMillis() - ws.lastUsed < SESSION_IDLE_TIMEOUT)
+				return ws;
+			logoff(ws);
+		}
+		return logon();
+	}
+
+	/**
+	 * Returns a web session to pool, it is closed in case pool has MAX_IDLE_SESSIONS
+	 * @param ws web session
+	 */
+	private void release(WebSession ws) {
+		ws.lastUsed = System.currentTimeMillis();
+		if (sessions.size() < MAX_IDLE_SESSIONS)
+			sessions.offer(ws);
+		else
+			logoff(ws);
+	}
+
+	/**
+	 * Opens a web session
+	 * @return web session
+	 * @throws IOException
+	 * @throws PlatformOperationException in case logon is rejected
+	 */
+	private WebSession logon() throws IOException, PlatformOperationException {
+		WebSession ws = new WebSession();
+		ws.virtualBox = client.call("IWebsessionManager_logon", "username", user, "password", password);
+		ws.session = client.call("IWebsessionManager_getSessionObject", "refIVirtualBox", ws.virtualBox);
+		System.out.println("VBox web service: session opened");
+		return ws;
+	}
+
+	/**
+	 * Closes a web session, errors are ignored because web service could have expired it
+	 * @param ws web session
+	 */
+	private void logoff(WebSession ws) {
+		try {
+			client.call("IWebsessionManager_logoff", "refIVirtualBox", ws.virtualBox);
+		} catch (Exception e) {
+			//Session was already closed
+		}
+	}
+
+	/**
+	 * Returns true in case error was sent because a reference belongs to an expired web session
+	 * @param e
+	 * @return true in case web session is not valid anymore
+	 */
+	private static boolean isExpired(PlatformOperationException e) {
+		return e.getMessage() != null && e.getMessage().contains(INVALID_REFERENCE_FAULT);
+	}
+
+	/**
+	 * Returns true in case error was sent because a machine reference belongs to a VM which was unregistered,
+	 * as clones and copies unregistered and registered again with VBoxManage
+	 * @param e
+	 * @return true in case machine reference is not valid anymore
+	 */
+	private static boolean isUnregistered(PlatformOperationException e) {
+		return e.getMessage() != null && e.getMessage().contains(NOT_READY_FAULT);
+	}
+
+	/**
+	 * Returns reference of VM, references are cached by web session
+	 * @param ws web session
+	 * @param vm name or uuid
+	 * @return machine reference
+	 * @throws IOException
+	 * @throws PlatformOperationException in case VM is not registered
+	 */
+	private String findMachine(WebSession ws, String vm) throws IOException, PlatformOperationException {
+		String machine = ws.machines.get(vm);
+		if (machine == null) {
+			machine = client.call("IVirtualBox_findMachine", "_this", ws.virtualBox, "nameOrId", vm);
+			ws.machines.put(vm, machine);
+		}
+		return machine;
+	}
+
+	/**
+	 * Locks VM with session of web session
+	 * @param ws web session
+	 * @param vm name or uuid
+	 * @param lockType Shared or Write
+	 * @return mutable machine of session
+	 * @throws IOException
+	 * @throws PlatformOperationException
+	 */
+	private String lockMachine(WebSession ws, String vm, String lockType) throws IOException, PlatformOperationException {
+		client.call("IMachine_lockMachine", "_this", findMachine(ws, vm), "session", ws.session, "lockType", lockType);
+		return client.call("ISession_getMachine", "_this", ws.session);
+	}
+
+	/**
+	 * Locks a running VM with a shared lock to use its console
+	 * @param ws web session
+	 * @param vm name or uuid
+	 * @return console reference
+	 * @throws IOException
+	 * @throws PlatformOperationException
+	 */
+	private String lockConsole(WebSession ws, String vm) throws IOException, PlatformOperationException {
+		lockMachine(ws, vm, "Shared");
+		try {
+			return client.call("ISession_getConsole", "_this", ws.session);
+		} catch (PlatformOperationException e) {
+			unlock(ws);
+			throw e;
+		}
+	}
+
+	/**
+	 * Unlocks VM locked by session of web session, errors are ignored because session could be already unlocked
+	 * @param ws web session
+	 * @throws IOException
+	 */
+	private void unlock(WebSession ws) throws IOException {
+		try {
+			client.call("ISession_unlockMachine", "_this", ws.session);
+		} catch (PlatformOperationException e) {
+			//Session was not locked
+		}
+	}
+
+	/**
+	 * Waits until a progress finishes, result code is only valid once progress is completed
+	 * @param progress progress reference
+	 * @throws IOException
+	 * @throws PlatformOperationException in case progress finished with an error or didn't finish in PROGRESS_TIMEOUT
+	 */
+	private void waitProgress(String progress) throws IOException, PlatformOperationException {
+		if (progress == null || progress.isEmpty())
+			return;
+		client.call("IProgress_waitForCompletion", "_this", progress, "timeout", "" + PROGRESS_TIMEOUT);
+		if (!"true".equals(client.call("IProgress_getCompleted", "_this", progress)))
+			throw new PlatformOperationException("Operation didn't finish in " + PROGRESS_TIMEOUT + " ms");
+		String result = client.call("IProgress_getResultCode", "_this", progress);
+		if (result != null && !result.equals("0")) {
+			String error = client.call("IProgress_getErrorInfo", "_this", progress);
+			String text = error == null || error.isEmpty() ? null : client.call("IVirtualBoxErrorInfo_getText", "_this", error);
+			throw new PlatformOperationException(text != null ? text : "Operation failed with code " + result);
+		}
+	}
+
+	/**
+	 * Converts machine state of web service to value of showvminfo
+	 * @param state
+	 * @return state as VBoxManage reports it
+	 */
+	private static String toMachineState(String state) {
+		if (state == null)
+			return null;
+		if (state.equals("PoweredOff"))
+			return "poweroff";
+		if (state.equals("Stuck"))
+			return "gurumeditation";
+		return state.toLowerCase();
+	}
+
+	private static void unavailable(IOException e) {
+		System.out.println("VBox web service is not available, using VBoxManage: " + e.getMessage());
+	}
+
+	/**
+	 * Reference to VirtualBox and session objects of a web service logon, with machines found in it
+	 */
+	private static class WebSession {
+
+		private String virtualBox;
+
+		private String session;
+
+		private final Map<String, String> machines = new HashMap<String, String>();
+
+		/**
+		 * Time when web session was last returned to pool
+		 */
+		private long lastUsed;
+	}
+
+	/**
+	 * Operation executed with a web session
+	 * @param <T> result type
+	 */
+	private static abstract class Operation<T> {
+
+		public abstract T run(WebSession ws) throws IOException, PlatformOperationException;
+	}
+}
@@ -0,0 +1,186 @@
+package uniandes.unacloud.agent.platform.virtualbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import uniandes.unacloud.agent.exceptions.PlatformOperationException;
+
+/**
+ * Client of VirtualBox web service (vboxwebsrv). Each request is a SOAP message with a method of VirtualBox API, named Interface_method, and its arguments.
+ * Requests are sent in HTTP connections kept alive by java, so no process is created by request.
+ * @author agent
+ *
+ */
+public class VBoxWebServiceClient {
+
+	/**
+	 * Namespace of VirtualBox API methods
+	 */
+	public static final String NAMESPACE = "http://www.virtualbox.org/";
+
+	/**
+	 * Namespace of SOAP envelope
+	 */
+	public static final String SOAP_NAMESPACE = "http://schemas.xmlsoap.org/soap/envelope/";
+
+	/**
+	 * Max time in milliseconds to connect and to wait for a response
+	 */
+	private static final int TIMEOUT = 120000;
+
+	private final URL url;
+
+	/**
+	 * Creates a client for web service
+	 * @param url web service url, usually http://localhost:18083/
+	 * @throws MalformedURLException
+	 */
+	public VBoxWebServiceClient(String url) throws MalformedURLException {
+		this.url = new URL(url);
+	}
+
+	/**
+	 * Calls a method and returns its value
+	 * @param method method name, Interface_method
+	 * @param args argument names and values
+	 * @return returned value, null in case method doesn't return a value
+	 * @throws IOException in case web service could not be reached
+	 * @throws PlatformOperationException in case VirtualBox answered with an error
+	 */
+	public String call(String method, String... args) throws IOException, PlatformOperationException {
+		List<String> values = callList(method, args);
+		return values.isEmpty() ? null : values.get(0);
+	}
+
+	/**
+	 * Calls a method which returns an array
+	 * @param method method name, Interface_method
+	 * @param args argument names and values
+	 * @return returned values
+	 * @throws IOException in case web service could not be reached
+	 * @throws PlatformOperationException in case VirtualBox answered with an error
+	 */
+	public List<String> callList(String method, String... args) throws IOException, PlatformOperationException {
+		byte[] request = createRequest(method, args);
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setConnectTimeout(TIMEOUT);
+		connection.setReadTimeout(TIMEOUT);
+		connection.setDoOutput(true);
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type", "text/xml; charset=utf-8");
+		connection.setRequestProperty("SOAPAction", "\"\"");
+		connection.setFixedLengthStreamingMode(request.length);
+		try (OutputStream os = connection.getOutputStream()) {
+			os.write(request);
+		}
+		int code = connection.getResponseCode();
+		byte[] response;
+		//Stream is read until end so connection is kept alive
+		try (InputStream is = code >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+			if (is == null)
+				throw new IOException("Web service answered " + code + " to " + method);
+			response = readAll(is);
+		}
+		return parseResponse(method, response);
+	}
+
+	/**
+	 * Creates SOAP envelope with method and arguments
+	 * @param method
+	 * @param args argument names and values
+	 * @return request bytes
+	 */
+	public static byte[] createRequest(String method, String... args) {
+		if (args.length % 2 != 0)
+			throw new IllegalArgumentException("Arguments must be pairs of name and value");
+		StringBuilder xml = new StringBuilder();
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		xml.append("<soap:Envelope xmlns:soap=\"").append(SOAP_NAMESPACE).append("\" xmlns:vbox=\"").append(NAMESPACE).append("\"><soap:Body>");
+		xml.append("<vbox:").append(method).append(">");
+		for (int i = 0; i < args.length; i += 2)
+			xml.append("<").append(args[i]).append(">").append(escape(args[i + 1])).append("</").append(args[i]).append(">");
+		xml.append("</vbox:").append(method).append("></soap:Body></soap:Envelope>");
+		return xml.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads values returned by method, or error in case response is a fault
+	 * @param method
+	 * @param response response bytes
+	 * @return returned values
+	 * @throws IOException in case response is not a valid SOAP message
+	 * @throws PlatformOperationException in case response is a fault
+	 */
+	private static List<String> parseResponse(String method, byte[] response) throws IOException, PlatformOperationException {
+		Document document = parse(response);
+		NodeList faults = document.getElementsByTagNameNS(SOAP_NAMESPACE, "Fault");
+		if (faults.getLength() > 0) {
+			NodeList strings = ((Element) faults.item(0)).getElementsByTagName("faultstring");
+			String message = strings.getLength() > 0 ? strings.item(0).getTextContent() : "unknown error";
+			throw new PlatformOperationException(method + ": " + message);
+		}
+		NodeList responses = document.getElementsByTagNameNS(NAMESPACE, method + "Response");
+		if (responses.getLength() == 0)
+			throw new IOException("Invalid response of " + method);
+		List<String> values = new ArrayList<String>();
+		for (Node node = responses.item(0).getFirstChild(); node != null; node = node.getNextSibling())
+			if (node instanceof Element && "returnval".equals(node.getLocalName() != null ? node.getLocalName() : node.getNodeName()))
+				values.add(node.getTextContent());
+		return values;
+	}
+
+	/**
+	 * Parses a SOAP message
+	 * @param data message bytes
+	 * @return document with namespaces
+	 * @throws IOException in case message is not valid XML
+	 */
+	public static Document parse(byte[] data) throws IOException {
+		try {
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setNamespaceAware(true);
+			factory.setExpandEntityReferences(false);
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+			return factory.newDocumentBuilder().parse(new ByteArrayInputStream(data));
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Invalid SOAP message: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Escapes XML special characters
+	 * @param value
+	 * @return escaped value
+	 */
+	public static String escape(String value) {
+		if (value == null)
+			return "";
+		return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		for (int n; (n = is.read(buffer)) != -1;)
+			bytes.write(buffer, 0, n);
+		return bytes.toByteArray();
+	}
+}
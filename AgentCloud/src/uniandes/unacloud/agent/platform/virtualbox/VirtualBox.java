@@ -12,12 +12,12 @@ import java.util.*;
 
 import uniandes.unacloud.agent.exceptions.PlatformOperationException;
 import uniandes.unacloud.agent.exceptions.UnsupportedPlatformException;
-import uniandes.unacloud.agent.execution.domain.Execution;
 import uniandes.unacloud.agent.execution.domain.ImageCopy;
 import uniandes.unacloud.agent.host.system.OSFactory;
 import uniandes.unacloud.agent.platform.Platform;
+import uniandes.unacloud.agent.platform.ReadyCondition;
 import uniandes.unacloud.agent.utils.AddressUtility;
-import uniandes.unacloud.utils.LocalProcessExecutor;
+import uniandes.unacloud.common.utils.UnaCloudConstants;
 
 import java.io.File;
 
@@ -29,13 +29,13 @@ public abstract class VirtualBox extends Platform {
 
     //Constants for virtual box
 
-	private static final String HEADLESS_SERVICE_NAME = "VBoxHeadless";
+	protected static final String HEADLESS_SERVICE_NAME = "VBoxHeadless";
 	
-	private static final String VBOX_SERVICE_NAME = "VBoxSVC";
+	protected static final String VBOX_SERVICE_NAME = "VBoxSVC";
 
 	private static final String LOCKED_BY_SESSION_ERROR="is already locked by a session";
 
-	private static final String NETWORK_ERROR="Nonexistent host networking interface";
+	protected static final String NETWORK_ERROR="Nonexistent host networking interface";
 
 	private static final String DISK_FULL_ERROR="VERR_DISK_FULL";
 
@@ -43,6 +43,12 @@ public abstract class VirtualBox extends Platform {
      * Hash for storing names and counter
      */
     private HashMap<String,Integer> names;
+    
+    /**
+     * Guards media registry mutations: disk uuid changes, medium closes and VM registrations.
+     * Copies of an image share disk uuid until it is changed, so they are registered one at a time; clones and starts run in parallel.
+     */
+    private final Object registryLock = new Object();
 	/**
 	 * Date format for avoiding colissions
 	 */
@@ -52,6 +58,46 @@ public abstract class VirtualBox extends Platform {
 	 */
 	private static final String COPY2="12cba3ee81cf4a793796a51b6327c678";
     private static final String COPY="copy";
+    
+    /**
+     * Guest property with first IP of guest, set by guest additions when network is ready
+     */
+    protected static final String GUEST_IP_PROPERTY = "/VirtualBox/GuestInfo/Net/0/V4/IP";
+    
+    /**
+     * Guest additions run level reported when guest user land is running
+     */
+    protected static final int GUEST_USERLAND_RUN_LEVEL = 2;
+    
+    /**
+     * States reported by showvminfo in which VM is not changing
+     */
+    private static final List<String> STABLE_STATES = Arrays.asList("poweroff", "saved", "aborted", "running", "paused", "teleported");
+    
+    /**
+     * Max time in milliseconds to wait for a VM after a configuration change: modify, clone or snapshot
+     */
+    protected static final long CONFIGURATION_TIMEOUT = 20000;
+    
+    /**
+     * Max time in milliseconds to wait for a VM to be registered or unregistered
+     */
+    private static final long REGISTRATION_TIMEOUT = 15000;
+    
+    /**
+     * Max time in milliseconds to wait for a VM to be running and its guest network to be ready
+     */
+    protected static final long START_TIMEOUT = 30000;
+    
+    /**
+     * Max time in milliseconds to wait for a VM session to be released after power off
+     */
+    protected static final long STOP_TIMEOUT = 10000;
+    
+    /**
+     * Max time in milliseconds to wait for a VM to be powered off after an emergency stop
+     */
+    protected static final long EMERGENCY_STOP_TIMEOUT = 40000;
 
     /**
 	 * Class constructor
@@ -69,8 +115,8 @@ public abstract class VirtualBox extends Platform {
      */
     @Override
     public void stopExecution(ImageCopy image){
-		LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "controlvm", image.getImageName(), "poweroff");
-        sleep(2000);
+		execute(getExecutablePath(), "controlvm", image.getImageName(), "poweroff");
+		waitForUnlocked(image.getImageName(), STOP_TIMEOUT);
     }
     
     /**
@@ -81,13 +127,14 @@ public abstract class VirtualBox extends Platform {
 	public void registerImage(ImageCopy image){
 
 		System.out.println("Change UUID before registering");
-		configureImage(image);
-    	sleep(5000);
-        LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "registervm", image.getMainFile().getExecutableFile().getPath());
-        sleep(15000);
+		synchronized (registryLock) {
+			configureImage(image);
+			execute(getExecutablePath(), "registervm", image.getMainFile().getExecutableFile().getPath());
+		}
+        waitForRegistration(image.getImageName(), true, REGISTRATION_TIMEOUT);
     }
 
-    public synchronized File registerAndCloneImage(ImageCopy image)
+    public File registerAndCloneImage(ImageCopy image)
     {
 
         String[] data=image.getImageName().split("___");
@@ -98,14 +145,14 @@ public abstract class VirtualBox extends Platform {
         }
         //Adding hash in case there is another valuable attribute for identifying an image one from another
         name+=hash(image.getImage().getId());
-        System.out.println("Image name "+name);
         String newName=null;
-        if(!names.containsKey(name))
-            names.put(name,0);
-        int tmp=names.get(name)+1;
-        names.put(name,tmp);
-        newName=name+"___"+names.get(name);
-        System.out.println("My new image "+newName);
+        synchronized (names) {
+            if(!names.containsKey(name))
+                names.put(name,0);
+            int tmp=names.get(name)+1;
+            names.put(name,tmp);
+            newName=name+"___"+tmp;
+        }
         try
         {
             newName+=getLocalHostAddress();
@@ -115,23 +162,15 @@ public abstract class VirtualBox extends Platform {
             System.out.println("Host not found");
             e.printStackTrace();
         }
-        String h=LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "clonevm", image.getImageName(), "--snapshot", "unacloudbase", "--name", newName, "--basefolder", image.getMainFile().getExecutableFile().getParentFile().getParentFile().getAbsolutePath(), "--register");
-        System.out.println("Cloning result "+h);
-        if(h.contains("error") && h.contains("snapshots"))
-        {
-            takeExecutionSnapshot(image, "unacloudbase");
-            h=LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "clonevm", image.getImageName(), "--snapshot", "unacloudbase", "--name", newName, "--basefolder", image.getMainFile().getExecutableFile().getParentFile().getParentFile().getAbsolutePath(), "--register");
-            System.out.println("Cloning result with unacloudbase reinstated: "+h);
-        }
-        sleep(20000);
+        //Clone is created by clonevm in a folder with its name inside base folder
+        File f = new File(image.getMainFile().getExecutableFile().getParentFile().getParentFile(), newName + File.separator + newName + ".vbox");
+        cloneAndRegister(image, "unacloudbase", f);
+        waitForUnlocked(newName, CONFIGURATION_TIMEOUT);
         takeExecutionSnapshot(image, "unacloudbase");
-        System.out.println(newName+" vms listed: ");
 
         //Unregister original machine
 		unregisterImage(image);
 
-        LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "list","vms");
-        File f= new File( image.getMainFile().getExecutableFile().getParentFile().getParentFile().getAbsolutePath()+File.separator+newName+".vbox");
         return f;
     }
     
@@ -141,8 +180,10 @@ public abstract class VirtualBox extends Platform {
      */
     @Override
 	public void unregisterImage(ImageCopy image){
-        LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "unregistervm", image.getImageName());
-        sleep(10000);
+		synchronized (registryLock) {
+			execute(getExecutablePath(), "unregistervm", image.getImageName());
+		}
+        waitForRegistration(image.getImageName(), false, REGISTRATION_TIMEOUT);
     }
     /**
      * Sends a reset message to the platform
@@ -150,11 +191,11 @@ public abstract class VirtualBox extends Platform {
      */
     @Override
     public void restartExecution(ImageCopy image) throws PlatformOperationException {
-        String h = LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "controlvm", image.getImageName(), "reset");
+        String h = execute(getExecutablePath(), "controlvm", image.getImageName(), "reset");
         if (h.contains(ERROR_MESSAGE)) 
             throw new PlatformOperationException(h.length() < 100 ? h : h.substring(0, 100));
         
-        sleep(30000);
+        waitForStart(image.getImageName(), START_TIMEOUT);
     }
     
     /**
@@ -169,68 +210,40 @@ public abstract class VirtualBox extends Platform {
 		String h;
 		while(times>0)
 		{
-			System.out.println("Show vm info headless "+LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "showvminfo", image.getImageName()));
-			h = LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "startvm", image.getImageName(), "--type", "headless");
+			h = execute(getExecutablePath(), "startvm", image.getImageName(), "--type", "headless");
 			System.out.println("Start vm headless response "+h);
 			if(h.contains(NETWORK_ERROR))
             {
-				System.out.println("List of network interfaces");
-            	LocalProcessExecutor.executeCommandOutput(getExecutablePath(),"list","bridgedifs");
                 System.out.println("Change network int");
                 changeExecutionMac(image);
-                h = LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "startvm", image.getImageName(), "--type", "headless");
-                System.out.println("After net; Start vm headless response ");
+                h = execute(getExecutablePath(), "startvm", image.getImageName(), "--type", "headless");
+                System.out.println("After net; Start vm headless response "+h);
             }
             if (!h.contains(ERROR_MESSAGE) && !h.contains(LOCKED_BY_SESSION_ERROR))
 				break;
 			times--;
-			sleep(20000);
+			waitForUnlocked(image.getImageName(), CONFIGURATION_TIMEOUT);
 		}
 		//If it does not work try with an emergency start
 		if(times==0)
 		{
-            System.out.println("Show vm info "+LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "showvminfo", image.getImageName()));
-            System.out.println("Listm vms log "+LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "list","vms"));
-            h = LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "startvm", image.getImageName(), "--type", "emergencystop");
+            h = execute(getExecutablePath(), "startvm", image.getImageName(), "--type", "emergencystop");
 			System.out.println("Start vm emergencystop response "+h);
-			/*try
-            {
-
-            	changeAbortedState(image.getMainFile().getFilePath().replaceAll(".vbox",".vdi"));
-				String t=LocalProcessExecutor.executeCommandOutput(getExecutablePath(),"startvm",image.getImageName(),"--type","headless");
-				System.out.println("START HEADLESS AFTER ABORTED "+t);
-				sleep(20000);
-            }
-            catch (Exception e)
-            {
-                System.out.println("Could not start vm from aborted state "+e.getMessage() );
-            }*/
-			times=1;
-			String temp;
-			System.out.println("Show vm info "+LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "showvminfo", image.getImageName()));
-			System.out.println("Listm vms log "+LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "list","vms"));
 			if(h.trim().equals(""))
             {
-				while(times>0)
-				{
-					sleep(40000);
-					temp=LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "list", "runningvms");
-					System.out.println("TEMP "+(2-times)+" RUNNING VMS \n"+temp);
-                    System.out.println("Show vm info "+LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "showvminfo", image.getImageName()));
-                    System.out.println("Listm vms log "+LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "list","vms"));
-
-                    times--;
-				}
-                h=LocalProcessExecutor.executeCommandOutput(getExecutablePath(),"startvm",image.getImageName(),"--type","headless");
+				//VM process is killed, VM is started again when it is powered off and its session is released
+				waitForState(image.getImageName(), EMERGENCY_STOP_TIMEOUT, "poweroff", "aborted");
+				waitForUnlocked(image.getImageName(), CONFIGURATION_TIMEOUT);
+                h=execute(getExecutablePath(),"startvm",image.getImageName(),"--type","headless");
                 System.out.println("START HEADLESS "+h);
-                sleep(20000);
+                waitForState(image.getImageName(), CONFIGURATION_TIMEOUT, "running");
             }
 			//Try to correct network issues if present
 			if(h.contains(NETWORK_ERROR))
 			{
 				System.out.println("Change network int");
 				changeExecutionMac(image);
-				h = LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "startvm", image.getImageName(), "--type", "headless");
+				h = execute(getExecutablePath(), "startvm", image.getImageName(), "--type", "headless");
                 System.out.println("Start vm headless response "+h);
                 if (h.contains(ERROR_MESSAGE) || h.contains("error"))
 					throw new PlatformOperationException(h.length() < 100 ? h : h.substring(0, 100));
@@ -238,41 +251,20 @@ public abstract class VirtualBox extends Platform {
 			else if (h.contains(ERROR_MESSAGE) || h.contains("error"))
 				throw new PlatformOperationException(h.length() < 100 ? h : h.substring(0, 100));
 		}
-        sleep(30000);
+        waitForStart(image.getImageName(), START_TIMEOUT);
         try {
         	OSFactory.getOS().setPriorityProcess(HEADLESS_SERVICE_NAME);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		sleep(1000);
-    }
-
-    private void changeAbortedState(String path) throws Exception {
-        System.out.println("Change aborted state "+path);
-        String remplazo="";
-        BufferedReader br=new BufferedReader(new FileReader(new File(path)));
-        System.out.println("Inicia lectura");
-        String linea=br.readLine();
-        while(linea!=null) {
-            linea=linea.replaceAll("aborted=\"true\"","aborted=\"false\"");
-            remplazo+=linea+"\n";
-            System.out.println("LINE "+linea);
-            linea=br.readLine();
-        }
-        br.close();
-        System.out.println("REMPLAZO "+remplazo);
-        PrintWriter pw=new PrintWriter(new File(path));
-        pw.println(remplazo);
-        pw.close();
     }
 
-    private void setPriority(ImageCopy image) throws PlatformOperationException {
+    protected void setPriority(ImageCopy image) throws PlatformOperationException {
 		//To correct executions in Vbox 4.3 and forward
     	try {
-    		LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "showvminfo", image.getImageName());
-    		sleep(1000);
+    		//VBoxSVC is running after showvminfo returns
+    		execute(getExecutablePath(), "showvminfo", image.getImageName());
     		OSFactory.getOS().setPriorityProcess(VBOX_SERVICE_NAME);
-    		sleep(1000);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -288,8 +280,8 @@ public abstract class VirtualBox extends Platform {
     public void configureExecutionHardware(int cores, int ram, ImageCopy image) throws PlatformOperationException {
 
     	if (cores != 0 && ram != 0) {
-            LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "modifyvm", image.getImageName(), "--memory", ""+ram, "--cpus", ""+cores);
-            sleep(20000);
+            execute(getExecutablePath(), "modifyvm", image.getImageName(), "--memory", ""+ram, "--cpus", ""+cores);
+            waitForUnlocked(image.getImageName(), CONFIGURATION_TIMEOUT);
         }
     }
 
@@ -303,8 +295,7 @@ public abstract class VirtualBox extends Platform {
 		String uuid=null;
 		String[] datos;
 		System.out.println("File Path "+filePath);
-		String rta= LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "showhdinfo",filePath);
-		System.out.println("VMS LISTED \n"+rta);
+		String rta= execute(getExecutablePath(), "showhdinfo",filePath);
 		for(String s:rta.split("\n"))
 		{
 			datos=s.split(":");
@@ -329,8 +320,7 @@ public abstract class VirtualBox extends Platform {
     	String uuid=null;
     	String[] datos;
     	System.out.println("File Path "+filePath);
-    	String rta= LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "showhdinfo",filePath);
-    	System.out.println("VMS LISTED \n"+rta);
+    	String rta= execute(getExecutablePath(), "showhdinfo",filePath);
     	for(String s:rta.split("\n"))
 		{
 			datos=s.split(":");
@@ -356,11 +346,11 @@ public abstract class VirtualBox extends Platform {
         List<String> com = new ArrayList<>();
         Collections.addAll(com, createExecutionCommand(getExecutablePath(), image.getImageName(), command, image.getImage().getUsername(), image.getImage().getPassword()));
         Collections.addAll(com, args);
-        String h = LocalProcessExecutor.executeCommandOutput(com.toArray(new String[0]));
+        String h = execute(com.toArray(new String[0]));
         if (h.contains(ERROR_MESSAGE)) 
             throw new PlatformOperationException(h.length() < 100 ? h : h.substring(0, 100));
         
-        sleep(10000);
+        waitForState(image.getImageName(), CONFIGURATION_TIMEOUT, "running");
     }
     /**
      * Sends a file to the VM itself
@@ -370,11 +360,27 @@ public abstract class VirtualBox extends Platform {
      */
     @Override
     public void copyFileOnExecution(ImageCopy image, String destinationRoute, File sourceFile) throws PlatformOperationException {
-       	String h = LocalProcessExecutor.executeCommandOutput(createCopyToCommand(getExecutablePath(), image.getImageName(), sourceFile.getAbsolutePath(), destinationRoute, image.getImage().getUsername(), image.getImage().getPassword()));
+       	String h = execute(createCopyToCommand(getExecutablePath(), image.getImageName(), sourceFile.getAbsolutePath(), destinationRoute, image.getImage().getUsername(), image.getImage().getPassword()));
     	if (h.contains(ERROR_MESSAGE)) 
             throw new PlatformOperationException(h.length() < 100 ? h : h.substring(0, 100));
         
-        sleep(10000);
+        waitForState(image.getImageName(), CONFIGURATION_TIMEOUT, "running");
+    }
+    
+    /**
+     * Waits until guest additions report that guest user land is running, then guestcontrol commands could be executed
+     * @param image started copy
+     * @param timeout max time in milliseconds to wait
+     */
+    @Override
+    public boolean waitForGuest(ImageCopy image, long timeout) {
+    	final String vm = image.getImageName();
+    	return waitUntil(vm + " guest additions", timeout, new ReadyCondition() {			
+			@Override
+			public boolean isReady() {
+				return getGuestAdditionsRunLevel(vm) >= GUEST_USERLAND_RUN_LEVEL;
+			}
+		});
     }
     
     /**
@@ -384,8 +390,8 @@ public abstract class VirtualBox extends Platform {
      */
     @Override
     public void takeExecutionSnapshot(ImageCopy image,String snapshotname) {
-        LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "snapshot", image.getImageName(), "take", snapshotname);
-        sleep(20000);
+        execute(getExecutablePath(), "snapshot", image.getImageName(), "take", snapshotname);
+        waitForUnlocked(image.getImageName(), CONFIGURATION_TIMEOUT);
     }
     
     /**
@@ -395,8 +401,8 @@ public abstract class VirtualBox extends Platform {
      */
     @Override
     public void deleteExecutionSnapshot(ImageCopy image,String snapshotname) {
-        LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "snapshot", image.getImageName(), "delete", snapshotname);
-        sleep(20000);
+        execute(getExecutablePath(), "snapshot", image.getImageName(), "delete", snapshotname);
+        waitForUnlocked(image.getImageName(), CONFIGURATION_TIMEOUT);
     }
     
     /**
@@ -406,8 +412,8 @@ public abstract class VirtualBox extends Platform {
     @Override
     public void changeExecutionMac(ImageCopy image) throws PlatformOperationException {
     	NetworkInterface ninterface = AddressUtility.getDefaultNetworkInterface();
-    	LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "modifyvm", image.getImageName(), "--bridgeadapter1", ninterface.getDisplayName(), "--macaddress1", "auto");
-        sleep(20000);        
+    	execute(getExecutablePath(), "modifyvm", image.getImageName(), "--bridgeadapter1", ninterface.getDisplayName(), "--macaddress1", "auto");
+    	waitForUnlocked(image.getImageName(), CONFIGURATION_TIMEOUT);
     }
 
     /**
@@ -417,8 +423,8 @@ public abstract class VirtualBox extends Platform {
      */
 	@Override
 	public void restoreExecutionSnapshot(ImageCopy image, String snapshotname) throws PlatformOperationException {
-		LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "snapshot", image.getImageName(), "restorecurrent");
-        sleep(20000);
+		execute(getExecutablePath(), "snapshot", image.getImageName(), "restorecurrent");
+		waitForUnlocked(image.getImageName(), CONFIGURATION_TIMEOUT);
 	}
 	
 	/**
@@ -428,8 +434,7 @@ public abstract class VirtualBox extends Platform {
 	 */
 	@Override
 	public boolean existsExecutionSnapshot(ImageCopy image, String snapshotname) throws PlatformOperationException {
-		String h = LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "snapshot", image.getImageName(), "list");
-        sleep(20000);
+		String h = execute(getExecutablePath(), "snapshot", image.getImageName(), "list");
         return h != null && !h.contains("does not");
 	}
 	
@@ -437,10 +442,12 @@ public abstract class VirtualBox extends Platform {
 	 * Unregisters all VMs from platform
 	 */
 	public void unregisterAllVms(){
-		String[] h = LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "list", "vms").split("\n|\r");
+		String[] h = execute(getExecutablePath(), "list", "vms").split("\n|\r");
 		for (String vm : h) {
-			LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "unregistervm", vm.split(" ")[1]);
-	        sleep(15000);
+			synchronized (registryLock) {
+				execute(getExecutablePath(), "unregistervm", vm.split(" ")[1]);
+			}
+			waitForRegistration(vm.split(" ")[1], false, REGISTRATION_TIMEOUT);
 		}
 	}
 
@@ -461,50 +468,183 @@ public abstract class VirtualBox extends Platform {
 	 */
 	@Override
 	public void cloneImage(ImageCopy source, ImageCopy dest) {
-	    System.out.println("VBox vms");
-	    String name=source.getImageName();
-	    LocalProcessExecutor.executeCommandOutput(getExecutablePath(),"list","vms");
-		String h=LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "clonevm",name, "--snapshot", "unacloudbase", "--name", dest.getImageName(), "--basefolder", dest.getMainFile().getExecutableFile().getParentFile().getParentFile().getAbsolutePath(),"--register");
-		System.out.println("Cloning result "+h);
-		if(h.contains("error") && h.contains("snapshots"))
-		{
-			takeExecutionSnapshot(source, "unacloudbase");
-			h=LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "clonevm", name, "--snapshot", "unacloudbase", "--name", dest.getImageName(), "--basefolder", dest.getMainFile().getExecutableFile().getParentFile().getParentFile().getAbsolutePath(), "--register");
-			System.out.println("Cloning result with unacloudbase reinstated: "+h);
-            System.out.println("VBox vms 2");
-            LocalProcessExecutor.executeCommandOutput(getExecutablePath(),"list","vms");
-		}
-		sleep(20000);
+		cloneAndRegister(source, "unacloudbase", dest.getMainFile().getExecutableFile());
+		waitForUnlocked(dest.getImageName(), CONFIGURATION_TIMEOUT);
 		takeExecutionSnapshot(dest, "unacloudbase");
         unregisterImage(dest);
 	}
 	
-	@Override
-	public List<Execution> checkExecutions(Collection<Execution> executions) {
-		List<Execution> executionsToDelete = new ArrayList<Execution>();
-		List<String> list = new ArrayList<String>();
-		try {
-			String[] result = LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "list", "runningvms").split("\n|\r");
-			for (String vm : result)
-				list.add(vm.split(" ")[0].replace("\"", "").trim());
-			
-		} catch (Exception e) {
-			e.printStackTrace();
+	/**
+	 * Clones a snapshot of source without registering clone, so clone runs in parallel with other clones.
+	 * Clone is registered while registry lock is held, as other VM registrations.
+	 * Snapshot is taken again and clone is retried in case source has not the snapshot.
+	 * @param source source copy
+	 * @param snapshot name of snapshot to be cloned
+	 * @param clone main file of clone, its folder and name are used by clonevm
+	 * @param options additional clonevm options
+	 * @return clonevm output, clone is not registered in case it has an error
+	 */
+	private String cloneAndRegister(ImageCopy source, String snapshot, File clone, String... options) {
+		int extension = clone.getName().lastIndexOf('.');
+		String name = extension == -1 ? clone.getName() : clone.getName().substring(0, extension);
+		List<String> command = new ArrayList<String>(Arrays.asList(getExecutablePath(), "clonevm", source.getImageName(), "--snapshot", snapshot));
+		command.addAll(Arrays.asList(options));
+		command.addAll(Arrays.asList("--name", name, "--basefolder", clone.getParentFile().getParentFile().getAbsolutePath()));
+		String h = execute(command.toArray(new String[0]));
+		System.out.println("Cloning result " + h);
+		if (h.contains("error") && h.contains("snapshots")) {
+			takeExecutionSnapshot(source, snapshot);
+			h = execute(command.toArray(new String[0]));
+			System.out.println("Cloning result with " + snapshot + " reinstated: " + h);
 		}
-		for (Execution execution: executions) {
-			boolean isRunning = false;
-			for (String exeInplatform : list) 
-				if (exeInplatform.contains(execution.getImage().getImageName())) {
-					isRunning = true;
-					break;
-				}
-			
-			if (!isRunning)
-				executionsToDelete.add(execution);	
+		if (h.contains("error") || h.contains(ERROR_MESSAGE))
+			return h;
+		synchronized (registryLock) {
+			execute(getExecutablePath(), "registervm", clone.getAbsolutePath());
 		}
-		return executionsToDelete;
+		return h;
+	}
+
+	@Override
+	public boolean supportsLinkedClones() {
+		return true;
+	}
+	
+	/**
+	 * Creates a linked clone from base snapshot of source. Source is registered in case it is not, because clones depend on its disk.
+	 * @param source source copy
+	 * @param dest empty destination copy
+	 */
+	@Override
+	public void linkedCloneImage(ImageCopy source, ImageCopy dest) throws PlatformOperationException {
+		String name = source.getImageName();
+		if (!getMachineInfo(name).containsKey("VMState")) {
+			synchronized (registryLock) {
+				execute(getExecutablePath(), "registervm", source.getMainFile().getExecutableFile().getPath());
+			}
+			waitForRegistration(name, true, REGISTRATION_TIMEOUT);
+		}
+		String h = cloneAndRegister(source, UnaCloudConstants.DEFAULT_IMG_NAME, dest.getMainFile().getExecutableFile(), "--options", "link");
+		if (h.contains("error") || h.contains(ERROR_MESSAGE))
+			throw new PlatformOperationException(h.length() < 100 ? h : h.substring(0, 100));
+		waitForUnlocked(dest.getImageName(), CONFIGURATION_TIMEOUT);
+		takeExecutionSnapshot(dest, UnaCloudConstants.DEFAULT_IMG_NAME);
+	}
+	
+	@Override
+	protected Set<String> listRunningExecutions() {
+		Set<String> running = new HashSet<String>();
+		for (String vm : execute(getExecutablePath(), "list", "runningvms").split("\n|\r"))
+			if (!vm.trim().isEmpty())
+				running.add(vm.split(" ")[0].replace("\"", "").trim());
+		return running;
 	}
 		
+	/**
+	 * Returns VM information reported by showvminfo in machine readable format
+	 * @param vm name or uuid of VM
+	 * @return map of values by key, empty in case VM is not registered
+	 */
+	protected Map<String, String> getMachineInfo(String vm) {
+		Map<String, String> info = new HashMap<String, String>();
+		String h = execute(getExecutablePath(), "showvminfo", vm, "--machinereadable");
+		for (String line : h.split("\n|\r")) {
+			int index = line.indexOf('=');
+			if (index > 0)
+				info.put(line.substring(0, index).replace("\"", "").trim(), line.substring(index + 1).replace("\"", "").trim());
+		}
+		return info;
+	}
+	
+	/**
+	 * Waits until VM is in one of given states
+	 * @param vm name or uuid of VM
+	 * @param timeout max time in milliseconds to wait
+	 * @param states expected states
+	 * @return true in case VM reached state before timeout
+	 */
+	protected boolean waitForState(final String vm, long timeout, final String... states) {
+		return waitUntil(vm + " in state " + Arrays.toString(states), timeout, new ReadyCondition() {			
+			@Override
+			public boolean isReady() {
+				return Arrays.asList(states).contains(getMachineInfo(vm).get("VMState"));
+			}
+		});
+	}
+	
+	/**
+	 * Waits until VM is in a stable state and its session is not locked, so it could be modified
+	 * @param vm name or uuid of VM
+	 * @param timeout max time in milliseconds to wait
+	 * @return true in case VM was released before timeout
+	 */
+	protected boolean waitForUnlocked(final String vm, long timeout) {
+		return waitUntil(vm + " unlocked", timeout, new ReadyCondition() {			
+			@Override
+			public boolean isReady() {
+				Map<String, String> info = getMachineInfo(vm);
+				String session = info.get("SessionState");
+				return STABLE_STATES.contains(info.get("VMState")) && (session == null || session.equals("unlocked"));
+			}
+		});
+	}
+	
+	/**
+	 * Waits until VM is registered or unregistered in platform
+	 * @param vm name or uuid of VM
+	 * @param registered true to wait for registration, false to wait for unregistration
+	 * @param timeout max time in milliseconds to wait
+	 * @return true in case registration was changed before timeout
+	 */
+	protected boolean waitForRegistration(final String vm, final boolean registered, long timeout) {
+		return waitUntil(vm + (registered ? " registered" : " unregistered"), timeout, new ReadyCondition() {			
+			@Override
+			public boolean isReady() {
+				return getMachineInfo(vm).containsKey("VMState") == registered;
+			}
+		});
+	}
+	
+	/**
+	 * Waits until VM is running and guest has reported its IP. 
+	 * Guests without guest additions never report IP, in that case wait ends by timeout.
+	 * @param vm name or uuid of VM
+	 * @param timeout max time in milliseconds to wait for both conditions
+	 * @return true in case guest network is ready before timeout
+	 */
+	protected boolean waitForStart(final String vm, long timeout) {
+		long start = System.currentTimeMillis();
+		if (!waitForState(vm, timeout, "running"))
+			return false;
+		return waitUntil(vm + " guest network", Math.max(0, timeout - (System.currentTimeMillis() - start)), new ReadyCondition() {			
+			@Override
+			public boolean isReady() {
+				return getGuestProperty(vm, GUEST_IP_PROPERTY) != null;
+			}
+		});
+	}
+	
+	/**
+	 * Returns a guest property set by guest additions
+	 * @param vm name or uuid of VM
+	 * @param property property name
+	 * @return value, null in case property is not set
+	 */
+	protected String getGuestProperty(String vm, String property) {
+		String h = execute(getExecutablePath(), "guestproperty", "get", vm, property);
+		return h.contains("Value:") ? h.substring(h.indexOf("Value:") + 6).trim() : null;
+	}
+	
+	/**
+	 * Returns run level of guest additions: 0 not running, 1 system, 2 user land, 3 desktop
+	 * @param vm name or uuid of VM
+	 * @return run level
+	 */
+	protected int getGuestAdditionsRunLevel(String vm) {
+		String level = getMachineInfo(vm).get("GuestAdditionsRunLevel");
+		return level == null ? 0 : Integer.parseInt(level);
+	}
+	
 	/**
 	 * Method to create command to be executed in guest machine
 	 * @param path : VBoxManage path
@@ -532,7 +672,18 @@ public abstract class VirtualBox extends Platform {
 	 * Configures the image changing the uuid of the given image copy.
 	 * @param image Image copy to change the uuid
 	 */
-	public synchronized void configureImage(ImageCopy image)
+	public void configureImage(ImageCopy image)
+	{
+		synchronized (registryLock) {
+			changeUUID(image);
+		}
+	}
+	
+	/**
+	 * Changes disk and machine uuid of image copy and closes old disk medium, caller must hold registry lock
+	 * @param image Image copy to change the uuid
+	 */
+	private void changeUUID(ImageCopy image)
 	{
 		System.out.println("Original path: " +image.getMainFile().getFilePath()+" "+image.getMainFile().getExecutableFile().getAbsolutePath());
 		String oldUUID= getUUID(image.getMainFile().getFilePath().replaceAll(".vbox",".vdi"));
@@ -543,20 +694,15 @@ public abstract class VirtualBox extends Platform {
 			try
 			{
 				//Get id for machine
-				machineUUID=LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "internalcommands", "sethduuid",
+				machineUUID=execute(getExecutablePath(), "internalcommands", "sethduuid",
 						image.getMainFile().getFilePath().replaceAll(".vbox", ".vdi")).split(":")[1].trim();
 				//Get id for image
-				newUUID=LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "internalcommands", "sethduuid",
+				newUUID=execute(getExecutablePath(), "internalcommands", "sethduuid",
 						image.getMainFile().getFilePath().replaceAll(".vbox", ".vdi")).split(":")[1].trim();
 				//Replace files on xml
 				replaceUIID(oldUUID,machineUUID,newUUID,image.getMainFile().getFilePath());
-				//Get running vms before and after closing disk medium
-				String rta = LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "list", "vms");
-				System.out.println("LIST BEFORE DEL "+rta);
-				rta = LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "closemedium", "disk",oldUUID);
+				String rta = execute(getExecutablePath(), "closemedium", "disk",oldUUID);
 				System.out.println("CLOSE MED "+rta);
-				rta = LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "list", "vms");
-				System.out.println("LIST AFTER DEL "+rta);
 			}
 			catch(Exception e)
 			{
@@ -596,10 +742,8 @@ public abstract class VirtualBox extends Platform {
 
 		}
 		br.close();
-		System.out.println("EXISTENCIA DE IMG "+oldExists+":"+old+":");
 		if(oldExists && !old.trim().equals(""))
 		{
-			System.out.println("REMPLAZO\n"+remplazo);
 			PrintWriter pw=new PrintWriter(new File(path));
 			pw.println(remplazo);
 			pw.close();
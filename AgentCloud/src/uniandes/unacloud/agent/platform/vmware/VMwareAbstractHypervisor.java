@@ -6,16 +6,16 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import uniandes.unacloud.agent.exceptions.PlatformOperationException;
-import uniandes.unacloud.agent.execution.domain.Execution;
 import uniandes.unacloud.agent.execution.domain.ImageCopy;
 import uniandes.unacloud.agent.host.system.OSFactory;
 import uniandes.unacloud.agent.platform.Platform;
-import uniandes.unacloud.utils.LocalProcessExecutor;
+import uniandes.unacloud.agent.platform.ReadyCondition;
 
 /**
  * Implementation of platform abstract class to give support for
@@ -26,6 +26,21 @@ public abstract class VMwareAbstractHypervisor extends Platform {
 	
 	public static final String VMW_VMX_CPU = "numvcpus";
     public static final String VMW_VMX_MEMORY = "memsize";
+    
+    /**
+     * Max time in milliseconds to wait for a VM to be running
+     */
+    private static final long START_TIMEOUT = 30000;
+    
+    /**
+     * Max time in milliseconds to wait for a clone to be created
+     */
+    private static final long CLONE_TIMEOUT = 20000;
+    
+    /**
+     * State reported by checkToolsState when VMware Tools are running in guest
+     */
+    private static final String TOOLS_RUNNING = "running";
 	
 	public VMwareAbstractHypervisor(String path) {
 		super(path);
@@ -38,12 +53,12 @@ public abstract class VMwareAbstractHypervisor extends Platform {
 	
     @Override
     public void stopExecution(ImageCopy image) {
-        LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "-T", getType(), "stop", image.getMainFile().getExecutableFile().getPath());
+        execute(getExecutablePath(), "-T", getType(), "stop", image.getMainFile().getExecutableFile().getPath());
     }
 
     @Override
     public void restartExecution(ImageCopy image) throws PlatformOperationException {
-        String h = LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "-T",getType(), "reset", image.getMainFile().getExecutableFile().getPath());
+        String h = execute(getExecutablePath(), "-T",getType(), "reset", image.getMainFile().getExecutableFile().getPath());
         if (h.contains(ERROR_MESSAGE)) {
             throw new PlatformOperationException(h.length() < 100 ? h : h.substring(0, 100));
         }
@@ -52,11 +67,35 @@ public abstract class VMwareAbstractHypervisor extends Platform {
     @Override
     public void startExecution(ImageCopy image) throws PlatformOperationException {
         correctDataStores();
-        String h = LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "-T", getType(), "start", image.getMainFile().getExecutableFile().getPath(),"nogui");
+        String h = execute(getExecutablePath(), "-T", getType(), "start", image.getMainFile().getExecutableFile().getPath(),"nogui");
         if (h.contains(ERROR_MESSAGE)) {
             throw new PlatformOperationException(h.length() < 100 ? h : h.substring(0, 100));
         }
-        sleep(30000);
+        final String path = image.getMainFile().getExecutableFile().getPath();
+        waitUntil(path + " running", START_TIMEOUT, new ReadyCondition() {
+			@Override
+			public boolean isReady() {
+				return execute(getExecutablePath(), "-T", getType(), "list").contains(path);
+			}
+		});
+    }
+    
+    /**
+     * Waits until VMware Tools are running in guest, then guest commands and file copies could be executed.
+     * VM is in list of running VMs since its process is started, before guest finishes booting.
+     * @param image started copy
+     * @param timeout max time in milliseconds to wait
+     */
+    @Override
+    public boolean waitForGuest(ImageCopy image, long timeout) {
+    	final String path = image.getMainFile().getExecutableFile().getPath();
+    	return waitUntil(path + " tools", timeout, new ReadyCondition() {
+			@Override
+			public boolean isReady() {
+				String state = execute(getExecutablePath(), "-T", getType(), "checkToolsState", path);
+				return state != null && state.trim().equals(TOOLS_RUNNING);
+			}
+		});
     }
     
     @Override
@@ -65,7 +104,7 @@ public abstract class VMwareAbstractHypervisor extends Platform {
         Collections.addAll(com, getExecutablePath(), "-T", getType(), "-gu", image.getImage().getUsername(), "-gp", image.getImage().getPassword(), "runProgramInGuest", image.getMainFile().getExecutableFile().getPath());
         com.add(command);
         Collections.addAll(com,args);
-        String h = LocalProcessExecutor.executeCommandOutput(com.toArray(new String[0]));
+        String h = execute(com.toArray(new String[0]));
         if (h.contains(ERROR_MESSAGE)) {
             throw new PlatformOperationException(h.length() < 100 ? h : h.substring(0, 100));
         }
@@ -73,7 +112,7 @@ public abstract class VMwareAbstractHypervisor extends Platform {
 
     @Override
     public void copyFileOnExecution(ImageCopy image, String destinationRoute, File sourceFile) throws PlatformOperationException {
-        String h = LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "-T", getType(), "-gu", image.getImage().getUsername(), "-gp",image.getImage().getPassword(), "copyFileFromHostToGuest", image.getMainFile().getExecutableFile().getPath(), sourceFile.getAbsolutePath(), destinationRoute);
+        String h = execute(getExecutablePath(), "-T", getType(), "-gu", image.getImage().getUsername(), "-gp",image.getImage().getPassword(), "copyFileFromHostToGuest", image.getMainFile().getExecutableFile().getPath(), sourceFile.getAbsolutePath(), destinationRoute);
         if (h.contains(ERROR_MESSAGE)) {
             throw new PlatformOperationException(h.length() < 100 ? h : h.substring(0, 100));
         }
@@ -81,7 +120,7 @@ public abstract class VMwareAbstractHypervisor extends Platform {
 
     @Override
     public void takeExecutionSnapshot(ImageCopy image,String snapshotname) throws PlatformOperationException {
-        String h = LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "-T" ,getType(), "snapshot", image.getMainFile().getExecutableFile().getPath(), snapshotname);
+        String h = execute(getExecutablePath(), "-T" ,getType(), "snapshot", image.getMainFile().getExecutableFile().getPath(), snapshotname);
         if (h.contains(ERROR_MESSAGE)) {
             throw new PlatformOperationException(h.length() < 100 ? h : h.substring(0, 100));
         }
@@ -89,7 +128,7 @@ public abstract class VMwareAbstractHypervisor extends Platform {
     
     @Override
     public void deleteExecutionSnapshot(ImageCopy image, String snapshotname) throws PlatformOperationException {
-    	String h = LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "-T", getType(), "deleteSnapshot", image.getMainFile().getExecutableFile().getPath(), snapshotname);
+    	String h = execute(getExecutablePath(), "-T", getType(), "deleteSnapshot", image.getMainFile().getExecutableFile().getPath(), snapshotname);
         if (h.contains(ERROR_MESSAGE)) {
             throw new PlatformOperationException(h.length() < 100 ? h : h.substring(0, 100));
         }
@@ -104,13 +143,13 @@ public abstract class VMwareAbstractHypervisor extends Platform {
     
     @Override
     public boolean existsExecutionSnapshot(ImageCopy image, String snapshotname) throws PlatformOperationException {
-    	String h = LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "-T", getType(), "listSnapshots", image.getMainFile().getExecutableFile().getPath());
+    	String h = execute(getExecutablePath(), "-T", getType(), "listSnapshots", image.getMainFile().getExecutableFile().getPath());
     	return h!=null&&h.contains(snapshotname);
     }
     
     @Override
     public void restoreExecutionSnapshot(ImageCopy image, String snapshotname) throws PlatformOperationException {
-    	String h = LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "-T", getType(), "revertToSnapshot", image.getMainFile().getExecutableFile().getPath(), snapshotname);
+    	String h = execute(getExecutablePath(), "-T", getType(), "revertToSnapshot", image.getMainFile().getExecutableFile().getPath(), snapshotname);
         if (h.contains(ERROR_MESSAGE)) {
             throw new PlatformOperationException(h.length() < 100 ? h : h.substring(0, 100));
         }
@@ -156,8 +195,14 @@ public abstract class VMwareAbstractHypervisor extends Platform {
 	
 	@Override
 	public void cloneImage(ImageCopy source, ImageCopy dest) {
-		LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "clone", source.getMainFile().getExecutableFile().getAbsolutePath(), dest.getMainFile().getExecutableFile().getAbsolutePath(), "full", "unacloudbase");
-		sleep(20000);
+		final File clone = dest.getMainFile().getExecutableFile();
+		execute(getExecutablePath(), "clone", source.getMainFile().getExecutableFile().getAbsolutePath(), clone.getAbsolutePath(), "full", "unacloudbase");
+		waitUntil(clone.getName() + " cloned", CLONE_TIMEOUT, new ReadyCondition() {
+			@Override
+			public boolean isReady() {
+				return clone.exists();
+			}
+		});
 		try {
 			takeExecutionSnapshot(dest,"unacloudbase");
 		} catch (PlatformOperationException e) {
@@ -167,28 +212,14 @@ public abstract class VMwareAbstractHypervisor extends Platform {
 	}	
 	
 	@Override
-	public List<Execution> checkExecutions(Collection<Execution> executions) {
-		List<Execution> executionsToDelete = new ArrayList<Execution>();
-		List<String> list = new ArrayList<String>();
-		try {
-			String[] result = LocalProcessExecutor.executeCommandOutput(getExecutablePath(), "-T", getType(), "list").split("\n|\r");
-			for (String vm: result)if(!vm.startsWith("Total running VMs")) {
-				String deploy = vm.split(" ")[1];
-				list.add(deploy.substring(deploy.indexOf("/"), deploy.lastIndexOf(".")));
+	protected Set<String> listRunningExecutions() {
+		Set<String> running = new HashSet<String>();
+		for (String vm : execute(getExecutablePath(), "-T", getType(), "list").split("\n|\r"))
+			if (!vm.trim().isEmpty() && !vm.startsWith("Total running VMs")) {
+				//Running VMs are reported by path of vmx file, name is file name without extension
+				String name = new File(vm.trim()).getName();
+				running.add(name.lastIndexOf(".") > 0 ? name.substring(0, name.lastIndexOf(".")) : name);
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
-		}	
-		for (Execution execution: executions) {
-			boolean isRunning = false;
-			for (String exeInHypervisor: list) {
-				if (exeInHypervisor.contains(execution.getImage().getImageName())) {
-					isRunning = true;
-					break;
-				}
-			}	
-			if(!isRunning)executionsToDelete.add(execution);	
-		}
-		return executionsToDelete;
+		return running;
 	}
 }
\ No newline at end of file
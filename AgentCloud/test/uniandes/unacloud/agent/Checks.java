@@ -0,0 +1,57 @@
+package uniandes.unacloud.agent;
+
+import java.io.File;
+import java.io.IOException;
+
+import uniandes.unacloud.agent.execution.domain.Image;
+import uniandes.unacloud.agent.execution.domain.ImageCopy;
+
+/**
+ * Shared steps of checks run as main classes: each check prints its result and process ends with failure status in case one failed.
+ * @author agent
+ *
+ */
+public class Checks {
+
+	private static int failures = 0;
+
+	private Checks() {
+
+	}
+
+	/**
+	 * Prints result of a check
+	 * @param description of checked behavior
+	 * @param result true in case check passed
+	 */
+	public static void check(String description, boolean result) {
+		System.out.println((result ? "OK   " : "FAIL ") + description);
+		if (!result)
+			failures++;
+	}
+
+	/**
+	 * Prints summary and ends process, exit status is 1 in case a check failed
+	 */
+	public static void exit() {
+		System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Creates a copy of a new image with an empty main file in a temporal folder
+	 * @param fileName name of main file with extension of platform
+	 * @return image copy
+	 * @throws IOException
+	 */
+	public static ImageCopy createCopy(String fileName) throws IOException {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "unacloud_check_" + System.nanoTime());
+		dir.mkdirs();
+		File file = new File(dir, fileName);
+		file.createNewFile();
+		ImageCopy copy = new ImageCopy();
+		copy.setImage(new Image());
+		copy.setMainFile(file);
+		return copy;
+	}
+}
@@ -0,0 +1,286 @@
+package uniandes.unacloud.agent.execution;
+
+import static uniandes.unacloud.agent.Checks.check;
+import static uniandes.unacloud.agent.Checks.exit;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uniandes.unacloud.agent.exceptions.PlatformOperationException;
+import uniandes.unacloud.agent.execution.domain.Execution;
+import uniandes.unacloud.agent.execution.domain.Image;
+import uniandes.unacloud.agent.execution.domain.ImageCopy;
+import uniandes.unacloud.agent.execution.domain.ImageStatus;
+import uniandes.unacloud.agent.execution.domain.NetInterface;
+import uniandes.unacloud.agent.platform.Platform;
+import uniandes.unacloud.agent.platform.PlatformFactory;
+import uniandes.unacloud.common.enums.ExecutionProcessEnum;
+import uniandes.unacloud.common.enums.TransmissionProtocolEnum;
+import uniandes.unacloud.common.utils.Time;
+
+/**
+ * Checks that copies of finished executions are unregistered and set free, so number of copies of an image
+ * is bounded by executions running at the same time instead of growing with each start and stop.
+ * Executions follow agent steps with a fake platform: free copy is requested, registered, started and removed.
+ * Image is cleared from cache only when its copies are free.
+ * It must be run in an empty folder because agent files are created in working directory.
+ * Usage: java uniandes.unacloud.agent.execution.ImageCopyReleaseCheck
+ * @author agent
+ *
+ */
+public class ImageCopyReleaseCheck {
+
+	private static final long IMAGE_ID = 1;
+
+	/**
+	 * Executions running at the same time in each cycle
+	 */
+	private static final int PARALLEL = 2;
+
+	private static final int CYCLES = 5;
+
+	private static long executions = 0;
+
+	/**
+	 * Folders of copies replaced by a clone and not deleted
+	 */
+	private static int leftClones = 0;
+
+	public static void main(String[] args) throws Exception {
+		File repository = new File("repository").getAbsoluteFile();
+		FakePlatform platform = new FakePlatform();
+		prepare(repository, platform);
+		PlatformFactory.registerPlatform(platform);
+
+		Image image = null;
+		for (int cycle = 0; cycle < CYCLES; cycle++) {
+			List<Execution> started = new ArrayList<Execution>();
+			for (int i = 0; i < PARALLEL; i++)
+				started.add(start());
+			for (Execution execution : started)
+				PersistentExecutionManager.removeExecution(execution.getId(), false);
+			image = started.get(0).getImage().getImage();
+			System.out.println("Cycle " + cycle + ": " + image.getImageCopies().size() + " copies, " + platform.registered.size() + " registered, "
+					+ new File(repository, "" + IMAGE_ID).list().length + " folders");
+		}
+		check("folders of replaced clones are deleted", leftClones == 0);
+		check("folders are bounded by parallel executions", new File(repository, "" + IMAGE_ID).list().length <= PARALLEL);
+		check("copies are bounded by parallel executions", image.getImageCopies().size() <= PARALLEL);
+		check("copies are unregistered after executions finish", platform.registered.isEmpty());
+		check("copies are free after executions finish", allFree(image));
+		check("platform never registered a copy twice", platform.violations == 0);
+
+		//Copy of an execution which fails to start is released too
+		platform.failStart = true;
+		start();
+		platform.failStart = false;
+		check("copies are bounded after failed start", image.getImageCopies().size() <= PARALLEL);
+		check("copy is unregistered after failed start", platform.registered.isEmpty());
+		check("copy is free after failed start", allFree(image));
+
+		//Image is cleared with the same claims used by eviction, so copies in use are kept
+		Execution running = start();
+		check("image with a copy in use is not cleared", ImageCacheManager.clearImageFromCache(IMAGE_ID).getState() == ExecutionProcessEnum.FAIL);
+		check("copy in use keeps its files", running.getImage().getMainFile().getExecutableFile().exists());
+		PersistentExecutionManager.removeExecution(running.getId(), false);
+		check("image is cleared after copies are free", ImageCacheManager.clearImageFromCache(IMAGE_ID).getState() == ExecutionProcessEnum.SUCCESS);
+		check("files of cleared image are deleted", !new File(repository, "" + IMAGE_ID).exists());
+
+		exit();
+	}
+
+	/**
+	 * Requests a free copy, registers and clones it and starts execution as configureAndStart does.
+	 * Folder of files replaced by clone must be deleted
+	 */
+	private static Execution start() throws Exception {
+		Execution execution = createExecution();
+		ImageCopy copy = ImageCacheManager.getFreeImageCopy(execution, TransmissionProtocolEnum.TCP);
+		execution.setImage(copy);
+		Platform platform = PlatformFactory.getPlatform(copy.getImage().getPlatformId());
+		platform.registerImage(copy);
+		File previous = copy.getMainFile().getExecutableFile().getParentFile();
+		ImageCacheManager.replaceMainFile(copy, platform.registerAndCloneImage(copy));
+		if (previous.exists())
+			leftClones++;
+		PersistentExecutionManager.startUpMachine(execution, false);
+		return execution;
+	}
+
+	private static Execution createExecution() {
+		Execution execution = new Execution();
+		execution.setId(++executions);
+		execution.setImageId(IMAGE_ID);
+		execution.setExecutionTime(new Time(1, TimeUnit.HOURS));
+		execution.setInterfaces(new ArrayList<NetInterface>(Arrays.asList(new NetInterface("eth0", "127.0.0.1", "255.0.0.0"))));
+		return execution;
+	}
+
+	private static boolean allFree(Image image) {
+		for (ImageCopy copy : image.getImageCopies())
+			if (copy.getStatus() != ImageStatus.FREE)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Writes agent properties and image list of a previous version with one downloaded copy.
+	 * Control server port is closed, so execution state reports fail without waiting
+	 */
+	private static void prepare(File repository, Platform platform) throws IOException {
+		File copyFile = new File(repository, IMAGE_ID + File.separator + "base" + File.separator + "base.vbox");
+		copyFile.getParentFile().mkdirs();
+		copyFile.createNewFile();
+		try (PrintWriter pw = new PrintWriter("local.properties")) {
+			pw.println("VM_REPO_PATH=" + repository.getPath().replace("\\", "/"));
+		}
+		try (PrintWriter pw = new PrintWriter("global.properties")) {
+			pw.println("CONTROL_SERVER_IP=127.0.0.1");
+			pw.println("CONTROL_MANAGE_VM_PORT=1");
+		}
+		Image image = new Image();
+		image.setId(IMAGE_ID);
+		image.setPlatformId(platform.getCode());
+		ImageCopy copy = new ImageCopy();
+		copy.setImage(image);
+		copy.setMainFile(copyFile);
+		image.setImageCopies(new CopyOnWriteArrayList<ImageCopy>(Arrays.asList(copy)));
+		Map<Long, Image> images = new HashMap<Long, Image>();
+		images.put(IMAGE_ID, image);
+		try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream("imageList"))) {
+			oos.writeObject(images);
+		}
+	}
+
+	/**
+	 * Platform which keeps registered and running copies in memory, registering a registered copy is a violation as in hypervisors
+	 */
+	private static class FakePlatform extends Platform {
+
+		private final Set<String> registered = new HashSet<String>();
+
+		private final Set<String> running = new HashSet<String>();
+
+		private int violations;
+
+		private final AtomicInteger clones = new AtomicInteger();
+
+		private volatile boolean failStart;
+
+		public FakePlatform() {
+			super("fake");
+		}
+
+		@Override
+		public synchronized void startExecution(ImageCopy image) throws PlatformOperationException {
+			if (failStart)
+				throw new PlatformOperationException("Start of " + image.getImageName() + " failed");
+			running.add(image.getImageName());
+		}
+
+		@Override
+		public synchronized void stopExecution(ImageCopy image) {
+			running.remove(image.getImageName());
+		}
+
+		@Override
+		public synchronized void registerImage(ImageCopy image) {
+			if (!registered.add(image.getImageName()))
+				violations++;
+		}
+
+		@Override
+		public synchronized void unregisterImage(ImageCopy image) {
+			registered.remove(image.getImageName());
+		}
+
+		@Override
+		public void cloneImage(ImageCopy source, ImageCopy dest) {
+			try {
+				dest.getMainFile().getExecutableFile().getParentFile().mkdirs();
+				dest.getMainFile().getExecutableFile().createNewFile();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		@Override
+		protected synchronized Set<String> listRunningExecutions() {
+			return new HashSet<String>(running);
+		}
+
+		@Override
+		public void configureExecutionHardware(int cores, int ram, ImageCopy image) {
+		}
+
+		@Override
+		public void restartExecution(ImageCopy image) {
+		}
+
+		@Override
+		public void executeCommandOnExecution(ImageCopy image, String command, String... args) {
+		}
+
+		@Override
+		public void takeExecutionSnapshot(ImageCopy image, String snapshotname) {
+		}
+
+		@Override
+		public void deleteExecutionSnapshot(ImageCopy image, String snapshotname) {
+		}
+
+		@Override
+		public void restoreExecutionSnapshot(ImageCopy image, String snapshotname) {
+		}
+
+		@Override
+		public boolean existsExecutionSnapshot(ImageCopy image, String snapshotname) {
+			return true;
+		}
+
+		@Override
+		public void copyFileOnExecution(ImageCopy image, String destinationRoute, File sourceFile) {
+		}
+
+		@Override
+		public void changeExecutionMac(ImageCopy image) {
+		}
+
+		/**
+		 * Clones copy in a new folder of image folder as VirtualBox does, clone is registered and copy is unregistered
+		 */
+		@Override
+		public File registerAndCloneImage(ImageCopy image) {
+			String name = "clone" + clones.incrementAndGet();
+			File clone = new File(image.getMainFile().getExecutableFile().getParentFile().getParentFile(), name + File.separator + name + ".vbox");
+			try {
+				clone.getParentFile().mkdirs();
+				clone.createNewFile();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			synchronized (this) {
+				registered.remove(image.getImageName());
+				registered.add(name);
+			}
+			return clone;
+		}
+
+		@Override
+		public void configureImage(ImageCopy image) {
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package uniandes.unacloud.agent.platform;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command executor which replaces LocalProcessExecutor in checks, so platforms run without hypervisors installed.
+ * Outputs are scripted by command name, which is the first argument after executable that is not an option or its value.
+ * Each command answers its queued outputs in order and then repeats last one, commands without outputs answer empty text.
+ * Executed commands are recorded.
+ * @author agent
+ *
+ */
+public class ScriptedCommandExecutor implements CommandExecutor {
+
+	/**
+	 * Options of platform executables followed by a value
+	 */
+	private static final List<String> OPTIONS_WITH_VALUE = Arrays.asList("-T", "-gu", "-gp");
+
+	private final Map<String, LinkedList<String>> outputs = new HashMap<String, LinkedList<String>>();
+
+	private final List<List<String>> executed = new ArrayList<List<String>>();
+
+	/**
+	 * Adds outputs to be answered by a command
+	 * @param command name of command
+	 * @param answers outputs in order
+	 */
+	public synchronized void script(String command, String... answers) {
+		LinkedList<String> queue = outputs.get(command);
+		if (queue == null) {
+			queue = new LinkedList<String>();
+			outputs.put(command, queue);
+		}
+		queue.addAll(Arrays.asList(answers));
+	}
+
+	@Override
+	public synchronized String execute(String... command) {
+		executed.add(Arrays.asList(command));
+		LinkedList<String> queue = outputs.get(name(command));
+		if (queue == null || queue.isEmpty())
+			return "";
+		return queue.size() > 1 ? queue.poll() : queue.peek();
+	}
+
+	/**
+	 * Returns quantity of times a command was executed
+	 * @param command name of command
+	 * @return times executed
+	 */
+	public synchronized int count(String command) {
+		int count = 0;
+		for (List<String> args : executed)
+			if (command.equals(name(args.toArray(new String[0]))))
+				count++;
+		return count;
+	}
+
+	/**
+	 * Returns executed commands with their arguments in order
+	 * @return executed commands
+	 */
+	public synchronized List<List<String>> getExecuted() {
+		return new ArrayList<List<String>>(executed);
+	}
+
+	private static String name(String... command) {
+		for (int i = 1; i < command.length; i++) {
+			if (OPTIONS_WITH_VALUE.contains(command[i]))
+				i++;
+			else if (!command[i].startsWith("-"))
+				return command[i];
+		}
+		return "";
+	}
+}
@@ -0,0 +1,269 @@
+package uniandes.unacloud.agent.platform.virtualbox;
+
+import static uniandes.unacloud.agent.Checks.check;
+import static uniandes.unacloud.agent.Checks.exit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uniandes.unacloud.agent.execution.domain.Image;
+import uniandes.unacloud.agent.execution.domain.ImageCopy;
+import uniandes.unacloud.agent.platform.CommandExecutor;
+import uniandes.unacloud.common.utils.UnaCloudConstants;
+
+/**
+ * Measures time to bring up several VMs of one image on one host using a fake VBoxManage, so it runs without VirtualBox installed.
+ * Each VM follows platform steps of a start: register, clone, restore base snapshot, configure hardware and start.
+ * VMs are started in parallel twice: with platform locked during registration and clone, as it was locked before, and only with registry lock.
+ * Fake VBoxManage sleeps a fixed time by command and counts registry commands executed at the same time, which must be at most one.
+ * Clones which register themselves are registry commands too.
+ * Usage: java uniandes.unacloud.agent.platform.virtualbox.VBoxStartBenchmark [vms]
+ * @author agent
+ *
+ */
+public class VBoxStartBenchmark {
+
+	/**
+	 * Time in milliseconds spent by fake VBoxManage in each command
+	 */
+	private static final Map<String, Long> COMMAND_TIME = new HashMap<String, Long>();
+
+	static {
+		COMMAND_TIME.put("clonevm", 800L);
+		COMMAND_TIME.put("startvm", 400L);
+		COMMAND_TIME.put("snapshot", 150L);
+		COMMAND_TIME.put("registervm", 100L);
+		COMMAND_TIME.put("unregistervm", 50L);
+		COMMAND_TIME.put("internalcommands", 30L);
+		COMMAND_TIME.put("closemedium", 30L);
+		COMMAND_TIME.put("modifyvm", 30L);
+	}
+
+	/**
+	 * Commands which change media registry
+	 */
+	private static final Set<String> REGISTRY_COMMANDS = new HashSet<String>();
+
+	static {
+		REGISTRY_COMMANDS.add("registervm");
+		REGISTRY_COMMANDS.add("unregistervm");
+		REGISTRY_COMMANDS.add("internalcommands");
+		REGISTRY_COMMANDS.add("closemedium");
+	}
+
+	private static final String DISK_UUID = "11111111-2222-3333-4444-555555555555";
+
+	public static void main(String[] args) throws Exception {
+		int vms = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		File root = new File(System.getProperty("java.io.tmpdir"), "unacloud_benchmark_" + System.currentTimeMillis());
+		Result locked = run(new File(root, "locked"), vms, true);
+		Result parallel = run(new File(root, "parallel"), vms, false);
+		System.out.println();
+		System.out.println("VMs: " + vms);
+		System.out.println("Platform locked:   " + locked);
+		System.out.println("Registry lock:     " + parallel);
+		System.out.println("Speedup: " + String.format("%.2f", (double) locked.time / parallel.time));
+		check("registry commands are never executed at the same time", locked.violations + parallel.violations == 0);
+		check("all VMs are running", locked.running == vms && parallel.running == vms);
+		exit();
+	}
+
+	/**
+	 * Starts VMs in parallel, each one from its own copy of image
+	 * @param folder folder of image copies
+	 * @param vms quantity of VMs
+	 * @param lockPlatform true to lock platform during registration and clone
+	 * @return measures
+	 * @throws Exception
+	 */
+	private static Result run(File folder, int vms, final boolean lockPlatform) throws Exception {
+		final FakeVBoxManage fake = new FakeVBoxManage();
+		final VBox5 platform = new VBox5("VBoxManage");
+		platform.setCommandExecutor(fake);
+		Image image = new Image();
+		image.setId(1);
+		image.setPlatformId(platform.getCode());
+		List<ImageCopy> copies = new ArrayList<ImageCopy>();
+		for (int i = 0; i < vms; i++)
+			copies.add(createCopy(folder, image, "copy" + i));
+		ExecutorService pool = Executors.newFixedThreadPool(vms);
+		List<Future<Long>> starts = new ArrayList<Future<Long>>();
+		long start = System.currentTimeMillis();
+		for (final ImageCopy copy : copies)
+			starts.add(pool.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					long begin = System.currentTimeMillis();
+					if (lockPlatform) {
+						synchronized (platform) {
+							platform.registerImage(copy);
+							copy.setMainFile(platform.registerAndCloneImage(copy));
+						}
+					} else {
+						platform.registerImage(copy);
+						copy.setMainFile(platform.registerAndCloneImage(copy));
+					}
+					platform.restoreExecutionSnapshot(copy, UnaCloudConstants.DEFAULT_IMG_NAME);
+					platform.configureExecutionHardware(1, 512, copy);
+					platform.startExecution(copy);
+					return System.currentTimeMillis() - begin;
+				}
+			}));
+		long slowest = 0;
+		for (Future<Long> f : starts)
+			slowest = Math.max(slowest, f.get());
+		Result result = new Result();
+		result.time = System.currentTimeMillis() - start;
+		result.slowest = slowest;
+		result.maxClones = fake.maxClones.get();
+		result.maxRegistry = fake.maxRegistry.get();
+		result.violations = fake.violations.get();
+		result.running = fake.running.size();
+		pool.shutdown();
+		return result;
+	}
+
+	/**
+	 * Creates image copy files as they are after download, all copies have the same disk uuid
+	 */
+	private static ImageCopy createCopy(File folder, Image image, String name) throws IOException {
+		File dir = new File(folder, name);
+		dir.mkdirs();
+		File vbox = new File(dir, name + ".vbox");
+		try (PrintWriter pw = new PrintWriter(vbox)) {
+			pw.println("<Machine uuid=\"{00000000-0000-0000-0000-000000000000}\" name=\"" + name + "\">");
+			pw.println("<HardDisk uuid=\"{" + DISK_UUID + "}\" location=\"" + name + ".vdi\"/>");
+			pw.println("</Machine>");
+		}
+		ImageCopy copy = new ImageCopy();
+		copy.setImage(image);
+		copy.setMainFile(vbox);
+		return copy;
+	}
+
+	/**
+	 * Measures of a run
+	 */
+	private static class Result {
+
+		private long time;
+
+		private long slowest;
+
+		private int maxClones;
+
+		private int maxRegistry;
+
+		private int violations;
+
+		private int running;
+
+		@Override
+		public String toString() {
+			return "total " + time + " ms, slowest VM " + slowest + " ms, running " + running + ", max parallel clones " + maxClones
+					+ ", max parallel registry commands " + maxRegistry + ", registry violations " + violations;
+		}
+	}
+
+	/**
+	 * VBoxManage which keeps registered and running VMs in memory
+	 */
+	private static class FakeVBoxManage implements CommandExecutor {
+
+		private final Set<String> registered = new HashSet<String>();
+
+		private final Set<String> running = new HashSet<String>();
+
+		private final AtomicInteger clones = new AtomicInteger();
+
+		private final AtomicInteger maxClones = new AtomicInteger();
+
+		private final AtomicInteger registry = new AtomicInteger();
+
+		private final AtomicInteger maxRegistry = new AtomicInteger();
+
+		private final AtomicInteger violations = new AtomicInteger();
+
+		private final AtomicInteger uuids = new AtomicInteger();
+
+		@Override
+		public String execute(String... command) {
+			String operation = command[1];
+			boolean clone = operation.equals("clonevm");
+			boolean registryCommand = REGISTRY_COMMANDS.contains(operation) || (clone && Arrays.asList(command).contains("--register"));
+			if (registryCommand && max(registry, maxRegistry) > 1)
+				violations.incrementAndGet();
+			if (clone)
+				max(clones, maxClones);
+			try {
+				Long time = COMMAND_TIME.get(operation);
+				if (time != null)
+					Thread.sleep(time);
+				return answer(command);
+			} catch (InterruptedException e) {
+				return "";
+			} finally {
+				if (registryCommand)
+					registry.decrementAndGet();
+				if (clone)
+					clones.decrementAndGet();
+			}
+		}
+
+		private synchronized String answer(String... command) {
+			switch (command[1]) {
+			case "showhdinfo":
+				return "UUID:           " + DISK_UUID + "\n";
+			case "internalcommands":
+				return "UUID changed to: " + String.format("%08d-0000-0000-0000-000000000000", uuids.incrementAndGet()) + "\n";
+			case "registervm":
+				registered.add(name(command[2]));
+				return "";
+			case "unregistervm":
+				registered.remove(command[2]);
+				return "";
+			case "clonevm":
+				for (int i = 3; i < command.length - 1; i++)
+					if (command[i].equals("--name") && Arrays.asList(command).contains("--register"))
+						registered.add(command[i + 1]);
+				return "";
+			case "startvm":
+				running.add(command[2]);
+				return "";
+			case "showvminfo":
+				if (!registered.contains(command[2]))
+					return "VBoxManage: error: Could not find a registered machine named '" + command[2] + "'";
+				boolean on = running.contains(command[2]);
+				return "VMState=\"" + (on ? "running" : "poweroff") + "\"\nSessionState=\"" + (on ? "locked" : "unlocked") + "\"\n";
+			case "guestproperty":
+				return running.contains(command[3]) ? "Value: 10.0.0." + running.size() : "No value set!";
+			default:
+				return "";
+			}
+		}
+
+		private static int max(AtomicInteger counter, AtomicInteger max) {
+			int value = counter.incrementAndGet();
+			for (int current = max.get(); value > current && !max.compareAndSet(current, value); current = max.get());
+			return value;
+		}
+
+		private static String name(String path) {
+			String file = new File(path).getName();
+			return file.contains(".") ? file.substring(0, file.lastIndexOf('.')) : file;
+		}
+	}
+}
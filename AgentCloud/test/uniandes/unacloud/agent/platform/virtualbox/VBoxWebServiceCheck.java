@@ -0,0 +1,80 @@
+package uniandes.unacloud.agent.platform.virtualbox;
+
+import static uniandes.unacloud.agent.Checks.check;
+import static uniandes.unacloud.agent.Checks.createCopy;
+import static uniandes.unacloud.agent.Checks.exit;
+
+import java.util.Map;
+
+import uniandes.unacloud.agent.exceptions.PlatformOperationException;
+import uniandes.unacloud.agent.execution.domain.ImageCopy;
+
+/**
+ * Checks VBoxWebService against VBoxWebServiceStub when web sessions expire between operations.
+ * Pooled sessions are expired by the stub, so platform must log on again and retry operation instead of failing.
+ * Operations are retried when a cached machine was unregistered, but not when VirtualBox rejects them for other reasons
+ * or their progress doesn't finish.
+ * Usage: java uniandes.unacloud.agent.platform.virtualbox.VBoxWebServiceCheck
+ * @author agent
+ *
+ */
+public class VBoxWebServiceCheck {
+
+	/**
+	 * Max time in milliseconds a web session could be idle in stub
+	 */
+	private static final long SESSION_TIMEOUT = 1000;
+
+	public static void main(String[] args) throws Exception {
+		VBoxWebServiceStub stub = new VBoxWebServiceStub(0);
+		stub.setSessionTimeout(SESSION_TIMEOUT);
+		stub.addMachine("check");
+		stub.start();
+		try {
+			VBoxWebService platform = new VBoxWebService("VBoxManage", stub.getUrl(), "", "");
+			ImageCopy copy = createCopy("check.vbox");
+
+			platform.startExecution(copy);
+			check("machine is running after start", "Running".equals(stub.getState("check")));
+			int logons = stub.getLogons();
+
+			Thread.sleep(SESSION_TIMEOUT * 2);
+			Map<String, String> info = platform.getMachineInfo("check");
+			check("machine info is read with an expired session", info != null && "running".equals(info.get("VMState")));
+			check("platform logged on again", stub.getLogons() > logons);
+
+			logons = stub.getLogons();
+			Thread.sleep(SESSION_TIMEOUT * 2);
+			platform.stopExecution(copy);
+			check("machine is stopped with an expired session", "PoweredOff".equals(stub.getState("check")));
+			check("platform logged on again", stub.getLogons() > logons);
+
+			//Machine is unregistered and registered again, so cached reference is not ready
+			stub.removeMachine("check");
+			stub.addMachine("check");
+			platform.startExecution(copy);
+			check("machine registered again is started", "Running".equals(stub.getState("check")));
+
+			//Start of a running machine is rejected and it must not be sent again
+			int launches = stub.getCalls("IMachine_launchVMProcess");
+			try {
+				platform.startExecution(copy);
+				check("start of a running machine fails", false);
+			} catch (PlatformOperationException e) {
+				check("start of a running machine fails", true);
+			}
+			check("rejected start is not retried", stub.getCalls("IMachine_launchVMProcess") == launches + 1);
+
+			//Progress doesn't finish before its wait times out
+			stub.setProgressCompleted(false);
+			int results = stub.getCalls("IProgress_getResultCode");
+			platform.takeExecutionSnapshot(copy, "check");
+			check("completion is asked after wait", stub.getCalls("IProgress_getCompleted") > 0);
+			check("result of an unfinished progress is not read", stub.getCalls("IProgress_getResultCode") == results);
+			check("unfinished snapshot is not retried", stub.getCalls("IMachine_takeSnapshot") == 1);
+		} finally {
+			stub.stop();
+		}
+		exit();
+	}
+}
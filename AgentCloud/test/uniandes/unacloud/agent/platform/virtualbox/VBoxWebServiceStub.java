@@ -0,0 +1,475 @@
+package uniandes.unacloud.agent.platform.virtualbox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stub of VirtualBox web service with machines in memory, used to test VBoxWebService without VirtualBox installed.
+ * It answers methods used by VBoxWebService: machines start in PoweredOff state, are running after launchVMProcess and report an IP guest property.
+ * References belong to the web session of the logon which created them, web sessions idle for more than session timeout expire as in vboxwebsrv.
+ * Machine references of a removed machine are rejected as not ready, even when a machine with the same name is added again.
+ * Usage: java uniandes.unacloud.agent.platform.virtualbox.VBoxWebServiceStub port vm1 vm2 ...
+ * @author agent
+ *
+ */
+public class VBoxWebServiceStub {
+
+	/**
+	 * Guest property with IP of first interface
+	 */
+	public static final String IP_PROPERTY = "/VirtualBox/GuestInfo/Net/0/V4/IP";
+
+	/**
+	 * Arguments which contain references to objects of a web session
+	 */
+	private static final List<String> REFERENCE_ARGUMENTS = Arrays.asList("_this", "refIVirtualBox", "session", "snapshot");
+
+	private final HttpServer server;
+
+	/**
+	 * Machines by name
+	 */
+	private final Map<String, Machine> machines = new LinkedHashMap<String, Machine>();
+
+	/**
+	 * Machine of each machine reference answered
+	 */
+	private final Map<String, Machine> issued = new HashMap<String, Machine>();
+
+	/**
+	 * Quantity of requests by method
+	 */
+	private final Map<String, Integer> calls = new HashMap<String, Integer>();
+
+	/**
+	 * False in case progresses don't finish before their wait times out
+	 */
+	private boolean progressCompleted = true;
+
+	/**
+	 * Machine locked by each session
+	 */
+	private final Map<String, String> locks = new HashMap<String, String>();
+
+	/**
+	 * Time of last request by web session
+	 */
+	private final Map<String, Long> websessions = new HashMap<String, Long>();
+
+	private final AtomicInteger references = new AtomicInteger();
+
+	private final AtomicInteger logons = new AtomicInteger();
+
+	/**
+	 * Max time in milliseconds a web session could be idle, 300 seconds as vboxwebsrv by default
+	 */
+	private long sessionTimeout = 300000;
+
+	/**
+	 * Web session of request being executed
+	 */
+	private String current;
+
+	private final AtomicInteger requests = new AtomicInteger();
+
+	/**
+	 * Creates stub listening in local port
+	 * @param port 0 to use any free port
+	 * @throws IOException
+	 */
+	public VBoxWebServiceStub(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				answer(exchange);
+			}
+		});
+	}
+
+	/**
+	 * Adds a machine in PoweredOff state
+	 * @param name
+	 */
+	public synchronized void addMachine(String name) {
+		machines.put(name, new Machine(name));
+	}
+
+	/**
+	 * Removes a machine as unregistervm does
+	 * @param name
+	 */
+	public synchronized void removeMachine(String name) {
+		machines.remove(name);
+	}
+
+	/**
+	 * Changes whether progresses finish before their wait times out
+	 * @param progressCompleted
+	 */
+	public synchronized void setProgressCompleted(boolean progressCompleted) {
+		this.progressCompleted = progressCompleted;
+	}
+
+	/**
+	 * Changes max time in milliseconds a web session could be idle
+	 * @param sessionTimeout
+	 */
+	public synchronized void setSessionTimeout(long sessionTimeout) {
+		this.sessionTimeout = sessionTimeout;
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	/**
+	 * Returns url to be used by clients
+	 * @return url
+	 */
+	public String getUrl() {
+		return "http://localhost:" + server.getAddress().getPort() + "/";
+	}
+
+	/**
+	 * Returns quantity of requests answered
+	 * @return requests
+	 */
+	public int getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Returns quantity of logons answered
+	 * @return logons
+	 */
+	public int getLogons() {
+		return logons.get();
+	}
+
+	/**
+	 * Returns quantity of requests of a method
+	 * @param method
+	 * @return requests
+	 */
+	public synchronized int getCalls(String method) {
+		Integer count = calls.get(method);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * Returns current state of a machine
+	 * @param name
+	 * @return state or null in case machine doesn't exist
+	 */
+	public synchronized String getState(String name) {
+		Machine machine = machines.get(name);
+		return machine == null ? null : machine.state;
+	}
+
+	private void answer(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		String method = null;
+		byte[] response;
+		int code = 200;
+		try {
+			Document document = VBoxWebServiceClient.parse(readAll(exchange.getRequestBody()));
+			Element call = null;
+			for (Node node = document.getElementsByTagNameNS(VBoxWebServiceClient.SOAP_NAMESPACE, "Body").item(0).getFirstChild(); node != null && call == null; node = node.getNextSibling())
+				if (node instanceof Element)
+					call = (Element) node;
+			method = call.getLocalName();
+			Map<String, String> args = new HashMap<String, String>();
+			for (Node node = call.getFirstChild(); node != null; node = node.getNextSibling())
+				if (node instanceof Element)
+					args.put(node.getLocalName() != null ? node.getLocalName() : node.getNodeName(), node.getTextContent());
+			List<String> values;
+			synchronized (this) {
+				calls.put(method, getCalls(method) + 1);
+				values = execute(method, args);
+			}
+			StringBuilder xml = new StringBuilder("<vbox:" + method + "Response>");
+			for (String value : values)
+				xml.append("<returnval>").append(VBoxWebServiceClient.escape(value)).append("</returnval>");
+			response = envelope(xml.append("</vbox:" + method + "Response>").toString());
+		} catch (Exception e) {
+			code = 500;
+			response = envelope("<soap:Fault><faultcode>soap:Server</faultcode><faultstring>" + VBoxWebServiceClient.escape(e.getMessage()) + "</faultstring></soap:Fault>");
+		}
+		exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+		exchange.sendResponseHeaders(code, response.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(response);
+		}
+	}
+
+	/**
+	 * Executes a method over machines in memory
+	 * @param method
+	 * @param args
+	 * @return returned values
+	 * @throws Exception in case method fails, it is answered as fault
+	 */
+	private List<String> execute(String method, Map<String, String> args) throws Exception {
+		String self = args.get("_this");
+		if (method.equals("IWebsessionManager_logon")) {
+			current = "" + references.incrementAndGet();
+			websessions.put(current, System.currentTimeMillis());
+			logons.incrementAndGet();
+			return values(ref("vbox", ""));
+		}
+		validate(args);
+		switch (method) {
+		case "IWebsessionManager_getSessionObject":
+			return values(ref("session", ""));
+		case "IWebsessionManager_logoff":
+			websessions.remove(current);
+			return values();
+		case "IManagedObjectRef_release":
+		case "IProgress_waitForCompletion":
+		case "IMachine_saveSettings":
+			return values();
+		case "IProgress_getCompleted":
+			return values("" + progressCompleted);
+		case "IProgress_getResultCode":
+			if (!progressCompleted)
+				throw new Exception("Result code is not available, operation is still in progress");
+			return values("0");
+		case "IProgress_getErrorInfo":
+			return values("");
+		case "IVirtualBox_findMachine":
+			return values(issue(named(args.get("nameOrId"))));
+		case "IVirtualBox_getMachines":
+			List<String> all = new ArrayList<String>();
+			for (Machine machine : machines.values())
+				all.add(issue(machine));
+			return all;
+		case "IMachine_getName":
+			return values(machine(self).name);
+		case "IMachine_getState":
+			return values(machine(self).state);
+		case "IMachine_getSessionState":
+			return values(locks.containsValue(machine(self).name) || machine(self).state.equals("Running") ? "Locked" : "Unlocked");
+		case "IMachine_getGuestPropertyValue":
+			String property = machine(self).properties.get(args.get("property"));
+			return values(property == null ? "" : property);
+		case "IMachine_getSnapshotCount":
+			return values("" + machine(self).snapshots.size());
+		case "IMachine_getCurrentSnapshot":
+			Machine restored = machine(self);
+			return values(restored.snapshots.isEmpty() ? "" : ref("snapshot", restored.name));
+		case "IMachine_findSnapshot":
+			Machine owner = machine(self);
+			if (!owner.snapshots.contains(args.get("nameOrId")))
+				throw new Exception("Could not find a snapshot named '" + args.get("nameOrId") + "'");
+			return values(ref("snapshot", owner.name));
+		case "ISnapshot_getId":
+			return values(self);
+		case "IMachine_takeSnapshot":
+			machine(self).snapshots.add(args.get("name"));
+			return values(ref("progress", ""));
+		case "IMachine_restoreSnapshot":
+			machine(self).state = "PoweredOff";
+			return values(ref("progress", ""));
+		case "IMachine_deleteSnapshot":
+			Machine snapshotted = machine(self);
+			snapshotted.snapshots.remove(snapshotted.snapshots.size() - 1);
+			return values(ref("progress", ""));
+		case "IMachine_setMemorySize":
+			machine(self).memory = Integer.parseInt(args.get("memorySize"));
+			return values();
+		case "IMachine_setCPUCount":
+			machine(self).cpus = Integer.parseInt(args.get("CPUCount"));
+			return values();
+		case "IMachine_lockMachine":
+			lock(args.get("session"), machine(self));
+			if (args.get("lockType").equals("Write") && machine(self).state.equals("Running")) {
+				locks.remove(args.get("session"));
+				throw new Exception("Machine '" + machine(self).name + "' is already locked for a session (or being unlocked)");
+			}
+			return values();
+		case "IMachine_launchVMProcess":
+			Machine launched = machine(self);
+			if (!launched.state.equals("PoweredOff"))
+				throw new Exception("The machine '" + launched.name + "' is already locked by a session");
+			lock(args.get("session"), launched);
+			launched.state = "Running";
+			launched.properties.put(IP_PROPERTY, "10.0.0." + (references.incrementAndGet() % 250 + 1));
+			return values(ref("progress", ""));
+		case "ISession_getMachine":
+			return values(ref("machine", locked(self).name));
+		case "ISession_getConsole":
+			Machine console = locked(self);
+			if (!console.state.equals("Running"))
+				throw new Exception("Machine '" + console.name + "' is not running");
+			return values(ref("console", console.name));
+		case "ISession_unlockMachine":
+			if (locks.remove(self) == null)
+				throw new Exception("The session is not locked (session state: Unlocked)");
+			return values();
+		case "IConsole_powerDown":
+			Machine stopped = machine(self);
+			stopped.state = "PoweredOff";
+			stopped.properties.remove(IP_PROPERTY);
+			return values(ref("progress", ""));
+		case "IConsole_reset":
+			machine(self);
+			return values();
+		case "IConsole_getGuest":
+			return values(ref("guest", machine(self).name));
+		case "IGuest_getAdditionsRunLevel":
+			return values(machine(self).state.equals("Running") ? "Userland" : "None");
+		default:
+			throw new Exception("Method " + method + " is not supported by stub");
+		}
+	}
+
+	private void lock(String session, Machine machine) throws Exception {
+		if (locks.containsKey(session))
+			throw new Exception("The given session is busy");
+		locks.put(session, machine.name);
+	}
+
+	/**
+	 * Validates references of request and updates last request time of their web session
+	 * @param args
+	 * @throws Exception in case a reference belongs to an expired or closed web session
+	 */
+	private void validate(Map<String, String> args) throws Exception {
+		long now = System.currentTimeMillis();
+		for (String argument : REFERENCE_ARGUMENTS) {
+			String reference = args.get(argument);
+			if (reference == null || !reference.contains("-"))
+				continue;
+			String websession = reference.substring(0, reference.indexOf('-'));
+			Long used = websessions.get(websession);
+			if (used == null || now - used > sessionTimeout) {
+				websessions.remove(websession);
+				throw new Exception("Invalid managed object reference \"" + reference + "\"");
+			}
+			websessions.put(websession, now);
+			current = websession;
+		}
+	}
+
+	/**
+	 * Creates a reference of current web session, references are the web session, the object type and the machine name
+	 * @param type
+	 * @param name
+	 * @return reference
+	 */
+	private String ref(String type, String name) {
+		return current + "-" + type + "-" + name;
+	}
+
+	/**
+	 * Creates a machine reference of current web session
+	 * @param machine
+	 * @return reference
+	 */
+	private String issue(Machine machine) {
+		String reference = ref("machine", machine.name);
+		issued.put(reference, machine);
+		return reference;
+	}
+
+	/**
+	 * Returns machine of a reference
+	 * @param reference
+	 * @return machine
+	 * @throws Exception in case machine doesn't exist or reference belongs to a removed machine
+	 */
+	private Machine machine(String reference) throws Exception {
+		Machine referenced = issued.get(reference);
+		if (referenced != null && machines.get(referenced.name) != referenced)
+			throw new Exception("The object is not ready");
+		String[] parts = reference == null ? new String[0] : reference.split("-", 3);
+		return named(parts.length == 3 ? parts[2] : "");
+	}
+
+	private Machine named(String name) throws Exception {
+		Machine machine = machines.get(name);
+		if (machine == null)
+			throw new Exception("Could not find a registered machine named '" + name + "'");
+		return machine;
+	}
+
+	private Machine locked(String session) throws Exception {
+		String name = locks.get(session);
+		if (name == null)
+			throw new Exception("The session is not locked (session state: Unlocked)");
+		return machines.get(name);
+	}
+
+	private static List<String> values(String... values) {
+		return Arrays.asList(values);
+	}
+
+	private static byte[] envelope(String body) {
+		return ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><soap:Envelope xmlns:soap=\"" + VBoxWebServiceClient.SOAP_NAMESPACE + "\" xmlns:vbox=\""
+				+ VBoxWebServiceClient.NAMESPACE + "\"><soap:Body>" + body + "</soap:Body></soap:Envelope>").getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		for (int n; (n = is.read(buffer)) != -1;)
+			bytes.write(buffer, 0, n);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * VM in memory
+	 */
+	private static class Machine {
+
+		private final String name;
+
+		private String state = "PoweredOff";
+
+		private int cpus = 1;
+
+		private int memory = 512;
+
+		private final List<String> snapshots = new ArrayList<String>();
+
+		private final Map<String, String> properties = new HashMap<String, String>();
+
+		public Machine(String name) {
+			this.name = name;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		VBoxWebServiceStub stub = new VBoxWebServiceStub(args.length > 0 ? Integer.parseInt(args[0]) : 18083);
+		for (int i = 1; i < args.length; i++)
+			stub.addMachine(args[i]);
+		stub.start();
+		System.out.println("VBox web service stub listening in " + stub.getUrl() + " with machines " + stub.machines.keySet());
+	}
+}
@@ -0,0 +1,73 @@
+package uniandes.unacloud.agent.platform.virtualbox;
+
+import static uniandes.unacloud.agent.Checks.check;
+import static uniandes.unacloud.agent.Checks.createCopy;
+import static uniandes.unacloud.agent.Checks.exit;
+
+import uniandes.unacloud.agent.execution.domain.ImageCopy;
+import uniandes.unacloud.agent.platform.ScriptedCommandExecutor;
+
+/**
+ * Checks that VirtualBox platform polls VM state until stops, registrations and starts finish, instead of waiting fixed times.
+ * VBoxManage is replaced by a scripted command executor, so it runs without VirtualBox installed.
+ * Usage: java uniandes.unacloud.agent.platform.virtualbox.VirtualBoxWaitCheck
+ * @author agent
+ *
+ */
+public class VirtualBoxWaitCheck {
+
+	public static void main(String[] args) throws Exception {
+		ImageCopy copy = createCopy("check.vbox");
+		VBox5 platform = new VBox5("VBoxManage");
+
+		//Session is released some time after power off
+		ScriptedCommandExecutor vbox = new ScriptedCommandExecutor();
+		vbox.script("showvminfo", info("stopping", "locked"), info("poweroff", "locked"), info("poweroff", "unlocked"));
+		platform.setCommandExecutor(vbox);
+		long start = System.currentTimeMillis();
+		platform.stopExecution(copy);
+		check("stop polls VM until its session is released", vbox.count("showvminfo") == 3);
+		check("stop finishes before timeout", System.currentTimeMillis() - start < VirtualBox.STOP_TIMEOUT);
+
+		//VM is listed some time after it is unregistered
+		vbox = new ScriptedCommandExecutor();
+		vbox.script("showvminfo", info("poweroff", "unlocked"), info("poweroff", "unlocked"), "");
+		platform.setCommandExecutor(vbox);
+		platform.unregisterImage(copy);
+		check("unregister polls VM until it is not listed", vbox.count("showvminfo") == 3);
+
+		//Start waits for running state and guest network, first showvminfo is done to set priority
+		vbox = new ScriptedCommandExecutor();
+		vbox.script("showvminfo", "", info("starting", "locked"), info("running", "locked"));
+		vbox.script("guestproperty", "No value set!", "Value: 10.0.0.2");
+		platform.setCommandExecutor(vbox);
+		platform.startExecution(copy);
+		check("start polls VM until it is running", vbox.count("showvminfo") == 3);
+		check("start polls guest until its network is ready", vbox.count("guestproperty") == 2);
+
+		//Emergency start waits until VM process is killed instead of a fixed time
+		vbox = new ScriptedCommandExecutor();
+		vbox.script("startvm", "Error: locked", "Error: locked", "", "");
+		vbox.script("showvminfo", "", info("poweroff", "unlocked"), info("poweroff", "unlocked"), info("stopping", "locked"),
+				info("aborted", "locked"), info("aborted", "unlocked"), info("running", "locked"));
+		vbox.script("guestproperty", "Value: 10.0.0.2");
+		platform.setCommandExecutor(vbox);
+		start = System.currentTimeMillis();
+		platform.startExecution(copy);
+		check("emergency start starts VM again", vbox.count("startvm") == 4);
+		check("emergency start polls VM until it is stopped and released", vbox.count("showvminfo") >= 7);
+		check("emergency start doesn't wait emergency stop timeout", System.currentTimeMillis() - start < VirtualBox.EMERGENCY_STOP_TIMEOUT);
+
+		exit();
+	}
+
+	/**
+	 * Returns VM information as showvminfo in machine readable format
+	 * @param state VM state
+	 * @param session session state
+	 * @return scripted output
+	 */
+	private static String info(String state, String session) {
+		return "VMState=\"" + state + "\"\nSessionState=\"" + session + "\"\n";
+	}
+}
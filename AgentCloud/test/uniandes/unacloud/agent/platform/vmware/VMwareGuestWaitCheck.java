@@ -0,0 +1,44 @@
+package uniandes.unacloud.agent.platform.vmware;
+
+import static uniandes.unacloud.agent.Checks.check;
+import static uniandes.unacloud.agent.Checks.createCopy;
+import static uniandes.unacloud.agent.Checks.exit;
+
+import uniandes.unacloud.agent.execution.domain.ImageCopy;
+import uniandes.unacloud.agent.platform.ScriptedCommandExecutor;
+
+/**
+ * Checks that VMware platform waits for VMware Tools to be running in guest, not only for VM to be in list of running VMs.
+ * vmrun is replaced by a scripted command executor, so it runs without VMware installed.
+ * Usage: java uniandes.unacloud.agent.platform.vmware.VMwareGuestWaitCheck
+ * @author agent
+ *
+ */
+public class VMwareGuestWaitCheck {
+
+	public static void main(String[] args) throws Exception {
+		ImageCopy copy = createCopy("check.vmx");
+		String path = copy.getMainFile().getExecutableFile().getPath();
+
+		//VM is listed as soon as it is started while tools are not running until guest boots
+		ScriptedCommandExecutor vmrun = new ScriptedCommandExecutor();
+		vmrun.script("list", "Total running VMs: 1\n" + path + "\n");
+		vmrun.script("checkToolsState", "installed\n", "installed\n", "running\n");
+		VMwareWorkstation platform = new VMwareWorkstation("vmrun");
+		platform.setCommandExecutor(vmrun);
+		platform.startExecution(copy);
+		check("start doesn't ask for tools", vmrun.count("checkToolsState") == 0);
+		check("guest is ready when tools are running", platform.waitForGuest(copy, 10000));
+		check("tools state is polled until it is running", vmrun.count("checkToolsState") == 3);
+
+		//Tools never run
+		vmrun = new ScriptedCommandExecutor();
+		vmrun.script("checkToolsState", "installed\n");
+		platform.setCommandExecutor(vmrun);
+		long start = System.currentTimeMillis();
+		check("guest is not ready when tools don't run", !platform.waitForGuest(copy, 1000));
+		check("wait finishes after timeout", System.currentTimeMillis() - start >= 1000);
+
+		exit();
+	}
+}
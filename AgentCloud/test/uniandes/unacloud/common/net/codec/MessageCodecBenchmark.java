@@ -0,0 +1,73 @@
+package uniandes.unacloud.common.net.codec;
+
+import static uniandes.unacloud.agent.Checks.check;
+import static uniandes.unacloud.agent.Checks.exit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import uniandes.unacloud.common.enums.TransmissionProtocolEnum;
+import uniandes.unacloud.common.net.tcp.message.exe.ExecutionStartMessage;
+import uniandes.unacloud.common.net.tcp.message.exe.ImageNetInterfaceComponent;
+import uniandes.unacloud.common.net.udp.message.MachineStateMessage;
+import uniandes.unacloud.common.utils.Time;
+
+/**
+ * Compares size and encode plus decode time of messages sent between agents and control server in java serialization and binary protocol.
+ * Each message is encoded and decoded the same number of times in both protocols after a warm up, decoded binary message must be encoded in the same bytes.
+ * Usage: java uniandes.unacloud.common.net.codec.MessageCodecBenchmark [iterations]
+ * @author agent
+ *
+ */
+public class MessageCodecBenchmark {
+
+	/**
+	 * Round trips executed before measuring, so both protocols run compiled code
+	 */
+	private static final int WARM_UP = 20000;
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		List<ImageNetInterfaceComponent> interfaces = new ArrayList<ImageNetInterfaceComponent>();
+		interfaces.add(new ImageNetInterfaceComponent("10.0.0.5", "255.255.255.0", "eth0"));
+		Object[] messages = {
+				new ExecutionStartMessage("157.253.1.2", 10028, "agent01", 123L, 45L, 6L, 2, 2048, new Time(4, TimeUnit.HOURS), "vm-123", TransmissionProtocolEnum.TCP, interfaces),
+				new MachineStateMessage("157.253.1.2", 10028, "agent01", "user", new Long[]{1L, 2L, null, 3L}),
+				new MachineStateMessage("157.253.1.2", 10028, "agent01", "user", 100000L, 2000L, "2.1")
+		};
+		for (Object message : messages) {
+			String name = message.getClass().getSimpleName();
+			byte[] java = MessageCodec.toBytes(message, WireProtocol.JAVA_SERIALIZATION);
+			byte[] binary = MessageCodec.toBytes(message, WireProtocol.BINARY);
+			Object decoded = MessageCodec.fromBytes(binary, binary.length);
+			check(name + " keeps its values after binary round trip", Arrays.equals(binary, MessageCodec.toBytes(decoded, WireProtocol.BINARY)));
+			check(name + " is smaller in binary protocol", binary.length < java.length);
+			roundTrips(message, WireProtocol.JAVA_SERIALIZATION, WARM_UP);
+			roundTrips(message, WireProtocol.BINARY, WARM_UP);
+			long javaTime = roundTrips(message, WireProtocol.JAVA_SERIALIZATION, iterations);
+			long binaryTime = roundTrips(message, WireProtocol.BINARY, iterations);
+			System.out.println(name + ": java " + java.length + " B " + javaTime / iterations + " ns, binary " + binary.length + " B "
+					+ binaryTime / iterations + " ns, speedup " + String.format("%.2f", (double) javaTime / binaryTime));
+		}
+		exit();
+	}
+
+	/**
+	 * Encodes and decodes a message
+	 * @param message
+	 * @param protocol
+	 * @param iterations quantity of round trips
+	 * @return time in nanoseconds
+	 * @throws Exception
+	 */
+	private static long roundTrips(Object message, WireProtocol protocol, int iterations) throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			byte[] data = MessageCodec.toBytes(message, protocol);
+			MessageCodec.fromBytes(data, data.length);
+		}
+		return System.nanoTime() - start;
+	}
+}
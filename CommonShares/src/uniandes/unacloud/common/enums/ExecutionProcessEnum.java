@@ -28,6 +28,7 @@ public enum ExecutionProcessEnum {
 	 * @return
 	 */
 	public static ExecutionProcessEnum getEnum(String name) {
+		if (name == null) return null;
 		if (name.equals(FAIL.name())) return FAIL;
 		if (name.equals(SUCCESS.name())) return SUCCESS;
 		if (name.equals(REQUEST.name())) return REQUEST;
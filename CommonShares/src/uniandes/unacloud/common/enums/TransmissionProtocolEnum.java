@@ -15,7 +15,13 @@ public enum TransmissionProtocolEnum {
 	/**
 	 * TCP protocol
 	 */
-	TCP;
+	TCP,
+	
+	/**
+	 * TCP protocol sending image in chunks verified with SHA-256, 
+	 * chunks are requested in parallel connections and partial downloads are resumed
+	 */
+	CHUNKED;
 	
 	/**
 	 * Return enum using string name
@@ -23,8 +29,10 @@ public enum TransmissionProtocolEnum {
 	 * @return enum
 	 */
 	public static TransmissionProtocolEnum getEnum(String name) {
+		if (name == null) return null;
 		if (name.equals(P2P.name())) return P2P;
 		if (name.equals(TCP.name())) return TCP;
+		if (name.equals(CHUNKED.name())) return CHUNKED;
 		return null;
 	}
 	
@@ -35,7 +43,8 @@ public enum TransmissionProtocolEnum {
 	public static String[] list() {
 		return new String[] {
 				P2P.name(),
-				TCP.name()};
+				TCP.name(),
+				CHUNKED.name()};
 	}
 
 }
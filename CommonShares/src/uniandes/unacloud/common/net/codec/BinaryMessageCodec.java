@@ -0,0 +1,446 @@
+package uniandes.unacloud.common.net.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import uniandes.unacloud.common.enums.ExecutionProcessEnum;
+import uniandes.unacloud.common.enums.TransmissionProtocolEnum;
+import uniandes.unacloud.common.net.UnaCloudMessage;
+import uniandes.unacloud.common.net.tcp.message.AgentMessage;
+import uniandes.unacloud.common.net.tcp.message.ClientMessage;
+import uniandes.unacloud.common.net.tcp.message.ExecutionStateMessage;
+import uniandes.unacloud.common.net.tcp.message.ImageOperationMessage;
+import uniandes.unacloud.common.net.tcp.message.PhysicalMachineOperationMessage;
+import uniandes.unacloud.common.net.tcp.message.TCPMessageEnum;
+import uniandes.unacloud.common.net.tcp.message.UnaCloudResponse;
+import uniandes.unacloud.common.net.tcp.message.agent.ClearImageFromCacheMessage;
+import uniandes.unacloud.common.net.tcp.message.exe.ExecutionAddTimeMessage;
+import uniandes.unacloud.common.net.tcp.message.exe.ExecutionSaveImageMessage;
+import uniandes.unacloud.common.net.tcp.message.exe.ExecutionStartMessage;
+import uniandes.unacloud.common.net.tcp.message.exe.ImageNetInterfaceComponent;
+import uniandes.unacloud.common.net.tcp.message.pmo.PhysicalMachineTurnOnMessage;
+import uniandes.unacloud.common.net.udp.message.MachineLogMessage;
+import uniandes.unacloud.common.net.udp.message.MachineStateMessage;
+import uniandes.unacloud.common.net.udp.message.UDPMessageEnum;
+import uniandes.unacloud.common.utils.Time;
+
+/**
+ * Encodes and decodes UnaCloud messages and responses in binary frames.
+ * Each frame has magic number (2 bytes), protocol version (1 byte), payload length (4 bytes) and payload.
+ * Payload starts with a tag which identifies message type (TCPMessageEnum, UDPMessageEnum or response) followed by message fields in fixed order.
+ * @author agent
+ *
+ */
+public class BinaryMessageCodec {
+
+	/**
+	 * Magic number at start of each frame, "UC"
+	 */
+	public static final int MAGIC = 0x5543;
+
+	/**
+	 * Current version of binary protocol
+	 */
+	public static final byte VERSION = 1;
+
+	/**
+	 * Bytes in frame before payload
+	 */
+	public static final int HEADER_LENGTH = 7;
+
+	/**
+	 * Max length allowed for a payload
+	 */
+	public static final int MAX_PAYLOAD_LENGTH = 1024 * 1024;
+
+	/**
+	 * Tag for responses sent by agents and server
+	 */
+	public static final byte RESPONSE_TAG = 32;
+
+	/**
+	 * Charset used for strings
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private BinaryMessageCodec() {
+
+	}
+
+	/**
+	 * Returns true in case object could be encoded in binary protocol
+	 * @param object message or response
+	 * @return true in case object is supported, false in case not
+	 */
+	public static boolean supports(Object object) {
+		if (object instanceof UnaCloudResponse)
+			return true;
+		if (!(object instanceof UnaCloudMessage))
+			return false;
+		String type = ((UnaCloudMessage) object).getType();
+		if (object instanceof ClientMessage)
+			return TCPMessageEnum.getType(type) != null;
+		return UDPMessageEnum.getType(type) != null;
+	}
+
+	/**
+	 * Encodes a message or response in a binary frame
+	 * @param object message or response
+	 * @return frame
+	 * @throws IOException in case object is not supported
+	 */
+	public static byte[] encode(Object object) throws IOException {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+		writePayload(new DataOutputStream(payload), object);
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(HEADER_LENGTH + payload.size());
+		DataOutputStream out = new DataOutputStream(frame);
+		out.writeShort(MAGIC);
+		out.writeByte(VERSION);
+		out.writeInt(payload.size());
+		payload.writeTo(out);
+		out.flush();
+		return frame.toByteArray();
+	}
+
+	/**
+	 * Writes a message or response as binary frame in stream
+	 * @param out stream
+	 * @param object message or response
+	 * @throws IOException
+	 */
+	public static void write(DataOutputStream out, Object object) throws IOException {
+		out.write(encode(object));
+		out.flush();
+	}
+
+	/**
+	 * Decodes a message or response from a binary frame
+	 * @param data buffer which contains frame
+	 * @param offset where frame starts
+	 * @param length bytes in buffer after offset
+	 * @return message or response
+	 * @throws IOException in case frame is not valid
+	 */
+	public static Object decode(byte[] data, int offset, int length) throws IOException {
+		return read(new DataInputStream(new ByteArrayInputStream(data, offset, length)));
+	}
+
+	/**
+	 * Reads a binary frame from stream
+	 * @param in stream
+	 * @return message or response
+	 * @throws IOException in case frame is not valid
+	 */
+	public static Object read(DataInputStream in) throws IOException {
+		int magic = in.readUnsignedShort();
+		if (magic != MAGIC)
+			throw new IOException("Frame is not an UnaCloud binary frame");
+		byte version = in.readByte();
+		if (version != VERSION)
+			throw new IOException("Unsupported binary protocol version " + version);
+		int length = in.readInt();
+		if (length < 0 || length > MAX_PAYLOAD_LENGTH)
+			throw new IOException("Invalid payload length " + length);
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return readPayload(new DataInputStream(new ByteArrayInputStream(payload)));
+	}
+
+	//-----------------------------------------------------------------
+	// Payload
+	//-----------------------------------------------------------------
+
+	/**
+	 * Writes tag and fields of message or response
+	 * @param out
+	 * @param object
+	 * @throws IOException
+	 */
+	private static void writePayload(DataOutputStream out, Object object) throws IOException {
+		if (object instanceof UnaCloudResponse) {
+			UnaCloudResponse response = (UnaCloudResponse) object;
+			out.writeByte(RESPONSE_TAG);
+			writeString(out, response.getState() == null ? null : response.getState().name());
+			writeString(out, response.getMessage());
+			return;
+		}
+		if (!supports(object))
+			throw new IOException("Unsupported message for binary protocol: " + object);
+		UnaCloudMessage message = (UnaCloudMessage) object;
+		if (message instanceof ClientMessage) {
+			TCPMessageEnum type = TCPMessageEnum.getType(message.getType());
+			out.writeByte(type.getTag());
+			writeHeader(out, message);
+			writeClientMessage(out, type, (ClientMessage) message);
+		}
+		else {
+			UDPMessageEnum type = UDPMessageEnum.getType(message.getType());
+			out.writeByte(type.getTag());
+			writeHeader(out, message);
+			writeReportMessage(out, type, message);
+		}
+	}
+
+	/**
+	 * Reads tag and fields of message or response
+	 * @param in
+	 * @return message or response
+	 * @throws IOException
+	 */
+	private static Object readPayload(DataInputStream in) throws IOException {
+		byte tag = in.readByte();
+		if (tag == RESPONSE_TAG) {
+			ExecutionProcessEnum state = ExecutionProcessEnum.getEnum(readString(in));
+			String message = readString(in);
+			return state == null ? new UnaCloudResponse(message) : new UnaCloudResponse(message, state);
+		}
+		String host = readString(in);
+		String ip = readString(in);
+		int port = in.readInt();
+		TCPMessageEnum tcpType = TCPMessageEnum.getByTag(tag);
+		if (tcpType != null)
+			return readClientMessage(in, tcpType, ip, port, host);
+		UDPMessageEnum udpType = UDPMessageEnum.getByTag(tag);
+		if (udpType != null)
+			return readReportMessage(in, udpType, ip, port, host);
+		throw new IOException("Unknown message tag " + tag);
+	}
+
+	/**
+	 * Writes fields in UnaCloudMessage
+	 */
+	private static void writeHeader(DataOutputStream out, UnaCloudMessage message) throws IOException {
+		writeString(out, message.getHost());
+		writeString(out, message.getIp());
+		out.writeInt(message.getPort());
+	}
+
+	/**
+	 * Writes fields of messages sent from server to agents
+	 */
+	private static void writeClientMessage(DataOutputStream out, TCPMessageEnum type, ClientMessage message) throws IOException {
+		out.writeInt(message.getTask());
+		out.writeLong(message.getPmId());
+		switch (type) {
+		case EXECUTION_OPERATION:
+			ImageOperationMessage operation = (ImageOperationMessage) message;
+			out.writeLong(operation.getExecutionId());
+			if (operation instanceof ExecutionStartMessage) {
+				ExecutionStartMessage start = (ExecutionStartMessage) operation;
+				out.writeLong(start.getImageId());
+				out.writeInt(start.getVmCores());
+				out.writeInt(start.getVmMemory());
+				writeTime(out, start.getExecutionTime());
+				writeString(out, start.getHostname());
+				writeString(out, start.getTransmissionType() == null ? null : start.getTransmissionType().name());
+				List<ImageNetInterfaceComponent> interfaces = start.getInterfaces();
+				out.writeInt(interfaces == null ? -1 : interfaces.size());
+				if (interfaces != null)
+					for (ImageNetInterfaceComponent interf : interfaces) {
+						writeString(out, interf.getIp());
+						writeString(out, interf.getNetMask());
+						writeString(out, interf.getName());
+					}
+			}
+			else if (operation instanceof ExecutionAddTimeMessage)
+				writeTime(out, ((ExecutionAddTimeMessage) operation).getExecutionTime());
+			else if (operation instanceof ExecutionSaveImageMessage) {
+				ExecutionSaveImageMessage save = (ExecutionSaveImageMessage) operation;
+				writeString(out, save.getTokenCom());
+				out.writeLong(save.getImageId());
+			}
+			break;
+		case AGENT_OPERATION:
+			if (message instanceof ClearImageFromCacheMessage)
+				out.writeLong(((ClearImageFromCacheMessage) message).getImageId());
+			break;
+		case PHYSICAL_MACHINE_OPERATION:
+			if (message instanceof PhysicalMachineTurnOnMessage) {
+				String[] macs = ((PhysicalMachineTurnOnMessage) message).getMacs();
+				out.writeInt(macs == null ? -1 : macs.length);
+				if (macs != null)
+					for (String mac : macs)
+						writeString(out, mac);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Reads fields of messages sent from server to agents. Subclass is selected using task.
+	 */
+	private static ClientMessage readClientMessage(DataInputStream in, TCPMessageEnum type, String ip, int port, String host) throws IOException {
+		int task = in.readInt();
+		long pmId = in.readLong();
+		switch (type) {
+		case EXECUTION_OPERATION:
+			long executionId = in.readLong();
+			if (task == ImageOperationMessage.VM_START) {
+				long imageId = in.readLong();
+				int cores = in.readInt();
+				int memory = in.readInt();
+				Time time = readTime(in);
+				String hostname = readString(in);
+				TransmissionProtocolEnum protocol = TransmissionProtocolEnum.getEnum(readString(in));
+				int size = in.readInt();
+				List<ImageNetInterfaceComponent> interfaces = null;
+				if (size >= 0) {
+					interfaces = new ArrayList<ImageNetInterfaceComponent>(size);
+					for (int i = 0; i < size; i++) {
+						String interfIp = readString(in);
+						String mask = readString(in);
+						interfaces.add(new ImageNetInterfaceComponent(interfIp, mask, readString(in)));
+					}
+				}
+				return new ExecutionStartMessage(ip, port, host, executionId, pmId, imageId, cores, memory, time, hostname, protocol, interfaces);
+			}
+			if (task == ImageOperationMessage.VM_TIME)
+				return new ExecutionAddTimeMessage(ip, port, host, executionId, pmId, readTime(in));
+			if (task == ImageOperationMessage.VM_SAVE_IMG) {
+				String token = readString(in);
+				return new ExecutionSaveImageMessage(ip, port, host, executionId, pmId, token, in.readLong());
+			}
+			return new ImageOperationMessage(ip, port, host, task, pmId, executionId);
+		case AGENT_OPERATION:
+			if (task == AgentMessage.CLEAR_IMAGE_FROM_CACHE)
+				return new ClearImageFromCacheMessage(ip, port, host, pmId, in.readLong());
+			return new AgentMessage(ip, port, host, task, pmId);
+		default:
+			if (task == PhysicalMachineOperationMessage.PM_TURN_ON) {
+				int size = in.readInt();
+				String[] macs = null;
+				if (size >= 0) {
+					macs = new String[size];
+					for (int i = 0; i < size; i++)
+						macs[i] = readString(in);
+				}
+				return new PhysicalMachineTurnOnMessage(ip, port, host, macs, pmId);
+			}
+			return new PhysicalMachineOperationMessage(ip, port, host, task, pmId);
+		}
+	}
+
+	/**
+	 * Writes fields of messages sent from agents to server, execution ids could be null as in java serialization
+	 */
+	private static void writeReportMessage(DataOutputStream out, UDPMessageEnum type, UnaCloudMessage message) throws IOException {
+		switch (type) {
+		case STATE_PM:
+			MachineStateMessage state = (MachineStateMessage) message;
+			Long[] executions = state.getExecutions();
+			out.writeInt(executions == null ? -1 : executions.length);
+			if (executions != null)
+				for (Long id : executions)
+					writeLong(out, id);
+			writeString(out, state.getHostUser());
+			writeLong(out, state.getFreeSpace());
+			writeLong(out, state.getDataSpace());
+			writeString(out, state.getVersion());
+			break;
+		case STATE_EXE:
+			ExecutionStateMessage exe = (ExecutionStateMessage) message;
+			out.writeLong(exe.getExecutionCode());
+			writeString(out, exe.getState() == null ? null : exe.getState().name());
+			writeString(out, exe.getExecutionMessage());
+			break;
+		case LOG_PM:
+			MachineLogMessage log = (MachineLogMessage) message;
+			writeString(out, log.getComponent());
+			writeString(out, log.getLogMessage());
+			break;
+		}
+	}
+
+	/**
+	 * Reads fields of messages sent from agents to server
+	 */
+	private static UnaCloudMessage readReportMessage(DataInputStream in, UDPMessageEnum type, String ip, int port, String host) throws IOException {
+		switch (type) {
+		case STATE_PM:
+			int size = in.readInt();
+			Long[] executions = null;
+			if (size > MAX_PAYLOAD_LENGTH)
+				throw new IOException("Invalid executions length " + size);
+			if (size >= 0) {
+				executions = new Long[size];
+				for (int i = 0; i < size; i++)
+					executions[i] = readLong(in);
+			}
+			String hostUser = readString(in);
+			Long freeSpace = readLong(in);
+			Long dataSpace = readLong(in);
+			String version = readString(in);
+			//Agents report executions or space, never both in the same message
+			if (executions != null)
+				return new MachineStateMessage(ip, port, host, hostUser, executions);
+			return new MachineStateMessage(ip, port, host, hostUser, freeSpace, dataSpace, version);
+		case STATE_EXE:
+			long executionCode = in.readLong();
+			ExecutionProcessEnum state = ExecutionProcessEnum.getEnum(readString(in));
+			return new ExecutionStateMessage(ip, port, host, executionCode, state, readString(in));
+		default:
+			String component = readString(in);
+			return new MachineLogMessage(ip, port, host, component, readString(in));
+		}
+	}
+
+	//-----------------------------------------------------------------
+	// Fields
+	//-----------------------------------------------------------------
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		if (length > MAX_PAYLOAD_LENGTH)
+			throw new IOException("Invalid string length " + length);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static void writeLong(DataOutputStream out, Long value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null)
+			out.writeLong(value);
+	}
+
+	private static Long readLong(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readLong() : null;
+	}
+
+	private static void writeTime(DataOutputStream out, Time time) throws IOException {
+		out.writeBoolean(time != null);
+		if (time != null) {
+			out.writeLong(time.getAmount());
+			out.writeByte(time.getUnit().ordinal());
+		}
+	}
+
+	private static Time readTime(DataInputStream in) throws IOException {
+		if (!in.readBoolean())
+			return null;
+		long amount = in.readLong();
+		int unit = in.readByte();
+		if (unit < 0 || unit >= TimeUnit.values().length)
+			throw new IOException("Invalid time unit " + unit);
+		return new Time(amount, TimeUnit.values()[unit]);
+	}
+}
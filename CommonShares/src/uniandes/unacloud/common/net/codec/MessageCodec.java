@@ -0,0 +1,125 @@
+package uniandes.unacloud.common.net.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encodes and decodes messages using java serialization or binary protocol.
+ * It also keeps the protocol negotiated with each peer: a peer is considered able to receive binary frames only after it sends one,
+ * and it is not downgraded by messages in java serialization received later.
+ * Messages to peers without negotiated protocol are sent using default protocol, java serialization unless it is configured.
+ * This allows old agents, which only know java serialization, to keep working while new ones use binary protocol.
+ * @author agent
+ *
+ */
+public class MessageCodec {
+
+	/**
+	 * Protocol used with peers without negotiated protocol
+	 */
+	private static volatile WireProtocol defaultProtocol = WireProtocol.JAVA_SERIALIZATION;
+
+	/**
+	 * Protocol negotiated with each peer by IP
+	 */
+	private static final ConcurrentHashMap<String, WireProtocol> peers = new ConcurrentHashMap<String, WireProtocol>();
+
+	private MessageCodec() {
+
+	}
+
+	/**
+	 * Sets protocol used with peers without negotiated protocol
+	 * @param protocol
+	 */
+	public static void setDefaultProtocol(WireProtocol protocol) {
+		if (protocol != null)
+			defaultProtocol = protocol;
+	}
+
+	/**
+	 * Returns protocol used with peers without negotiated protocol
+	 * @return protocol
+	 */
+	public static WireProtocol getDefaultProtocol() {
+		return defaultProtocol;
+	}
+
+	/**
+	 * Saves protocol used by a peer in a message received from it.
+	 * Binary protocol is saved when peer negotiates it. Java serialization is only saved for peers without negotiated protocol,
+	 * peers which negotiated binary protocol could still send some messages in java serialization.
+	 * @param ip peer address
+	 * @param protocol used by peer
+	 */
+	public static void learnProtocol(String ip, WireProtocol protocol) {
+		if (ip == null || protocol == null)
+			return;
+		if (protocol == WireProtocol.JAVA_SERIALIZATION)
+			peers.putIfAbsent(ip, protocol);
+		else
+			peers.put(ip, WireProtocol.BINARY);
+	}
+
+	/**
+	 * Returns protocol to be used to send messages to a peer
+	 * @param ip peer address
+	 * @return negotiated protocol, default in case peer has not negotiated
+	 */
+	public static WireProtocol getProtocol(String ip) {
+		WireProtocol protocol = ip == null ? null : peers.get(ip);
+		return protocol == null ? defaultProtocol : protocol;
+	}
+
+	/**
+	 * Encodes an object in bytes. Objects not supported by binary protocol are encoded using java serialization
+	 * @param object message or response
+	 * @param protocol to encode object
+	 * @return bytes
+	 * @throws IOException
+	 */
+	public static byte[] toBytes(Object object, WireProtocol protocol) throws IOException {
+		if (protocol == WireProtocol.BINARY && BinaryMessageCodec.supports(object))
+			return BinaryMessageCodec.encode(object);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(out);
+		oos.writeObject(object);
+		oos.flush();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Returns protocol used to encode bytes
+	 * @param data
+	 * @param length of data
+	 * @return protocol, null in case data doesn't belong to a known protocol
+	 */
+	public static WireProtocol detect(byte[] data, int length) {
+		if (length < 2)
+			return null;
+		return WireProtocol.detect(data[0], data[1]);
+	}
+
+	/**
+	 * Decodes an object from bytes, protocol is detected from data
+	 * @param data
+	 * @param length of data
+	 * @return message or response
+	 * @throws IOException in case data doesn't belong to a known protocol
+	 * @throws ClassNotFoundException
+	 */
+	public static Object fromBytes(byte[] data, int length) throws IOException, ClassNotFoundException {
+		WireProtocol protocol = detect(data, length);
+		if (protocol == WireProtocol.BINARY)
+			return BinaryMessageCodec.decode(data, 0, length);
+		if (protocol == WireProtocol.JAVA_SERIALIZATION)
+			try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data, 0, length))) {
+				return ois.readObject();
+			}
+		throw new IOException("Unknown protocol in data");
+	}
+}
@@ -0,0 +1,180 @@
+package uniandes.unacloud.common.net.codec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+
+/**
+ * Reads and writes messages in a socket using one protocol.
+ * Client side chooses protocol, server side detects it from first bytes sent by client and answers using the same one.
+ * In session connections many messages are read and each response is written with the id of last request read,
+ * or with id of its request when requests are attended in other threads. Writes are synchronized, so responses and heartbeats are not mixed.
+ * Java object streams are created in the same order used by old agents and server to avoid blocking on stream headers.
+ * @author agent
+ *
+ */
+public class MessageConnection {
+
+	/**
+	 * Protocol used in connection
+	 */
+	private final WireProtocol protocol;
+
+	private ObjectInputStream ois;
+
+	private ObjectOutputStream oos;
+
+	private DataInputStream in;
+
+	private DataOutputStream out;
+	
+	/**
+	 * Id of last request read in session connection
+	 */
+	private int requestId;
+
+	private MessageConnection(WireProtocol protocol) {
+		this.protocol = protocol;
+	}
+
+	/**
+	 * Creates a connection in client side
+	 * @param socket connected socket
+	 * @param protocol to send messages
+	 * @return connection
+	 * @throws IOException
+	 */
+	public static MessageConnection connect(Socket socket, WireProtocol protocol) throws IOException {
+		MessageConnection connection = new MessageConnection(protocol);
+		if (protocol == WireProtocol.BINARY) {
+			connection.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			connection.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+		else {
+			connection.oos = new ObjectOutputStream(socket.getOutputStream());
+			connection.ois = new ObjectInputStream(socket.getInputStream());
+		}
+		return connection;
+	}
+
+	/**
+	 * Creates a connection in server side detecting protocol used by client.
+	 * Protocol is saved as negotiated with client address, session clients are able to receive binary messages.
+	 * @param socket accepted socket
+	 * @return connection
+	 * @throws IOException in case client doesn't use a known protocol
+	 */
+	public static MessageConnection accept(Socket socket) throws IOException {
+		BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
+		input.mark(2);
+		int first = input.read();
+		int second = input.read();
+		if (second < 0)
+			throw new EOFException("Connection closed before receiving message");
+		input.reset();
+		WireProtocol protocol = WireProtocol.detect(first, second);
+		if (protocol == null)
+			throw new IOException("Unknown protocol from " + socket.getInetAddress());
+		MessageCodec.learnProtocol(socket.getInetAddress().getHostAddress(), protocol == WireProtocol.SESSION ? WireProtocol.BINARY : protocol);
+		MessageConnection connection = new MessageConnection(protocol);
+		if (protocol == WireProtocol.SESSION) {
+			connection.in = new DataInputStream(input);
+			connection.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			SessionCodec.readPreface(connection.in);
+			SessionCodec.writePreface(connection.out);
+			socket.setSoTimeout(SessionCodec.SESSION_TIME_OUT);
+		}
+		else if (protocol == WireProtocol.BINARY) {
+			connection.in = new DataInputStream(input);
+			connection.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+		else {
+			connection.ois = new ObjectInputStream(input);
+			connection.oos = new ObjectOutputStream(socket.getOutputStream());
+		}
+		return connection;
+	}
+
+	/**
+	 * Reads a message or response.
+	 * In session connections heartbeats are answered while waiting for next message.
+	 * @return message or response, null in case session was closed by client
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public Object readMessage() throws IOException, ClassNotFoundException {
+		if (protocol == WireProtocol.SESSION) {
+			SessionFrame frame;
+			while ((frame = SessionCodec.readFrame(in)) != null && frame.isHeartbeat())
+				synchronized (this) {
+					SessionCodec.writeFrame(out, frame.getRequestId(), null);
+				}
+			if (frame == null)
+				return null;
+			requestId = frame.getRequestId();
+			return frame.getMessage();
+		}
+		if (protocol == WireProtocol.BINARY)
+			return BinaryMessageCodec.read(in);
+		return ois.readObject();
+	}
+
+	/**
+	 * Writes a message or response.
+	 * In binary connections objects not supported by binary protocol are rejected.
+	 * In session connections object is sent as response to last request read.
+	 * @param object message or response
+	 * @throws IOException
+	 */
+	public void writeMessage(Object object) throws IOException {
+		writeResponse(requestId, object);
+	}
+
+	/**
+	 * Writes a response to a request read before, it could be called by other threads while next messages are read.
+	 * In connections which are not sessions request id is ignored.
+	 * @param requestId id of request returned by getRequestId after it was read
+	 * @param object response
+	 * @throws IOException
+	 */
+	public synchronized void writeResponse(int requestId, Object object) throws IOException {
+		if (protocol == WireProtocol.SESSION)
+			SessionCodec.writeFrame(out, requestId, object);
+		else if (protocol == WireProtocol.BINARY)
+			BinaryMessageCodec.write(out, object);
+		else {
+			oos.writeObject(object);
+			oos.flush();
+		}
+	}
+
+	/**
+	 * Returns id of last request read in session connection
+	 * @return request id
+	 */
+	public int getRequestId() {
+		return requestId;
+	}
+
+	/**
+	 * Returns protocol used in connection
+	 * @return protocol
+	 */
+	public WireProtocol getProtocol() {
+		return protocol;
+	}
+	
+	/**
+	 * Returns true in case connection carries many messages
+	 * @return true in case connection is a session
+	 */
+	public boolean isSession() {
+		return protocol == WireProtocol.SESSION;
+	}
+}
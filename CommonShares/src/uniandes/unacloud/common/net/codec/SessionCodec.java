@@ -0,0 +1,194 @@
+package uniandes.unacloud.common.net.codec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes frames in sessions: long lived connections which carry many requests and responses.
+ * Session starts with a preface (magic number, version and flags) sent by client and echoed by server.
+ * Preface has the same length of a java serialization header, so old agents reject it without waiting more bytes.
+ * Then each frame has request id (4 bytes), payload length (4 bytes) and payload encoded by MessageCodec.
+ * Frames with empty payload are heartbeats and they are echoed by server.
+ * A preface with other magic number or version is rejected with ProtocolException, so clients distinguish peers without sessions from connection errors.
+ * @author agent
+ *
+ */
+public class SessionCodec {
+
+	/**
+	 * Magic number at start of session, "US"
+	 */
+	public static final int MAGIC = 0x5553;
+
+	/**
+	 * Current version of session protocol
+	 */
+	public static final byte VERSION = 1;
+
+	/**
+	 * Flags sent in preface, reserved for future use
+	 */
+	public static final byte FLAGS = 0;
+
+	/**
+	 * Time in milliseconds between heartbeats sent by client
+	 */
+	public static final long HEARTBEAT_TIME = 30 * 1000;
+
+	/**
+	 * Time in milliseconds without frames after which server closes a session
+	 */
+	public static final int SESSION_TIME_OUT = (int) (3 * HEARTBEAT_TIME);
+
+	/**
+	 * Length in bytes of preface
+	 */
+	public static final int PREFACE_LENGTH = 4;
+
+	/**
+	 * Length in bytes of request id and payload length at start of each frame
+	 */
+	public static final int FRAME_HEADER_LENGTH = 8;
+
+	private SessionCodec() {
+
+	}
+
+	/**
+	 * Writes session preface
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void writePreface(DataOutputStream out) throws IOException {
+		out.writeShort(MAGIC);
+		out.writeByte(VERSION);
+		out.writeByte(FLAGS);
+		out.flush();
+	}
+
+	/**
+	 * Returns session preface
+	 * @return preface
+	 */
+	public static ByteBuffer encodePreface() {
+		ByteBuffer buffer = ByteBuffer.allocate(PREFACE_LENGTH);
+		buffer.putShort((short) MAGIC);
+		buffer.put(VERSION);
+		buffer.put(FLAGS);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Reads and validates session preface
+	 * @param in
+	 * @throws ProtocolException in case preface is not valid
+	 * @throws IOException
+	 */
+	public static void readPreface(DataInputStream in) throws IOException {
+		int magic = in.readUnsignedShort();
+		byte version = in.readByte();
+		in.readByte();
+		checkPreface(magic, version);
+	}
+
+	/**
+	 * Validates session preface
+	 * @param buffer with preface
+	 * @throws ProtocolException in case preface is not valid
+	 */
+	public static void readPreface(ByteBuffer buffer) throws ProtocolException {
+		int magic = buffer.getShort() & 0xFFFF;
+		byte version = buffer.get();
+		buffer.get();
+		checkPreface(magic, version);
+	}
+
+	private static void checkPreface(int magic, byte version) throws ProtocolException {
+		if (magic != MAGIC)
+			throw new ProtocolException("Invalid session preface");
+		if (version != VERSION)
+			throw new ProtocolException("Unsupported session version " + version);
+	}
+
+	/**
+	 * Writes a frame
+	 * @param out
+	 * @param requestId
+	 * @param message null to send a heartbeat
+	 * @throws IOException
+	 */
+	public static void writeFrame(DataOutputStream out, int requestId, Object message) throws IOException {
+		byte[] payload = message == null ? new byte[0] : MessageCodec.toBytes(message, WireProtocol.BINARY);
+		out.writeInt(requestId);
+		out.writeInt(payload.length);
+		out.write(payload);
+		out.flush();
+	}
+
+	/**
+	 * Returns a frame with header and payload
+	 * @param requestId
+	 * @param message null to send a heartbeat
+	 * @return frame
+	 * @throws IOException
+	 */
+	public static ByteBuffer encodeFrame(int requestId, Object message) throws IOException {
+		byte[] payload = message == null ? new byte[0] : MessageCodec.toBytes(message, WireProtocol.BINARY);
+		ByteBuffer buffer = ByteBuffer.allocate(FRAME_HEADER_LENGTH + payload.length);
+		buffer.putInt(requestId);
+		buffer.putInt(payload.length);
+		buffer.put(payload);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Validates payload length read in a frame header
+	 * @param length
+	 * @throws IOException in case length is not valid
+	 */
+	public static void checkLength(int length) throws IOException {
+		if (length < 0 || length > BinaryMessageCodec.MAX_PAYLOAD_LENGTH)
+			throw new IOException("Invalid frame length " + length);
+	}
+
+	/**
+	 * Decodes a frame which payload was read
+	 * @param requestId
+	 * @param payload empty for heartbeats
+	 * @return frame
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static SessionFrame decodeFrame(int requestId, byte[] payload) throws IOException, ClassNotFoundException {
+		if (payload.length == 0)
+			return new SessionFrame(requestId, null);
+		return new SessionFrame(requestId, MessageCodec.fromBytes(payload, payload.length));
+	}
+
+	/**
+	 * Reads a frame
+	 * @param in
+	 * @return frame, null in case session was closed by peer
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static SessionFrame readFrame(DataInputStream in) throws IOException, ClassNotFoundException {
+		int requestId;
+		try {
+			requestId = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		int length = in.readInt();
+		checkLength(length);
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return decodeFrame(requestId, payload);
+	}
+}
@@ -0,0 +1,46 @@
+package uniandes.unacloud.common.net.codec;
+
+/**
+ * Represents a frame sent in a session: request id and message.
+ * Frames without message are heartbeats.
+ * @author agent
+ *
+ */
+public class SessionFrame {
+
+	/**
+	 * Id used to match request and response
+	 */
+	private final int requestId;
+
+	/**
+	 * Message or response, null in heartbeats
+	 */
+	private final Object message;
+
+	/**
+	 * Creates a new frame
+	 * @param requestId
+	 * @param message null for heartbeat
+	 */
+	public SessionFrame(int requestId, Object message) {
+		this.requestId = requestId;
+		this.message = message;
+	}
+
+	public int getRequestId() {
+		return requestId;
+	}
+
+	public Object getMessage() {
+		return message;
+	}
+
+	/**
+	 * Returns true in case frame is a heartbeat
+	 * @return true in case frame has not message
+	 */
+	public boolean isHeartbeat() {
+		return message == null;
+	}
+}
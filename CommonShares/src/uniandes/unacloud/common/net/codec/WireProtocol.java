@@ -0,0 +1,56 @@
+package uniandes.unacloud.common.net.codec;
+
+/**
+ * Represents protocols used to encode messages sent among agents and server
+ * @author agent
+ *
+ */
+public enum WireProtocol {
+	
+	/**
+	 * Java object streams, used by old agents
+	 */
+	JAVA_SERIALIZATION,
+	
+	/**
+	 * Versioned and length prefixed UnaCloud binary frames
+	 */
+	BINARY,
+	
+	/**
+	 * Long lived connection carrying many requests identified by id, see SessionCodec
+	 */
+	SESSION;
+	
+	/**
+	 * First bytes in a java serialization stream
+	 */
+	private static final int JAVA_MAGIC = 0xACED;
+	
+	/**
+	 * Returns protocol used in a stream based in its first two bytes
+	 * @param first byte in stream
+	 * @param second byte in stream
+	 * @return protocol, null in case bytes don't belong to a known protocol
+	 */
+	public static WireProtocol detect(int first, int second) {
+		int magic = ((first & 0xFF) << 8) | (second & 0xFF);
+		if (magic == JAVA_MAGIC) return JAVA_SERIALIZATION;
+		if (magic == BinaryMessageCodec.MAGIC) return BINARY;
+		if (magic == SessionCodec.MAGIC) return SESSION;
+		return null;
+	}
+	
+	/**
+	 * Return enum using string name, only protocols to encode single messages are allowed
+	 * @param name
+	 * @return enum, null in case name is not valid
+	 */
+	public static WireProtocol getEnum(String name) {
+		if (name == null) return null;
+		if (name.equals(JAVA_SERIALIZATION.name())) return JAVA_SERIALIZATION;
+		if (name.equals(BINARY.name())) return BINARY;
+		return null;
+	}
+
+}
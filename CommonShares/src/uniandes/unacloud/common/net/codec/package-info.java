@@ -0,0 +1,7 @@
+/**
+ * In this package are located all classes to encode and decode messages sent among agents and server, 
+ * using java serialization or UnaCloud binary protocol
+ * @author agent
+ *
+ */
+package uniandes.unacloud.common.net.codec;
@@ -43,7 +43,7 @@ public abstract class AbstractTCPServerSocket extends Thread {
 	public void run() {
 		System.out.println("starting ss on port " + listenPort);
 		try  {
-			ss = new ServerSocket(listenPort);
+			ss = createServerSocket(listenPort);
 			while (true) {
 				try {
 					Socket s = ss.accept();
@@ -71,6 +71,16 @@ public abstract class AbstractTCPServerSocket extends Thread {
 			ss.close();
 	}
 
+	/**
+	 * Creates server socket listening in port, could be overridden to create sockets with other options
+	 * @param port
+	 * @return server socket
+	 * @throws IOException
+	 */
+	protected ServerSocket createServerSocket(int port) throws IOException {
+		return new ServerSocket(port);
+	}
+
 	/**
 	 * Returns the runnable where socket is processed
 	 * @param socket
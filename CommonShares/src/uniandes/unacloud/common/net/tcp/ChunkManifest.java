@@ -0,0 +1,245 @@
+package uniandes.unacloud.common.net.tcp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Describes a file divided in chunks of fixed size, each chunk is identified by its SHA-256 digest.
+ * Used in CHUNKED transmission: file server sends manifest and agents request chunks by digest,
+ * so chunks can be requested in parallel connections, verified and requested again when download is resumed.
+ * @author agent
+ *
+ */
+public class ChunkManifest {
+
+	/**
+	 * Request to receive image data and manifest
+	 */
+	public static final int REQUEST_MANIFEST = 1;
+
+	/**
+	 * Request to receive a list of chunks
+	 */
+	public static final int REQUEST_CHUNKS = 2;
+
+	/**
+	 * Default size of chunks
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Length in bytes of SHA-256 digest
+	 */
+	public static final int DIGEST_LENGTH = 32;
+
+	/**
+	 * File size in bytes
+	 */
+	private final long size;
+
+	/**
+	 * Chunk size in bytes, last chunk could be smaller
+	 */
+	private final int chunkSize;
+
+	/**
+	 * Digest in hexadecimal of each chunk
+	 */
+	private final String[] digests;
+
+	/**
+	 * First chunk index by digest
+	 */
+	private Map<String, Integer> indexes;
+
+	/**
+	 * Creates a manifest
+	 * @param size file size
+	 * @param chunkSize chunk size
+	 * @param digests digest of each chunk
+	 */
+	public ChunkManifest(long size, int chunkSize, String[] digests) {
+		if (size < 0 || chunkSize <= 0 || digests.length != (int) ((size + chunkSize - 1) / chunkSize))
+			throw new IllegalArgumentException("Invalid manifest");
+		this.size = size;
+		this.chunkSize = chunkSize;
+		this.digests = digests;
+	}
+
+	/**
+	 * Creates manifest of a file reading it once
+	 * @param file
+	 * @param chunkSize
+	 * @return manifest
+	 * @throws IOException
+	 */
+	public static ChunkManifest create(File file, int chunkSize) throws IOException {
+		long size = file.length();
+		String[] digests = new String[(int) ((size + chunkSize - 1) / chunkSize)];
+		byte[] buffer = new byte[chunkSize];
+		try (InputStream is = new FileInputStream(file)) {
+			for (int i = 0; i < digests.length; i++) {
+				int length = (int) Math.min(chunkSize, size - (long) i * chunkSize);
+				int read = 0;
+				for (int n; read < length && (n = is.read(buffer, read, length - read)) != -1;)
+					read += n;
+				if (read < length)
+					throw new IOException("File " + file + " changed while creating manifest");
+				digests[i] = digest(buffer, 0, length);
+			}
+		}
+		return new ChunkManifest(size, chunkSize, digests);
+	}
+
+	/**
+	 * Returns file size
+	 * @return size in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns chunk size
+	 * @return size in bytes
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Returns quantity of chunks
+	 * @return chunks
+	 */
+	public int getChunks() {
+		return digests.length;
+	}
+
+	/**
+	 * Returns digest of chunk
+	 * @param index chunk index
+	 * @return digest in hexadecimal
+	 */
+	public String getDigest(int index) {
+		return digests[index];
+	}
+
+	/**
+	 * Returns position of chunk in file
+	 * @param index chunk index
+	 * @return offset in bytes
+	 */
+	public long getOffset(int index) {
+		return (long) index * chunkSize;
+	}
+
+	/**
+	 * Returns length of chunk
+	 * @param index chunk index
+	 * @return length in bytes
+	 */
+	public int getLength(int index) {
+		return (int) Math.min(chunkSize, size - getOffset(index));
+	}
+
+	/**
+	 * Returns first chunk with digest
+	 * @param digest in hexadecimal
+	 * @return chunk index, -1 in case there is not chunk with digest
+	 */
+	public synchronized int indexOf(String digest) {
+		if (indexes == null) {
+			indexes = new HashMap<String, Integer>();
+			for (int i = digests.length - 1; i >= 0; i--)
+				indexes.put(digests[i], i);
+		}
+		Integer index = indexes.get(digest);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * Writes manifest in stream
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeLong(size);
+		out.writeInt(chunkSize);
+		out.writeInt(digests.length);
+		for (String digest : digests)
+			writeDigest(out, digest);
+	}
+
+	/**
+	 * Reads a manifest from stream
+	 * @param in
+	 * @return manifest
+	 * @throws IOException
+	 */
+	public static ChunkManifest read(DataInputStream in) throws IOException {
+		long size = in.readLong();
+		int chunkSize = in.readInt();
+		int count = in.readInt();
+		if (size < 0 || chunkSize <= 0 || count != (int) ((size + chunkSize - 1) / chunkSize))
+			throw new IOException("Invalid manifest");
+		String[] digests = new String[count];
+		for (int i = 0; i < count; i++)
+			digests[i] = readDigest(in);
+		return new ChunkManifest(size, chunkSize, digests);
+	}
+
+	/**
+	 * Writes digest as bytes
+	 * @param out
+	 * @param digest in hexadecimal
+	 * @throws IOException
+	 */
+	public static void writeDigest(DataOutputStream out, String digest) throws IOException {
+		for (int i = 0; i < DIGEST_LENGTH; i++)
+			out.writeByte(Integer.parseInt(digest.substring(i * 2, i * 2 + 2), 16));
+	}
+
+	/**
+	 * Reads digest written as bytes
+	 * @param in
+	 * @return digest in hexadecimal
+	 * @throws IOException
+	 */
+	public static String readDigest(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[DIGEST_LENGTH];
+		in.readFully(bytes);
+		return toHex(bytes);
+	}
+
+	/**
+	 * Calculates SHA-256 digest of data
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return digest in hexadecimal
+	 */
+	public static String digest(byte[] data, int offset, int length) {
+		try {
+			MessageDigest sha = MessageDigest.getInstance("SHA-256");
+			sha.update(data, offset, length);
+			return toHex(sha.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return builder.toString();
+	}
+}
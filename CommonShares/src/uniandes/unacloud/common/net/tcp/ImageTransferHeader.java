@@ -0,0 +1,153 @@
+package uniandes.unacloud.common.net.tcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Frame sent by file server before image files in raw and chunked transmissions.
+ * Contains image data used by agent to configure image (platform, main file, user, password and configurer)
+ * and the name and size of file sent after it. Frame starts with its length so new fields can be added at the end.
+ * @author agent
+ *
+ */
+public class ImageTransferHeader {
+
+	/**
+	 * Max length of frame, bigger lengths are considered corruption
+	 */
+	private static final int MAX_LENGTH = 64 * 1024;
+
+	private boolean available;
+
+	private String platform;
+
+	private String mainFile;
+
+	private String password;
+
+	private String user;
+
+	private String configurer;
+
+	private String fileName;
+
+	private long fileSize = -1;
+
+	/**
+	 * Creates a header for an image which is not available
+	 */
+	public ImageTransferHeader() {
+
+	}
+
+	/**
+	 * Creates a header for an available image
+	 * @param platform platform configurer
+	 * @param mainFile main file name
+	 * @param password image password
+	 * @param user image user
+	 * @param configurer configurer class
+	 * @param fileName name of file sent after header
+	 * @param fileSize size of file sent after header
+	 */
+	public ImageTransferHeader(String platform, String mainFile, String password, String user, String configurer, String fileName, long fileSize) {
+		this.available = true;
+		this.platform = platform;
+		this.mainFile = mainFile;
+		this.password = password;
+		this.user = user;
+		this.configurer = configurer;
+		this.fileName = fileName;
+		this.fileSize = fileSize;
+	}
+
+	/**
+	 * Writes frame in stream
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream frame = new DataOutputStream(bytes);
+		frame.writeBoolean(available);
+		writeString(frame, platform);
+		writeString(frame, mainFile);
+		writeString(frame, password);
+		writeString(frame, user);
+		writeString(frame, configurer);
+		writeString(frame, fileName);
+		frame.writeLong(fileSize);
+		out.writeInt(bytes.size());
+		bytes.writeTo(out);
+	}
+
+	/**
+	 * Reads a frame from stream
+	 * @param in
+	 * @return header
+	 * @throws IOException
+	 */
+	public static ImageTransferHeader read(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length <= 0 || length > MAX_LENGTH)
+			throw new IOException("Invalid image header");
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		DataInputStream frame = new DataInputStream(new ByteArrayInputStream(bytes));
+		ImageTransferHeader header = new ImageTransferHeader();
+		header.available = frame.readBoolean();
+		header.platform = readString(frame);
+		header.mainFile = readString(frame);
+		header.password = readString(frame);
+		header.user = readString(frame);
+		header.configurer = readString(frame);
+		header.fileName = readString(frame);
+		header.fileSize = frame.readLong();
+		return header;
+	}
+
+	public boolean isAvailable() {
+		return available;
+	}
+
+	public String getPlatform() {
+		return platform;
+	}
+
+	public String getMainFile() {
+		return mainFile;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	public String getConfigurer() {
+		return configurer;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null)
+			out.writeUTF(value);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
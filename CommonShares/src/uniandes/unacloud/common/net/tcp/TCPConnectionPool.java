@@ -0,0 +1,669 @@
+package uniandes.unacloud.common.net.tcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import uniandes.unacloud.common.net.UnaCloudMessage;
+import uniandes.unacloud.common.net.codec.SessionCodec;
+import uniandes.unacloud.common.net.codec.SessionFrame;
+import uniandes.unacloud.common.utils.UnaCloudConstants;
+
+/**
+ * Keeps long lived connections with agents, one by agent IP.
+ * Each connection carries many requests at the same time, responses are matched with requests using request ids.
+ * Connections are asynchronous channels: responses are read by a shared group of threads only while there are bytes to read,
+ * so idle agents don't keep a thread each. Each write has a deadline, a connection which can't be written in time is closed.
+ * Connections are kept alive with heartbeats and closed when they are not used during idle time.
+ * Agents which reject session preface are remembered during a time and receive messages using TCPFanOutSender,
+ * connection errors and time outs don't mark agents as legacy.
+ * Responses and errors are reported with the same processor used by TCPMultipleSender.
+ * @author agent
+ *
+ */
+public class TCPConnectionPool {
+
+	/**
+	 * Default time in milliseconds to close a connection without requests
+	 */
+	public static final long DEFAULT_IDLE_TIME = 10 * 60 * 1000;
+
+	/**
+	 * Time in milliseconds an agent is remembered without session support, it could be updated meanwhile
+	 */
+	public static final long LEGACY_TIME = 60 * 60 * 1000;
+
+	/**
+	 * Time in milliseconds to write a frame in a connection
+	 */
+	public static final long WRITE_TIME_OUT = UnaCloudConstants.SOCKET_TIME_OUT;
+
+	/**
+	 * Connections by agent IP
+	 */
+	private final ConcurrentHashMap<String, PooledConnection> connections = new ConcurrentHashMap<String, PooledConnection>();
+
+	/**
+	 * Time until agents which don't support sessions are remembered by IP
+	 */
+	private final ConcurrentHashMap<String, Long> legacyAgents = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * Threads to open connections, send heartbeats and send messages to legacy agents
+	 */
+	private final ExecutorService connector = Executors.newCachedThreadPool();
+
+	/**
+	 * Threads to read responses from all connections
+	 */
+	private final AsynchronousChannelGroup readers;
+
+	/**
+	 * Thread to send heartbeats and close idle connections
+	 */
+	private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor();
+
+	/**
+	 * Max quantity of connections opened at the same time to legacy agents
+	 */
+	private final int maxInFlight;
+
+	/**
+	 * Time in milliseconds to wait each response
+	 */
+	private final long requestTimeOut;
+
+	/**
+	 * Time in milliseconds to close a connection without requests
+	 */
+	private final long idleTime;
+
+	/**
+	 * Creates a new pool with default idle time
+	 * @param maxInFlight connections opened at the same time to legacy agents by batch, maxInFlight > 0
+	 * @param requestTimeOut time in milliseconds to wait each response, requestTimeOut > 0
+	 */
+	public TCPConnectionPool(int maxInFlight, long requestTimeOut) {
+		this(maxInFlight, requestTimeOut, DEFAULT_IDLE_TIME);
+	}
+
+	/**
+	 * Creates a new pool
+	 * @param maxInFlight connections opened at the same time to legacy agents by batch, maxInFlight > 0
+	 * @param requestTimeOut time in milliseconds to wait each response, requestTimeOut > 0
+	 * @param idleTime time in milliseconds to close a connection without requests, idleTime > 0
+	 */
+	public TCPConnectionPool(int maxInFlight, long requestTimeOut, long idleTime) {
+		if (maxInFlight <= 0 || requestTimeOut <= 0 || idleTime <= 0)
+			throw new IllegalArgumentException("parameters not valid");
+		this.maxInFlight = maxInFlight;
+		this.requestTimeOut = requestTimeOut;
+		this.idleTime = idleTime;
+		try {
+			readers = AsynchronousChannelGroup.withCachedThreadPool(Executors.newCachedThreadPool(), 1);
+		} catch (IOException e) {
+			throw new IllegalStateException("Error creating group of connections", e);
+		}
+		maintenance.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				maintainConnections();
+			}
+		}, SessionCodec.HEARTBEAT_TIME, SessionCodec.HEARTBEAT_TIME, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends a batch of messages, responses are reported to processor when they arrive
+	 * @param messages to be sent
+	 * @param processor to attend responses, could be null
+	 */
+	public void send(List<UnaCloudMessage> messages, TCPResponseProcessor processor) {
+		List<UnaCloudMessage> legacy = new ArrayList<UnaCloudMessage>();
+		for (UnaCloudMessage message : messages) {
+			if (isLegacy(message.getIp()))
+				legacy.add(message);
+			else
+				getConnection(message).request(message, processor);
+		}
+		sendLegacy(legacy, processor);
+	}
+
+	/**
+	 * Sends a message, response is reported to processor when it arrives
+	 * @param message to be sent
+	 * @param processor to attend response, could be null
+	 */
+	public void send(UnaCloudMessage message, TCPResponseProcessor processor) {
+		List<UnaCloudMessage> messages = new ArrayList<UnaCloudMessage>();
+		messages.add(message);
+		send(messages, processor);
+	}
+
+	/**
+	 * Closes all connections and stops pool, pending requests are reported as errors
+	 */
+	public void close() {
+		maintenance.shutdownNow();
+		for (PooledConnection connection : new ArrayList<PooledConnection>(connections.values()))
+			connection.close("Connection pool closed");
+		connector.shutdown();
+		readers.shutdown();
+	}
+
+	/**
+	 * Returns quantity of open connections
+	 * @return open connections
+	 */
+	public int getOpenConnections() {
+		return connections.size();
+	}
+
+	/**
+	 * Returns connection to message destination, creates it in case it doesn't exist
+	 * @param message
+	 * @return connection
+	 */
+	private PooledConnection getConnection(UnaCloudMessage message) {
+		PooledConnection connection = connections.get(message.getIp());
+		if (connection == null) {
+			PooledConnection created = new PooledConnection(message.getIp(), message.getPort());
+			connection = connections.putIfAbsent(message.getIp(), created);
+			if (connection == null)
+				connection = created;
+		}
+		return connection;
+	}
+
+	/**
+	 * Returns true in case agent was remembered without session support, remembered agents are forgotten after legacy time
+	 * @param ip of agent
+	 * @return true in case agent doesn't support sessions
+	 */
+	private boolean isLegacy(String ip) {
+		Long limit = legacyAgents.get(ip);
+		if (limit == null)
+			return false;
+		if (System.currentTimeMillis() < limit)
+			return true;
+		legacyAgents.remove(ip, limit);
+		return false;
+	}
+
+	/**
+	 * Sends messages to agents without session support, one connection by message
+	 * @param messages
+	 * @param processor
+	 */
+	private void sendLegacy(List<UnaCloudMessage> messages, TCPResponseProcessor processor) {
+		if (!messages.isEmpty())
+			connector.execute(new TCPFanOutSender(messages, processor, maxInFlight, requestTimeOut));
+	}
+
+	/**
+	 * Sends heartbeats, closes idle or lost connections and expires requests without response
+	 */
+	private void maintainConnections() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Long> legacy : legacyAgents.entrySet())
+			if (now >= legacy.getValue())
+				legacyAgents.remove(legacy.getKey(), legacy.getValue());
+		for (PooledConnection connection : new ArrayList<PooledConnection>(connections.values())) {
+			try {
+				connection.maintain(now);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Reports error to processor if it exists
+	 * @param request
+	 * @param error
+	 */
+	private static void attendError(PendingRequest request, String error) {
+		if (request.processor != null)
+			try {
+				request.processor.attendError(request.message, error);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+	}
+
+	/**
+	 * Request sent or waiting to be sent in a connection
+	 */
+	private static class PendingRequest {
+
+		private final UnaCloudMessage message;
+
+		private final TCPResponseProcessor processor;
+
+		private final long limit;
+
+		private PendingRequest(UnaCloudMessage message, TCPResponseProcessor processor, long limit) {
+			this.message = message;
+			this.processor = processor;
+			this.limit = limit;
+		}
+	}
+
+	/**
+	 * Session with one agent.
+	 * State is guarded by connection lock, writes are serialized with write lock and done outside of connection lock,
+	 * so a connection is closed while a write is blocked. Reads are chained: each completed read requests next one.
+	 */
+	private class PooledConnection implements Runnable, CompletionHandler<Integer, ByteBuffer> {
+
+		private final String ip;
+
+		private final int port;
+
+		/**
+		 * Generator of request ids, 0 is used by heartbeats
+		 */
+		private final AtomicInteger ids = new AtomicInteger();
+
+		/**
+		 * Requests waiting response by id
+		 */
+		private final Map<Integer, PendingRequest> pending = new ConcurrentHashMap<Integer, PendingRequest>();
+
+		/**
+		 * Only one write could be pending in a channel
+		 */
+		private final ReentrantLock writeLock = new ReentrantLock();
+
+		/**
+		 * Buffer to read request id and length of each frame
+		 */
+		private final ByteBuffer header = ByteBuffer.allocate(SessionCodec.FRAME_HEADER_LENGTH);
+
+		/**
+		 * Buffer to read payload of current frame
+		 */
+		private ByteBuffer payload;
+
+		/**
+		 * Request id of current frame
+		 */
+		private int payloadId;
+
+		private AsynchronousSocketChannel channel;
+
+		private boolean connecting;
+
+		private boolean closed;
+
+		private volatile long lastReceived = System.currentTimeMillis();
+
+		private volatile long lastUsed = System.currentTimeMillis();
+
+		private PooledConnection(String ip, int port) {
+			this.ip = ip;
+			this.port = port;
+		}
+
+		/**
+		 * Sends a request, connection is opened in background in case it is not opened
+		 * @param message
+		 * @param processor
+		 */
+		private void request(UnaCloudMessage message, TCPResponseProcessor processor) {
+			int id = nextId();
+			PendingRequest request = new PendingRequest(message, processor, System.currentTimeMillis() + requestTimeOut);
+			lastUsed = System.currentTimeMillis();
+			AsynchronousSocketChannel ch = null;
+			synchronized (this) {
+				if (!closed) {
+					pending.put(id, request);
+					if (channel == null) {
+						//Request is sent when connection is opened
+						if (!connecting) {
+							connecting = true;
+							connector.execute(this);
+						}
+						return;
+					}
+					ch = channel;
+				}
+			}
+			if (ch != null) {
+				send(ch, id, message);
+				return;
+			}
+			//Connection was closed after it was taken from pool
+			if (isLegacy(ip))
+				TCPConnectionPool.this.send(message, processor);
+			else
+				getConnection(message).request(message, processor);
+		}
+
+		/**
+		 * Returns next request id
+		 * @return id > 0
+		 */
+		private int nextId() {
+			int id = ids.incrementAndGet();
+			while (id <= 0) {
+				ids.compareAndSet(id, 0);
+				id = ids.incrementAndGet();
+			}
+			return id;
+		}
+
+		/**
+		 * Sends a frame, connection is closed in case frame can't be written
+		 * @param ch channel of connection
+		 * @param id of request, 0 for heartbeats
+		 * @param message null for heartbeats
+		 */
+		private void send(AsynchronousSocketChannel ch, int id, Object message) {
+			try {
+				write(ch, SessionCodec.encodeFrame(id, message));
+			} catch (Exception e) {
+				System.out.println("Error sending message to " + ip);
+				close(e.getMessage());
+			}
+		}
+
+		/**
+		 * Writes all bytes in buffer before write time out
+		 * @param ch
+		 * @param buffer
+		 * @throws IOException in case of error or time out
+		 */
+		private void write(AsynchronousSocketChannel ch, ByteBuffer buffer) throws IOException {
+			long limit = System.currentTimeMillis() + WRITE_TIME_OUT;
+			try {
+				if (!writeLock.tryLock(WRITE_TIME_OUT, TimeUnit.MILLISECONDS))
+					throw new IOException("Time out waiting to write to " + ip);
+				try {
+					while (buffer.hasRemaining())
+						ch.write(buffer).get(Math.max(1, limit - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				} finally {
+					writeLock.unlock();
+				}
+			} catch (TimeoutException e) {
+				throw new IOException("Time out writing to " + ip);
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+		}
+
+		/**
+		 * Reads bytes until buffer is full
+		 * @param ch
+		 * @param buffer
+		 * @param timeOut time in milliseconds to read
+		 * @throws EOFException in case connection is closed by agent
+		 * @throws IOException in case of error or time out
+		 */
+		private void readFully(AsynchronousSocketChannel ch, ByteBuffer buffer, long timeOut) throws IOException {
+			long limit = System.currentTimeMillis() + timeOut;
+			try {
+				while (buffer.hasRemaining())
+					if (ch.read(buffer).get(Math.max(1, limit - System.currentTimeMillis()), TimeUnit.MILLISECONDS) < 0)
+						throw new EOFException("Connection closed by " + ip);
+			} catch (TimeoutException e) {
+				throw new IOException("Time out reading from " + ip);
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+		}
+
+		/**
+		 * Opens connection, sends queued requests and starts to read responses.
+		 * Agents which close connection or answer other bytes to preface don't support sessions
+		 */
+		@Override
+		public void run() {
+			AsynchronousSocketChannel ch = null;
+			List<Map.Entry<Integer, PendingRequest>> queued;
+			try {
+				System.out.println("Opening session with " + ip + ":" + port);
+				ch = AsynchronousSocketChannel.open(readers);
+				ch.connect(new InetSocketAddress(ip, port)).get(UnaCloudConstants.SOCKET_TIME_OUT, TimeUnit.MILLISECONDS);
+				write(ch, SessionCodec.encodePreface());
+				ByteBuffer preface = ByteBuffer.allocate(SessionCodec.PREFACE_LENGTH);
+				try {
+					readFully(ch, preface, UnaCloudConstants.SOCKET_TIME_OUT);
+					preface.flip();
+					SessionCodec.readPreface(preface);
+				} catch (EOFException | ProtocolException e) {
+					System.out.println("Agent " + ip + " doesn't support sessions");
+					closeChannel(ch);
+					useLegacy();
+					return;
+				}
+				synchronized (this) {
+					if (closed) {
+						closeChannel(ch);
+						return;
+					}
+					channel = ch;
+					connecting = false;
+					queued = new ArrayList<Map.Entry<Integer, PendingRequest>>(pending.entrySet());
+				}
+			} catch (Exception e) {
+				System.out.println("Error connecting to " + ip);
+				closeChannel(ch);
+				close(e.getMessage());
+				return;
+			}
+			lastReceived = System.currentTimeMillis();
+			readHeader(ch);
+			for (Map.Entry<Integer, PendingRequest> entry : queued)
+				send(ch, entry.getKey(), entry.getValue().message);
+		}
+
+		/**
+		 * Reads header of next frame
+		 * @param ch
+		 */
+		private void readHeader(AsynchronousSocketChannel ch) {
+			header.clear();
+			read(ch, header);
+		}
+
+		/**
+		 * Requests a read in background, result is received in completed or failed
+		 * @param ch
+		 * @param buffer
+		 */
+		private void read(AsynchronousSocketChannel ch, ByteBuffer buffer) {
+			try {
+				ch.read(buffer, buffer, this);
+			} catch (Exception e) {
+				failed(e, buffer);
+			}
+		}
+
+		/**
+		 * Attends bytes read, when a frame is complete its response is reported and next frame is read
+		 */
+		@Override
+		public void completed(Integer count, ByteBuffer buffer) {
+			AsynchronousSocketChannel ch;
+			synchronized (this) {
+				ch = channel;
+			}
+			if (ch == null)
+				return;
+			if (count < 0) {
+				close("Connection closed by agent");
+				return;
+			}
+			lastReceived = System.currentTimeMillis();
+			if (buffer.hasRemaining()) {
+				read(ch, buffer);
+				return;
+			}
+			try {
+				if (buffer == header) {
+					header.flip();
+					payloadId = header.getInt();
+					int length = header.getInt();
+					SessionCodec.checkLength(length);
+					payload = ByteBuffer.allocate(length);
+					if (length > 0) {
+						read(ch, payload);
+						return;
+					}
+				}
+				SessionFrame frame = SessionCodec.decodeFrame(payloadId, payload.array());
+				payload = null;
+				if (!frame.isHeartbeat())
+					attendResponse(frame);
+				readHeader(ch);
+			} catch (Exception e) {
+				failed(e, buffer);
+			}
+		}
+
+		/**
+		 * Closes connection after an error reading
+		 */
+		@Override
+		public void failed(Throwable e, ByteBuffer buffer) {
+			if (!isClosed()) {
+				System.out.println("Error in machine response; " + ip);
+				e.printStackTrace();
+			}
+			close(e.getMessage());
+		}
+
+		/**
+		 * Reports response to processor of its request
+		 * @param frame
+		 */
+		private void attendResponse(SessionFrame frame) {
+			PendingRequest request = pending.remove(frame.getRequestId());
+			if (request != null && request.processor != null)
+				try {
+					request.processor.attendResponse(frame.getMessage(), request.message);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+		}
+
+		/**
+		 * Agent doesn't support sessions, pending requests are sent one connection by message
+		 */
+		private void useLegacy() {
+			legacyAgents.put(ip, System.currentTimeMillis() + LEGACY_TIME);
+			synchronized (this) {
+				closed = true;
+				connections.remove(ip, this);
+			}
+			//Requests are grouped by processor to be sent in batches
+			Map<TCPResponseProcessor, List<UnaCloudMessage>> batches = new IdentityHashMap<TCPResponseProcessor, List<UnaCloudMessage>>();
+			for (PendingRequest request : pending.values()) {
+				List<UnaCloudMessage> messages = batches.get(request.processor);
+				if (messages == null) {
+					messages = new ArrayList<UnaCloudMessage>();
+					batches.put(request.processor, messages);
+				}
+				messages.add(request.message);
+			}
+			pending.clear();
+			for (Map.Entry<TCPResponseProcessor, List<UnaCloudMessage>> batch : batches.entrySet())
+				sendLegacy(batch.getValue(), batch.getKey());
+		}
+
+		/**
+		 * Closes connection if it is idle or lost, expires requests without response and sends heartbeat in background,
+		 * so maintenance doesn't wait for agents which don't read
+		 * @param now current time
+		 */
+		private void maintain(long now) {
+			Iterator<Map.Entry<Integer, PendingRequest>> it = pending.entrySet().iterator();
+			while (it.hasNext()) {
+				PendingRequest request = it.next().getValue();
+				if (now >= request.limit) {
+					it.remove();
+					attendError(request, "Time out waiting response");
+				}
+			}
+			final AsynchronousSocketChannel ch;
+			synchronized (this) {
+				ch = channel;
+			}
+			if (ch == null)
+				return;
+			if (now - lastReceived > SessionCodec.SESSION_TIME_OUT)
+				close("Heartbeat lost");
+			else if (pending.isEmpty() && now - lastUsed > idleTime) {
+				System.out.println("Closing idle session with " + ip);
+				close("Connection idle");
+			}
+			else
+				connector.execute(new Runnable() {
+					@Override
+					public void run() {
+						send(ch, 0, null);
+					}
+				});
+		}
+
+		private synchronized boolean isClosed() {
+			return closed;
+		}
+
+		/**
+		 * Closes connection, removes it from pool and reports pending requests as errors
+		 * @param error
+		 */
+		private void close(String error) {
+			AsynchronousSocketChannel ch;
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+				connections.remove(ip, this);
+				ch = channel;
+				channel = null;
+			}
+			closeChannel(ch);
+			for (Integer id : new ArrayList<Integer>(pending.keySet())) {
+				PendingRequest request = pending.remove(id);
+				if (request != null)
+					attendError(request, error);
+			}
+		}
+
+		private void closeChannel(AsynchronousSocketChannel ch) {
+			if (ch != null)
+				try {
+					ch.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+		}
+	}
+}
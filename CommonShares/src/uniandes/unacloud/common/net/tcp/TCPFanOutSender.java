@@ -0,0 +1,285 @@
+package uniandes.unacloud.common.net.tcp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import uniandes.unacloud.common.net.UnaCloudMessage;
+import uniandes.unacloud.common.net.codec.MessageCodec;
+import uniandes.unacloud.common.utils.UnaCloudConstants;
+
+/**
+ * Responsible to send a batch of messages to many clients at once.
+ * Connections are opened in non blocking mode and attended by one selector, keeping at most a fixed number of them in flight.
+ * Batch must finish before a deadline, messages not answered in time are reported as errors.
+ * Responses and errors are reported in selector thread using the same processor used by TCPMultipleSender.
+ * @author agent
+ *
+ */
+public class TCPFanOutSender implements Runnable {
+
+	/**
+	 * Default quantity of connections opened at the same time
+	 */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+	/**
+	 * Default time in milliseconds to send all messages in batch
+	 */
+	public static final long DEFAULT_DEADLINE = 5 * 60 * 1000;
+
+	/**
+	 * Size of buffer used to read responses
+	 */
+	private static final int READ_BUFFER_SIZE = 4 * 1024;
+
+	/**
+	 * Messages to be send
+	 */
+	private List<UnaCloudMessage> messages;
+
+	/**
+	 * Processor response
+	 */
+	private TCPResponseProcessor processor;
+
+	/**
+	 * Max quantity of connections opened at the same time
+	 */
+	private int maxInFlight;
+
+	/**
+	 * Time in milliseconds to send all messages in batch
+	 */
+	private long deadline;
+
+	/**
+	 * Constructs a new fan out sender with default in flight limit and deadline
+	 * @param messageList messages to be sent
+	 * @param processor to attend responses, could be null
+	 */
+	public TCPFanOutSender(List<UnaCloudMessage> messageList, TCPResponseProcessor processor) {
+		this(messageList, processor, DEFAULT_MAX_IN_FLIGHT, DEFAULT_DEADLINE);
+	}
+
+	/**
+	 * Constructs a new fan out sender
+	 * @param messageList messages to be sent
+	 * @param processor to attend responses, could be null
+	 * @param maxInFlight max quantity of connections opened at the same time, maxInFlight > 0
+	 * @param deadline time in milliseconds to send all messages in batch, deadline > 0
+	 */
+	public TCPFanOutSender(List<UnaCloudMessage> messageList, TCPResponseProcessor processor, int maxInFlight, long deadline) {
+		if (maxInFlight <= 0 || deadline <= 0)
+			throw new IllegalArgumentException("parameters not valid");
+		this.messages = messageList;
+		this.processor = processor;
+		this.maxInFlight = maxInFlight;
+		this.deadline = deadline;
+	}
+
+	@Override
+	public void run() {
+		long limit = System.currentTimeMillis() + deadline;
+		Deque<UnaCloudMessage> pending = new ArrayDeque<UnaCloudMessage>(messages);
+		System.out.println("Sending " + pending.size() + " messages, " + maxInFlight + " in flight");
+		try (Selector selector = Selector.open()) {
+			int inFlight = 0;
+			while (!pending.isEmpty() || inFlight > 0) {
+				while (inFlight < maxInFlight && !pending.isEmpty())
+					if (open(selector, pending.poll()))
+						inFlight++;
+
+				long now = System.currentTimeMillis();
+				if (now >= limit)
+					break;
+				inFlight -= expireConnections(selector, now);
+				if (inFlight == 0)
+					continue;
+
+				selector.select(Math.min(limit - now, UnaCloudConstants.SOCKET_TIME_OUT));
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (attend(key))
+						inFlight--;
+				}
+			}
+			for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys()))
+				if (key.isValid())
+					fail((Exchange) key.attachment(), "Deadline exceeded sending message");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		for (UnaCloudMessage message : pending)
+			attendError(message, "Deadline exceeded before message was sent");
+	}
+
+	/**
+	 * Opens a non blocking connection to message destination and registers it in selector
+	 * @param selector
+	 * @param message
+	 * @return true in case connection is in flight, false in case it failed
+	 */
+	private boolean open(Selector selector, UnaCloudMessage message) {
+		System.out.println("Sending message to " + message.getIp() + ":" + message.getPort());
+		SocketChannel channel = null;
+		try {
+			byte[] request = MessageCodec.toBytes(message, MessageCodec.getProtocol(message.getIp()));
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			Exchange exchange = new Exchange(message, channel, ByteBuffer.wrap(request));
+			if (channel.connect(new InetSocketAddress(message.getIp(), message.getPort())))
+				channel.register(selector, SelectionKey.OP_WRITE, exchange);
+			else
+				channel.register(selector, SelectionKey.OP_CONNECT, exchange);
+			return true;
+		} catch (Exception e) {
+			System.out.println("Error connecting to " + message.getIp());
+			close(channel);
+			attendError(message, e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Fails connections which were not established in socket timeout
+	 * @param selector
+	 * @param now current time
+	 * @return quantity of failed connections
+	 */
+	private int expireConnections(Selector selector, long now) {
+		int expired = 0;
+		for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+			Exchange exchange = (Exchange) key.attachment();
+			if (key.isValid() && !exchange.channel.isConnected() && now >= exchange.connectLimit) {
+				fail(exchange, "Connection timed out");
+				expired++;
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * Attends a ready connection: finishes connect, writes request or reads response
+	 * @param key selected key
+	 * @return true in case exchange is finished
+	 */
+	private boolean attend(SelectionKey key) {
+		Exchange exchange = (Exchange) key.attachment();
+		try {
+			if (key.isConnectable()) {
+				exchange.channel.finishConnect();
+				key.interestOps(SelectionKey.OP_WRITE);
+			}
+			else if (key.isWritable()) {
+				exchange.channel.write(exchange.request);
+				if (!exchange.request.hasRemaining())
+					key.interestOps(SelectionKey.OP_READ);
+			}
+			else if (key.isReadable()) {
+				int read;
+				while ((read = exchange.channel.read(exchange.buffer)) > 0) {
+					exchange.response.write(exchange.buffer.array(), 0, exchange.buffer.position());
+					exchange.buffer.clear();
+				}
+				//Client closes socket after writing response
+				if (read < 0) {
+					close(exchange.channel);
+					Object response = null;
+					try {
+						response = MessageCodec.fromBytes(exchange.response.toByteArray(), exchange.response.size());
+					} catch (Exception e) {
+						System.out.println("Error in machine response; " + exchange.message.getIp());
+						e.printStackTrace();
+						attendError(exchange.message, e.getMessage());
+						return true;
+					}
+					if (processor != null)
+						try {
+							processor.attendResponse(response, exchange.message);
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+					return true;
+				}
+			}
+			return false;
+		} catch (Exception e) {
+			System.out.println("Error connecting to " + exchange.message.getIp());
+			fail(exchange, e.getMessage());
+			return true;
+		}
+	}
+
+	/**
+	 * Closes exchange connection and reports error
+	 * @param exchange
+	 * @param error
+	 */
+	private void fail(Exchange exchange, String error) {
+		close(exchange.channel);
+		attendError(exchange.message, error);
+	}
+
+	/**
+	 * Reports error to processor if it exists
+	 * @param message
+	 * @param error
+	 */
+	private void attendError(UnaCloudMessage message, String error) {
+		if (processor != null)
+			try {
+				processor.attendError(message, error);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+	}
+
+	/**
+	 * Closes channel ignoring errors
+	 * @param channel
+	 */
+	private static void close(SocketChannel channel) {
+		if (channel != null)
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+	}
+
+	/**
+	 * Represents state of one request/response exchange with a client
+	 */
+	private static class Exchange {
+
+		private final UnaCloudMessage message;
+
+		private final SocketChannel channel;
+
+		private final ByteBuffer request;
+
+		private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+		private final ByteArrayOutputStream response = new ByteArrayOutputStream();
+
+		private final long connectLimit = System.currentTimeMillis() + UnaCloudConstants.SOCKET_TIME_OUT;
+
+		private Exchange(UnaCloudMessage message, SocketChannel channel, ByteBuffer request) {
+			this.message = message;
+			this.channel = channel;
+			this.request = request;
+		}
+	}
+}
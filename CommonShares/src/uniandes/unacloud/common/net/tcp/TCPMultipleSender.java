@@ -1,12 +1,12 @@
 package uniandes.unacloud.common.net.tcp;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.List;
 
 import uniandes.unacloud.common.net.UnaCloudMessage;
+import uniandes.unacloud.common.net.codec.MessageCodec;
+import uniandes.unacloud.common.net.codec.MessageConnection;
 import uniandes.unacloud.common.utils.UnaCloudConstants;
 
 /**
@@ -49,14 +49,11 @@ public class TCPMultipleSender extends Thread {
 		System.out.println("STARTING PROC WITH SOCKET");
 		try (Socket s =  new Socket()) {
 			s.connect(new InetSocketAddress(message.getIp(), message.getPort()), UnaCloudConstants.SOCKET_TIME_OUT);
-			ObjectOutputStream oos = new ObjectOutputStream(s.getOutputStream());
-			ObjectInputStream ois = new ObjectInputStream(s.getInputStream());
-			System.out.println("Object output stream");
-			oos.writeObject(message);
-			oos.flush();
+			MessageConnection connection = MessageConnection.connect(s, MessageCodec.getProtocol(message.getIp()));
+			connection.writeMessage(message);
 			if (processor != null)
 				try {
-					processor.attendResponse(ois.readObject(), message);
+					processor.attendResponse(connection.readMessage(), message);
 				} catch (Exception e) {
 					System.out.println("Error in machine response; " + message.getIp() );	
 					e.printStackTrace();
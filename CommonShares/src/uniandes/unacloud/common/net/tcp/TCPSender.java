@@ -1,11 +1,11 @@
 package uniandes.unacloud.common.net.tcp;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 
 import uniandes.unacloud.common.net.UnaCloudMessage;
+import uniandes.unacloud.common.net.codec.MessageCodec;
+import uniandes.unacloud.common.net.codec.MessageConnection;
 import uniandes.unacloud.common.utils.UnaCloudConstants;
 
 /**
@@ -48,13 +48,11 @@ public class TCPSender {
 		System.out.println("Sending message to " + message.getIp() + ":" + message.getPort() + " message: " + message);
 		try (Socket s =  new Socket()) {	
 		s.connect(new InetSocketAddress(message.getIp(), message.getPort()), UnaCloudConstants.SOCKET_TIME_OUT);			
-			ObjectOutputStream oos = new ObjectOutputStream(s.getOutputStream());
-			ObjectInputStream ois = new ObjectInputStream(s.getInputStream());
-			oos.writeObject(message);
-			oos.flush();
+			MessageConnection connection = MessageConnection.connect(s, MessageCodec.getProtocol(message.getIp()));
+			connection.writeMessage(message);
 			if (processor != null)
 				try {
-					processor.attendResponse(ois.readObject(), null);
+					processor.attendResponse(connection.readMessage(), null);
 				} catch (Exception e) {
 					System.out.println("Error in machine response; " + message.getIp() );	
 					e.printStackTrace();
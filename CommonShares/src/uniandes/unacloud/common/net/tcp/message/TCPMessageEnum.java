@@ -1,20 +1,67 @@
 package uniandes.unacloud.common.net.tcp.message;
 
+/**
+ * Represents types of TCP messages sent to agents. 
+ * Each type has a tag used to identify it in binary protocol
+ * @author CesarF
+ *
+ */
 public enum TCPMessageEnum {
 	
 	/**
 	 * 
 	 */
-	EXECUTION_OPERATION,
+	EXECUTION_OPERATION(1),
 	
 	/**
 	 * 
 	 */
-	PHYSICAL_MACHINE_OPERATION,
+	PHYSICAL_MACHINE_OPERATION(2),
 	
 	/**
 	 * 
 	 */
-	AGENT_OPERATION;
+	AGENT_OPERATION(3);
+	
+	/**
+	 * Tag in binary protocol
+	 */
+	private final byte tag;
+	
+	private TCPMessageEnum(int tag) {
+		this.tag = (byte) tag;
+	}
+	
+	/**
+	 * Returns tag used in binary protocol
+	 * @return tag
+	 */
+	public byte getTag() {
+		return tag;
+	}
+	
+	/**
+	 * Returns type of message requested by name
+	 * @param name of type
+	 * @return type of message, null in case name is not valid
+	 */
+	public static TCPMessageEnum getType(String name) {
+		for (TCPMessageEnum type : values())
+			if (type.name().equals(name)) 
+				return type;
+		return null;
+	}
+	
+	/**
+	 * Returns type of message by binary protocol tag
+	 * @param tag
+	 * @return type of message, null in case tag is not valid
+	 */
+	public static TCPMessageEnum getByTag(byte tag) {
+		for (TCPMessageEnum type : values())
+			if (type.tag == tag) 
+				return type;
+		return null;
+	}
 	
 }
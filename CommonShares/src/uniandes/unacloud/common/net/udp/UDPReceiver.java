@@ -1,14 +1,13 @@
 package uniandes.unacloud.common.net.udp;
 
-import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketException;
 
 import uniandes.unacloud.common.net.UnaCloudMessage;
+import uniandes.unacloud.common.net.codec.MessageCodec;
 
 public class UDPReceiver implements Closeable {
 	
@@ -43,7 +42,8 @@ public class UDPReceiver implements Closeable {
 		DatagramPacket request = new DatagramPacket(buffer, buffer.length);
 		try {
 			udpReceiver.receive(request);	
-			UnaCloudMessage udpMessage = deserialize(request.getData());
+			UnaCloudMessage udpMessage = (UnaCloudMessage) MessageCodec.fromBytes(request.getData(), request.getLength());
+			MessageCodec.learnProtocol(request.getAddress().getHostAddress(), MessageCodec.detect(request.getData(), request.getLength()));
 			udpMessage.setIp(request.getAddress().getHostAddress());
 			udpMessage.setPort(0);
 			return udpMessage;
@@ -58,10 +58,4 @@ public class UDPReceiver implements Closeable {
 	public void close() throws IOException {
 		udpReceiver.close();
 	}
-
-	private static UnaCloudMessage deserialize(byte[] data) throws IOException, ClassNotFoundException {
-	    ByteArrayInputStream in = new ByteArrayInputStream(data);
-	    ObjectInputStream is = new ObjectInputStream(in);
-	    return (UnaCloudMessage) is.readObject();
-	}
 }
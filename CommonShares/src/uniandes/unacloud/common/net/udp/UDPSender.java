@@ -1,13 +1,11 @@
 package uniandes.unacloud.common.net.udp;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 
 import uniandes.unacloud.common.net.UnaCloudMessage;
+import uniandes.unacloud.common.net.codec.MessageCodec;
 
 /**
  * Responsible to send messages in UDP
@@ -32,7 +30,7 @@ public class UDPSender {
 	public boolean sendMessage(UnaCloudMessage message) {
 		try {
 			DatagramSocket socketUDP = new DatagramSocket();
-			byte[] messageBytes = serialize(message);			
+			byte[] messageBytes = MessageCodec.toBytes(message, MessageCodec.getProtocol(message.getIp()));			
 			InetAddress host = InetAddress.getByName(message.getIp());			
 			DatagramPacket packg = new DatagramPacket(messageBytes, messageBytes.length, host, message.getPort());
 			socketUDP.send(packg);
@@ -44,12 +42,5 @@ public class UDPSender {
 			return false;
 		}		
 	}
-	
-	private static byte[] serialize(UnaCloudMessage obj) throws IOException {
-	    ByteArrayOutputStream out = new ByteArrayOutputStream();
-	    ObjectOutputStream os = new ObjectOutputStream(out);
-	    os.writeObject(obj);
-	    return out.toByteArray();
-	}
 
 }
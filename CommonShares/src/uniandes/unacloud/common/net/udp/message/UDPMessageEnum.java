@@ -1,7 +1,8 @@
 package uniandes.unacloud.common.net.udp.message;
 
 /**
- * Enum to represent types of UDP message
+ * Enum to represent types of UDP message.
+ * Each type has a tag used to identify it in binary protocol
  * @author CesarF
  *
  */
@@ -10,18 +11,35 @@ public enum UDPMessageEnum {
 	/**
 	 * Message to report Physical Machines
 	 */
-	STATE_PM,
+	STATE_PM(16),
 	
 	/**
 	 * Message to reports changes in Executions
 	 */
-	STATE_EXE,
+	STATE_EXE(17),
 	
 	/**
 	 * Message to add value to log database
 	 * unused
 	 */
-	LOG_PM;
+	LOG_PM(18);
+	
+	/**
+	 * Tag in binary protocol
+	 */
+	private final byte tag;
+	
+	private UDPMessageEnum(int tag) {
+		this.tag = (byte) tag;
+	}
+	
+	/**
+	 * Returns tag used in binary protocol
+	 * @return tag
+	 */
+	public byte getTag() {
+		return tag;
+	}
 	
 	/**
 	 * Returns type of message requested by name
@@ -34,5 +52,16 @@ public enum UDPMessageEnum {
 		if (LOG_PM.name().equals(name)) return LOG_PM;
 		return null;
 	}
-
+	
+	/**
+	 * Returns type of message by binary protocol tag
+	 * @param tag
+	 * @return type of message, null in case tag is not valid
+	 */
+	public static UDPMessageEnum getByTag(byte tag) {
+		for (UDPMessageEnum type : values())
+			if (type.tag == tag) 
+				return type;
+		return null;
+	}
 }
@@ -97,6 +97,18 @@ public class ConfigurationReader {
 		return Integer.parseInt(values.get(nameVariable));
 	}
 	
+	/**
+	 * Returns a variable requested by parameters as Integer, default value in case variable is not in file
+	 * @param nameVariable
+	 * @param defaultValue value returned in case variable is not in file
+	 * @return variable as Integer value
+	 * @throws Exception in case variable is not int
+	 */
+	public Integer getIntegerVariable(String nameVariable, int defaultValue) throws Exception {
+		String value = values.get(nameVariable);
+		return value == null ? defaultValue : Integer.parseInt(value.trim());
+	}
+	
 	/**
 	 * Returns a variable requested by parameters as Long, null: values is not in file
 	 * @param nameVariable
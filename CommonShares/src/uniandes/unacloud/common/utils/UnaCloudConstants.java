@@ -22,11 +22,20 @@ public class UnaCloudConstants {
 	public static final String QUEUE_PASS = "QUEUE_PASS";
 	public static final String QUEUE_CONTROL = "AGENT_CONTROL";
 	public static final String QUEUE_FILE = "FILE_MANAGER";
+	public static final String QUEUE_CONSUMERS = "QUEUE_CONSUMERS";
+	public static final String QUEUE_PREFETCH = "QUEUE_PREFETCH";
 	public static final String DB_USERNAME = "DB_USERNAME";
 	public static final String DB_PASS = "DB_PASS";
 	public static final String DB_IP = "DB_IP";
 	public static final String DB_PORT = "DB_PORT";
-	public static final String DB_NAME = "DB_NAME";	
+	public static final String DB_NAME = "DB_NAME";
+	public static final String DB_LOG_QUERIES = "DB_LOG_QUERIES";
+	public static final String DB_POOL_SIZE = "DB_POOL_SIZE";
+	public static final String DB_POOL_MAX_TOTAL = "DB_POOL_MAX_TOTAL";
+	public static final String DB_POOL_MAX_WAIT = "DB_POOL_MAX_WAIT";
+	public static final String DB_VALIDATION_QUERY = "DB_VALIDATION_QUERY";
+	public static final String DB_ABANDONED_TIMEOUT = "DB_ABANDONED_TIMEOUT";
+	public static final String DB_REWRITE_BATCHED = "DB_REWRITE_BATCHED";	
 	public static final String FILE_CONFIG = "config.properties";
 	public static final String ROOT_PATH = "ROOT_PATH";
 	
@@ -35,6 +44,7 @@ public class UnaCloudConstants {
 	public static final String CONTROL_MANAGE_PM_PORT = "CONTROL_MANAGE_PM_PORT"; //Agent
 	public static final String CONTROL_MANAGE_VM_PORT = "CONTROL_MANAGE_VM_PORT"; //Agent
 	public static final String AGENT_PORT = "AGENT_PORT"; //Agent
+	public static final String WIRE_PROTOCOL = "WIRE_PROTOCOL"; //Agent
 	
 	//UnaClousFileManager Variables
 	public static final String WEB_FILE_SERVER_URL = "WEB_FILE_SERVER_URL";
@@ -50,6 +60,7 @@ public class UnaCloudConstants {
 	public static final int REQUEST_AGENT_VERSION = 3;
 	public static final int THANKS = 4;
 	public static final int GIVE_ME_FILES = 5;
+	public static final String RAW_TRANSMISSION_PREFIX = "RAW_";
 	
 	//UnaCloudWeb Variables
 	public static final String WEB_SERVER_URL = "WEB_SERVER_URL";
@@ -64,6 +75,17 @@ public class UnaCloudConstants {
 	public static final String VM_REPO_PATH = "VM_REPO_PATH";
 	public static final String REGISTERED = "REGISTERED";
 	public static final String DATA_PATH = "DATA_PATH";
+	public static final String WARM_POOL_SIZE = "WARM_POOL_SIZE";
+	public static final String CACHE_FREE_SPACE = "CACHE_FREE_SPACE";
+	public static final String JOURNAL_SYNC = "JOURNAL_SYNC";
+	public static final String DOWNLOAD_CONNECTIONS = "DOWNLOAD_CONNECTIONS";
+	public static final String TRANSFER_THREADS = "TRANSFER_THREADS";
+	public static final String PLATFORM_THREADS = "PLATFORM_THREADS";
+	public static final String CONTROL_THREADS = "CONTROL_THREADS";
+	public static final String TASK_QUEUE_SIZE = "TASK_QUEUE_SIZE";
+	public static final String VBOX_WEBSERVICE_URL = "VBOX_WEBSERVICE_URL";
+	public static final String VBOX_WEBSERVICE_USER = "VBOX_WEBSERVICE_USER";
+	public static final String VBOX_WEBSERVICE_PASSWORD = "VBOX_WEBSERVICE_PASSWORD";
 	public static final int TEST = 2;
 	public static final int RUN = 1;
 	public static final int DELAY = 6;
@@ -2,6 +2,8 @@ package uniandes.unacloud.share.db;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.dbcp2.BasicDataSource;
 
@@ -13,6 +15,36 @@ import org.apache.commons.dbcp2.BasicDataSource;
  */
 public class DatabaseConnection {
 	
+	/**
+	 * Max quantity of prepared statements kept open by each connection
+	 */
+	private static final int MAX_OPEN_STATEMENTS = 100;
+	
+	/**
+	 * True in case executed statements should be printed
+	 */
+	private static volatile boolean logQueries = false;
+	
+	/**
+	 * Default max quantity of connections opened at the same time
+	 */
+	public static final int DEFAULT_MAX_TOTAL = 8;
+	
+	/**
+	 * Default time in milliseconds to wait for a free connection
+	 */
+	public static final int DEFAULT_MAX_WAIT = 10 * 1000;
+	
+	/**
+	 * Default query used to validate connections before they are borrowed
+	 */
+	public static final String DEFAULT_VALIDATION_QUERY = "SELECT 1";
+	
+	/**
+	 * Default time in seconds before a borrowed connection is considered abandoned and reclaimed
+	 */
+	public static final int DEFAULT_ABANDONED_TIMEOUT = 5 * 60;
+	
 	private String host;
 	
 	private String username ;
@@ -21,6 +53,30 @@ public class DatabaseConnection {
 	
 	private BasicDataSource dataSource;
 	
+	private int maxTotal = DEFAULT_MAX_TOTAL;
+	
+	private int maxWait = DEFAULT_MAX_WAIT;
+	
+	private String validationQuery = DEFAULT_VALIDATION_QUERY;
+	
+	private int abandonedTimeout = DEFAULT_ABANDONED_TIMEOUT;
+	
+	private boolean rewriteBatchedStatements = true;
+	
+	private final AtomicLong borrows = new AtomicLong();
+	
+	private final AtomicLong borrowFailures = new AtomicLong();
+	
+	/**
+	 * Total time in nanoseconds waiting for connections
+	 */
+	private final AtomicLong waitTime = new AtomicLong();
+	
+	/**
+	 * Max time in nanoseconds waiting for a connection
+	 */
+	private volatile long maxWaitTime;
+	
 	public DatabaseConnection() {
 		
 	}
@@ -35,24 +91,41 @@ public class DatabaseConnection {
         dataSource.setUsername(username);
         dataSource.setPassword(password);
         dataSource.setInitialSize(poolFitSize);
-        dataSource.setMaxWaitMillis(1000*10);
+        dataSource.setMaxTotal(Math.max(maxTotal, poolFitSize));
+        dataSource.setMaxWaitMillis(maxWait);
         dataSource.setMaxIdle(poolFitSize);
         dataSource.setMinIdle(poolFitSize);
+        dataSource.setPoolPreparedStatements(true);
+        dataSource.setMaxOpenPreparedStatements(MAX_OPEN_STATEMENTS);
+        if (validationQuery != null && !validationQuery.isEmpty()) {
+        	dataSource.setValidationQuery(validationQuery);
+        	dataSource.setTestOnBorrow(true);
+        }
+        if (abandonedTimeout > 0) {
+        	dataSource.setRemoveAbandonedOnBorrow(true);
+        	dataSource.setRemoveAbandonedOnMaintenance(true);
+        	dataSource.setRemoveAbandonedTimeout(abandonedTimeout);
+        	dataSource.setTimeBetweenEvictionRunsMillis(abandonedTimeout * 1000L);
+        	dataSource.setLogAbandoned(true);
+        }
 	}
 	
 	/**
 	 * Set variables to be used in connection.
+	 * Pool options should be configured before connecting.
 	 * @param db
 	 * @param port
 	 * @param ip
 	 * @param username
 	 * @param password
+	 * @param poolFitSize initial and minimum idle connections
 	 */
 	public void connect(String db, int port, String ip, String username, String password, int poolFitSize) {
-		this.host = "jdbc:mysql://" + ip + ":" + port + "/" + db + "?useUnicode=yes&characterEncoding=UTF-8";
+		this.host = "jdbc:mysql://" + ip + ":" + port + "/" + db + "?useUnicode=yes&characterEncoding=UTF-8" 
+				+ (rewriteBatchedStatements ? "&rewriteBatchedStatements=true" : "");
 		this.username = username;
 		this.password = password;
-		System.out.println("Create connection to: " + this.host);
+		System.out.println("Create connection to: " + this.host + " pool: " + poolFitSize + " max: " + Math.max(maxTotal, poolFitSize));
 		setConnection(poolFitSize);
 	}
 		
@@ -62,7 +135,143 @@ public class DatabaseConnection {
 	 * @throws SQLException in case connection 
 	 */
 	public Connection getConnection() throws SQLException{
-		return dataSource.getConnection();
+		long start = System.nanoTime();
+		try {
+			Connection con = dataSource.getConnection();
+			borrows.incrementAndGet();
+			return con;
+		} catch (SQLException e) {
+			borrowFailures.incrementAndGet();
+			throw e;
+		} finally {
+			long time = System.nanoTime() - start;
+			waitTime.addAndGet(time);
+			if (time > maxWaitTime)
+				maxWaitTime = time;
+		}
+	}
+	
+	/**
+	 * Sets max quantity of connections opened at the same time
+	 * @param maxTotal
+	 */
+	public void setMaxTotal(int maxTotal) {
+		this.maxTotal = maxTotal;
+	}
+	
+	/**
+	 * Sets time in milliseconds to wait for a free connection, negative to wait indefinitely
+	 * @param maxWait
+	 */
+	public void setMaxWait(int maxWait) {
+		this.maxWait = maxWait;
+	}
+	
+	/**
+	 * Sets query used to validate connections, null or empty to not validate
+	 * @param validationQuery
+	 */
+	public void setValidationQuery(String validationQuery) {
+		this.validationQuery = validationQuery;
+	}
+	
+	/**
+	 * Sets time in seconds before a borrowed connection is reclaimed, 0 to not reclaim connections
+	 * @param abandonedTimeout
+	 */
+	public void setAbandonedTimeout(int abandonedTimeout) {
+		this.abandonedTimeout = abandonedTimeout;
+	}
+	
+	/**
+	 * Sets if driver should rewrite batches in multi-value statements
+	 * @param rewriteBatchedStatements
+	 */
+	public void setRewriteBatchedStatements(boolean rewriteBatchedStatements) {
+		this.rewriteBatchedStatements = rewriteBatchedStatements;
+	}
+	
+	/**
+	 * Returns quantity of connections borrowed now
+	 * @return active connections
+	 */
+	public int getActiveConnections() {
+		return dataSource == null ? 0 : dataSource.getNumActive();
+	}
+	
+	/**
+	 * Returns quantity of connections waiting in pool
+	 * @return idle connections
+	 */
+	public int getIdleConnections() {
+		return dataSource == null ? 0 : dataSource.getNumIdle();
+	}
+	
+	/**
+	 * Returns quantity of connections borrowed since start
+	 * @return borrowed connections
+	 */
+	public long getBorrows() {
+		return borrows.get();
+	}
+	
+	/**
+	 * Returns quantity of requests which could not get a connection
+	 * @return borrow failures
+	 */
+	public long getBorrowFailures() {
+		return borrowFailures.get();
+	}
+	
+	/**
+	 * Returns average time in milliseconds waiting for a connection
+	 * @return average wait time
+	 */
+	public double getAverageWaitTime() {
+		long count = borrows.get() + borrowFailures.get();
+		return count == 0 ? 0 : waitTime.get() / (count * 1000000.0);
+	}
+	
+	/**
+	 * Returns max time in milliseconds waiting for a connection
+	 * @return max wait time
+	 */
+	public double getMaxWaitTime() {
+		return maxWaitTime / 1000000.0;
+	}
+	
+	/**
+	 * Returns a line with current pool metrics
+	 * @return metrics
+	 */
+	public String getMetrics() {
+		return String.format("DB pool active: %d idle: %d borrows: %d failures: %d wait avg: %.2f ms max: %.2f ms", 
+				getActiveConnections(), getIdleConnections(), getBorrows(), getBorrowFailures(), getAverageWaitTime(), getMaxWaitTime());
+	}
+	
+	/**
+	 * Enables or disables printing of executed statements
+	 * @param log true to print statements
+	 */
+	public static void setLogQueries(boolean log) {
+		logQueries = log;
+	}
+	
+	/**
+	 * Returns true in case executed statements are printed
+	 * @return true if statements are printed
+	 */
+	public static boolean isLogQueries() {
+		return logQueries;
+	}
+	
+	/**
+	 * Prints statement only in case log of statements is enabled
+	 * @param statement to be printed
+	 */
+	public static void logQuery(Statement statement) {
+		if (logQueries)
+			System.out.println(statement.toString());
 	}
 
 }
@@ -4,6 +4,7 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.TreeMap;
 
 import uniandes.unacloud.common.enums.ExecutionProcessEnum;
@@ -55,8 +56,10 @@ public class DeploymentManager {
 				
 			}
 			if (deploy != null) {
+				//Nodes are joined only when they are ON, executions without node failed
 				ps = con.prepareStatement(
-						"SELECT vme.id, hp.cores, hp.ram, vme.duration, vme.execution_node_id, vme.name, vmi.id, vmi.user, vmi.password, vmi.state, vme.message, vmi.token "
+						"SELECT vme.id, hp.cores, hp.ram, vme.duration, vme.execution_node_id, vme.name, vmi.id, vmi.user, vmi.password, vmi.state, vme.message, vmi.token, "
+						+ "pm.id, i.ip, pm.last_report, pm.name "
 						+ "FROM execution vme "
 							+ "INNER JOIN hardware_profile hp "
 								+ "ON vme.hardware_profile_id = hp.id "
@@ -66,18 +69,23 @@ public class DeploymentManager {
 								+ "ON dp.image_id = vmi.id "
 							+ "INNER JOIN execution_state exes "
 								+ "ON vme.state_id = exes.id "
+							+ "LEFT JOIN physical_machine pm "
+								+ "ON pm.id = vme.execution_node_id AND pm.state = ? "
+							+ "LEFT JOIN ip i "
+								+ "ON pm.ip_id = i.id "
 						+ "WHERE dp.deployment_id = ? AND exes.state = ?;");
-				ps.setLong(1, id);
-				ps.setString(2, ExecutionStateEnum.REQUESTED.name());
+				ps.setString(1, PhysicalMachineStateEnum.ON.name());
+				ps.setLong(2, id);
+				ps.setString(3, ExecutionStateEnum.REQUESTED.name());
 				rs = ps.executeQuery();	
 				System.out.println(ps.toString());
 				TreeMap<Long, DeployedImageEntity> executions = new TreeMap<Long, DeployedImageEntity>();
+				List<ExecutionEntity> deployed = new ArrayList<ExecutionEntity>();
+				List<Long> failed = new ArrayList<Long>();
 				while (rs.next()) {
-					PhysicalMachineEntity pm = PhysicalMachineManager.getPhysicalMachine(rs.getLong(5), PhysicalMachineStateEnum.ON, con);
-					if (pm == null){
-						ExecutionEntity exe = new ExecutionEntity(rs.getLong(1), 0, 0, null, null, ExecutionProcessEnum.FAIL, null, "Communication error");
-						ExecutionManager.updateExecution(exe, ExecutionStateEnum.REQUESTED, con);
-					}
+					PhysicalMachineEntity pm = ExecutionManager.readNode(rs, 13);
+					if (pm == null)
+						failed.add(rs.getLong(1));
 					else {
 						ExecutionEntity vme = new ExecutionEntity(
 								rs.getLong(1), 
@@ -97,7 +105,8 @@ public class DeploymentManager {
 													ImageEnum.getEnum(rs.getString(10)), 
 													rs.getString(12)), 
 											new ArrayList<ExecutionEntity>()));
-						executions.get(rs.getLong(7)).getExecutions().add(vme);						
+						executions.get(rs.getLong(7)).getExecutions().add(vme);
+						deployed.add(vme);
 					}
 				}
 				try {
@@ -106,10 +115,9 @@ public class DeploymentManager {
 				} catch (Exception e) {
 					
 				}
+				ExecutionManager.updateExecutionsState(failed, ExecutionProcessEnum.FAIL, "Communication error", ExecutionStateEnum.REQUESTED, con);
+				NetInterfaceManager.loadInterfaces(deployed, con);
 				deploy.setImages(new ArrayList<DeployedImageEntity>());
-				for (DeployedImageEntity image : executions.values())
-					for (ExecutionEntity execution : image.getExecutions()) 
-						execution.getInterfaces().addAll(NetInterfaceManager.getInterfaces(execution,con));
 				deploy.getImages().addAll(executions.values());				
 			}			
 			return deploy;
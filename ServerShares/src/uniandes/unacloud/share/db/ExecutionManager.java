@@ -3,8 +3,11 @@ package uniandes.unacloud.share.db;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import uniandes.unacloud.common.enums.ExecutionProcessEnum;
 import uniandes.unacloud.share.db.entities.ExecutionEntity;
@@ -19,6 +22,39 @@ import uniandes.unacloud.share.enums.PhysicalMachineStateEnum;
  *
  */
 public class ExecutionManager {
+	
+	/**
+	 * Max quantity of ids sent in each IN clause
+	 */
+	private static final int MAX_IDS_BY_QUERY = 1000;
+	
+	/**
+	 * Update of execution values and state, used by updateExecution. 
+	 * Next state depends on process result: FAIL, REQUEST or SUCCESS
+	 */
+	private static final UpdateBuilder UPDATE = new UpdateBuilder(
+			"UPDATE execution vme JOIN execution_state exest ON vme.state_id = exest.id", 
+			"vme.id = ? AND vme.id > 0");
+	
+	private static final UpdateBuilder.Clause DURATION = UPDATE.field("vme.duration = ?");
+	
+	private static final UpdateBuilder.Clause MESSAGE = UPDATE.field("vme.message = ?");
+	
+	private static final UpdateBuilder.Clause NEXT_CONTROL = UPDATE.field("vme.state_id = exest.next_control_id");
+	
+	private static final UpdateBuilder.Clause NEXT_REQUESTED = UPDATE.field("vme.state_id = exest.next_requested_id");
+	
+	private static final UpdateBuilder.Clause NEXT = UPDATE.field("vme.state_id = exest.next_id");
+	
+	private static final UpdateBuilder.Clause NODE = UPDATE.condition("vme.execution_node_id = (SELECT pm.id FROM physical_machine pm WHERE pm.name = ?)");
+	
+	private static final UpdateBuilder.Clause CURRENT_STATE = UPDATE.condition("exest.state = ?");
+	
+	private static final UpdateBuilder.Clause HAS_NEXT_CONTROL = UPDATE.condition("exest.next_control_id IS NOT NULL");
+	
+	private static final UpdateBuilder.Clause HAS_NEXT_REQUESTED = UPDATE.condition("exest.next_requested_id IS NOT NULL");
+	
+	private static final UpdateBuilder.Clause HAS_NEXT = UPDATE.condition("exest.next_id IS NOT NULL");
 
 	/**
 	 * Updates an execution entity on database.
@@ -31,48 +67,87 @@ public class ExecutionManager {
 		if (execution.getId() == null || execution.getId() < 1) 
 			return false;
 		try {
-			String query = 
-					"UPDATE execution vme "
-					+ "JOIN execution_state exest "
-					+ "ON vme.state_id = exest.id " 
-					+ "SET " +
-			(execution.getDuration() != null? ", vme.duration = ? " : "") +
-			(execution.getMessage() != null? ", vme.message = ? " : "");
 			if (execution.getState() != null) {
-				String state = null;
-				if (query.contains(",")) 
-					query = query.replaceFirst(",", "");
+				UpdateBuilder.Update update = UPDATE.update();
+				if (execution.getDuration() != null)
+					update.set(DURATION, execution.getDuration());
+				if (execution.getMessage() != null)
+					update.set(MESSAGE, execution.getMessage());
 				if (execution.getState() == ExecutionProcessEnum.FAIL)
-					state = "exest.next_control_id";
+					update.add(NEXT_CONTROL).add(HAS_NEXT_CONTROL);
 				else if (execution.getState() == ExecutionProcessEnum.REQUEST)
-					state = "exest.next_requested_id";
+					update.add(NEXT_REQUESTED).add(HAS_NEXT_REQUESTED);
 				else if (execution.getState() == ExecutionProcessEnum.SUCCESS) 
-					state = "exest.next_id";
-				query += ", vme.state_id = " + state + " WHERE vme.id = ? ";						
+					update.add(NEXT).add(HAS_NEXT);
 				if (execution.getNode() != null && execution.getNode().getHost() != null) 
-					query += "AND vme.execution_node_id = (SELECT pm.id FROM physical_machine pm WHERE pm.name = ?) ";
+					update.set(NODE, execution.getNode().getHost());
 				if (currentState != null)
-					query += "AND exest.state = \'" + currentState.name() + "\' ";
-				query += "AND vme.id > 0 AND " + state + " IS NOT NULL;"; 
+					update.set(CURRENT_STATE, currentState);
+				update.key(execution.getId());
+				int lines = update.execute(con);
+				if (DatabaseConnection.isLogQueries())
+					System.out.println("\t change " + lines + " lines");
+				return true;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();			
+		}		
+		return false;
+	}
+	
+	/**
+	 * Changes state of many executions in the same current state using one update by each group of executions.
+	 * Next state is selected by process as in updateExecution.
+	 * @param ids executions to be modified
+	 * @param process result of process in executions: FAIL, REQUEST or SUCCESS
+	 * @param message to be saved in executions, could be null
+	 * @param currentState to avoid changes if state has changed
+	 * @param con Database connection
+	 * @return true in case executions were updated, false in case not
+	 */
+	public static boolean updateExecutionsState(List<Long> ids, ExecutionProcessEnum process, String message, ExecutionStateEnum currentState, Connection con) {
+		if (ids == null || ids.isEmpty())
+			return true;
+		String state = null;
+		if (process == ExecutionProcessEnum.FAIL)
+			state = "exest.next_control_id";
+		else if (process == ExecutionProcessEnum.REQUEST)
+			state = "exest.next_requested_id";
+		else if (process == ExecutionProcessEnum.SUCCESS) 
+			state = "exest.next_id";
+		else
+			return false;
+		try {
+			for (int start = 0; start < ids.size(); start += MAX_IDS_BY_QUERY) {
+				List<Long> chunk = ids.subList(start, Math.min(ids.size(), start + MAX_IDS_BY_QUERY));
+				StringBuilder builder = new StringBuilder();
+				for (int i = 0; i < chunk.size(); i++)
+					builder.append("?,");
+				String query = 
+						"UPDATE execution vme "
+						+ "JOIN execution_state exest "
+						+ "ON vme.state_id = exest.id " 
+						+ "SET " + (message != null ? "vme.message = ?, " : "") + "vme.state_id = " + state + " "
+						+ "WHERE vme.id IN (" + builder.deleteCharAt(builder.length() - 1).toString() + ") "
+						+ (currentState != null ? "AND exest.state = ? " : "")
+						+ "AND vme.id > 0 AND " + state + " IS NOT NULL;"; 
 				PreparedStatement ps = con.prepareStatement(query);
 				int id = 1;
-				if (execution.getDuration() != null)
-					ps.setLong(id++, execution.getDuration());
-				if (execution.getMessage() != null)
-					ps.setString(id++, execution.getMessage());
-				ps.setLong(id++, execution.getId());
-				if (execution.getNode() != null && execution.getNode().getHost() != null) 
-					ps.setString(id++, execution.getNode().getHost());
-				
-				System.out.println(ps.toString());
-				System.out.println("\t change " + ps.executeUpdate() + " lines");				
+				if (message != null)
+					ps.setString(id++, message);
+				for (Long idvme : chunk)
+					ps.setLong(id++, idvme);
+				if (currentState != null)
+					ps.setString(id++, currentState.name());
+				DatabaseConnection.logQuery(ps);
+				ps.executeUpdate();
 				try {
 					ps.close();
 				} catch(Exception e) {
 					
 				}
-				return true;
 			}
+			return true;
 		} catch (Exception e) {
 			e.printStackTrace();			
 		}		
@@ -80,55 +155,62 @@ public class ExecutionManager {
 	}
 	
 	/**
-	 * Updates all executions by name and id in array and return which are in finishing process.
-	 * Method used to update report
-	 * @param ids executions 
-	 * @param host which reports
+	 * Updates executions reported by many hosts and return which are in finishing process.
+	 * Method used to update reports in batches: one query to find executions to be stopped and one batch of updates
+	 * @param executionsByHost executions reported by each host
 	 * @param con Database connection
-	 * @return list of executions which should be stopped in agents
+	 * @return list of executions which should be stopped in agents, null in case of error
 	 */
-	public static List<Long> updateExecutions( String host, Long[]ids, Connection con) {
-		if(ids == null || ids.length == 0)
-			return null;
+	public static List<Long> updateExecutions(Map<String, Long[]> executionsByHost, Connection con) {
+		List<Long> ids = new ArrayList<Long>();
+		for (Long[] hostIds : executionsByHost.values())
+			if (hostIds != null)
+				for (Long id : hostIds)
+					ids.add(id);
+		List<Long> idsToStop = new ArrayList<Long>();
+		if (ids.isEmpty())
+			return idsToStop;
 		try {
-			StringBuilder builder = new StringBuilder();
-			for (@SuppressWarnings("unused") Long pm : ids)
-				builder.append("?,");
-			
-			builder = builder.deleteCharAt( builder.length() -1 );
-			List<Long> idsToStop = new ArrayList<Long>();
-			String query = 
-					"SELECT vm.id "
-					+ "FROM execution vm INNER JOIN execution_state exe ON exe.id = vm.state_id "
-					+ "WHERE vm.id in (" + builder.toString() + ") "
-							+ "AND (exe.state = \'" + ExecutionStateEnum.FAILED.name() + "\' "
-									+ "OR exe.state = \'" + ExecutionStateEnum.FINISHED.name() + "\' "
-											+ "OR exe.state = \'" + ExecutionStateEnum.FINISHING.name() + "\')";
-			PreparedStatement ps = con.prepareStatement(query);
-			int index = 1;
-			for (Long idvme : ids)
-				ps.setLong(index++, idvme);
-			System.out.println(ps.toString());
-			ResultSet rs = ps.executeQuery();
-			while (rs.next())
-				idsToStop.add(rs.getLong(1));
-			try {
-				rs.close();
-				ps.close();
-			} catch (Exception e) {
-				
-			}			
+			for (int start = 0; start < ids.size(); start += MAX_IDS_BY_QUERY) {
+				List<Long> chunk = ids.subList(start, Math.min(ids.size(), start + MAX_IDS_BY_QUERY));
+				StringBuilder builder = new StringBuilder();
+				for (int i = 0; i < chunk.size(); i++)
+					builder.append("?,");
+				builder = builder.deleteCharAt(builder.length() - 1);
+				String query = 
+						"SELECT vm.id "
+						+ "FROM execution vm INNER JOIN execution_state exe ON exe.id = vm.state_id "
+						+ "WHERE vm.id in (" + builder.toString() + ") "
+								+ "AND (exe.state = \'" + ExecutionStateEnum.FAILED.name() + "\' "
+										+ "OR exe.state = \'" + ExecutionStateEnum.FINISHED.name() + "\' "
+												+ "OR exe.state = \'" + ExecutionStateEnum.FINISHING.name() + "\')";
+				PreparedStatement ps = con.prepareStatement(query);
+				int index = 1;
+				for (Long idvme : chunk)
+					ps.setLong(index++, idvme);
+				ResultSet rs = ps.executeQuery();
+				while (rs.next())
+					idsToStop.add(rs.getLong(1));
+				try {
+					rs.close();
+					ps.close();
+				} catch (Exception e) {
+					
+				}
+			}
 			String update = 
-					"UPDATE execution vm "
+					"UPDATE execution vm INNER JOIN physical_machine pm ON vm.execution_node_id = pm.id "
 					+ "SET vm.last_report = CURRENT_TIMESTAMP "
-					+ "WHERE vm.id IN (" + builder.toString() + ") "
-							+ "AND vm.execution_node_id = (SELECT pm.id FROM physical_machine pm WHERE pm.name = ?)";
+					+ "WHERE vm.id = ? AND pm.name = ?";
 			PreparedStatement ps2 = con.prepareStatement(update);
-			index = 1;
-			for (Long idvme : ids) 
-				ps2.setLong(index++, idvme);
-			ps2.setString(index, host);
-			System.out.println(ps2.toString() + " changes " + ps2.executeUpdate() + " lines ");
+			for (Map.Entry<String, Long[]> host : executionsByHost.entrySet())
+				if (host.getValue() != null)
+					for (Long idvme : host.getValue()) {
+						ps2.setLong(1, idvme);
+						ps2.setString(2, host.getKey());
+						ps2.addBatch();
+					}
+			ps2.executeBatch();
 			try {				
 				ps2.close();
 			} catch (Exception e) {
@@ -159,10 +241,14 @@ public class ExecutionManager {
 				for(@SuppressWarnings("unused") ExecutionStateEnum id: states)
 					builderS.append("?,");
 			
-			String query = "SELECT vme.id, hp.cores, hp.ram, vme.duration, ex.state, vme.execution_node_id, vme.name, vme.message "
+			//Nodes are joined only when they are ON, executions without node are failed
+			String query = "SELECT vme.id, hp.cores, hp.ram, vme.duration, ex.state, vme.execution_node_id, vme.name, vme.message, "
+								+ "pm.id, i.ip, pm.last_report, pm.name "
 							+ "FROM execution vme "
 								+ "INNER JOIN hardware_profile hp ON vme.hardware_profile_id = hp.id "
 								+ "INNER JOIN execution_state ex ON ex.id = vme.state_id "
+								+ "LEFT JOIN physical_machine pm ON pm.id = vme.execution_node_id AND pm.state = ? "
+								+ "LEFT JOIN ip i ON pm.ip_id = i.id "
 							+ "WHERE vme.id IN (" + builder.deleteCharAt( builder.length() -1 ).toString() + ") ";
 			if (states != null && states.length > 0)
 				query += " AND ex.state IN (" + builderS.deleteCharAt( builderS.length() -1 ).toString() + ")";
@@ -170,6 +256,7 @@ public class ExecutionManager {
 			PreparedStatement ps = con.prepareStatement(query);
 		
 			int index = 1;
+			ps.setString(index++, PhysicalMachineStateEnum.ON.name());
 			for (Long idvme: ids)
 				ps.setLong(index++, idvme);
 			if (states != null) 
@@ -178,18 +265,16 @@ public class ExecutionManager {
 			System.out.println(ps.toString());
 			ResultSet rs = ps.executeQuery();
 			List<ExecutionEntity> executions = new ArrayList<ExecutionEntity>();
+			List<Long> lostDeployed = new ArrayList<Long>();
+			List<Long> lostRequested = new ArrayList<Long>();
 			while (rs.next()) {
-				PhysicalMachineEntity pm = PhysicalMachineManager.getPhysicalMachine(rs.getLong(6), PhysicalMachineStateEnum.ON, con);
+				PhysicalMachineEntity pm = readNode(rs, 9);
 				if (pm == null) {
 					ExecutionStateEnum state = ExecutionStateEnum.getEnum(rs.getString(5));
-					if(state.equals(ExecutionStateEnum.DEPLOYED)) {
-						ExecutionEntity exe = new ExecutionEntity(rs.getLong(1), 0, 0, null, null, ExecutionProcessEnum.FAIL, null, "Connection lost in server");
-						ExecutionManager.updateExecution(exe, ExecutionStateEnum.DEPLOYED, con);
-					}			
-					if(state.equals(ExecutionStateEnum.REQUESTED))	{
-						ExecutionEntity exe = new ExecutionEntity(rs.getLong(1), 0, 0, null, null, ExecutionProcessEnum.FAIL, null, "Communication error");
-						ExecutionManager.updateExecution(exe, ExecutionStateEnum.REQUESTED, con);
-					}					
+					if (state.equals(ExecutionStateEnum.DEPLOYED))
+						lostDeployed.add(rs.getLong(1));
+					if (state.equals(ExecutionStateEnum.REQUESTED))
+						lostRequested.add(rs.getLong(1));
 				} 
 				else {
 					ExecutionEntity vme = new ExecutionEntity(
@@ -203,15 +288,16 @@ public class ExecutionManager {
 					executions.add(vme);		
 				}
 			}		
-			if (withInterfaces)
-				for (ExecutionEntity execution : executions) 
-					execution.getInterfaces().addAll(NetInterfaceManager.getInterfaces(execution,con));			
 			try {
 				rs.close();
 				ps.close();
 			} catch (Exception e) {
 				
 			}
+			updateExecutionsState(lostDeployed, ExecutionProcessEnum.FAIL, "Connection lost in server", ExecutionStateEnum.DEPLOYED, con);
+			updateExecutionsState(lostRequested, ExecutionProcessEnum.FAIL, "Communication error", ExecutionStateEnum.REQUESTED, con);
+			if (withInterfaces)
+				NetInterfaceManager.loadInterfaces(executions, con);
 			return executions;
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -219,6 +305,25 @@ public class ExecutionManager {
 		}
 	}
 	
+	/**
+	 * Reads node of an execution from a row where node columns are id, ip, last report and name.
+	 * @param rs result set in current row
+	 * @param column index of node id
+	 * @return node, null in case execution has not node ON
+	 * @throws SQLException
+	 */
+	static PhysicalMachineEntity readNode(ResultSet rs, int column) throws SQLException {
+		long nodeId = rs.getLong(column);
+		if (rs.wasNull())
+			return null;
+		Timestamp lastReport = rs.getTimestamp(column + 2);
+		return new PhysicalMachineEntity(nodeId, 
+				rs.getString(column + 1),
+				lastReport == null ? null : new java.util.Date(lastReport.getTime()), 
+				PhysicalMachineStateEnum.ON,
+				rs.getString(column + 3));
+	}
+	
 	
 	/**
 	 * Returns an execution requested by id and state
@@ -229,20 +334,24 @@ public class ExecutionManager {
 	 */
 	public static ExecutionEntity getExecution(Long id, ExecutionStateEnum state, Connection con) {
 		try {			
-			String query = "SELECT vme.id, hp.cores, hp.ram, vme.duration, ex.state, vme.execution_node_id, vme.name, vme.message "
+			String query = "SELECT vme.id, hp.cores, hp.ram, vme.duration, ex.state, vme.execution_node_id, vme.name, vme.message, "
+								+ "pm.id, i.ip, pm.last_report, pm.name "
 							+ "FROM execution vme "
 								+ "INNER JOIN hardware_profile hp ON vme.hardware_profile_id = hp.id "
 								+ "INNER JOIN execution_state ex ON ex.id = vme.state_id "
+								+ "LEFT JOIN physical_machine pm ON pm.id = vme.execution_node_id AND pm.state = ? "
+								+ "LEFT JOIN ip i ON pm.ip_id = i.id "
 							+ "WHERE ex.state = ? AND vme.id = ?;";
 			PreparedStatement ps = con.prepareStatement(query);
-			ps.setString(1, state.name());
-			ps.setLong(2, id);
+			ps.setString(1, PhysicalMachineStateEnum.ON.name());
+			ps.setString(2, state.name());
+			ps.setLong(3, id);
 			System.out.println(ps.toString());
 			ResultSet rs = ps.executeQuery();	
 			ExecutionEntity execution = null;
 			
 			if (rs.next()) {
-				PhysicalMachineEntity pm = PhysicalMachineManager.getPhysicalMachine(rs.getLong(6), PhysicalMachineStateEnum.ON, con);
+				PhysicalMachineEntity pm = readNode(rs, 9);
 				if (pm == null) {
 					if (state.equals(ExecutionStateEnum.DEPLOYED)) {
 						ExecutionEntity exe = new ExecutionEntity(rs.getLong(1), 0, 0, null, null, ExecutionProcessEnum.FAIL, null, "Connection lost in server");
@@ -4,7 +4,9 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import uniandes.unacloud.share.db.entities.ExecutionEntity;
 import uniandes.unacloud.share.db.entities.NetInterfaceEntity;
@@ -15,37 +17,52 @@ import uniandes.unacloud.share.db.entities.NetInterfaceEntity;
  *
  */
 public class NetInterfaceManager {
+	
+	/**
+	 * Max quantity of ids sent in each IN clause
+	 */
+	private static final int MAX_IDS_BY_QUERY = 1000;
 
 	/**
-	 * Returns a list of configured interfaces for an Execution
-	 * @param execution to find net interfaces
+	 * Adds configured interfaces to each execution in list, using one query by each group of executions
+	 * @param executions to find net interfaces
 	 * @param con Database connection
-	 * @return list of net interfaces configured for image
+	 * @return true in case interfaces were loaded, false in case not
 	 */
-	public static List<NetInterfaceEntity> getInterfaces(ExecutionEntity execution, Connection con) {
+	public static boolean loadInterfaces(List<ExecutionEntity> executions, Connection con) {
 		try {
-			List<NetInterfaceEntity> list = new ArrayList<NetInterfaceEntity>();		
-			String query = "SELECT ni.id, ni.name, i.ip, ipl.mask "
-							+ "FROM net_interface ni "
-								+ "INNER JOIN ip i ON ni.ip_id = i.id "
-								+ "INNER JOIN ippool ipl ON i.ip_pool_id = ipl.id "
-							+ "WHERE ni.execution_id = ? ;";
-			PreparedStatement ps = con.prepareStatement(query);			
-			ps.setLong(1, execution.getId());
-			System.out.println(ps.toString());
-			ResultSet rs = ps.executeQuery();		
-			while (rs.next())
-				list.add(new NetInterfaceEntity(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4)));
-			try {
-				rs.close();
-				ps.close();
-			} catch (Exception e) {
-				
+			Map<Long, ExecutionEntity> byId = new HashMap<Long, ExecutionEntity>();
+			for (ExecutionEntity execution : executions)
+				byId.put(execution.getId(), execution);
+			List<Long> ids = new ArrayList<Long>(byId.keySet());
+			for (int start = 0; start < ids.size(); start += MAX_IDS_BY_QUERY) {
+				List<Long> chunk = ids.subList(start, Math.min(ids.size(), start + MAX_IDS_BY_QUERY));
+				StringBuilder builder = new StringBuilder();
+				for (int i = 0; i < chunk.size(); i++)
+					builder.append("?,");
+				String query = "SELECT ni.id, ni.name, i.ip, ipl.mask, ni.execution_id "
+								+ "FROM net_interface ni "
+									+ "INNER JOIN ip i ON ni.ip_id = i.id "
+									+ "INNER JOIN ippool ipl ON i.ip_pool_id = ipl.id "
+								+ "WHERE ni.execution_id IN (" + builder.deleteCharAt(builder.length() - 1).toString() + ");";
+				PreparedStatement ps = con.prepareStatement(query);
+				int index = 1;
+				for (Long id : chunk)
+					ps.setLong(index++, id);
+				ResultSet rs = ps.executeQuery();		
+				while (rs.next())
+					byId.get(rs.getLong(5)).getInterfaces().add(new NetInterfaceEntity(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4)));
+				try {
+					rs.close();
+					ps.close();
+				} catch (Exception e) {
+					
+				}
 			}
-			return list;
+			return true;
 		} catch (Exception e) {
 			e.printStackTrace();
-			return null;
+			return false;
 		}
-	}	
+	}
 }
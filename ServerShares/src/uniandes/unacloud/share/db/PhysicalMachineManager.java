@@ -4,9 +4,11 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.List;
 
+import uniandes.unacloud.common.net.udp.message.MachineStateMessage;
 import uniandes.unacloud.share.db.entities.PhysicalMachineEntity;
 import uniandes.unacloud.share.enums.PhysicalMachineStateEnum;
 
@@ -16,6 +18,21 @@ import uniandes.unacloud.share.enums.PhysicalMachineStateEnum;
  */
 public class PhysicalMachineManager {
 	
+	/**
+	 * Update of physical machine values, used by setPhysicalMachine
+	 */
+	private static final UpdateBuilder UPDATE = new UpdateBuilder("UPDATE physical_machine pm", "pm.id = ? AND pm.id > 0");
+	
+	private static final UpdateBuilder.Clause STATE = UPDATE.field("pm.state = ?");
+	
+	private static final UpdateBuilder.Clause LAST_REPORT = UPDATE.field("pm.last_report = ?");
+	
+	private static final UpdateBuilder.Clause FREE_SPACE = UPDATE.field("pm.free_space = ?");
+	
+	private static final UpdateBuilder.Clause AGENT_VERSION = UPDATE.field("pm.agent_version = ?");
+	
+	private static final UpdateBuilder.Clause LAST_LOG = UPDATE.field("pm.last_log = ?");
+	
 	/**
 	 * Returns a PhysicalMachine entity requested by id and state
 	 * @param id physical machine entity
@@ -138,6 +155,49 @@ public class PhysicalMachineManager {
 		}
 	}
 	
+	/**
+	 * Returns a list of all physical machines with state, last report, free space and agent version
+	 * @param con Database Connection
+	 * @return list of physical machines entities, null in case of error
+	 */
+	public static List<PhysicalMachineEntity> getPhysicalMachines(Connection con) {		
+		try {
+			List<PhysicalMachineEntity> list = new ArrayList<PhysicalMachineEntity>();
+			String query = 
+					"SELECT pm.id, i.ip, pm.state, pm.last_report, pm.name, pm.free_space, pm.agent_version "
+					+ "FROM physical_machine pm "
+						+ "INNER JOIN ip i "
+						+ "ON pm.ip_id = i.id;";
+			PreparedStatement ps = con.prepareStatement(query);
+			ResultSet rs = ps.executeQuery();		
+			while(rs.next()) {
+				Timestamp lastReport = rs.getTimestamp(4);
+				Long freeSpace = rs.getLong(6);
+				if (rs.wasNull())
+					freeSpace = null;
+				list.add(new PhysicalMachineEntity(
+						rs.getLong(1), 
+						rs.getString(2), 
+						lastReport == null ? null : new java.util.Date(lastReport.getTime()),
+						rs.getString(7),
+						freeSpace,
+						PhysicalMachineStateEnum.getEnum(rs.getString(3)),
+						rs.getString(5),
+						null));
+			}
+			try {
+				rs.close();
+				ps.close();
+			} catch (Exception e) {
+				e.printStackTrace();	
+			}
+			return list;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
 	/**
 	 * Update a physical machine entity on database.
 	 * @param machine to be modified
@@ -148,32 +208,17 @@ public class PhysicalMachineManager {
 		if (machine.getId() == null || machine.getId() < 1)
 			return false;
 		try {
-			String query = "UPDATE physical_machine pm SET"; 
-			int parameters = 0;
-			if (machine.getStatus() != null) {
-				parameters++;
-				query += " pm.state = ? ";
-			}
-			if (machine.getLastReport() != null) query += (parameters++ > 0 ? "," : "") + " pm.last_report = ? ";
-			if (machine.getFreeSpace() != null) query += (parameters++ > 0 ? "," : "") + " pm.free_space = ? ";
-			if (machine.getVersion() != null) query += (parameters++ > 0 ? "," : "") + " pm.agent_version = ? ";
-			if (machine.getLogName() != null) query += (parameters++ > 0 ? "," : "") + " pm.last_log = ? ";
-			if (parameters > 0) {
-				query += "WHERE pm.id = ? AND pm.id > 0;";
-				PreparedStatement ps = con.prepareStatement(query);
-				int id = 1;
-				if (machine.getStatus() != null) ps.setString(id++, machine.getStatus().name());
-				if (machine.getLastReport() != null) ps.setTimestamp(id++, new Timestamp(machine.getLastReport().getTime()));
-				if (machine.getFreeSpace() != null) ps.setLong(id++, machine.getFreeSpace());
-			    if (machine.getVersion() != null) ps.setString(id++, machine.getVersion());
-			    if (machine.getLogName() != null) ps.setString(id++, machine.getLogName());
-				ps.setLong(id, machine.getId());
-				System.out.println(ps.toString() + "\n change " + ps.executeUpdate() + " lines");
-				try {
-					ps.close();
-				} catch (Exception e) {
-					e.printStackTrace();	
-				}
+			UpdateBuilder.Update update = UPDATE.update();
+			if (machine.getStatus() != null) update.set(STATE, machine.getStatus());
+			if (machine.getLastReport() != null) update.set(LAST_REPORT, machine.getLastReport());
+			if (machine.getFreeSpace() != null) update.set(FREE_SPACE, machine.getFreeSpace());
+			if (machine.getVersion() != null) update.set(AGENT_VERSION, machine.getVersion());
+			if (machine.getLogName() != null) update.set(LAST_LOG, machine.getLogName());
+			if (update.hasFields()) {
+				update.key(machine.getId());
+				int lines = update.execute(con);
+				if (DatabaseConnection.isLogQueries())
+					System.out.println(" change " + lines + " lines");
 				return true;
 			}
 		} catch (Exception e) {
@@ -183,34 +228,34 @@ public class PhysicalMachineManager {
 	}
 	
 	/**
-	 * Updates a physical machine entity on database based in hostname
-	 * @param host name in network for physical machine
-	 * @param hostUser user in physical machine
-	 * @param ip where message is coming
+	 * Updates many physical machines on database based in reports, using one batch of updates.
+	 * Null values in free space, data space and version keep current values in database
+	 * @param reports state messages sent by physical machines
 	 * @param con Database Connection
-	 * @param freeSpace quantity in bytes about free space in data folder in physical machine
-	 * @param dataSpace quantity in bytes about total space in data folder in physical machine
-	 * @param version current agent version
 	 * @return true in case physical machines could be updated, false in case not
-	 * TODO: add validation of ip 
 	 */
-	public static boolean updatePhysicalMachine(String host, String hostUser, String ip, Long freeSpace, Long dataSpace, String version, Connection con) {
+	public static boolean updatePhysicalMachines(List<MachineStateMessage> reports, Connection con) {
+		if (reports == null || reports.isEmpty())
+			return true;
 		try {
-			String query = "UPDATE physical_machine pm "
+			String query = "UPDATE physical_machine pm INNER JOIN ip i ON pm.ip_id = i.id "
 					+ "SET pm.with_user = ?, pm.state = CASE WHEN pm.state = \'" + PhysicalMachineStateEnum.OFF.name()
-					+ "\' THEN  \'"+PhysicalMachineStateEnum.ON.name() + "\' ELSE pm.state END, pm.last_report = CURRENT_TIMESTAMP "
-					+ (dataSpace != null ? ", pm.data_space = ?" : "")
-					+ (freeSpace != null ? ", pm.free_space = ?" : "")
-					+ (version != null ? ", pm.agent_version = ?" : "")
-					+ " WHERE pm.name = ? AND pm.ip_id = (SELECT id FROM ip AS i WHERE i.ip = ?)"; PreparedStatement ps = con.prepareStatement(query);
-			int pos = 1;
-			ps.setBoolean(pos++, (hostUser != null && !hostUser.isEmpty() && !(hostUser.replace(">","").replace(" ","")).equals("null")));
-			if (dataSpace != null) ps.setLong(pos++, dataSpace);
-			if (freeSpace != null) ps.setLong(pos++, freeSpace);
-			if (version != null) ps.setString(pos++, version);
-			ps.setString(pos++, host.toUpperCase());
-			ps.setString(pos++, ip);
-			ps.executeUpdate();
+					+ "\' THEN  \'"+PhysicalMachineStateEnum.ON.name() + "\' ELSE pm.state END, pm.last_report = CURRENT_TIMESTAMP, "
+					+ "pm.data_space = COALESCE(?, pm.data_space), pm.free_space = COALESCE(?, pm.free_space), pm.agent_version = COALESCE(?, pm.agent_version) "
+					+ "WHERE pm.name = ? AND i.ip = ?"; 
+			PreparedStatement ps = con.prepareStatement(query);
+			for (MachineStateMessage report : reports) {
+				ps.setBoolean(1, isWithUser(report.getHostUser()));
+				if (report.getDataSpace() != null) ps.setLong(2, report.getDataSpace());
+				else ps.setNull(2, Types.BIGINT);
+				if (report.getFreeSpace() != null) ps.setLong(3, report.getFreeSpace());
+				else ps.setNull(3, Types.BIGINT);
+				ps.setString(4, report.getVersion());
+				ps.setString(5, report.getHost().toUpperCase());
+				ps.setString(6, report.getIp());
+				ps.addBatch();
+			}
+			ps.executeBatch();
 			try {
 				ps.close();
 			} catch (Exception e) {
@@ -223,6 +268,15 @@ public class PhysicalMachineManager {
 		return false;
 	}
 	
+	/**
+	 * Validates if there is an user logged in physical machine based in user reported by agent
+	 * @param hostUser user reported by agent
+	 * @return true in case there is an user
+	 */
+	private static boolean isWithUser(String hostUser) {
+		return hostUser != null && !hostUser.isEmpty() && !(hostUser.replace(">","").replace(" ","")).equals("null");
+	}
+	
 	/**
 	 * Returns physical machine with the same hostname 
 	 * @param name to search physicalmachine
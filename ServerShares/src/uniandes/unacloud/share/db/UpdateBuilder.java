@@ -0,0 +1,349 @@
+package uniandes.unacloud.share.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds UPDATE statements which only change some columns of a row.
+ * Each combination of clauses used is represented by a bitmask and mapped to one SQL template,
+ * templates are created once and reused so the same SQL text is always sent for the same combination and statement pool is able to reuse it.
+ * Values are set using clauses declared in builder and are bound in declaration order: SET clauses, key and WHERE conditions.
+ * @author agent
+ *
+ */
+public class UpdateBuilder {
+
+	/**
+	 * Max quantity of clauses in a builder
+	 */
+	private static final int MAX_CLAUSES = 31;
+
+	/**
+	 * UPDATE part of statement, table and joins
+	 */
+	private final String update;
+
+	/**
+	 * Condition used to find rows to be updated, always present
+	 */
+	private final String key;
+
+	/**
+	 * Clauses declared in builder
+	 */
+	private final List<Clause> clauses = new ArrayList<Clause>();
+
+	/**
+	 * SQL templates by clauses mask
+	 */
+	private final ConcurrentHashMap<Integer, String> templates = new ConcurrentHashMap<Integer, String>();
+
+	/**
+	 * Creates a new builder
+	 * @param update UPDATE part of statement, example: UPDATE image vm
+	 * @param key condition to find rows, example: vm.id = ? AND vm.id > 0
+	 */
+	public UpdateBuilder(String update, String key) {
+		this.update = update;
+		this.key = key;
+	}
+
+	/**
+	 * Declares a clause to be used in SET part of statement
+	 * @param sql assignment, example: vm.state = ?
+	 * @return clause
+	 */
+	public Clause field(String sql) {
+		return add(sql, false);
+	}
+
+	/**
+	 * Declares a condition to be added to key in WHERE part of statement
+	 * @param sql condition, example: vm.state = ?
+	 * @return clause
+	 */
+	public Clause condition(String sql) {
+		return add(sql, true);
+	}
+
+	/**
+	 * Adds clause to builder, clauses should be declared before builder is used
+	 * @param sql
+	 * @param condition
+	 * @return clause
+	 */
+	private synchronized Clause add(String sql, boolean condition) {
+		if (clauses.size() == MAX_CLAUSES)
+			throw new IllegalStateException("Too many clauses in update " + update);
+		Clause clause = new Clause(this, clauses.size(), sql, condition);
+		clauses.add(clause);
+		return clause;
+	}
+
+	/**
+	 * Creates a new empty update
+	 * @return update
+	 */
+	public Update update() {
+		return new Update(this);
+	}
+
+	/**
+	 * Returns template for a combination of clauses, template is created the first time it is requested
+	 * @param mask bits of clauses used
+	 * @return SQL template
+	 */
+	String getTemplate(int mask) {
+		String template = templates.get(mask);
+		if (template == null) {
+			StringBuilder builder = new StringBuilder(update).append(" SET ");
+			boolean first = true;
+			for (Clause clause : clauses)
+				if (!clause.condition && (mask & clause.bit) != 0) {
+					if (!first)
+						builder.append(", ");
+					builder.append(clause.sql);
+					first = false;
+				}
+			builder.append(" WHERE ").append(key);
+			for (Clause clause : clauses)
+				if (clause.condition && (mask & clause.bit) != 0)
+					builder.append(" AND ").append(clause.sql);
+			template = builder.append(";").toString();
+			String previous = templates.putIfAbsent(mask, template);
+			if (previous != null)
+				template = previous;
+		}
+		return template;
+	}
+
+	/**
+	 * Returns quantity of templates created by builder
+	 * @return quantity of templates
+	 */
+	public int getTemplates() {
+		return templates.size();
+	}
+
+	/**
+	 * Represents a SET clause or a WHERE condition declared in builder
+	 */
+	public static class Clause {
+
+		private final UpdateBuilder builder;
+
+		private final int index;
+
+		private final int bit;
+
+		private final String sql;
+
+		private final boolean condition;
+
+		private final boolean parameter;
+
+		private Clause(UpdateBuilder builder, int index, String sql, boolean condition) {
+			this.builder = builder;
+			this.index = index;
+			this.bit = 1 << index;
+			this.sql = sql;
+			this.condition = condition;
+			this.parameter = sql.indexOf('?') >= 0;
+		}
+	}
+
+	/**
+	 * Values of one update to be executed
+	 */
+	public static class Update {
+
+		private final UpdateBuilder builder;
+
+		private final Object[] values;
+
+		private Object[] keyValues = new Object[0];
+
+		private int mask;
+
+		private int fields;
+
+		private Update(UpdateBuilder builder) {
+			this.builder = builder;
+			this.values = new Object[MAX_CLAUSES];
+		}
+
+		/**
+		 * Adds a clause without parameters
+		 * @param clause
+		 * @return update
+		 */
+		public Update add(Clause clause) {
+			return put(clause, null);
+		}
+
+		/**
+		 * Adds a clause with its value
+		 * @param clause
+		 * @param value
+		 * @return update
+		 */
+		public Update set(Clause clause, String value) {
+			return put(clause, value);
+		}
+
+		/**
+		 * Adds a clause with its value
+		 * @param clause
+		 * @param value
+		 * @return update
+		 */
+		public Update set(Clause clause, Long value) {
+			return put(clause, value);
+		}
+
+		/**
+		 * Adds a clause with its value
+		 * @param clause
+		 * @param value
+		 * @return update
+		 */
+		public Update set(Clause clause, Integer value) {
+			return put(clause, value);
+		}
+
+		/**
+		 * Adds a clause with its value
+		 * @param clause
+		 * @param value
+		 * @return update
+		 */
+		public Update set(Clause clause, Boolean value) {
+			return put(clause, value);
+		}
+
+		/**
+		 * Adds a clause with its value
+		 * @param clause
+		 * @param value
+		 * @return update
+		 */
+		public Update set(Clause clause, Date value) {
+			return put(clause, value == null ? null : new Timestamp(value.getTime()));
+		}
+
+		/**
+		 * Adds a clause with its value
+		 * @param clause
+		 * @param value
+		 * @return update
+		 */
+		public Update set(Clause clause, Enum<?> value) {
+			return put(clause, value == null ? null : value.name());
+		}
+
+		/**
+		 * Sets values of key parameters
+		 * @param values in order used in key
+		 * @return update
+		 */
+		public Update key(Object... values) {
+			this.keyValues = values;
+			return this;
+		}
+
+		/**
+		 * Returns true in case at least one SET clause was added
+		 * @return true in case there is something to update
+		 */
+		public boolean hasFields() {
+			return fields > 0;
+		}
+
+		/**
+		 * Returns SQL template used by update
+		 * @return SQL
+		 */
+		public String getSql() {
+			return builder.getTemplate(mask);
+		}
+
+		/**
+		 * Prepares statement and binds all values
+		 * @param con Database connection
+		 * @return statement ready to be executed
+		 * @throws SQLException
+		 */
+		public PreparedStatement prepare(Connection con) throws SQLException {
+			PreparedStatement ps = con.prepareStatement(getSql());
+			try {
+				int index = 1;
+				for (Clause clause : builder.clauses)
+					if (!clause.condition && clause.parameter && (mask & clause.bit) != 0)
+						bind(ps, index++, values[clause.index]);
+				for (Object value : keyValues)
+					bind(ps, index++, value);
+				for (Clause clause : builder.clauses)
+					if (clause.condition && clause.parameter && (mask & clause.bit) != 0)
+						bind(ps, index++, values[clause.index]);
+			} catch (SQLException e) {
+				ps.close();
+				throw e;
+			}
+			return ps;
+		}
+
+		/**
+		 * Executes update and closes statement
+		 * @param con Database connection
+		 * @return quantity of changed rows
+		 * @throws SQLException
+		 */
+		public int execute(Connection con) throws SQLException {
+			PreparedStatement ps = prepare(con);
+			try {
+				DatabaseConnection.logQuery(ps);
+				return ps.executeUpdate();
+			} finally {
+				try {
+					ps.close();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		private Update put(Clause clause, Object value) {
+			if (clause.builder != builder)
+				throw new IllegalArgumentException("Clause is not declared in this builder");
+			if ((mask & clause.bit) == 0 && !clause.condition)
+				fields++;
+			mask |= clause.bit;
+			values[clause.index] = value;
+			return this;
+		}
+
+		private static void bind(PreparedStatement ps, int index, Object value) throws SQLException {
+			if (value == null)
+				ps.setNull(index, Types.NULL);
+			else if (value instanceof String)
+				ps.setString(index, (String) value);
+			else if (value instanceof Long)
+				ps.setLong(index, (Long) value);
+			else if (value instanceof Integer)
+				ps.setInt(index, (Integer) value);
+			else if (value instanceof Boolean)
+				ps.setBoolean(index, (Boolean) value);
+			else if (value instanceof Timestamp)
+				ps.setTimestamp(index, (Timestamp) value);
+			else
+				ps.setObject(index, value);
+		}
+	}
+}
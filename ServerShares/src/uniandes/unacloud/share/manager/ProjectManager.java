@@ -4,6 +4,7 @@ import java.sql.Connection;
 import java.sql.SQLException;
 
 import uniandes.unacloud.common.utils.ConfigurationReader;
+import uniandes.unacloud.common.utils.UnaCloudConstants;
 import uniandes.unacloud.share.db.DatabaseConnection;
 import uniandes.unacloud.share.queue.QueueMessageReceiver;
 
@@ -67,6 +68,36 @@ public abstract class ProjectManager {
 	 */
 	protected abstract String[] getVariableList();
 	
+	/**
+	 * Creates database connection pool using variables in properties file.
+	 * Pool options not present in file use values received by parameters or defaults in DatabaseConnection.
+	 * @param poolSize default number of initial and minimum idle connections
+	 * @param maxTotal default max number of connections opened at the same time
+	 * @return database connection pool
+	 * @throws Exception in case variables are not valid
+	 */
+	protected DatabaseConnection createDatabaseConnection(int poolSize, int maxTotal) throws Exception {
+		DatabaseConnection.setLogQueries(Boolean.parseBoolean(reader.getStringVariable(UnaCloudConstants.DB_LOG_QUERIES)));
+		DatabaseConnection database = new DatabaseConnection();
+		database.setMaxTotal(reader.getIntegerVariable(UnaCloudConstants.DB_POOL_MAX_TOTAL, maxTotal));
+		database.setMaxWait(reader.getIntegerVariable(UnaCloudConstants.DB_POOL_MAX_WAIT, DatabaseConnection.DEFAULT_MAX_WAIT));
+		database.setAbandonedTimeout(reader.getIntegerVariable(UnaCloudConstants.DB_ABANDONED_TIMEOUT, DatabaseConnection.DEFAULT_ABANDONED_TIMEOUT));
+		String validationQuery = reader.getStringVariable(UnaCloudConstants.DB_VALIDATION_QUERY);
+		if (validationQuery != null)
+			database.setValidationQuery(validationQuery.trim());
+		String rewrite = reader.getStringVariable(UnaCloudConstants.DB_REWRITE_BATCHED);
+		if (rewrite != null)
+			database.setRewriteBatchedStatements(Boolean.parseBoolean(rewrite.trim()));
+		database.connect(
+				reader.getStringVariable(UnaCloudConstants.DB_NAME), 
+				reader.getIntegerVariable(UnaCloudConstants.DB_PORT),
+				reader.getStringVariable(UnaCloudConstants.DB_IP), 
+				reader.getStringVariable(UnaCloudConstants.DB_USERNAME), 
+				reader.getStringVariable(UnaCloudConstants.DB_PASS),
+				reader.getIntegerVariable(UnaCloudConstants.DB_POOL_SIZE, poolSize));
+		return database;
+	}
+	
 	/**
 	 * Returns current database connection
 	 * @return database connection
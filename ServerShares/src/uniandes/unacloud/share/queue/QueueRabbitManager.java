@@ -1,6 +1,9 @@
 package uniandes.unacloud.share.queue;
 
 import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import uniandes.unacloud.share.queue.messages.QueueMessage;
@@ -20,16 +23,57 @@ import com.rabbitmq.client.AMQP.BasicProperties;
  */
 public class QueueRabbitManager extends QueueTaskerConnection{
 	
+	/**
+	 * Default number of channels consuming from queue
+	 */
+	public static final int DEFAULT_CONSUMERS = 1;
+	
+	/**
+	 * Default number of unacknowledged messages delivered to each channel
+	 */
+	public static final int DEFAULT_PREFETCH = 8;
+	
 	/**
 	 * Factory of connection to rabbit
 	 */
 	ConnectionFactory factory;
 	
 	Connection connection;
+	
+	/**
+	 * Number of channels consuming from queue
+	 */
+	private int consumers;
+	
+	/**
+	 * Number of unacknowledged messages delivered to each channel
+	 */
+	private int prefetch;
+	
+	/**
+	 * Pool of workers where delivered messages are processed
+	 */
+	private ThreadPoolExecutor workers;
 
 	public QueueRabbitManager(String username, String password, String ip,
 			int port, String queueName) throws IOException, TimeoutException {
+		this(username, password, ip, port, queueName, DEFAULT_CONSUMERS, DEFAULT_PREFETCH);
+	}
+	
+	/**
+	 * Creates a rabbit manager which consumes messages using several channels.
+	 * Each channel receives at most prefetch messages before acknowledging them, 
+	 * so consumers * prefetch messages are processed at the same time.
+	 * @param consumers number of channels consuming from queue consumers > 0
+	 * @param prefetch number of unacknowledged messages by channel prefetch > 0
+	 */
+	public QueueRabbitManager(String username, String password, String ip,
+			int port, String queueName, int consumers, int prefetch) throws IOException, TimeoutException {
 		super(username, password, ip, port, queueName);
+		if (consumers <= 0 || prefetch <= 0)
+			throw new IllegalArgumentException("parameters not valid");
+		this.consumers = consumers;
+		this.prefetch = prefetch;
 		createFactory();
 	}
 
@@ -48,30 +92,57 @@ public class QueueRabbitManager extends QueueTaskerConnection{
 
 	@Override
 	public void getMessage(final QueueReader reader) {
-		Channel channel = null;
-		try {			
-		    channel = connection.createChannel();
-		    channel.queueDeclare(queueName, false, false, false, null);
-		    Consumer consumer = new DefaultConsumer(channel) {
-		    	@Override
-		        public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body)
-		            throws IOException {
-		          String message = new String(body, "UTF-8");
-		          QueueMessage qmessage = new QueueMessage();
-		          qmessage.setMessage(message);
-		          try {
-		        	  Thread.sleep(1000);
-		          } catch (Exception e) {
-		        	  
-		          }
-		          reader.processMessage(qmessage);
-		        }
-		    };
-		    channel.basicConsume(queueName, true, consumer);
+		int inFlight = consumers * prefetch;
+		workers = new ThreadPoolExecutor(inFlight, inFlight, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(inFlight), new ThreadPoolExecutor.CallerRunsPolicy());
+		for (int i = 0; i < consumers; i++) {
+			try {			
+			    final Channel channel = connection.createChannel();
+			    channel.queueDeclare(queueName, false, false, false, null);
+			    channel.basicQos(prefetch);
+			    Consumer consumer = new DefaultConsumer(channel) {
+			    	@Override
+			        public void handleDelivery(String consumerTag, final Envelope envelope, BasicProperties properties, final byte[] body)
+			            throws IOException {
+			    		workers.execute(new Runnable() {						
+							@Override
+							public void run() {
+								processDelivery(channel, envelope.getDeliveryTag(), body, reader);
+							}
+						});
+			        }
+			    };
+			    channel.basicConsume(queueName, false, consumer);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		System.out.println("Consuming " + queueName + " with " + consumers + " channels, prefetch " + prefetch);
+	}
+	
+	/**
+	 * Processes a delivered message and acknowledges it when reader finishes. 
+	 * Messages which can't be processed are rejected without requeue to avoid redelivery loops.
+	 * @param channel where message was delivered
+	 * @param deliveryTag message tag in channel
+	 * @param body message content
+	 * @param reader to process message
+	 */
+	private void processDelivery(Channel channel, long deliveryTag, byte[] body, QueueReader reader) {
+		try {
+			String message = new String(body, "UTF-8");
+			QueueMessage qmessage = new QueueMessage();
+			qmessage.setMessage(message);
+			reader.processMessage(qmessage);
+			channel.basicAck(deliveryTag, false);
 		} catch (Exception e) {
 			e.printStackTrace();
+			try {
+				channel.basicNack(deliveryTag, false, false);
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
 		}
-		
 	}
 	
 	/**
@@ -3,6 +3,7 @@ package uniandes.unacloud.control;
 import java.sql.Connection;
 
 import uniandes.unacloud.common.utils.UnaCloudConstants;
+import uniandes.unacloud.control.host.HostRegistry;
 import uniandes.unacloud.control.net.tcp.VmMessageReceiver;
 import uniandes.unacloud.control.net.udp.PmMessageReceiver;
 import uniandes.unacloud.control.queue.QueueMessageProcessor;
@@ -40,6 +41,11 @@ public class ControlManager extends ProjectManager {
 	 */
 	private static final int CONCURRENT_THREADS_PM = 8;
 	
+	/**
+	 * Time in milliseconds to buffer reports from physical machines before saving them in database
+	 */
+	private static final long REPORT_WINDOW_PM = 2000;
+	
 	/**
 	 * Number of concurrent threads to process messages from virtual machines status
 	 */
@@ -51,12 +57,28 @@ public class ControlManager extends ProjectManager {
 	private static final int CONCURRENT_THREADS_QUEUE = 8;
 	
 	/**
-	 * Number of tasks in each thread in queue processor
+	 * Default max number of connections to database: one by each thread using database in VM and queue processors, 
+	 * plus report buffer and host registry. PM threads only add reports to buffer.
+	 */
+	private static final int POOL_MAX_TOTAL = CONCURRENT_THREADS_VM + CONCURRENT_THREADS_QUEUE + 2;
+	
+	/**
+	 * Number of connections opened at the same time by each batch in queue processor to agents without sessions
+	 */
+	private static final int MAX_IN_FLIGHT_QUEUE = 64;
+	
+	/**
+	 * Time in milliseconds to wait each agent response in queue processor
 	 */
-	private static final int TASK_BY_THREAD_QUEUE = 5;
+	private static final long BATCH_DEADLINE_QUEUE = 5 * 60 * 1000;
 	
 	private Integer agentPort;
 	
+	/**
+	 * In memory view of physical machines
+	 */
+	private HostRegistry hostRegistry;
+	
 	/**
 	 * Creates a project manager with all services
 	 */
@@ -78,6 +100,14 @@ public class ControlManager extends ProjectManager {
 		}		
 	}	
 	
+	/**
+	 * Returns registry of physical machines
+	 * @return host registry
+	 */
+	public HostRegistry getHostRegistry() {
+		return hostRegistry;
+	}
+	
 	/**
 	 * Returns the configured communication agent port
 	 * @return agent port
@@ -113,7 +143,16 @@ public class ControlManager extends ProjectManager {
 				UnaCloudConstants.DB_PASS,
 				UnaCloudConstants.DB_PORT,
 				UnaCloudConstants.DB_IP,
-				UnaCloudConstants.DB_USERNAME};
+				UnaCloudConstants.DB_USERNAME,
+				UnaCloudConstants.DB_LOG_QUERIES,
+				UnaCloudConstants.DB_POOL_SIZE,
+				UnaCloudConstants.DB_POOL_MAX_TOTAL,
+				UnaCloudConstants.DB_POOL_MAX_WAIT,
+				UnaCloudConstants.DB_VALIDATION_QUERY,
+				UnaCloudConstants.DB_ABANDONED_TIMEOUT,
+				UnaCloudConstants.DB_REWRITE_BATCHED,
+				UnaCloudConstants.QUEUE_CONSUMERS,
+				UnaCloudConstants.QUEUE_PREFETCH};
     }
 
 	/**
@@ -123,15 +162,10 @@ public class ControlManager extends ProjectManager {
 	@Override
 	protected void startDatabaseService() throws Exception {
 		System.out.println("Start database service");
-		connection = new DatabaseConnection();
-		connection.connect(
-				reader.getStringVariable(UnaCloudConstants.DB_NAME), 
-				reader.getIntegerVariable(UnaCloudConstants.DB_PORT),
-				reader.getStringVariable(UnaCloudConstants.DB_IP), 
-				reader.getStringVariable(UnaCloudConstants.DB_USERNAME), 
-				reader.getStringVariable(UnaCloudConstants.DB_PASS),
-				POOL_SIZE);
+		connection = createDatabaseConnection(POOL_SIZE, POOL_MAX_TOTAL);
 		connection.getConnection().close();		
+		hostRegistry = new HostRegistry(connection);
+		hostRegistry.start();
 	}
 
 	/**
@@ -147,10 +181,12 @@ public class ControlManager extends ProjectManager {
 			String queueIP = ServerVariableManager.getVariable(con, UnaCloudConstants.QUEUE_IP).getValue();
 			int queuePort = Integer.parseInt(ServerVariableManager.getVariable(con, UnaCloudConstants.QUEUE_PORT).getValue());
 			QueueRabbitManager rabbitManager = new QueueRabbitManager(queueUser, queuePass, queueIP, queuePort,
-					UnaCloudConstants.QUEUE_CONTROL);
+					UnaCloudConstants.QUEUE_CONTROL,
+					reader.getIntegerVariable(UnaCloudConstants.QUEUE_CONSUMERS, QueueRabbitManager.DEFAULT_CONSUMERS),
+					reader.getIntegerVariable(UnaCloudConstants.QUEUE_PREFETCH, QueueRabbitManager.DEFAULT_PREFETCH));
 			queueReceiver = new QueueMessageReceiver();
 			queueReceiver.createConnection(rabbitManager);
-			processor = new QueueMessageProcessor(CONCURRENT_THREADS_QUEUE, TASK_BY_THREAD_QUEUE);
+			processor = new QueueMessageProcessor(CONCURRENT_THREADS_QUEUE, MAX_IN_FLIGHT_QUEUE, BATCH_DEADLINE_QUEUE);
 			queueReceiver.startReceiver(processor);		
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -168,7 +204,7 @@ public class ControlManager extends ProjectManager {
 		try (Connection con = connection.getConnection()){
 			int controlPMPort = Integer.parseInt(ServerVariableManager.getVariable(con, UnaCloudConstants.CONTROL_MANAGE_PM_PORT).getValue());
 			int controlVMPort = Integer.parseInt(ServerVariableManager.getVariable(con, UnaCloudConstants.CONTROL_MANAGE_VM_PORT).getValue());
-			new PmMessageReceiver(controlPMPort, CONCURRENT_THREADS_PM).start();
+			new PmMessageReceiver(controlPMPort, CONCURRENT_THREADS_PM, REPORT_WINDOW_PM).start();
 			new VmMessageReceiver(controlVMPort, CONCURRENT_THREADS_VM).start();
 		}
 		catch (Exception e) {
@@ -0,0 +1,285 @@
+package uniandes.unacloud.control.host;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uniandes.unacloud.common.net.udp.message.MachineStateMessage;
+import uniandes.unacloud.share.db.DatabaseConnection;
+import uniandes.unacloud.share.db.PhysicalMachineManager;
+import uniandes.unacloud.share.db.entities.PhysicalMachineEntity;
+import uniandes.unacloud.share.enums.PhysicalMachineStateEnum;
+
+/**
+ * In memory view of physical machines indexed by id and hostname.
+ * Registry is loaded from database at start and updated by reports and responses from agents.
+ * Entities in registry are never modified, each change replaces entity using compare and set, so readers don't use locks.
+ * Changes are written in database in background, registry is reloaded periodically to see changes made by web server
+ * and database pool metrics are printed after each reload.
+ * Each change is numbered, a reload doesn't replace machines changed after it started to read database.
+ * @author agent
+ *
+ */
+public class HostRegistry {
+
+	/**
+	 * Time in milliseconds between writes of pending changes in database
+	 */
+	private static final long WRITE_DELAY = 1000;
+
+	/**
+	 * Time in milliseconds between reloads from database
+	 */
+	private static final long RELOAD_DELAY = 60 * 1000;
+
+	/**
+	 * Physical machines by id
+	 */
+	private final ConcurrentHashMap<Long, PhysicalMachineEntity> byId = new ConcurrentHashMap<Long, PhysicalMachineEntity>();
+
+	/**
+	 * Physical machine ids by hostname in upper case
+	 */
+	private final ConcurrentHashMap<String, Long> byHost = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * Changes waiting to be written in database by physical machine id
+	 */
+	private final ConcurrentHashMap<Long, PhysicalMachineEntity> pendingWrites = new ConcurrentHashMap<Long, PhysicalMachineEntity>();
+
+	/**
+	 * Number of last change applied to registry
+	 */
+	private final AtomicLong changes = new AtomicLong();
+
+	/**
+	 * Number of last change of each physical machine by id
+	 */
+	private final ConcurrentHashMap<Long, Long> changed = new ConcurrentHashMap<Long, Long>();
+
+	/**
+	 * Thread to write changes and reload registry
+	 */
+	private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+	
+	/**
+	 * Database connection pool
+	 */
+	private final DatabaseConnection database;
+	
+	/**
+	 * Creates an empty registry
+	 * @param database connection pool used to load and write physical machines
+	 */
+	public HostRegistry(DatabaseConnection database) {
+		this.database = database;
+	}
+
+	/**
+	 * Loads registry from database and starts to write changes in background
+	 */
+	public void start() {
+		reload();
+		writer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				writeChanges();
+			}
+		}, WRITE_DELAY, WRITE_DELAY, TimeUnit.MILLISECONDS);
+		writer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				reload();
+			}
+		}, RELOAD_DELAY, RELOAD_DELAY, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops background process, pending changes are written before stopping
+	 */
+	public void stop() {
+		writer.shutdown();
+		writeChanges();
+	}
+
+	/**
+	 * Loads all physical machines from database.
+	 * Machines with changes not written yet or changed while database was read are not replaced,
+	 * each machine is replaced using compare and set, so a change applied at the same time is kept.
+	 */
+	public void reload() {
+		long loaded = changes.get();
+		List<PhysicalMachineEntity> machines = null;
+		try (Connection con = database.getConnection()) {
+			machines = PhysicalMachineManager.getPhysicalMachines(con);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		if (machines == null)
+			return;
+		Set<Long> ids = new HashSet<Long>();
+		for (PhysicalMachineEntity machine : machines) {
+			ids.add(machine.getId());
+			PhysicalMachineEntity current = byId.get(machine.getId());
+			if (!pendingWrites.containsKey(machine.getId()) && !isChangedAfter(machine.getId(), loaded))
+				replace(current, machine);
+		}
+		for (PhysicalMachineEntity current : byId.values())
+			if (!ids.contains(current.getId()) && !isChangedAfter(current.getId(), loaded))
+				remove(current);
+		System.out.println("Host registry loaded " + byId.size() + " machines. " + database.getMetrics());
+	}
+
+	/**
+	 * Returns physical machine by id
+	 * @param id
+	 * @return physical machine, null in case it is not registered
+	 */
+	public PhysicalMachineEntity getMachine(Long id) {
+		return id == null ? null : byId.get(id);
+	}
+
+	/**
+	 * Returns physical machine by hostname
+	 * @param host
+	 * @return physical machine, null in case it is not registered
+	 */
+	public PhysicalMachineEntity getMachineByHost(String host) {
+		Long id = host == null ? null : byHost.get(host.toUpperCase());
+		return getMachine(id);
+	}
+
+	/**
+	 * Returns all physical machines in a state
+	 * @param state
+	 * @return list of physical machines
+	 */
+	public List<PhysicalMachineEntity> getMachines(PhysicalMachineStateEnum state) {
+		List<PhysicalMachineEntity> list = new ArrayList<PhysicalMachineEntity>();
+		for (PhysicalMachineEntity machine : byId.values())
+			if (machine.getStatus() == state)
+				list.add(machine);
+		return list;
+	}
+
+	/**
+	 * Changes physical machine values in registry and writes change in database in background.
+	 * Only values which are not null are changed.
+	 * @param change physical machine with id and values to be changed
+	 */
+	public void update(PhysicalMachineEntity change) {
+		if (change.getId() == null)
+			return;
+		apply(change);
+		PhysicalMachineEntity pending = pendingWrites.putIfAbsent(change.getId(), change);
+		while (pending != null && !pendingWrites.replace(change.getId(), pending, merge(pending, change)))
+			pending = pendingWrites.putIfAbsent(change.getId(), change);
+	}
+
+	/**
+	 * Changes physical machine values in registry only, used when change was written in database by caller
+	 * @param change physical machine with id and values to be changed
+	 */
+	public void apply(PhysicalMachineEntity change) {
+		//Change is numbered before it is applied, so a reload which read machine before the change doesn't replace it
+		changed.put(change.getId(), changes.incrementAndGet());
+		PhysicalMachineEntity current = getMachine(change.getId());
+		while (current != null && !byId.replace(current.getId(), current, merge(current, change)))
+			current = getMachine(change.getId());
+	}
+
+	/**
+	 * Changes physical machine values in registry based in a report saved in database by caller.
+	 * Physical machines OFF are considered ON after a report.
+	 * @param report sent by physical machine
+	 */
+	public void report(MachineStateMessage report) {
+		PhysicalMachineEntity current = getMachineByHost(report.getHost());
+		if (current == null || !report.getIp().equals(current.getIp()))
+			return;
+		PhysicalMachineEntity change = new PhysicalMachineEntity(current.getId(), null, new Date(), report.getVersion(), report.getFreeSpace(),
+				current.getStatus() == PhysicalMachineStateEnum.OFF ? PhysicalMachineStateEnum.ON : null, null, null);
+		apply(change);
+	}
+
+	/**
+	 * Writes pending changes in database using one connection.
+	 * Changes are removed after they are written, changes which fail are written again in next round.
+	 */
+	private void writeChanges() {
+		if (pendingWrites.isEmpty())
+			return;
+		try (Connection con = database.getConnection()) {
+			for (Map.Entry<Long, PhysicalMachineEntity> entry : pendingWrites.entrySet())
+				//Change merged with a newer one while it was written is kept to write the newer one
+				if (PhysicalMachineManager.setPhysicalMachine(entry.getValue(), con))
+					pendingWrites.remove(entry.getKey(), entry.getValue());
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns true in case physical machine was changed after a change number
+	 * @param id
+	 * @param number of change
+	 * @return true in case machine has a newer change
+	 */
+	private boolean isChangedAfter(Long id, long number) {
+		Long last = changed.get(id);
+		return last != null && last > number;
+	}
+
+	/**
+	 * Adds or replaces physical machine and its index in case current entity was not replaced by a change
+	 * @param current entity in registry, null in case machine is new
+	 * @param machine loaded entity
+	 */
+	private void replace(PhysicalMachineEntity current, PhysicalMachineEntity machine) {
+		if (current == null ? byId.putIfAbsent(machine.getId(), machine) != null : !byId.replace(machine.getId(), current, machine))
+			return;
+		if (current != null && current.getHost() != null && !current.getHost().equalsIgnoreCase(machine.getHost()))
+			byHost.remove(current.getHost().toUpperCase(), current.getId());
+		if (machine.getHost() != null)
+			byHost.put(machine.getHost().toUpperCase(), machine.getId());
+	}
+
+	/**
+	 * Removes physical machine and its index in case current entity was not replaced by a change
+	 * @param current entity in registry
+	 */
+	private void remove(PhysicalMachineEntity current) {
+		if (!byId.remove(current.getId(), current))
+			return;
+		changed.remove(current.getId());
+		if (current.getHost() != null)
+			byHost.remove(current.getHost().toUpperCase(), current.getId());
+	}
+
+	/**
+	 * Returns a new entity with values of base replaced by values not null in change
+	 * @param base
+	 * @param change
+	 * @return new entity
+	 */
+	private static PhysicalMachineEntity merge(PhysicalMachineEntity base, PhysicalMachineEntity change) {
+		return new PhysicalMachineEntity(
+				base.getId(),
+				change.getIp() != null ? change.getIp() : base.getIp(),
+				change.getLastReport() != null ? change.getLastReport() : base.getLastReport(),
+				change.getVersion() != null ? change.getVersion() : base.getVersion(),
+				change.getFreeSpace() != null ? change.getFreeSpace() : base.getFreeSpace(),
+				change.getStatus() != null ? change.getStatus() : base.getStatus(),
+				change.getHost() != null ? change.getHost() : base.getHost(),
+				change.getLogName() != null ? change.getLogName() : base.getLogName());
+	}
+}
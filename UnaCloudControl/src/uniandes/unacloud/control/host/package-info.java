@@ -0,0 +1,6 @@
+/**
+ * In this package are located classes to keep in memory the state of physical machines
+ * @author agent
+ *
+ */
+package uniandes.unacloud.control.host;
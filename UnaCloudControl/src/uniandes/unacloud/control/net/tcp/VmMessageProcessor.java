@@ -1,10 +1,9 @@
 package uniandes.unacloud.control.net.tcp;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.sql.Connection;
 
+import uniandes.unacloud.common.net.codec.MessageConnection;
 import uniandes.unacloud.common.net.tcp.AbstractTCPSocketProcessor;
 import uniandes.unacloud.common.net.tcp.message.ExecutionStateMessage;
 import uniandes.unacloud.common.net.tcp.message.UnaCloudResponse;
@@ -27,9 +26,8 @@ public class VmMessageProcessor extends AbstractTCPSocketProcessor {
 	@Override
 	public void processMessage(Socket socket) throws Exception {
 			
-		ObjectInputStream ios = new ObjectInputStream(socket.getInputStream());
-		ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
-		ExecutionStateMessage uMessage = (ExecutionStateMessage)ios.readObject();
+		MessageConnection connection = MessageConnection.accept(socket);
+		ExecutionStateMessage uMessage = (ExecutionStateMessage) connection.readMessage();
 		System.out.println("Receive VM message: " + uMessage.toString());
 		if (uMessage.getType() != null && uMessage.getType().equals(UDPMessageEnum.STATE_EXE.name())) {
 			try (Connection con = ControlManager.getInstance().getDBConnection();) {
@@ -37,14 +35,14 @@ public class VmMessageProcessor extends AbstractTCPSocketProcessor {
 				System.out.println("Report EXE: " + message.getHost() + " - ");
 				ExecutionEntity exe = new ExecutionEntity(message.getExecutionCode(), 0, 0, null, null, message.getState(), message.getHost(), message.getExecutionMessage());
 				ExecutionManager.updateExecution(exe, null, con);
-				oos.writeObject(new UnaCloudResponse("Message processed"));
+				connection.writeMessage(new UnaCloudResponse("Message processed"));
 			} catch (Exception e) {
 				e.printStackTrace();
-				oos.writeObject(new UnaCloudResponse("Error: " + e.getMessage()));
+				connection.writeMessage(new UnaCloudResponse("Error: " + e.getMessage()));
 			}			 
 		}
 		else 
-			oos.writeObject(new UnaCloudResponse("Error: message does not have a correct format"));
+			connection.writeMessage(new UnaCloudResponse("Error: message does not have a correct format"));
 		
 	}	
 
@@ -1,50 +1,31 @@
 package uniandes.unacloud.control.net.udp;
 
-import java.sql.Connection;
-import java.util.List;
-
 import uniandes.unacloud.common.net.UnaCloudMessage;
 import uniandes.unacloud.common.net.udp.AbstractUDPReceiverProcessor;
 import uniandes.unacloud.common.net.udp.message.UDPMessageEnum;
 import uniandes.unacloud.common.net.udp.message.MachineStateMessage;
-import uniandes.unacloud.control.ControlManager;
-import uniandes.unacloud.share.db.ExecutionManager;
-import uniandes.unacloud.share.db.PhysicalMachineManager;
 
 /**
- * Processes message from physical machines with reports about physical machines
+ * Processes message from physical machines with reports about physical machines, reports are saved in batches by buffer
  * @author CesarF
  *
  */
 public class PmMessageProcessor extends AbstractUDPReceiverProcessor {
+	
+	/**
+	 * Buffer where reports are saved before being written in database
+	 */
+	private PmReportBuffer buffer;
 
-	public PmMessageProcessor(UnaCloudMessage message) {
+	public PmMessageProcessor(UnaCloudMessage message, PmReportBuffer buffer) {
 		super(message);
+		this.buffer = buffer;
 	}
 
 	@Override
 	public void processMessage(UnaCloudMessage uMessage) throws Exception {
-		if (uMessage.getType() != null && uMessage.getType().equals(UDPMessageEnum.STATE_PM.name())) {
-			List<Long> idsToStop = null;
-			MachineStateMessage message = (MachineStateMessage)uMessage;
-			try (Connection con = ControlManager.getInstance().getDBConnection();) {				
-				if (PhysicalMachineManager.updatePhysicalMachine(message.getHost(), message.getHostUser(), 
-						message.getIp(), message.getFreeSpace(), message.getDataSpace(), message.getVersion(), con)) {
-					Long[] ids = message.getExecutions();	
-					if (ids != null)
-						idsToStop = ExecutionManager.updateExecutions(message.getHost(), ids, con);				
-				}			
-			} catch (Exception e) {
-				e.printStackTrace();
-			}				
-			if (idsToStop != null && idsToStop.size() > 0) {
-				//Send stop machines message because executions has been reported as finished or failed to user
-				Long[] idsLong = new Long[idsToStop.size()];
-				for (int i = 0; i < idsLong.length; i++) 
-					idsLong[i] = idsToStop.get(i);					
-				ControlManager.getInstance().sendStopMessageExecutions(idsLong);
-			}
-		}
+		if (uMessage.getType() != null && uMessage.getType().equals(UDPMessageEnum.STATE_PM.name()))
+			buffer.add((MachineStateMessage) uMessage);
 		else {
 			System.err.println("ERROR in message: " + uMessage.getIp() + " - " + uMessage.getHost() + " - " + uMessage.toString() );
 		}
@@ -11,14 +11,36 @@ import uniandes.unacloud.common.net.udp.AbstractUDPMessageReceiver;
  *
  */
 public class PmMessageReceiver extends AbstractUDPMessageReceiver {
+	
+	/**
+	 * Buffer to save reports in batches
+	 */
+	private PmReportBuffer buffer;
 
-	public PmMessageReceiver(int port, int threads) throws SocketException {		
+	/**
+	 * Creates a receiver which saves reports in batches each window
+	 * @param port
+	 * @param threads
+	 * @param window time in milliseconds to buffer reports
+	 * @throws SocketException
+	 */
+	public PmMessageReceiver(int port, int threads, long window) throws SocketException {		
 		super(port,threads);
+		buffer = new PmReportBuffer(window, PmReportBuffer.DEFAULT_MAX_BATCH);
+		buffer.start();
 	}
 
 	@Override
 	public Runnable processMessage(UnaCloudMessage message) {
-		return new PmMessageProcessor(message);
+		return new PmMessageProcessor(message, buffer);
+	}
+	
+	/**
+	 * Returns buffer used to save reports
+	 * @return report buffer
+	 */
+	public PmReportBuffer getBuffer() {
+		return buffer;
 	}
 
 }
@@ -0,0 +1,291 @@
+package uniandes.unacloud.control.net.udp;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uniandes.unacloud.common.net.udp.message.MachineStateMessage;
+import uniandes.unacloud.control.ControlManager;
+import uniandes.unacloud.control.host.HostRegistry;
+import uniandes.unacloud.share.db.ExecutionManager;
+import uniandes.unacloud.share.db.PhysicalMachineManager;
+
+/**
+ * Buffers reports from physical machines during a window and saves them in database in batches using one connection.
+ * Saved reports are applied to host registry.
+ * Only the latest report of each kind (executions or resources) by host is kept, older reports in window are discarded.
+ * Reports of a batch which could not be saved are returned to buffer, unless a newer report of the same host arrived.
+ * Keeps metrics about size and latency of each flush.
+ * @author agent
+ *
+ */
+public class PmReportBuffer {
+
+	/**
+	 * Default time in milliseconds to buffer reports before saving them
+	 */
+	public static final long DEFAULT_WINDOW = 2000;
+
+	/**
+	 * Default quantity of hosts in buffer which forces a flush before window ends
+	 */
+	public static final int DEFAULT_MAX_BATCH = 1000;
+
+	/**
+	 * Latest report with executions by host
+	 */
+	private final ConcurrentHashMap<String, MachineStateMessage> states = new ConcurrentHashMap<String, MachineStateMessage>();
+
+	/**
+	 * Latest report with free space, data space and version by host
+	 */
+	private final ConcurrentHashMap<String, MachineStateMessage> resources = new ConcurrentHashMap<String, MachineStateMessage>();
+
+	/**
+	 * Thread to flush buffer
+	 */
+	private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor();
+
+	/**
+	 * True when a flush was requested because buffer is full
+	 */
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+	/**
+	 * Time in milliseconds to buffer reports
+	 */
+	private final long window;
+
+	/**
+	 * Quantity of hosts which forces a flush
+	 */
+	private final int maxBatch;
+
+	private final AtomicLong receivedReports = new AtomicLong();
+
+	private final AtomicLong savedReports = new AtomicLong();
+
+	private final AtomicLong flushes = new AtomicLong();
+
+	private final AtomicLong flushTime = new AtomicLong();
+
+	private volatile int lastBatchSize;
+
+	private volatile int maxBatchSize;
+
+	private volatile long lastFlushTime;
+
+	/**
+	 * Creates a buffer with default window and batch size
+	 */
+	public PmReportBuffer() {
+		this(DEFAULT_WINDOW, DEFAULT_MAX_BATCH);
+	}
+
+	/**
+	 * Creates a new buffer
+	 * @param window time in milliseconds to buffer reports, window > 0
+	 * @param maxBatch quantity of hosts which forces a flush, maxBatch > 0
+	 */
+	public PmReportBuffer(long window, int maxBatch) {
+		if (window <= 0 || maxBatch <= 0)
+			throw new IllegalArgumentException("parameters not valid");
+		this.window = window;
+		this.maxBatch = maxBatch;
+	}
+
+	/**
+	 * Starts to flush buffer each window
+	 */
+	public void start() {
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, window, window, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops flushing, reports in buffer are saved before stopping
+	 */
+	public void stop() {
+		flusher.shutdown();
+		flush();
+	}
+
+	/**
+	 * Adds a report to buffer replacing previous report of the same kind from the same host
+	 * @param message report from physical machine
+	 */
+	public void add(MachineStateMessage message) {
+		receivedReports.incrementAndGet();
+		String host = message.getHost().toUpperCase();
+		if (message.getExecutions() != null)
+			states.put(host, message);
+		else
+			resources.put(host, message);
+		if (states.size() + resources.size() >= maxBatch && flushRequested.compareAndSet(false, true))
+			flusher.execute(new Runnable() {
+				@Override
+				public void run() {
+					flushRequested.set(false);
+					flush();
+				}
+			});
+	}
+
+	/**
+	 * Saves reports in buffer in database and sends stop messages for executions which are not running in server.
+	 * In case database can't be updated reports are returned to buffer to be saved in next flush
+	 */
+	public synchronized void flush() {
+		List<MachineStateMessage> reports = new ArrayList<MachineStateMessage>();
+		Map<String, Long[]> executions = new HashMap<String, Long[]>();
+		drain(resources, reports);
+		for (MachineStateMessage message : drain(states, reports))
+			executions.put(message.getHost(), message.getExecutions());
+		if (reports.isEmpty())
+			return;
+
+		long start = System.currentTimeMillis();
+		List<Long> idsToStop = null;
+		boolean saved = false;
+		try (Connection con = ControlManager.getInstance().getDBConnection();) {
+			con.setAutoCommit(false);
+			try {
+				if (PhysicalMachineManager.updatePhysicalMachines(reports, con))
+					idsToStop = ExecutionManager.updateExecutions(executions, con);
+				saved = idsToStop != null;
+				if (saved)
+					con.commit();
+				else
+					con.rollback();
+			} catch (Exception e) {
+				con.rollback();
+				throw e;
+			} finally {
+				con.setAutoCommit(true);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		long time = System.currentTimeMillis() - start;
+		lastFlushTime = time;
+		flushTime.addAndGet(time);
+		flushes.incrementAndGet();
+		if (!saved) {
+			requeue(reports);
+			System.err.println("Error saving " + reports.size() + " reports in " + time + " ms, they are kept in buffer for next flush");
+			return;
+		}
+		HostRegistry registry = ControlManager.getInstance().getHostRegistry();
+		for (MachineStateMessage report : reports)
+			registry.report(report);
+		lastBatchSize = reports.size();
+		maxBatchSize = Math.max(maxBatchSize, reports.size());
+		savedReports.addAndGet(reports.size());
+		System.out.println("Saved " + reports.size() + " reports in " + time + " ms, received " + receivedReports.get() + " saved " + savedReports.get());
+
+		if (idsToStop != null && idsToStop.size() > 0) {
+			//Send stop machines message because executions has been reported as finished or failed to user
+			ControlManager.getInstance().sendStopMessageExecutions(idsToStop.toArray(new Long[idsToStop.size()]));
+		}
+	}
+
+	/**
+	 * Removes all reports from map and adds them to list
+	 * @param buffer map of reports by host
+	 * @param reports list where reports are added
+	 * @return removed reports
+	 */
+	private static List<MachineStateMessage> drain(ConcurrentHashMap<String, MachineStateMessage> buffer, List<MachineStateMessage> reports) {
+		List<MachineStateMessage> drained = new ArrayList<MachineStateMessage>();
+		for (String host : buffer.keySet()) {
+			MachineStateMessage message = buffer.remove(host);
+			if (message != null)
+				drained.add(message);
+		}
+		reports.addAll(drained);
+		return drained;
+	}
+
+	/**
+	 * Returns reports to buffer, reports received from the same host while they were being saved are newer and are kept
+	 * @param reports reports which could not be saved
+	 */
+	private void requeue(List<MachineStateMessage> reports) {
+		for (MachineStateMessage message : reports) {
+			String host = message.getHost().toUpperCase();
+			if (message.getExecutions() != null)
+				states.putIfAbsent(host, message);
+			else
+				resources.putIfAbsent(host, message);
+		}
+	}
+
+	/**
+	 * Returns quantity of reports received
+	 * @return reports received
+	 */
+	public long getReceivedReports() {
+		return receivedReports.get();
+	}
+
+	/**
+	 * Returns quantity of reports saved in database, reports replaced in buffer are not saved
+	 * @return reports saved
+	 */
+	public long getSavedReports() {
+		return savedReports.get();
+	}
+
+	/**
+	 * Returns quantity of flushes
+	 * @return flushes
+	 */
+	public long getFlushes() {
+		return flushes.get();
+	}
+
+	/**
+	 * Returns quantity of reports saved in last flush
+	 * @return last batch size
+	 */
+	public int getLastBatchSize() {
+		return lastBatchSize;
+	}
+
+	/**
+	 * Returns max quantity of reports saved in one flush
+	 * @return max batch size
+	 */
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * Returns time in milliseconds used by last flush
+	 * @return last flush latency
+	 */
+	public long getLastFlushTime() {
+		return lastFlushTime;
+	}
+
+	/**
+	 * Returns average time in milliseconds used by flushes
+	 * @return average flush latency
+	 */
+	public long getAverageFlushTime() {
+		long count = flushes.get();
+		return count == 0 ? 0 : flushTime.get() / count;
+	}
+}
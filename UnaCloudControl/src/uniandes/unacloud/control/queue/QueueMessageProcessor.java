@@ -9,6 +9,7 @@ import java.util.concurrent.TimeUnit;
 
 import uniandes.unacloud.common.enums.ExecutionProcessEnum;
 import uniandes.unacloud.common.net.UnaCloudMessage;
+import uniandes.unacloud.common.net.tcp.TCPConnectionPool;
 import uniandes.unacloud.common.net.tcp.TCPMultipleSender;
 import uniandes.unacloud.common.net.tcp.TCPResponseProcessor;
 import uniandes.unacloud.common.net.tcp.message.AgentMessage;
@@ -22,8 +23,8 @@ import uniandes.unacloud.common.utils.Time;
 import uniandes.unacloud.control.ControlManager;
 import uniandes.unacloud.share.db.DeploymentManager;
 import uniandes.unacloud.share.db.ExecutionManager;
-import uniandes.unacloud.share.db.PhysicalMachineManager;
 import uniandes.unacloud.share.db.ImageManager;
+import uniandes.unacloud.share.db.PhysicalMachineManager;
 import uniandes.unacloud.share.db.entities.DeployedImageEntity;
 import uniandes.unacloud.share.db.entities.DeploymentEntity;
 import uniandes.unacloud.share.db.entities.ExecutionEntity;
@@ -50,9 +51,9 @@ import uniandes.unacloud.share.queue.messages.QueueMessage;
 public class QueueMessageProcessor implements QueueReader {
 	
 	/**
-	 * Quantity of messages send in each thread
+	 * Long lived connections with agents
 	 */
-	private final int messagesByThread;
+	private final TCPConnectionPool agentConnections;
 		
 	/**
 	 * Pool of threads to attend messages
@@ -60,16 +61,17 @@ public class QueueMessageProcessor implements QueueReader {
 	private Executor threadPool;
 	
 	/**
-	 * Creates message processor based in a quantity of threads and messages processed by thread
+	 * Creates message processor based in a quantity of threads, connections in flight by batch and deadline by batch
 	 * @param threads to run in processor threads > 0
-	 * @param messages by thread messages > 0 
-	 * @throws Exception in case threads or messages have no valid values
+	 * @param maxInFlight connections opened at the same time by batch to agents without sessions maxInFlight > 0
+	 * @param batchDeadline time in milliseconds to wait each agent response batchDeadline > 0
+	 * @throws Exception in case threads, maxInFlight or batchDeadline have no valid values
 	 */
-	public QueueMessageProcessor(int threads, int messages) throws Exception {
-		if (threads <= 0 || messages <= 0) 
+	public QueueMessageProcessor(int threads, int maxInFlight, long batchDeadline) throws Exception {
+		if (threads <= 0 || maxInFlight <= 0 || batchDeadline <= 0) 
 			throw new Exception("parameters not valid");
 		threadPool = Executors.newFixedThreadPool(threads);
-		this.messagesByThread = messages;
+		agentConnections = new TCPConnectionPool(maxInFlight, batchDeadline);
 	}
 
 	@Override
@@ -108,42 +110,26 @@ public class QueueMessageProcessor implements QueueReader {
 	 */
 	private void removeImageFromCache(MessageIdOfImage message) {
 		Long imageId =  message.getIdImage();
-		List<PhysicalMachineEntity> machines = null;
-		try (Connection con = ControlManager.getInstance().getDBConnection();) {
-			machines = PhysicalMachineManager.getAllPhysicalMachine(PhysicalMachineStateEnum.ON, con);	
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+		List<PhysicalMachineEntity> machines = ControlManager.getInstance().getHostRegistry().getMachines(PhysicalMachineStateEnum.ON);
 		try {			
 			if (machines.size() > 0) {
 				
 				List<UnaCloudMessage> messageList = new ArrayList<UnaCloudMessage>();
-				for (int i = 0, j = 1; i < machines.size() ; i++, j++) {
+				for (int i = 0; i < machines.size(); i++)
 					messageList.add(new ClearImageFromCacheMessage(machines.get(i).getIp(), ControlManager.getInstance().getAgentPort(), null, imageId, machines.get(i).getId()));
+				agentConnections.send(messageList, new TCPResponseProcessor() {
+					
+					@Override
+					public void attendResponse(Object response, Object message) {
+						
+					}
 					
-					if (j >= messagesByThread || i == machines.size()-1) {
-						threadPool.execute(new TCPMultipleSender(messageList, new TCPResponseProcessor() {
-							
-							@Override
-							public void attendResponse(Object response, Object message) {
-								
-							}
-							
-							@Override
-							public void attendError(Object error, String message) {
-								ClearImageFromCacheMessage mss = (ClearImageFromCacheMessage) error;
-								try (Connection con2 = ControlManager.getInstance().getDBConnection()) {									
-									PhysicalMachineEntity pm = new PhysicalMachineEntity(mss.getImageId(), PhysicalMachineStateEnum.OFF);
-									PhysicalMachineManager.setPhysicalMachine(pm, con2);
-								} catch (Exception e) {
-									e.printStackTrace();
-								}								
-							}
-						}));
-						j = 0;
-						messageList = new ArrayList<UnaCloudMessage>();
-					}					
-				}					
+					@Override
+					public void attendError(Object error, String message) {
+						ClearImageFromCacheMessage mss = (ClearImageFromCacheMessage) error;
+						ControlManager.getInstance().getHostRegistry().update(new PhysicalMachineEntity(mss.getPmId(), PhysicalMachineStateEnum.OFF));
+					}
+				});
 			} 
 						
 		} catch (Exception e) {
@@ -181,60 +167,53 @@ public class QueueMessageProcessor implements QueueReader {
 			
 		int task = messageTask.getTask().getId();
 		Long[] ids = messageTask.getIdMachines();
+		//Machines were changed to PROCESSING by web server before sending message, only them receive task.
+		//They are read from database because registry could be loaded before web server changed them
 		List<PhysicalMachineEntity> machines = null;
 		try (Connection con = ControlManager.getInstance().getDBConnection();) {	
 			machines = PhysicalMachineManager.getPhysicalMachineList(ids, PhysicalMachineStateEnum.PROCESSING, con);
 		} catch (Exception e) {
 			e.printStackTrace();		
 		}
-		if (machines != null) {
+		if (machines != null && machines.size() > 0) {
+			for (PhysicalMachineEntity machine : machines)
+				ControlManager.getInstance().getHostRegistry().apply(new PhysicalMachineEntity(machine.getId(), PhysicalMachineStateEnum.PROCESSING));
 			try {
 				System.out.println("Send message to " + machines.size());
 				List<UnaCloudMessage> messageList = new ArrayList<UnaCloudMessage>();
-				for (int i = 0, j = 1; i < machines.size() ; i++, j++) {
+				for (int i = 0; i < machines.size(); i++)
 					messageList.add(new AgentMessage(machines.get(i).getIp(), ControlManager.getInstance().getAgentPort(), null, task, machines.get(i).getId()));
+				System.out.println("\tReady for " + messageList.size());
+				agentConnections.send(messageList, new TCPResponseProcessor() {
 					
-					if (j >= messagesByThread || i == machines.size()-1) {
-						System.out.println("\tReady for " + messageList.size());
-						threadPool.execute(new TCPMultipleSender(messageList, new TCPResponseProcessor() {
-							
-							@Override
-							public void attendResponse(Object response, Object message) {
-								AgentMessage mss = (AgentMessage) message;
-								UnaCloudResponse resp = (UnaCloudResponse) response;
-								try (Connection con2 = ControlManager.getInstance().getDBConnection()) {
-									PhysicalMachineEntity pm = null;
-									System.out.println("Message process: " + mss.getTask() + "  -  " + mss.getPmId() + " - " + resp.getMessage());
-									if (mss.getTask() == AgentMessage.STOP_CLIENT || mss.getTask() == AgentMessage.UPDATE_OPERATION) 
-										pm = new PhysicalMachineEntity(mss.getPmId(), PhysicalMachineStateEnum.OFF);
-									else if (mss.getTask() == AgentMessage.GET_DATA_SPACE) 
-										pm = new PhysicalMachineEntity(mss.getPmId(), null, null, null, Long.parseLong(resp.getMessage()), PhysicalMachineStateEnum.ON, null, null);
-									else if (mss.getTask() == AgentMessage.GET_VERSION) 
-										pm = new PhysicalMachineEntity(mss.getPmId(), null, null, resp.getMessage(), null, PhysicalMachineStateEnum.ON, null, null);
-									else 
-										pm = new PhysicalMachineEntity(mss.getPmId(), PhysicalMachineStateEnum.ON);
-									PhysicalMachineManager.setPhysicalMachine(pm, con2);
-								} catch (Exception e) {
-									e.printStackTrace();
-								}
-							}
-							
-							@Override
-							public void attendError(Object error, String message) {
-								AgentMessage mss = (AgentMessage) error;
-								System.out.println("Error: " + message + " - " + mss);
-								try (Connection con2 = ControlManager.getInstance().getDBConnection()) {
-									PhysicalMachineEntity pm = new PhysicalMachineEntity(mss.getPmId(), PhysicalMachineStateEnum.OFF);
-									PhysicalMachineManager.setPhysicalMachine(pm, con2);
-								} catch (Exception e) {
-									e.printStackTrace();
-								}							
-							}
-						}));
-						j = 0;
-						messageList = new ArrayList<UnaCloudMessage>();
-					}		
-				}	
+					@Override
+					public void attendResponse(Object response, Object message) {
+						AgentMessage mss = (AgentMessage) message;
+						UnaCloudResponse resp = (UnaCloudResponse) response;
+						try {
+							PhysicalMachineEntity pm = null;
+							System.out.println("Message process: " + mss.getTask() + "  -  " + mss.getPmId() + " - " + resp.getMessage());
+							if (mss.getTask() == AgentMessage.STOP_CLIENT || mss.getTask() == AgentMessage.UPDATE_OPERATION) 
+								pm = new PhysicalMachineEntity(mss.getPmId(), PhysicalMachineStateEnum.OFF);
+							else if (mss.getTask() == AgentMessage.GET_DATA_SPACE) 
+								pm = new PhysicalMachineEntity(mss.getPmId(), null, null, null, Long.parseLong(resp.getMessage()), PhysicalMachineStateEnum.ON, null, null);
+							else if (mss.getTask() == AgentMessage.GET_VERSION) 
+								pm = new PhysicalMachineEntity(mss.getPmId(), null, null, resp.getMessage(), null, PhysicalMachineStateEnum.ON, null, null);
+							else 
+								pm = new PhysicalMachineEntity(mss.getPmId(), PhysicalMachineStateEnum.ON);
+							ControlManager.getInstance().getHostRegistry().update(pm);
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+					}
+					
+					@Override
+					public void attendError(Object error, String message) {
+						AgentMessage mss = (AgentMessage) error;
+						System.out.println("Error: " + message + " - " + mss);
+						ControlManager.getInstance().getHostRegistry().update(new PhysicalMachineEntity(mss.getPmId(), PhysicalMachineStateEnum.OFF));
+					}
+				});
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
@@ -260,9 +239,9 @@ public class QueueMessageProcessor implements QueueReader {
 		if (deploy != null) {
 			try {
 				System.out.println("Deploy " + deploy.getId());
+				List<UnaCloudMessage> messageList = new ArrayList<UnaCloudMessage>();
 				for (DeployedImageEntity image : deploy.getImages()) {
-					List<UnaCloudMessage> messageList = new ArrayList<UnaCloudMessage>();
-					for (int i = 0, j = 1; i < image.getExecutions().size() ; i++, j++) {
+					for (int i = 0; i < image.getExecutions().size(); i++) {
 						List<ImageNetInterfaceComponent> interfaces = new ArrayList<ImageNetInterfaceComponent>();
 						ExecutionEntity execution = image.getExecutions().get(i);
 						for (NetInterfaceEntity interf: execution.getInterfaces())
@@ -283,39 +262,31 @@ public class QueueMessageProcessor implements QueueReader {
 						System.out.println("Execution " + execution.getId() + " - " + execution.getTimeInHours() + " - " + execution.getDuration());
 						
 						messageList.add(vmsm);
-						System.out.println(i+" "+(image.getExecutions().size()-1)+" "+(i == image.getExecutions().size()-1));
-						System.out.println(j+" "+messagesByThread+" "+(j >= messagesByThread) );
-                        System.out.println("Conditions met "+(j >= messagesByThread || i == image.getExecutions().size()-1));
-                        if (j >= messagesByThread || i == image.getExecutions().size()-1) {
-
-							System.out.println("Execute messages");
-							threadPool.execute(new TCPMultipleSender(messageList, new TCPResponseProcessor() {
-								
-								@Override
-								public void attendResponse(Object response, Object message) {
-									UnaCloudResponse resp = (UnaCloudResponse) response;
-									System.out.println("New Response: " + resp);
-								}
-								
-								@Override
-								public void attendError(Object error, String message) {
-									ExecutionStartMessage mss = (ExecutionStartMessage) error;
-									System.out.println("Error: " + error + " - " + message);
-									try (Connection con2 = ControlManager.getInstance().getDBConnection()) {
-										PhysicalMachineEntity pm = new PhysicalMachineEntity(mss.getPmId(), null, null, PhysicalMachineStateEnum.OFF, null);
-										PhysicalMachineManager.setPhysicalMachine(pm, con2);
-										ExecutionEntity exe = new ExecutionEntity(mss.getExecutionId(), 0, 0, null, null, ExecutionProcessEnum.FAIL, null, "Communication error " + message);
-										ExecutionManager.updateExecution(exe, ExecutionStateEnum.REQUESTED, con2);
-									} catch (Exception e) {
-										e.printStackTrace();
-									}						
-								}
-							}));
-							j = 0;
-							messageList = new ArrayList<UnaCloudMessage>();
-						}
-					}					
-				}		
+					}
+				}
+				System.out.println("Execute messages");
+				agentConnections.send(messageList, new TCPResponseProcessor() {
+					
+					@Override
+					public void attendResponse(Object response, Object message) {
+						UnaCloudResponse resp = (UnaCloudResponse) response;
+						System.out.println("New Response: " + resp);
+					}
+					
+					@Override
+					public void attendError(Object error, String message) {
+						ExecutionStartMessage mss = (ExecutionStartMessage) error;
+						System.out.println("Error: " + error + " - " + message);
+						try (Connection con2 = ControlManager.getInstance().getDBConnection()) {
+							PhysicalMachineEntity pm = new PhysicalMachineEntity(mss.getPmId(), null, null, PhysicalMachineStateEnum.OFF, null);
+							ControlManager.getInstance().getHostRegistry().update(pm);
+							ExecutionEntity exe = new ExecutionEntity(mss.getExecutionId(), 0, 0, null, null, ExecutionProcessEnum.FAIL, null, "Communication error " + message);
+							ExecutionManager.updateExecution(exe, ExecutionStateEnum.REQUESTED, con2);
+						} catch (Exception e) {
+							e.printStackTrace();
+						}						
+					}
+				});
 			} catch (Exception e) {
 				e.printStackTrace();
 			}					
@@ -359,7 +330,7 @@ public class QueueMessageProcessor implements QueueReader {
 		if (executions != null) {
 			try {
 				List<UnaCloudMessage> messageList = new ArrayList<UnaCloudMessage>();
-				for (int i = 0, j = 1; i < executions.size() ; i++, j++) {
+				for (int i = 0; i < executions.size(); i++) {
 					ExecutionEntity execution = executions.get(i);
 					ImageOperationMessage vmsm  = new ImageOperationMessage(
 							execution.getNode().getIp(), 
@@ -369,37 +340,33 @@ public class QueueMessageProcessor implements QueueReader {
 							execution.getNode().getId(),
 							execution.getId());
 					messageList.add(vmsm);
-					if (j >= messagesByThread || i == executions.size()-1) {
-						threadPool.execute(new TCPMultipleSender(messageList, new TCPResponseProcessor() {
-							
-							@Override
-							public void attendResponse(Object response, Object message) {
-								ImageOperationMessage mss = (ImageOperationMessage) message;
-								try (Connection con2 = ControlManager.getInstance().getDBConnection()) {
-									ExecutionEntity exe = new ExecutionEntity(mss.getExecutionId(), 0, 0, null, null, ExecutionProcessEnum.SUCCESS, null, text);
-									ExecutionManager.updateExecution(exe, null, con2);
-								} catch (Exception e) {
-									e.printStackTrace();
-								}
-							}
-							
-							@Override
-							public void attendError(Object error, String message) {
-								ImageOperationMessage mss = (ImageOperationMessage) error;
-								try (Connection con2 = ControlManager.getInstance().getDBConnection()) {
-									PhysicalMachineEntity pm = new PhysicalMachineEntity(mss.getPmId(), PhysicalMachineStateEnum.OFF);
-									PhysicalMachineManager.setPhysicalMachine(pm, con2);
-									ExecutionEntity exe = new ExecutionEntity(mss.getExecutionId(), 0, 0, null, null, ExecutionProcessEnum.SUCCESS, null, "Connection lost with agent, execution will be removed when it reconnects");
-									ExecutionManager.updateExecution(exe, null, con2);
-								} catch (Exception e) {
-									e.printStackTrace();
-								}
-							}
-						}));
-						j = 0;
-						messageList = new ArrayList<UnaCloudMessage>();
-					}				
 				}
+				agentConnections.send(messageList, new TCPResponseProcessor() {
+					
+					@Override
+					public void attendResponse(Object response, Object message) {
+						ImageOperationMessage mss = (ImageOperationMessage) message;
+						try (Connection con2 = ControlManager.getInstance().getDBConnection()) {
+							ExecutionEntity exe = new ExecutionEntity(mss.getExecutionId(), 0, 0, null, null, ExecutionProcessEnum.SUCCESS, null, text);
+							ExecutionManager.updateExecution(exe, null, con2);
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+					}
+					
+					@Override
+					public void attendError(Object error, String message) {
+						ImageOperationMessage mss = (ImageOperationMessage) error;
+						try (Connection con2 = ControlManager.getInstance().getDBConnection()) {
+							PhysicalMachineEntity pm = new PhysicalMachineEntity(mss.getPmId(), PhysicalMachineStateEnum.OFF);
+							ControlManager.getInstance().getHostRegistry().update(pm);
+							ExecutionEntity exe = new ExecutionEntity(mss.getExecutionId(), 0, 0, null, null, ExecutionProcessEnum.SUCCESS, null, "Connection lost with agent, execution will be removed when it reconnects");
+							ExecutionManager.updateExecution(exe, null, con2);
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+					}
+				});
 			} catch (Exception e) {
 				e.printStackTrace();
 			}			
@@ -428,7 +395,7 @@ public class QueueMessageProcessor implements QueueReader {
 		if (executions != null) {
 			try {
 				List<UnaCloudMessage> messageList = new ArrayList<UnaCloudMessage>();
-				for (int i = 0, j = 1; i < executions.size() ; i++, j++) {
+				for (int i = 0; i < executions.size(); i++) {
 					ExecutionEntity execution = executions.get(i);
 					List<ImageNetInterfaceComponent> interfaces = new ArrayList<ImageNetInterfaceComponent>();
 					for (NetInterfaceEntity interf: execution.getInterfaces())
@@ -449,34 +416,28 @@ public class QueueMessageProcessor implements QueueReader {
 					System.out.println("Execution from " + execution.getTimeInHours() + " - " + execution.getDuration());
 					
 					messageList.add(vmsm);
+				}
+				agentConnections.send(messageList, new TCPResponseProcessor() {
 					
-					if (j >= messagesByThread || i == executions.size()-1) {
-												
-						threadPool.execute(new TCPMultipleSender(messageList, new TCPResponseProcessor() {
-							
-							@Override
-							public void attendResponse(Object response, Object message) {
-								//ExecutionStartMessage mss = (ExecutionStartMessage) message;
-								
-							}
-							
-							@Override
-							public void attendError(Object error, String message) {
-								ExecutionStartMessage mss = (ExecutionStartMessage) error;
-								try (Connection con2 = ControlManager.getInstance().getDBConnection()) {
-									PhysicalMachineEntity pm = new PhysicalMachineEntity(mss.getPmId(), null, null, PhysicalMachineStateEnum.OFF, null);
-									PhysicalMachineManager.setPhysicalMachine(pm, con2);
-									ExecutionEntity exe = new ExecutionEntity(mss.getExecutionId(), 0, 0, null, null, ExecutionProcessEnum.FAIL, null, "Communication error " + message);
-									ExecutionManager.updateExecution(exe, ExecutionStateEnum.REQUESTED, con2);
-								} catch (Exception e) {
-									e.printStackTrace();
-								}
-							}
-						}));
-						j = 0;
-						messageList = new ArrayList<UnaCloudMessage>();
+					@Override
+					public void attendResponse(Object response, Object message) {
+						//ExecutionStartMessage mss = (ExecutionStartMessage) message;
+						
+					}
+					
+					@Override
+					public void attendError(Object error, String message) {
+						ExecutionStartMessage mss = (ExecutionStartMessage) error;
+						try (Connection con2 = ControlManager.getInstance().getDBConnection()) {
+							PhysicalMachineEntity pm = new PhysicalMachineEntity(mss.getPmId(), null, null, PhysicalMachineStateEnum.OFF, null);
+							ControlManager.getInstance().getHostRegistry().update(pm);
+							ExecutionEntity exe = new ExecutionEntity(mss.getExecutionId(), 0, 0, null, null, ExecutionProcessEnum.FAIL, null, "Communication error " + message);
+							ExecutionManager.updateExecution(exe, ExecutionStateEnum.REQUESTED, con2);
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
 					}
-				}	
+				});
 			} catch (Exception e) {
 				e.printStackTrace();
 			}				
@@ -534,7 +495,7 @@ public class QueueMessageProcessor implements QueueReader {
 						ExecutionSaveImageMessage mss = (ExecutionSaveImageMessage) error;
 						try (Connection con2 = ControlManager.getInstance().getDBConnection()) {
 							PhysicalMachineEntity pm = new PhysicalMachineEntity(mss.getPmId(), PhysicalMachineStateEnum.OFF);
-							PhysicalMachineManager.setPhysicalMachine(pm,con2);
+							ControlManager.getInstance().getHostRegistry().update(pm);
 							ExecutionEntity exe = new ExecutionEntity(mss.getExecutionId(), 0, 0, null, null, ExecutionProcessEnum.FAIL, null, "Error copying image " + message);
 							ExecutionManager.updateExecution(exe, ExecutionStateEnum.REQUEST_COPY, con2);
 						} catch (Exception e) {
@@ -0,0 +1,180 @@
+package uniandes.unacloud.control;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import uniandes.unacloud.share.db.DeploymentManager;
+import uniandes.unacloud.share.db.entities.DeployedImageEntity;
+import uniandes.unacloud.share.db.entities.DeploymentEntity;
+
+/**
+ * Measures statements and time used by DeploymentManager.getDeployment as deployment size grows.
+ * Database is replaced by a scripted JDBC connection which answers rows of a deployment in memory and spends a fixed round trip time in each statement,
+ * so it runs without MySQL. One of each ten executions has not a node ON and it is failed in bulk.
+ * Statements must not grow with executions, only with each block of interfaces loaded together.
+ * Usage: java uniandes.unacloud.control.DeploymentLoadBenchmark [round trip microseconds]
+ * @author agent
+ *
+ */
+public class DeploymentLoadBenchmark {
+
+	/**
+	 * Deployment sizes measured
+	 */
+	private static final int[] SIZES = {10, 100, 500, 2000};
+
+	/**
+	 * Max statements expected in a load: deployment, executions, failure update and one interface query by each 1000 executions
+	 */
+	private static final int MAX_STATEMENTS = 3 + (SIZES[SIZES.length - 1] + 999) / 1000;
+
+	public static void main(String[] args) throws Exception {
+		long roundTrip = (args.length > 0 ? Long.parseLong(args[0]) : 200) * 1000;
+		PrintStream out = System.out;
+		//Queries are printed by managers
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		}));
+		boolean passed = true;
+		for (int size : SIZES) {
+			ScriptedDatabase database = new ScriptedDatabase(size, roundTrip);
+			DeploymentManager.getDeployment(1L, database.getConnection());
+			database.statements = 0;
+			long start = System.nanoTime();
+			DeploymentEntity deployment = DeploymentManager.getDeployment(1L, database.getConnection());
+			long time = (System.nanoTime() - start) / 1000;
+			int loaded = 0;
+			for (DeployedImageEntity image : deployment.getImages())
+				loaded += image.getExecutions().size();
+			out.println("Executions " + size + ": " + database.statements + " statements, " + time / 1000.0 + " ms, " + loaded + " loaded");
+			passed &= database.statements <= MAX_STATEMENTS && loaded == size - size / 10;
+		}
+		out.println(passed ? "All checks passed" : "Statements grow with executions or executions were not loaded");
+		System.exit(passed ? 0 : 1);
+	}
+
+	/**
+	 * JDBC connection which answers rows of a deployment with an image and its executions
+	 */
+	private static class ScriptedDatabase {
+
+		private final int executions;
+
+		private final long roundTrip;
+
+		private int statements;
+
+		public ScriptedDatabase(int executions, long roundTrip) {
+			this.executions = executions;
+			this.roundTrip = roundTrip;
+		}
+
+		public Connection getConnection() {
+			return proxy(Connection.class, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					if (method.getName().equals("prepareStatement"))
+						return prepare((String) args[0]);
+					return null;
+				}
+			});
+		}
+
+		private PreparedStatement prepare(final String sql) {
+			final Map<Integer, Object> parameters = new TreeMap<Integer, Object>();
+			return proxy(PreparedStatement.class, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					String name = method.getName();
+					if (name.startsWith("set")) {
+						parameters.put((Integer) args[0], args[1]);
+						return null;
+					}
+					if (name.equals("executeUpdate")) {
+						execute();
+						return 1;
+					}
+					if (name.equals("executeQuery")) {
+						execute();
+						return answer(sql, parameters);
+					}
+					return name.equals("toString") ? sql : null;
+				}
+			});
+		}
+
+		/**
+		 * Spends round trip time of a statement
+		 */
+		private void execute() {
+			statements++;
+			long start = System.nanoTime();
+			while (System.nanoTime() - start < roundTrip);
+		}
+
+		private ResultSet answer(String sql, Map<Integer, Object> parameters) {
+			List<Object[]> rows = new ArrayList<Object[]>();
+			Timestamp time = new Timestamp(System.currentTimeMillis());
+			if (sql.contains("FROM deployment"))
+				rows.add(new Object[]{1L, time, "ACTIVE"});
+			else if (sql.contains("FROM execution"))
+				for (long i = 1; i <= executions; i++) {
+					//Node is not ON
+					boolean off = i % 10 == 0;
+					rows.add(new Object[]{i, 1, 1024, 60L, i, "vm" + i, 1L, "user", "password", "AVAILABLE", "", "token",
+							off ? null : i, off ? null : "10.0.0." + i, off ? null : time, off ? null : "pm" + i});
+				}
+			else if (sql.contains("FROM net_interface"))
+				for (Object id : parameters.values())
+					rows.add(new Object[]{id, "eth0", "192.168.0." + id, "255.255.255.0", id});
+			return rows(rows);
+		}
+
+		private static ResultSet rows(final List<Object[]> rows) {
+			return proxy(ResultSet.class, new InvocationHandler() {
+
+				private int row = -1;
+
+				private boolean wasNull;
+
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					String name = method.getName();
+					if (name.equals("next"))
+						return ++row < rows.size();
+					if (name.equals("wasNull"))
+						return wasNull;
+					if (!name.startsWith("get"))
+						return null;
+					Object value = rows.get(row)[(Integer) args[0] - 1];
+					wasNull = value == null;
+					if (name.equals("getLong"))
+						return value == null ? 0L : ((Number) value).longValue();
+					if (name.equals("getInt"))
+						return value == null ? 0 : ((Number) value).intValue();
+					if (name.equals("getString"))
+						return value == null ? null : value.toString();
+					return value;
+				}
+			});
+		}
+
+		@SuppressWarnings("unchecked")
+		private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+			return (T) Proxy.newProxyInstance(DeploymentLoadBenchmark.class.getClassLoader(), new Class<?>[]{type}, handler);
+		}
+	}
+}
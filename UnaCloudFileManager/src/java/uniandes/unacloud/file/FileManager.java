@@ -31,6 +31,11 @@ public class FileManager extends ProjectManager {
 	 * Number of initial and minimum active connections to database
 	 */
 	private static final int POOL_SIZE = 5;
+	
+	/**
+	 * Default max number of connections to database
+	 */
+	private static final int POOL_MAX_TOTAL = 20;
 
 	/**
 	 * Number of concurrent threads to process request for files
@@ -81,20 +86,22 @@ public class FileManager extends ProjectManager {
 				UnaCloudConstants.DB_PASS,
 				UnaCloudConstants.DB_PORT,
 				UnaCloudConstants.DB_IP,
-				UnaCloudConstants.DB_USERNAME};
+				UnaCloudConstants.DB_USERNAME,
+				UnaCloudConstants.DB_LOG_QUERIES,
+				UnaCloudConstants.DB_POOL_SIZE,
+				UnaCloudConstants.DB_POOL_MAX_TOTAL,
+				UnaCloudConstants.DB_POOL_MAX_WAIT,
+				UnaCloudConstants.DB_VALIDATION_QUERY,
+				UnaCloudConstants.DB_ABANDONED_TIMEOUT,
+				UnaCloudConstants.DB_REWRITE_BATCHED,
+				UnaCloudConstants.QUEUE_CONSUMERS,
+				UnaCloudConstants.QUEUE_PREFETCH};
 	}
 
 	@Override
 	protected void startDatabaseService() throws Exception {
 		System.out.println("Start database service");
-		connection = new DatabaseConnection();
-		connection.connect(
-				reader.getStringVariable(UnaCloudConstants.DB_NAME), 
-				reader.getIntegerVariable(UnaCloudConstants.DB_PORT),
-				reader.getStringVariable(UnaCloudConstants.DB_IP), 
-				reader.getStringVariable(UnaCloudConstants.DB_USERNAME), 
-				reader.getStringVariable(UnaCloudConstants.DB_PASS),
-				POOL_SIZE);
+		connection = createDatabaseConnection(POOL_SIZE, POOL_MAX_TOTAL);
 		connection.getConnection().close();		
 	}
 
@@ -107,7 +114,9 @@ public class FileManager extends ProjectManager {
 			String queueIP = ServerVariableManager.getVariable(con, UnaCloudConstants.QUEUE_IP).getValue();
 			int queuePort = Integer.parseInt(ServerVariableManager.getVariable(con, UnaCloudConstants.QUEUE_PORT).getValue());
 			QueueRabbitManager rabbitManager = new QueueRabbitManager(queueUser, queuePass, queueIP, queuePort,
-					UnaCloudConstants.QUEUE_FILE);
+					UnaCloudConstants.QUEUE_FILE,
+					reader.getIntegerVariable(UnaCloudConstants.QUEUE_CONSUMERS, QueueRabbitManager.DEFAULT_CONSUMERS),
+					reader.getIntegerVariable(UnaCloudConstants.QUEUE_PREFETCH, QueueRabbitManager.DEFAULT_PREFETCH));
 			queueReceiver = new QueueMessageReceiver();
 			queueReceiver.createConnection(rabbitManager);
 			queueReceiver.startReceiver(new QueueMessageFileProcessor(CONCURRENT_THREADS_QUEUE));	
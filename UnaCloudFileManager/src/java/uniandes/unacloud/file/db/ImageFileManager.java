@@ -11,6 +11,8 @@ import uniandes.unacloud.file.db.entities.UserEntity;
 import uniandes.unacloud.file.db.entities.ImageFileEntity;
 import uniandes.unacloud.share.db.PlatformManager;
 import uniandes.unacloud.share.db.StorageManager;
+import uniandes.unacloud.share.db.DatabaseConnection;
+import uniandes.unacloud.share.db.UpdateBuilder;
 
 /**
  * Class used to execute query, update and delete processes in database for Image entity. 
@@ -20,6 +22,27 @@ import uniandes.unacloud.share.db.StorageManager;
  */
 public class ImageFileManager {
 	
+	/**
+	 * Update of image values, used by setImageFile
+	 */
+	private static final UpdateBuilder UPDATE = new UpdateBuilder("UPDATE image vm", "vm.id = ? AND vm.id > 0");
+	
+	private static final UpdateBuilder.Clause CLEAN_TOKEN = UPDATE.field("vm.token = NULL");
+	
+	private static final UpdateBuilder.Clause IS_PUBLIC = UPDATE.field("vm.is_public = ?");
+	
+	private static final UpdateBuilder.Clause REPOSITORY = UPDATE.field("vm.repository_id = ?");
+	
+	private static final UpdateBuilder.Clause MAIN_FILE = UPDATE.field("vm.main_file = ?");
+	
+	private static final UpdateBuilder.Clause STATE = UPDATE.field("vm.state = ?");
+	
+	private static final UpdateBuilder.Clause TOKEN = UPDATE.field("vm.token = ?");
+	
+	private static final UpdateBuilder.Clause VERSION = UPDATE.field("vm.image_version = vm.image_version + 1");
+	
+	private static final UpdateBuilder.Clause FIXED_DISK = UPDATE.field("vm.fixed_disk_size = ?");
+	
 	/**
 	 * Returns an image entity with information about file and repository
 	 * @param id
@@ -112,35 +135,22 @@ public class ImageFileManager {
 		if (image.getId() == null || image.getId() < 1)
 			return false;
 		try {
-			String query = "UPDATE image vm SET" + 
-						(withToken ? ", vm.token = NULL" : "") +
-						(image.isPublic() != null ? ", vm.is_public = ? " : "") +
-						(image.getRepository() != null ? ", vm.repository_id = ? " : "") +
-						(image.getMainFile() != null ? ", vm.main_file = ? " : "") +
-						(image.getState() != null ? ", vm.state = ? " : "") +
-						(!withToken && image.getToken() != null ? ", vm.token = ? " : "");
-			if (query.contains(",")) {
-				query = query.replaceFirst(",", "");
+			UpdateBuilder.Update change = UPDATE.update();
+			if (withToken) change.add(CLEAN_TOKEN);
+			if (image.isPublic() != null) change.set(IS_PUBLIC, image.isPublic());
+			if (image.getRepository() != null) change.set(REPOSITORY, image.getRepository().getId());
+			if (image.getMainFile() != null) change.set(MAIN_FILE, image.getMainFile());
+			if (image.getState() != null) change.set(STATE, image.getState());
+			if (!withToken && image.getToken() != null) change.set(TOKEN, image.getToken());
+			if (change.hasFields()) {
 				if (update)
-					query += ", vm.image_version = vm.image_version + 1 ";
+					change.add(VERSION);
 				if (image.getFixDisk() != null && image.getFixDisk() > 0)
-					query += ", vm.fixed_disk_size = " + image.getFixDisk() + " ";
-				query += "WHERE vm.id = ? AND vm.id > 0;";				
-				PreparedStatement ps = con.prepareStatement(query);
-				int id = 1;
-				if (image.isPublic() != null) ps.setBoolean(id++, image.isPublic());
-				if (image.getRepository() != null) ps.setLong(id++, image.getRepository().getId());
-				if (image.getMainFile() != null) ps.setString(id++, image.getMainFile());
-				if (image.getState() != null) ps.setString(id++, image.getState().name());
-				if (!withToken && image.getToken() != null) ps.setString(id++, image.getToken());
-				ps.setLong(id, image.getId());
-				System.out.println(ps.toString());
-				System.out.println("Change " + ps.executeUpdate() + " lines");
-				try {
-					ps.close();
-				} catch(Exception e){
-					e.printStackTrace();
-				}			
+					change.set(FIXED_DISK, image.getFixDisk());
+				change.key(image.getId());
+				int lines = change.execute(con);
+				if (DatabaseConnection.isLogQueries())
+					System.out.println("Change " + lines + " lines");
 				return true;
 			}
 		} catch (Exception e) {
@@ -1,7 +1,11 @@
 package uniandes.unacloud.file.net;
 
 import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 
 import uniandes.unacloud.common.enums.FileEnum;
 import uniandes.unacloud.common.net.tcp.AbstractTCPServerSocket;
@@ -26,6 +30,16 @@ public class FileServerSocket extends AbstractTCPServerSocket {
 		super(listenPort, threads);		
 	}
 
+	/**
+	 * Sockets are created from channels so files can be sent using FileChannel.transferTo
+	 */
+	@Override
+	protected ServerSocket createServerSocket(int port) throws IOException {
+		ServerSocket ss = ServerSocketChannel.open().socket();
+		ss.bind(new InetSocketAddress(port));
+		return ss;
+	}
+
 	@Override
 	protected Runnable processSocket(Socket s) throws Exception {
 		DataInputStream ds = new DataInputStream(s.getInputStream());
@@ -1,29 +1,51 @@
 package uniandes.unacloud.file.net.task;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.sql.Connection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import uniandes.unacloud.share.enums.ImageEnum;
 import uniandes.unacloud.common.enums.TransmissionProtocolEnum;
 import uniandes.unacloud.common.net.tcp.AbstractTCPSocketProcessor;
+import uniandes.unacloud.common.net.tcp.ChunkManifest;
+import uniandes.unacloud.common.net.tcp.ImageTransferHeader;
+import uniandes.unacloud.common.utils.UnaCloudConstants;
 import uniandes.unacloud.file.FileManager;
 import uniandes.unacloud.file.db.ImageFileManager;
 import uniandes.unacloud.file.db.entities.ImageFileEntity;
 
 /**
  * This class sends files to agent when an agent doesn't have image in its cache folder.
+ * In raw and chunked transmissions image data is sent in a header frame and files are copied from disk to socket using FileChannel.transferTo.
+ * Agents of previous versions receive files and image data as entries of a zip stream.
  * @author CesarF
  *
  */
 public class FileTransferTask extends AbstractTCPSocketProcessor {
-	
+
+	/**
+	 * Manifests of files sent using CHUNKED transmission by path, size and modification date.
+	 * Manifest is created once by the first request, concurrent requests for the same file wait for it
+	 */
+	private static final ConcurrentHashMap<String, FutureTask<ChunkManifest>> manifests = new ConcurrentHashMap<String, FutureTask<ChunkManifest>>();
+
 	public FileTransferTask(Socket s) {
 		super(s);
 		System.out.println("Working " + s.getRemoteSocketAddress());
@@ -31,41 +53,57 @@ public class FileTransferTask extends AbstractTCPSocketProcessor {
 
 	@Override
 	public void processMessage(Socket s) throws Exception {
-		try (Socket ss = s; DataInputStream ds = new DataInputStream(s.getInputStream()); OutputStream os = s.getOutputStream(); ) {			
-			
-			ZipOutputStream zos = new ZipOutputStream(os);
+		try (Socket ss = s; DataInputStream ds = new DataInputStream(s.getInputStream()); OutputStream os = s.getOutputStream(); ) {
+
 			long imageId = ds.readLong();
-			System.out.println("\tWorking " + imageId);	
-			
-			TransmissionProtocolEnum protocol = TransmissionProtocolEnum.getEnum(ds.readUTF());
-			
+			System.out.println("\tWorking " + imageId);
+
+			String protocolName = ds.readUTF();
+			boolean raw = protocolName.startsWith(UnaCloudConstants.RAW_TRANSMISSION_PREFIX);
+			TransmissionProtocolEnum protocol = TransmissionProtocolEnum.getEnum(raw ? protocolName.substring(UnaCloudConstants.RAW_TRANSMISSION_PREFIX.length()) : protocolName);
+
 			ImageFileEntity image = null;
 			try (Connection con = FileManager.getInstance().getDBConnection();) {
 				image = ImageFileManager.getImageWithFile(imageId, ImageEnum.AVAILABLE, false, true, con);
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
-						
+
+			if (protocol == TransmissionProtocolEnum.CHUNKED) {
+				sendChunks(s, image, ds, new DataOutputStream(new BufferedOutputStream(os)));
+				return;
+			}
+
+			File file = null;
 			if (image != null) {
 				System.out.println(image + " - " + imageId + " - " + image.getState());
+				if (protocol == TransmissionProtocolEnum.TCP)
+					file = image.getFileConversor().getZipFile();
+				else if (protocol == TransmissionProtocolEnum.P2P)
+					file = image.getFileConversor().getTorrentFile();
+			}
+
+			if (raw) {
+				sendRaw(s, image, file, new DataOutputStream(new BufferedOutputStream(os)));
+				return;
+			}
+
+			if (image != null) {
+				ZipOutputStream zos = new ZipOutputStream(os);
+				//Stored file is already compressed
+				zos.setLevel(Deflater.NO_COMPRESSION);
 				final byte[] buffer = new byte[1024 * 100];
 				System.out.println("\t Sending files " + image.getMainFile());
-				File file = null;
-				
-				if (protocol == TransmissionProtocolEnum.TCP)	
-					file = image.getFileConversor().getZipFile();			
-				else if (protocol == TransmissionProtocolEnum.P2P)
-					file = image.getFileConversor().getTorrentFile();	
-				
+
 				System.out.println("\tprocessing: " + file.getName());
-				zos.putNextEntry(new ZipEntry(file.getName()));					
+				zos.putNextEntry(new ZipEntry(file.getName()));
 				try (FileInputStream fis = new FileInputStream(file)) {
 					for (int n; (n = fis.read(buffer)) != -1;)
 						zos.write(buffer,0,n);
 				}
 				System.out.println("Files sent " + image.getMainFile());
 				zos.closeEntry();
-				
+
 				zos.putNextEntry(new ZipEntry("unacloudinfo"));
 				PrintWriter pw = new PrintWriter(zos);
 				pw.println(image.getPlatform().getConfigurer());
@@ -75,14 +113,153 @@ public class FileTransferTask extends AbstractTCPSocketProcessor {
 				pw.println(image.getName());
 				pw.println(image.getConfigurer());
 				pw.flush();
-				
+
 				zos.closeEntry();
 				zos.flush();
-			}		
-			
+			}
+
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		
+
+	}
+
+	/**
+	 * Sends header frame followed by file content
+	 * @param s socket
+	 * @param image image requested, null in case it is not available
+	 * @param file file to be sent
+	 * @param out socket output
+	 * @throws IOException
+	 */
+	private void sendRaw(Socket s, ImageFileEntity image, File file, DataOutputStream out) throws IOException {
+		if (file == null || !file.exists()) {
+			new ImageTransferHeader().write(out);
+			out.flush();
+			return;
+		}
+		System.out.println("\t Sending raw " + file.getName());
+		getHeader(image, file).write(out);
+		out.flush();
+		try (FileChannel channel = new FileInputStream(file).getChannel()) {
+			transfer(channel, 0, channel.size(), s, out);
+		}
+		System.out.println("Files sent " + image.getMainFile());
+	}
+
+	/**
+	 * Answers a request of CHUNKED transmission: image data with manifest of zip file, or a list of chunks requested by digest
+	 * @param s socket
+	 * @param image image requested, null in case it is not available
+	 * @param in socket input
+	 * @param out socket output
+	 * @throws Exception
+	 */
+	private void sendChunks(Socket s, ImageFileEntity image, DataInputStream in, DataOutputStream out) throws Exception {
+		int request = in.readInt();
+		File file = image == null ? null : image.getFileConversor().getZipFile();
+		if (request == ChunkManifest.REQUEST_MANIFEST) {
+			if (file != null && file.exists()) {
+				getHeader(image, file).write(out);
+				getManifest(file).write(out);
+				System.out.println("\tManifest sent " + file.getName());
+			}
+			else
+				new ImageTransferHeader().write(out);
+			out.flush();
+		}
+		else if (request == ChunkManifest.REQUEST_CHUNKS) {
+			int count = in.readInt();
+			String[] digests = new String[count];
+			for (int i = 0; i < count; i++)
+				digests[i] = ChunkManifest.readDigest(in);
+			ChunkManifest manifest = file == null || !file.exists() ? null : getManifest(file);
+			try (FileChannel channel = manifest == null ? null : new FileInputStream(file).getChannel()) {
+				for (String digest : digests) {
+					int index = manifest == null ? -1 : manifest.indexOf(digest);
+					if (index < 0) {
+						out.writeInt(-1);
+						continue;
+					}
+					int length = manifest.getLength(index);
+					out.writeInt(length);
+					out.flush();
+					transfer(channel, manifest.getOffset(index), length, s, out);
+				}
+			}
+			out.flush();
+			System.out.println("\t" + count + " chunks sent of " + (file == null ? null : file.getName()));
+		}
+	}
+
+	/**
+	 * Copies a region of file to socket. When socket has a channel bytes are copied by operating system without passing through java heap.
+	 * @param channel file
+	 * @param position start of region
+	 * @param count bytes to be sent
+	 * @param s socket
+	 * @param out socket output, used when socket has not channel
+	 * @throws IOException
+	 */
+	private static void transfer(FileChannel channel, long position, long count, Socket s, OutputStream out) throws IOException {
+		WritableByteChannel target = s.getChannel() != null ? s.getChannel() : Channels.newChannel(out);
+		long end = position + count;
+		while (position < end) {
+			long sent = channel.transferTo(position, end - position, target);
+			if (sent <= 0 && channel.size() < end)
+				throw new IOException("File changed while it was sent");
+			position += sent;
+		}
+	}
+
+	/**
+	 * Creates header with image data
+	 * @param image
+	 * @param file file sent after header
+	 * @return header
+	 */
+	private static ImageTransferHeader getHeader(ImageFileEntity image, File file) {
+		return new ImageTransferHeader(image.getPlatform().getConfigurer(), new File(image.getMainFile()).getName(),
+				image.getPassword(), image.getUser(), image.getConfigurer(), file.getName(), file.length());
+	}
+
+	/**
+	 * Returns manifest of file, manifests are created once and kept while file doesn't change.
+	 * When file changes manifests of its previous versions are discarded.
+	 * @param file
+	 * @return manifest
+	 * @throws IOException
+	 */
+	private static ChunkManifest getManifest(final File file) throws IOException {
+		String path = file.getAbsolutePath() + ":";
+		String key = path + file.length() + ":" + file.lastModified();
+		FutureTask<ChunkManifest> task = manifests.get(key);
+		if (task == null) {
+			FutureTask<ChunkManifest> created = new FutureTask<ChunkManifest>(new Callable<ChunkManifest>() {
+				@Override
+				public ChunkManifest call() throws Exception {
+					System.out.println("\tCreating manifest of " + file.getName());
+					return ChunkManifest.create(file, ChunkManifest.DEFAULT_CHUNK_SIZE);
+				}
+			});
+			task = manifests.putIfAbsent(key, created);
+			if (task == null) {
+				task = created;
+				for (String old : manifests.keySet())
+					if (old.startsWith(path) && !old.equals(key))
+						manifests.remove(old);
+				task.run();
+			}
+		}
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting manifest of " + file.getName(), e);
+		} catch (ExecutionException e) {
+			//Manifest is created again by next request
+			manifests.remove(key, task);
+			throw new IOException("Error creating manifest of " + file.getName(), e.getCause());
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,161 @@
+package uniandes.unacloud.file.net.task;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import uniandes.unacloud.common.net.tcp.ImageTransferHeader;
+
+/**
+ * Measures throughput of file server sending a stored image zip to concurrent local clients, as FileTransferTask sends it:
+ * inside a compressed zip stream as before raw mode, inside a stored zip stream as agents of previous versions receive it,
+ * and as header frame followed by file copied with FileChannel.transferTo.
+ * Image file is random data, so it is not compressible as a zip of VM files.
+ * Server and clients run in the same process over loopback, without database or FileManager.
+ * Usage: java uniandes.unacloud.file.net.task.ImageServingBenchmark [clients] [image MB]
+ * @author agent
+ *
+ */
+public class ImageServingBenchmark {
+
+	/**
+	 * Ways the file server sends the image
+	 */
+	private enum Mode {
+		ZIP_DEFLATED, ZIP_STORED, RAW_TRANSFER_TO
+	}
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int size = (args.length > 1 ? Integer.parseInt(args[1]) : 64) * 1024 * 1024;
+		File image = File.createTempFile("unacloud_image", ".zip");
+		image.deleteOnExit();
+		byte[] data = new byte[size];
+		new Random(1).nextBytes(data);
+		try (FileOutputStream fos = new FileOutputStream(image)) {
+			fos.write(data);
+		}
+		boolean passed = true;
+		for (Mode mode : Mode.values()) {
+			long start = System.nanoTime();
+			long received = run(mode, image, clients);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			double mb = received / (1024.0 * 1024.0);
+			System.out.println(String.format("%-16s clients %d, %.0f MB in %.2f s, %.0f MB/s", mode, clients, mb, seconds, mb / seconds));
+			passed &= received == (long) size * clients;
+		}
+		image.delete();
+		System.out.println(passed ? "All checks passed" : "Clients didn't receive the whole image");
+		System.exit(passed ? 0 : 1);
+	}
+
+	/**
+	 * Serves image to clients at the same time
+	 * @param mode
+	 * @param image
+	 * @param clients
+	 * @return bytes of image received by all clients
+	 * @throws Exception
+	 */
+	private static long run(final Mode mode, final File image, int clients) throws Exception {
+		final ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+		final int port = server.socket().getLocalPort();
+		ExecutorService pool = Executors.newFixedThreadPool(clients * 2);
+		try {
+			for (int i = 0; i < clients; i++)
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						try (Socket s = server.accept().socket()) {
+							serve(mode, image, s);
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+				});
+			List<Future<Long>> downloads = new ArrayList<Future<Long>>();
+			for (int i = 0; i < clients; i++)
+				downloads.add(pool.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						try (Socket s = new Socket("127.0.0.1", port)) {
+							return receive(mode, s.getInputStream());
+						}
+					}
+				}));
+			long received = 0;
+			for (Future<Long> download : downloads)
+				received += download.get();
+			return received;
+		} finally {
+			pool.shutdown();
+			server.close();
+		}
+	}
+
+	private static void serve(Mode mode, File image, Socket s) throws IOException {
+		if (mode == Mode.RAW_TRANSFER_TO) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			new ImageTransferHeader("VBox5", "image.vbox", "password", "user", "Ubuntu", image.getName(), image.length()).write(out);
+			out.flush();
+			try (FileChannel channel = new FileInputStream(image).getChannel()) {
+				for (long position = 0; position < channel.size();)
+					position += channel.transferTo(position, channel.size() - position, s.getChannel());
+			}
+			return;
+		}
+		ZipOutputStream zos = new ZipOutputStream(s.getOutputStream());
+		if (mode == Mode.ZIP_STORED)
+			zos.setLevel(Deflater.NO_COMPRESSION);
+		zos.putNextEntry(new ZipEntry(image.getName()));
+		byte[] buffer = new byte[1024 * 100];
+		try (FileInputStream fis = new FileInputStream(image)) {
+			for (int n; (n = fis.read(buffer)) != -1;)
+				zos.write(buffer, 0, n);
+		}
+		zos.closeEntry();
+		zos.finish();
+		zos.flush();
+	}
+
+	private static long receive(Mode mode, InputStream is) throws IOException {
+		InputStream in;
+		if (mode == Mode.RAW_TRANSFER_TO) {
+			in = new DataInputStream(new BufferedInputStream(is));
+			ImageTransferHeader.read((DataInputStream) in);
+		} else {
+			ZipInputStream zis = new ZipInputStream(is);
+			zis.getNextEntry();
+			in = zis;
+		}
+		byte[] buffer = new byte[1024 * 1024];
+		long received = 0;
+		for (int n; (n = in.read(buffer)) != -1;)
+			received += n;
+		//Zip central directory is sent after entry
+		while (is.read(buffer) != -1);
+		return received;
+	}
+}